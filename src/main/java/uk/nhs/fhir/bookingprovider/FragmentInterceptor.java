@@ -0,0 +1,331 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.IRestfulResponse;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.IRestfulServerDefaults;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.util.DateUtils;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.hl7.fhir.dstu3.model.Basic;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import uk.nhs.fhir.bookingprovider.data.BookingStore;
+import uk.nhs.fhir.bookingprovider.data.FragmentCache;
+
+/**
+ * Writes out search Bundles with the resources Slots _include (Schedules,
+ * HealthcareServices, Practitioners and so on) spliced in from the current
+ * snapshot's FragmentCache, rather than encoded again for every response.
+ *
+ * The Bundle is encoded by the same parser HAPI would use, but with each
+ * cached resource swapped for a small marker resource, whose text is then
+ * replaced by the cached text of the resource. Inside a Bundle a resource is
+ * encoded exactly as it is on its own, just indented to the depth of
+ * Bundle.entry.resource, which is worked out once for each format. Each
+ * resource's text is checked against a real Bundle the first time it is
+ * encoded, and one that doesn't match is never spliced.
+ *
+ * Anything else (a resource which isn't a Bundle, a format other than JSON
+ * or XML, _summary or _elements, or a marker that can't be found) is left
+ * to HAPI, so the response is the same either way.
+ */
+public class FragmentInterceptor extends InterceptorAdapter {
+
+    /**
+     * The logger we'll use throughout this class.
+     */
+    private static final Logger LOG
+            = Logger.getLogger(FragmentInterceptor.class.getName());
+
+    /**
+     * Responses are always written as UTF-8.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Stored for a format whose indent couldn't be worked out.
+     */
+    private static final String NO_INDENT = "none";
+
+    /**
+     * Stored for a resource whose text doesn't match its text in a Bundle.
+     */
+    private static final String NO_FRAGMENT = "";
+
+    /**
+     * The most spaces a Bundle entry's resource is expected to be indented.
+     */
+    private static final int MAX_INDENT = 32;
+
+    /**
+     * Where the current snapshot, and so its FragmentCache, comes from.
+     */
+    private final BookingStore data;
+
+    /**
+     * The indent of Bundle.entry.resource in each format.
+     */
+    private final ConcurrentHashMap<String, String> indents
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param store Where the Slots and the resources they include are held.
+     */
+    public FragmentInterceptor(final BookingStore store) {
+        data = store;
+    }
+
+    /**
+     * Method to write out a search Bundle with its cached resources spliced
+     * in.
+     *
+     * @param theRequestDetails The request.
+     * @param theResponseDetails The response HAPI is about to write.
+     * @param theServletRequest The underlying request.
+     * @param theServletResponse The underlying response.
+     * @return false if the response has been written here, or true to let
+     * HAPI write it as normal.
+     */
+    @Override
+    public boolean outgoingResponse(final RequestDetails theRequestDetails,
+            final ResponseDetails theResponseDetails,
+            final HttpServletRequest theServletRequest,
+            final HttpServletResponse theServletResponse) {
+        IBaseResource resource = theResponseDetails.getResponseResource();
+        if (!(resource instanceof Bundle)
+                || theResponseDetails.getResponseCode() != 200
+                || !isPlainEncoding(theRequestDetails)) {
+            return true;
+        }
+        IRestfulServerDefaults server = theRequestDetails.getServer();
+        ResponseEncoding encoding = RestfulServerUtils
+                .determineResponseEncodingWithDefault(theRequestDetails);
+        EncodingEnum type = encoding.getEncoding();
+        if (type != EncodingEnum.JSON && type != EncodingEnum.XML) {
+            return true;
+        }
+        boolean pretty = RestfulServerUtils.prettyPrintResponse(server,
+                theRequestDetails);
+        IParser parser = RestfulServerUtils.getNewParser(
+                server.getFhirContext(), FhirVersionEnum.DSTU3,
+                theRequestDetails);
+        String format = type.name().toLowerCase()
+                + (pretty ? "-pretty" : "");
+        Bundle bundle = (Bundle) resource;
+        String text;
+        try {
+            text = encode(bundle, data.getSnapshot().getIncludeGraph()
+                    .getFragments(), parser, format);
+        } catch (RuntimeException ex) {
+            LOG.warning("Unable to splice Bundle: " + ex.getMessage());
+            return true;
+        }
+        if (text == null) {
+            return true;
+        }
+        IRestfulResponse response = theRequestDetails.getResponse();
+        if (bundle.getMeta().getLastUpdated() != null) {
+            response.addHeader("Last-Modified",
+                    DateUtils.formatDate(bundle.getMeta().getLastUpdated()));
+        }
+        String contentType = encoding.getResourceContentType();
+        try {
+            Writer writer = response.getResponseWriter(200, null,
+                    contentType, CHARSET, theRequestDetails.isRespondGzip());
+            writer.write(text);
+            response.sendWriterResponse(200, contentType, CHARSET, writer);
+        } catch (IOException ex) {
+            throw new InternalErrorException(ex);
+        }
+        return false;
+    }
+
+    /**
+     * Method to check that a request wants resources encoded in full, so
+     * that the cached text is what HAPI would write.
+     *
+     * @param theRequestDetails The request.
+     * @return true if there's no _summary (other than false) or _elements.
+     */
+    private static boolean isPlainEncoding(
+            final RequestDetails theRequestDetails) {
+        if (theRequestDetails.getParameters().containsKey("_elements")) {
+            return false;
+        }
+        Set<SummaryEnum> summary
+                = RestfulServerUtils.determineSummaryMode(theRequestDetails);
+        return summary == null || summary.isEmpty()
+                || (summary.size() == 1 && summary.contains(SummaryEnum.FALSE));
+    }
+
+    /**
+     * Method to encode a Bundle, splicing in the cached text of any resource
+     * in it that the cache holds.
+     *
+     * @param bundle The Bundle, which is left as it was.
+     * @param cache The cached text.
+     * @param parser The parser the response is written with.
+     * @param format Identifies the parser's encoding and layout (eg json,
+     * xml-pretty).
+     * @return The encoded Bundle, or null if nothing could be spliced.
+     */
+    String encode(final Bundle bundle, final FragmentCache cache,
+            final IParser parser, final String format) {
+        String indent = indentFor(parser, format);
+        if (indent == null) {
+            return null;
+        }
+        ArrayList<BundleEntryComponent> entries = new ArrayList<>();
+        ArrayList<Resource> originals = new ArrayList<>();
+        ArrayList<String> markers = new ArrayList<>();
+        ArrayList<String> fragments = new ArrayList<>();
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+            Resource original = entry.getResource();
+            if (original == null || !cache.holds(original)) {
+                continue;
+            }
+            String fragment = fragmentFor(original, cache, parser, format,
+                    indent);
+            if (fragment == null) {
+                continue;
+            }
+            Basic marker = new Basic();
+            marker.setId("fragment" + markers.size());
+            markers.add(indent(parser.encodeResourceToString(marker),
+                    indent));
+            fragments.add(fragment);
+            entries.add(entry);
+            originals.add(original);
+            entry.setResource(marker);
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        String text;
+        try {
+            text = parser.encodeResourceToString(bundle);
+        } finally {
+            for (int i = 0; i < entries.size(); i++) {
+                entries.get(i).setResource(originals.get(i));
+            }
+        }
+        StringBuilder result = new StringBuilder(text.length()
+                + fragments.size() * 1024);
+        int from = 0;
+        for (int i = 0; i < markers.size(); i++) {
+            int at = text.indexOf(markers.get(i), from);
+            if (at < 0) {
+                return null;
+            }
+            result.append(text, from, at).append(fragments.get(i));
+            from = at + markers.get(i).length();
+        }
+        return result.append(text, from, text.length()).toString();
+    }
+
+    /**
+     * Method to get the text of a resource as it appears inside a Bundle,
+     * from the cache if it's there, or else by encoding it (and checking it
+     * against a Bundle holding it) and keeping it.
+     *
+     * @param resource The resource.
+     * @param cache The cached text.
+     * @param parser The parser the response is written with.
+     * @param format Identifies the parser's encoding and layout.
+     * @param indent The indent of Bundle.entry.resource.
+     * @return The text, or null if it can't be spliced.
+     */
+    private static String fragmentFor(final Resource resource,
+            final FragmentCache cache, final IParser parser,
+            final String format, final String indent) {
+        String fragment = cache.get(resource, format);
+        if (fragment == null) {
+            fragment = indent(parser.encodeResourceToString(resource), indent);
+            Bundle probe = new Bundle();
+            probe.addEntry().setResource(resource);
+            if (!parser.encodeResourceToString(probe).contains(fragment)) {
+                LOG.warning("Not splicing " + resource.getId() + " as "
+                        + format);
+                fragment = NO_FRAGMENT;
+            }
+            cache.put(resource, format, fragment);
+        }
+        return fragment.isEmpty() ? null : fragment;
+    }
+
+    /**
+     * Method to work out how far a resource is indented inside a Bundle, by
+     * finding a marker resource in a Bundle holding it.
+     *
+     * @param parser The parser the response is written with.
+     * @param format Identifies the parser's encoding and layout.
+     * @return The indent, or null if it couldn't be found.
+     */
+    private String indentFor(final IParser parser, final String format) {
+        String indent = indents.get(format);
+        if (indent == null) {
+            Basic marker = new Basic();
+            marker.setId("fragment0");
+            String alone = parser.encodeResourceToString(marker);
+            Bundle probe = new Bundle();
+            probe.addEntry().setResource(marker);
+            String whole = parser.encodeResourceToString(probe);
+            indent = NO_INDENT;
+            StringBuilder spaces = new StringBuilder();
+            for (int i = 0; i <= MAX_INDENT; i++) {
+                if (whole.contains(indent(alone, spaces.toString()))) {
+                    indent = spaces.toString();
+                    break;
+                }
+                spaces.append(' ');
+            }
+            indents.put(format, indent);
+        }
+        return NO_INDENT.equals(indent) ? null : indent;
+    }
+
+    /**
+     * Method to indent every line of some text but the first.
+     *
+     * @param text The text.
+     * @param indent The indent.
+     * @return The indented text.
+     */
+    private static String indent(final String text, final String indent) {
+        return indent.isEmpty() ? text : text.replace("\n", "\n" + indent);
+    }
+}
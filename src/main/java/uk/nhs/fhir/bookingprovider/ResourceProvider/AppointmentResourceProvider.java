@@ -20,14 +20,21 @@ import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.parser.JsonParser;
 import ca.uhn.fhir.rest.annotation.Create;
+import ca.uhn.fhir.rest.annotation.History;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.Search;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Update;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import java.util.ArrayList;
@@ -40,9 +47,10 @@ import org.hl7.fhir.dstu3.model.Appointment.AppointmentStatus;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.exceptions.FHIRException;
 import uk.nhs.fhir.bookingprovider.checkers.AppointmentChecker;
 import uk.nhs.fhir.bookingprovider.checkers.Fault;
-import uk.nhs.fhir.bookingprovider.data.DataStore;
+import uk.nhs.fhir.bookingprovider.data.BookingStore;
 import uk.nhs.fhir.bookingprovider.logging.ExternalLogger;
 
 /**
@@ -66,6 +74,12 @@ public class AppointmentResourceProvider implements IResourceProvider {
     private static final Logger LOG =
             Logger.getLogger(AppointmentResourceProvider.class.getName());
 
+    /**
+     * The system used to indicate an identifier is an NHS Number.
+     */
+    private static final String NHSNUMSYSTEM
+            = "https://fhir.nhs.uk/Id/nhs-number";
+
     /**
      * The external logger is passed into us on the constructor. It is used
      * to log out to (MS Teams) other places.
@@ -79,9 +93,9 @@ public class AppointmentResourceProvider implements IResourceProvider {
     private FhirContext myContext;
 
     /**
-     * DataStore where we hold all resources (currently in memory).
+     * BookingStore where we hold all resources (in memory or on disk).
      */
-    private DataStore myData;
+    private BookingStore myData;
 
     /**
      * Object we're going to use to check and validate Appointment Objects.
@@ -92,12 +106,12 @@ public class AppointmentResourceProvider implements IResourceProvider {
      * Constructor that we pass in any shared objects to.
      *
      * @param ctx The overall FHIR context we're using.
-     * @param newData Our DataStore, the object we use to store Slots and other
+     * @param newData Our BookingStore, the object we use to store Slots and other
      * FHIR resources / objects.
      * @param newChecker The object we'll use to check Appointments conform.
      */
     public AppointmentResourceProvider(final FhirContext ctx,
-            final DataStore newData,
+            final BookingStore newData,
             final AppointmentChecker newChecker,
             final ExternalLogger newLogger) {
 
@@ -107,7 +121,7 @@ public class AppointmentResourceProvider implements IResourceProvider {
         myContext = ctx;
 
         /**
-         * Local handle to the DataStore.
+         * Local handle to the BookingStore.
          */
         myData = newData;
 
@@ -180,7 +194,7 @@ public class AppointmentResourceProvider implements IResourceProvider {
          * UnprocessableEntityException results in an HTTP 422, which is
          * appropriate for a business rule failure.
          */
-        ArrayList<Reference> slots = (ArrayList) newAppt.getSlot();
+        List<Reference> slots = newAppt.getSlot();
         Reference slotReference = slots.get(0);
         String slotRef = slotReference.getReference();
 
@@ -189,28 +203,31 @@ public class AppointmentResourceProvider implements IResourceProvider {
             String notFoundErr = "Specified slot was not found on this server";
             throw new UnprocessableEntityException(notFoundErr);
         } else {
-            LOG.info("Got a Slot back from DataStore");
+            LOG.info("Got a Slot back from the BookingStore");
         }
 
-        if (theSlot.getStatus() != Slot.SlotStatus.FREE) {
+        // Check the Slot is free and book it in one go, so that two requests
+        // for the same Slot can't both succeed.
+        if (!myData.bookSlotIfFree(slotRef)) {
             String notFreeErr = "The specified Slot: "
                     + slotRef
                     + " is not currently free.";
             LOG.info(notFreeErr);
             throw new UnprocessableEntityException(notFreeErr);
         } else {
-            LOG.info("Slot " + slotRef + " is currently free");
+            LOG.info("Slot " + slotRef + " was free and is now BUSY");
         }
 
-        // Save this Appointment to the database...
-        IdDt result = myData.addAppointment(newAppt);
-        if (result == null) {
-            throw new UnprocessableEntityException("Couldn't save Appointment");
-        } else {
-            LOG.info("Setting Slot " + slotRef + " to BUSY");
-            myData.setSlotBooked(slotRef);
-            newAppt.setId(result);
+        // Save this Appointment to the database, giving the Slot back if it
+        // can't be saved so that it isn't left BUSY with no Appointment.
+        IdDt result;
+        try {
+            result = myData.addAppointment(newAppt);
+        } catch (RuntimeException ex) {
+            myData.freeSlotIfBooked(slotRef);
+            throw ex;
         }
+        newAppt.setId(result);
 
         // This method returns a MethodOutcome object which contains
         // the ID (composed of the type Patient, the logical ID 3746, and the
@@ -218,7 +235,8 @@ public class AppointmentResourceProvider implements IResourceProvider {
         MethodOutcome retVal = new MethodOutcome();
         retVal.setId(result);
 
-        retVal.setResource(newAppt);
+        // Hand back a copy, so the saved version 1 can't be changed through it
+        retVal.setResource(newAppt.copy());
         retVal.setId(result);
         ourLogger.log("Response for: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " created Appointment: " + result);
         return retVal;
@@ -242,21 +260,42 @@ public class AppointmentResourceProvider implements IResourceProvider {
     public Appointment getResourceById(@IdParam IdType theId,
         HttpServletRequest theRequest) {
 
-        if (theId.hasVersionIdPart()) {
-            // this is a vread
-        } else {
-            // this is a read
-        }
         if(theRequest.getQueryString() != null) {
             ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting Appointment: " + theRequest.getRequestURL() + "?" + theRequest.getQueryString());
         } else {
             ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting Appointment: " + theRequest.getRequestURL());
         }
+        // With a version part this is a vread, and gets that exact version
         Appointment myAppt = myData.getAppointment(theId.toString());
+        if(myAppt == null) {
+            throw new ResourceNotFoundException(theId);
+        }
         ourLogger.log("Response: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " got Appointment: " + myAppt.getId());
         return myAppt;
     }
 
+    /**
+     * The "@History" annotation indicates that this method supports the
+     * instance level history operation (Appointment/1234/_history).
+     *
+     * @param theId The ID of the Appointment.
+     * @param theRequest The underlying request used to convey to us the
+     *          correlation ID that was injected in by the Request Interceptor.
+     * @return Every version of the Appointment, newest first.
+     */
+    @Description(shortDefinition="Returns every version of this specific Appointment, newest first.")
+    @History()
+    public List<Appointment> getAppointmentHistory(@IdParam IdType theId,
+        HttpServletRequest theRequest) {
+        ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting history of Appointment: " + theId.getIdPart());
+        List<Appointment> versions = myData.getAppointmentHistory(theId.getIdPart());
+        if(versions == null) {
+            throw new ResourceNotFoundException(theId);
+        }
+        ourLogger.log("Response: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " got: " + versions.size() + " versions");
+        return versions;
+    }
+
     /**
      * This returns ALL Appointments.
      *
@@ -276,6 +315,80 @@ public class AppointmentResourceProvider implements IResourceProvider {
         return appointments;
     }
 
+    /**
+     * Searches for Appointments by any combination of the Slot they book,
+     * their status, the Patient's NHS Number, their start and when they were
+     * last updated (from indexes), so a reconciliation job can ask for just
+     * what has changed since it last looked (eg _lastUpdated=gt2019-07-11T13:00:00Z).
+     *
+     * @param theSlot The Slot booked (eg Slot/slot001).
+     * @param theStatus The status (eg cancelled).
+     * @param thePatient The Patient's NHS Number, optionally with the system
+     * https://fhir.nhs.uk/Id/nhs-number.
+     * @param theDate The range the start must be in.
+     * @param theLastUpdated The range the last update must be in.
+     * @param theRequest The underlying request used to convey to us the
+     *          correlation ID that was injected in by the Request Interceptor.
+     * @return The matching Appointments, which may be none.
+     */
+    @Description(shortDefinition = "Searches for Appointments by 'slot', 'status', 'patient.identifier' (NHS Number), 'date' and '_lastUpdated'.")
+    @Search()
+    public List<Appointment> searchAppointments(
+            @OptionalParam(name = "slot") ReferenceParam theSlot,
+            @OptionalParam(name = Appointment.SP_STATUS) TokenParam theStatus,
+            @OptionalParam(name = "patient.identifier") TokenParam thePatient,
+            @OptionalParam(name = Appointment.SP_DATE) DateRangeParam theDate,
+            @OptionalParam(name = Constants.PARAM_LASTUPDATED) DateRangeParam theLastUpdated,
+            HttpServletRequest theRequest) {
+        ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " searching Appointments: " + theRequest.getQueryString());
+        AppointmentStatus status = null;
+        if (theStatus != null) {
+            try {
+                status = AppointmentStatus.fromCode(theStatus.getValue());
+            } catch (FHIRException ex) {
+                throw new UnprocessableEntityException("Unknown Appointment status: " + theStatus.getValue());
+            }
+        }
+        String nhsNumber = null;
+        if (thePatient != null) {
+            if (thePatient.getSystem() != null
+                    && !thePatient.getSystem().equals(NHSNUMSYSTEM)) {
+                throw new UnprocessableEntityException("Patients can only be found by NHS Number.");
+            }
+            nhsNumber = thePatient.getValue();
+        }
+        long[] date = window(theDate);
+        long[] updated = window(theLastUpdated);
+        List<Appointment> appointments = myData.searchAppointments(
+                theSlot == null ? null : theSlot.getIdPart(),
+                status, nhsNumber, date[0], date[1], updated[0], updated[1]);
+        ourLogger.log("Response: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " got: " + appointments.size() + " appointments");
+        return appointments;
+    }
+
+    /**
+     * Method to turn a requested date range into the span of times it covers,
+     * taking account of the precision each bound was given to (so
+     * date=2019-07-11 covers the whole day).
+     *
+     * @param range The requested range, or null.
+     * @return The earliest (inclusive) and latest (exclusive) times, in epoch
+     * milliseconds.
+     */
+    private static long[] window(final DateRangeParam range) {
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        if (range != null) {
+            if (range.getLowerBoundAsInstant() != null) {
+                from = range.getLowerBoundAsInstant().getTime();
+            }
+            if (range.getUpperBoundAsInstant() != null) {
+                to = range.getUpperBoundAsInstant().getTime() + 1;
+            }
+        }
+        return new long[] {from, to};
+    }
+
     /**
      * The update method should ONLY to be used to change an appointment from
      * booked to either cancelled or entered in error.
@@ -306,6 +419,12 @@ public class AppointmentResourceProvider implements IResourceProvider {
             versionToUpdate = versionToUpdate.substring(3);
             versionToUpdate = versionToUpdate.replace("\"", "");
         }
+        long expectedVersion;
+        try {
+            expectedVersion = Long.parseLong(versionToUpdate.replace("\"", "").trim());
+        } catch (NumberFormatException ex) {
+            throw new PreconditionFailedException("If-Match " + versionToUpdate + " is not a version number.");
+        }
 
         JsonParser jp = (JsonParser) FhirContext.forDstu3().newJsonParser();
         LOG.info("Got resource:");
@@ -328,9 +447,12 @@ public class AppointmentResourceProvider implements IResourceProvider {
         if(currentAppt == null) {
             throw new UnprocessableEntityException("Appointment " + identifier + " not found.");
         }
+        if(currentAppt.getStatus() != AppointmentStatus.BOOKED) {
+            throw new UnprocessableEntityException("Appointment " + identifier + " is not booked.");
+        }
 
         // Now check the If-match condition
-        if(versionToUpdate.equals(currentAppt.getIdElement().getVersionIdPart()) == false) {
+        if(expectedVersion != myData.getAppointmentVersion(identifier)) {
             throw new ResourceVersionConflictException("Appointment " + identifier + " was a different Version ");
         }
 
@@ -350,8 +472,12 @@ public class AppointmentResourceProvider implements IResourceProvider {
             throw new UnprocessableEntityException("Appointment refers to a different Slot.");
         }
 
-        // Update the Appointment
-        myData.setAppointmentStatus(identifier, proposedStatus);
+        // Update the Appointment, which moves it on to its next version, as
+        // long as nobody else has updated it since we checked
+        Appointment updatedAppt = myData.setAppointmentStatus(identifier, expectedVersion, proposedStatus);
+        if(updatedAppt == null) {
+            throw new UnprocessableEntityException("Appointment " + identifier + " not found.");
+        }
         switch(proposedStatus) {
             case CANCELLED:
                 ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " Appointment: " + identifier + " updated to 'cancelled'.");
@@ -362,16 +488,21 @@ public class AppointmentResourceProvider implements IResourceProvider {
         }
         LOG.info("Appointment updated");
 
-        // Update the Slot
-        myData.setSlotFree(slotId);
-        ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " Slot: " + slotId + " set back to free.");
-        LOG.info("Slot set back to free");
+        // Update the Slot, but only if this update is the one which took the
+        // Appointment out of booked: the Slot may have been booked again since
+        // an earlier cancellation, and that booking isn't ours to free.
+        long newVersion = updatedAppt.getIdElement().getVersionIdPartAsLong();
+        Appointment replaced = myData.getAppointment(identifier + "/_history/" + (newVersion - 1));
+        if (replaced == null || replaced.getStatus() != AppointmentStatus.BOOKED) {
+            LOG.info("Appointment " + identifier + " was not booked, Slot " + slotId + " left as it is");
+        } else if (myData.freeSlotIfBooked(slotId)) {
+            ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " Slot: " + slotId + " set back to free.");
+            LOG.info("Slot set back to free");
+        } else {
+            LOG.info("Slot " + slotId + " was not booked, left as it is");
+        }
 
-        String newVersionString = Long.toString(Long.parseLong(versionToUpdate) + 1);
-        Appointment updatedAppt = myData.getAppointment(identifier);
-        updatedAppt.setId(new IdType("Appointment", identifier, newVersionString));
         retVal.setResource(updatedAppt);
-        //retVal.setId(new IdType("Appointment", identifier, newVersionString));
         return retVal;
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import uk.nhs.fhir.bookingprovider.data.BookingStore;
+import uk.nhs.fhir.bookingprovider.data.SlotCursor;
+import uk.nhs.fhir.bookingprovider.data.StoreSnapshot;
+
+/**
+ * One page of the results of a Slot search, which HAPI asks for as it builds
+ * the response Bundle. Nothing is found until then, and only the Slots on
+ * the page (and the resources they _include) are ever read.
+ *
+ * The first page is named "first" and each later page by the SlotCursor
+ * where the one before it finished, so HAPI's next link carries the cursor
+ * and SlotPagingProvider turns it back into a page of the same search. Each
+ * page is read from the snapshot current when it is asked for, and picks up
+ * straight after the last Slot of the page before, so nothing is skipped or
+ * repeated if Slots change in between.
+ *
+ * The total is left unset, as counting it would mean reading every match.
+ */
+final class SlotBundleProvider implements IBundleProvider {
+
+    /**
+     * The page id of the first page.
+     */
+    static final String FIRST_PAGE = "first";
+
+    /**
+     * Identifies the search, and is the same for each of its pages.
+     */
+    private final String uuid;
+
+    /**
+     * The search.
+     */
+    private final SlotQuery query;
+
+    /**
+     * Where the Slots are searched for.
+     */
+    private final BookingStore data;
+
+    /**
+     * Where the previous page finished, or null for the first page.
+     */
+    private final SlotCursor cursor;
+
+    /**
+     * When the search was made.
+     */
+    private final InstantType published;
+
+    /**
+     * Where this page finished, once it has been read, or null if there are
+     * no more Slots.
+     */
+    private SlotCursor next;
+
+    /**
+     * Constructor, for the first page of a new search.
+     *
+     * @param slotQuery The search.
+     * @param store Where the Slots are searched for.
+     */
+    SlotBundleProvider(final SlotQuery slotQuery, final BookingStore store) {
+        this(UUID.randomUUID().toString(), slotQuery, store, null,
+                new InstantType(new Date()));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param searchId Identifies the search.
+     * @param slotQuery The search.
+     * @param store Where the Slots are searched for.
+     * @param after Where the previous page finished, or null.
+     * @param when When the search was made.
+     */
+    private SlotBundleProvider(final String searchId,
+            final SlotQuery slotQuery, final BookingStore store,
+            final SlotCursor after, final InstantType when) {
+        uuid = searchId;
+        query = slotQuery;
+        data = store;
+        cursor = after;
+        published = when;
+    }
+
+    /**
+     * Method to get a later page of the same search.
+     *
+     * @param pageId The page id, from a next link.
+     * @return The page, or null if the page id isn't one of ours.
+     */
+    SlotBundleProvider page(final String pageId) {
+        if (FIRST_PAGE.equals(pageId)) {
+            return new SlotBundleProvider(uuid, query, data, null, published);
+        }
+        SlotCursor after = SlotCursor.parse(pageId);
+        if (after == null) {
+            return null;
+        }
+        return new SlotBundleProvider(uuid, query, data, after, published);
+    }
+
+    /**
+     * Method to read the page: up to toIndex - fromIndex Slots, followed by
+     * the resources they _include. A fromIndex above zero skips that many
+     * Slots first.
+     *
+     * @param fromIndex How many Slots to skip.
+     * @param toIndex How many Slots to skip, plus how many are wanted.
+     * @return The Slots on the page and their _includes.
+     */
+    @Override
+    public List<IBaseResource> getResources(final int fromIndex,
+            final int toIndex) {
+        StoreSnapshot view = data.getSnapshot();
+        SlotCursor after = cursor;
+        ArrayList<Slot> slots = new ArrayList<>();
+        if (fromIndex > 0) {
+            after = query.findPage(view, after, fromIndex, slots);
+            slots.clear();
+            if (after == null) {
+                next = null;
+                return new ArrayList<>();
+            }
+        }
+        next = query.findPage(view, after, toIndex - fromIndex, slots);
+        ArrayList<IBaseResource> result = new ArrayList<>();
+        result.addAll(slots);
+        for (Object include : query.findIncludes(view, slots)) {
+            result.add((IBaseResource) include);
+        }
+        return result;
+    }
+
+    @Override
+    public String getCurrentPageId() {
+        return cursor == null ? FIRST_PAGE : cursor.toString();
+    }
+
+    @Override
+    public String getNextPageId() {
+        return next == null ? null : next.toString();
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+        return published;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return null;
+    }
+
+    @Override
+    public Integer size() {
+        return null;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the searches whose results run over more than one page, so that
+ * HAPI can follow their next links.
+ *
+ * A Slot search keeps only its query, not its results: each next link names
+ * the search and a cursor, and the page is found afresh from there (see
+ * SlotBundleProvider). Any other search (such as an Appointment search) is
+ * kept as the list of results it returned. Only the most recent searches are
+ * kept, the oldest being dropped first.
+ */
+public class SlotPagingProvider extends BasePagingProvider
+        implements IPagingProvider {
+
+    /**
+     * The searches kept, oldest first, by search id.
+     */
+    private final LinkedHashMap<String, IBundleProvider> searches;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSearches The most searches kept.
+     */
+    public SlotPagingProvider(final int maxSearches) {
+        if (maxSearches < 1) {
+            throw new IllegalArgumentException(
+                    "maxSearches must be positive");
+        }
+        searches = new LinkedHashMap<String, IBundleProvider>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, IBundleProvider> eldest) {
+                return size() > maxSearches;
+            }
+        };
+    }
+
+    @Override
+    public synchronized String storeResultList(
+            final IBundleProvider theList) {
+        String searchId = theList.getUuid();
+        if (searchId == null || searchId.isEmpty()) {
+            searchId = UUID.randomUUID().toString();
+        }
+        searches.put(searchId, theList);
+        return searchId;
+    }
+
+    @Override
+    public synchronized IBundleProvider retrieveResultList(
+            final String theSearchId) {
+        return searches.get(theSearchId);
+    }
+
+    @Override
+    public IBundleProvider retrieveResultList(final String theSearchId,
+            final String thePageId) {
+        IBundleProvider search = retrieveResultList(theSearchId);
+        if (search instanceof SlotBundleProvider) {
+            return ((SlotBundleProvider) search).page(thePageId);
+        }
+        return search;
+    }
+}
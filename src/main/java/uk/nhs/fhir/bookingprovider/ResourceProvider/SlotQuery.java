@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import uk.nhs.fhir.bookingprovider.data.IncludeGraph.Target;
+import uk.nhs.fhir.bookingprovider.data.SlotCursor;
+import uk.nhs.fhir.bookingprovider.data.StoreSnapshot;
+
+/**
+ * A Slot search, whichever parameters it was made with, parsed and checked
+ * once into the HealthcareService, status, start range and _includes it asks
+ * for.
+ *
+ * Running it is a single call to StoreSnapshot.findSlots(), which takes the
+ * narrowest index for whatever mix of parameters was given (the service's
+ * Schedules, then the start time index, checking status as it goes), so
+ * both search overloads in SlotResourceProvider, and any parameter added
+ * here later, get the same plan. The _includes are then looked up in the
+ * snapshot's IncludeGraph for the Schedules of the Slots found.
+ *
+ * A query holds nothing from the snapshot it was run against, so the same
+ * query can fetch later pages of its results (see findPage()) from whatever
+ * the data looks like by then.
+ */
+final class SlotQuery {
+
+    /**
+     * The logger we'll use throughout this class.
+     */
+    private static final Logger LOG
+            = Logger.getLogger(SlotQuery.class.getName());
+
+    /**
+     * The HealthcareService the Slots must be provided by, or null for any.
+     */
+    private final String service;
+
+    /**
+     * The status the Slots must have, or null for any.
+     */
+    private final SlotStatus status;
+
+    /**
+     * The start times the Slots must have.
+     */
+    private final StartRange range;
+
+    /**
+     * The kinds of resource the _includes ask for.
+     */
+    private final EnumSet<Target> includes = EnumSet.noneOf(Target.class);
+
+    /**
+     * Constructor.
+     *
+     * @param hcsID The HealthcareService, or null for any.
+     * @param slotStatus The status, or null for any.
+     * @param startRange The start times.
+     */
+    private SlotQuery(final String hcsID, final SlotStatus slotStatus,
+            final StartRange startRange) {
+        service = hcsID;
+        status = slotStatus;
+        range = startRange;
+    }
+
+    /**
+     * Method to parse and check the parameters of a Slot search.
+     *
+     * @param hcsToken The HealthcareService requested, or null for any.
+     * @param statusToken The status requested, or null for any.
+     * @param startRange The start range requested, or null for any.
+     * @param theIncludes The _includes requested.
+     * @return The query.
+     * @throws UnprocessableEntityException If a status or start range we
+     * don't support was requested.
+     */
+    static SlotQuery parse(final TokenParam hcsToken,
+            final TokenParam statusToken, final DateRangeParam startRange,
+            final Set<Include> theIncludes) {
+        SlotQuery query = new SlotQuery(
+                hcsToken == null ? null : hcsToken.getValue(),
+                statusOf(statusToken), StartRange.compile(startRange));
+        for (Include include : theIncludes) {
+            String inc = include.getValue();
+            LOG.info("Include: " + inc);
+            switch (inc) {
+                case "Slot:schedule":
+                    query.includes.add(Target.SCHEDULE);
+                    break;
+
+                case "Schedule:actor:HealthcareService":
+                    query.includes.add(Target.HEALTHCARE_SERVICE);
+                    break;
+
+                case "Schedule:actor:Practitioner":
+                    query.includes.add(Target.PRACTITIONER);
+                    break;
+
+                case "Schedule:actor:PractitionerRole":
+                    query.includes.add(Target.PRACTITIONER_ROLE);
+                    break;
+
+                case "HealthcareService.providedBy":
+                    query.includes.add(Target.ORGANIZATION);
+                    break;
+
+                case "HealthcareService.location":
+                    query.includes.add(Target.LOCATION);
+                    break;
+
+                default:
+                    LOG.info("Unexpected include sent: " + inc);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Method to find the Slots matching the query.
+     *
+     * @param view The snapshot to search.
+     * @return The Slots, in start time order within each Schedule.
+     */
+    ArrayList<Slot> findSlots(final StoreSnapshot view) {
+        return view.findSlots(service, status, range.getLow(),
+                range.getHigh());
+    }
+
+    /**
+     * Method to find one page of the Slots matching the query, in the same
+     * order as findSlots(), reading only as far as the end of the page.
+     *
+     * @param view The snapshot to search.
+     * @param after Where the previous page finished, or null for the first
+     * page.
+     * @param count The most Slots wanted.
+     * @param result The List the Slots on the page are added to.
+     * @return Where the page finished, or null if there are no more Slots.
+     */
+    SlotCursor findPage(final StoreSnapshot view, final SlotCursor after,
+            final int count, final List<Slot> result) {
+        return view.findSlotPage(service, status, range.getLow(),
+                range.getHigh(), after, count, result);
+    }
+
+    /**
+     * Method to work out the resources the _includes ask for, given the
+     * Slots found. The Slots are read once, for their distinct Schedules,
+     * and the rest comes from the snapshot's IncludeGraph. Nothing is
+     * included if no Slots were found.
+     *
+     * @param view The snapshot the Slots were found in.
+     * @param slots The Slots found.
+     * @return The resources to include: Schedules, HealthcareServices,
+     * Practitioners, PractitionerRoles, Organizations then Locations.
+     */
+    List<Object> findIncludes(final StoreSnapshot view,
+            final List<Slot> slots) {
+        if (slots.isEmpty() || includes.isEmpty()) {
+            return new ArrayList<>();
+        }
+        LinkedHashSet<String> scheds = new LinkedHashSet<>();
+        for (Slot slot : slots) {
+            scheds.add(slot.getSchedule().getReference());
+        }
+        return view.getIncludeGraph().resolve(scheds, includes);
+    }
+
+    /**
+     * Method to turn any requested status into a SlotStatus, checking that it
+     * is one we support.
+     *
+     * @param statusToken The status filter we've been sent, or null.
+     * @return The requested status, or null if none was requested.
+     */
+    private static SlotStatus statusOf(final TokenParam statusToken) {
+        if (statusToken == null) {
+            return null;
+        }
+        switch (statusToken.getValue()) {
+            case "free":
+                return SlotStatus.FREE;
+
+            case "busy":
+                return SlotStatus.BUSY;
+
+            default:
+                String statusErr
+                        = "Slot.status values only 'free' or 'busy' supported.";
+                throw new UnprocessableEntityException(statusErr);
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package uk.nhs.fhir.bookingprovider.ResourceProvider;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.rest.annotation.IdParam;
@@ -25,23 +24,17 @@ import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Search;
-import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
-import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import org.hl7.fhir.dstu3.model.HealthcareService;
 import org.hl7.fhir.dstu3.model.IdType;
-import org.hl7.fhir.dstu3.model.Schedule;
 import org.hl7.fhir.dstu3.model.Slot;
-import uk.nhs.fhir.bookingprovider.data.DataStore;
+import uk.nhs.fhir.bookingprovider.data.BookingStore;
 import uk.nhs.fhir.bookingprovider.logging.ExternalLogger;
 
 /**
@@ -71,7 +64,7 @@ public class SlotResourceProvider implements IResourceProvider {
     /**
      * The data store where we cache Slots and other FHIR resources / objects.
      */
-    private DataStore data;
+    private BookingStore data;
 
     /**
      * Logger to log results out to (MS Teams) external systems.
@@ -86,7 +79,7 @@ public class SlotResourceProvider implements IResourceProvider {
      * @param newLogger The global External Logger object we're using.
      */
     public SlotResourceProvider(final FhirContext ctx,
-            final DataStore newData,
+            final BookingStore newData,
             final ExternalLogger newLogger) {
         myContext = ctx;
         data = newData;
@@ -127,9 +120,7 @@ public class SlotResourceProvider implements IResourceProvider {
         }
 
         LOG.info("Request for Slot: " + theId.getIdPart());
-        Slot mySlot = data.getSlotByID(theId.getIdPart());
-        mySlot.addIdentifier();
-        return mySlot;
+        return data.getSlotByID(theId.getIdPart());
     }
 
     /**
@@ -137,11 +128,11 @@ public class SlotResourceProvider implements IResourceProvider {
      *
      * @param theRequest The underlying request used to convey to us the
      *          correlation ID that was injected in by the Request Interceptor.
-     * @return This method returns a list of all Slots.
+     * @return This method returns all Slots, a page at a time.
      */
     @Description(shortDefinition = "Search takes no parameters and therefore just returns all Slots.")
     @Search()
-    public List<Slot> searchSlots(
+    public IBundleProvider searchSlots(
         HttpServletRequest theRequest) {
         if(theRequest.getQueryString() != null) {
             ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting all Slots: " + theRequest.getRequestURL() + "?" + theRequest.getQueryString());
@@ -149,10 +140,8 @@ public class SlotResourceProvider implements IResourceProvider {
             ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting all Slots: " + theRequest.getRequestURL());
         }
 
-        ArrayList<Slot> slots = data.getSlots();
-        LOG.info("Returned " + slots.size() + " slots.");
-        ourLogger.log("Response for: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " was: " + slots.size() + " slots");
-        return slots;
+        return runQuery(SlotQuery.parse(null, null, null,
+                new HashSet<Include>()), null, theRequest);
     }
 
     /**
@@ -167,12 +156,12 @@ public class SlotResourceProvider implements IResourceProvider {
      * @param theIncludes Set of Resource types to be included in the response.
      * @param theRequest The underlying request used to convey to us the
      *          correlation ID that was injected in by the Request Interceptor.
-     * @return This method returns a list of Slots. This list may contain
-     * multiple matching resources, or it may also be empty.
+     * @return This method returns the matching Slots, a page at a time. There
+     * may be many matching resources, or none.
      */
     @Description(shortDefinition = "Search which takes 'HealthcareService' (set to the ASID of the service being targetted), 'start' and 'status' parameters, and also allows for loads of _includes.")
     @Search()
-    public List<IResource> searchSlots(
+    public IBundleProvider searchSlots(
             @RequiredParam(name = "schedule.actor:healthcareservice") TokenParam theHealthcareService,
             @OptionalParam(name = Slot.SP_STATUS) TokenParam statusToken,
             @OptionalParam(name = Slot.SP_START) DateRangeParam startRange,
@@ -190,356 +179,10 @@ public class SlotResourceProvider implements IResourceProvider {
             ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting Slots: " + theRequest.getRequestURL());
         }
 
-
-        boolean incSchedule = false;
-        boolean incHealthcareService = false;
-        boolean incPractitionerRole = false;
-        boolean incPractitioner = false;
-        boolean incProvider = false;
-        boolean incLocation = false;
-        DateParam lowerBound = null;
-        DateParam upperBound = null;
-        int slotCount = 0;
-
-        String notSecsErrMsg = "Currently requires dates to be accurate to seconds";
-
         LOG.info("Slot search being handled for provider: "
                 + theHealthcareService.getValue().toString());
-
-        if (startRange != null) {
-            lowerBound = startRange.getLowerBound();
-            upperBound = startRange.getUpperBound();
-
-            LOG.info("Date range is from: " + startRange.getLowerBoundAsInstant());
-            LOG.info("to: " + startRange.getUpperBoundAsInstant());
-
-        }
-
-        // Here we process the array of Includes we've been asked for...
-        Iterator<Include> itr = theIncludes.iterator();
-        while (itr.hasNext()) {
-            String inc = itr.next().getValue();
-            LOG.info("Include: " + inc);
-
-            // Decide what this include is and set a boolean for each one we support.
-            switch (inc) {
-                case "Slot:schedule":
-                    incSchedule = true;
-                    break;
-
-                case "Schedule:actor:HealthcareService":
-                    incHealthcareService = true;
-                    break;
-
-                case "Schedule:actor:Practitioner":
-                    incPractitioner = true;
-                    break;
-
-                case "Schedule:actor:PractitionerRole":
-                    incPractitionerRole = true;
-                    break;
-
-                case "HealthcareService.providedBy":
-                    incProvider = true;
-                    break;
-
-                case "HealthcareService.location":
-                    incLocation = true;
-
-                default:
-                    LOG.info("Unexpected include sent: " + inc);
-            }
-        }
-
-        ArrayList slots;
-        // Here we filter for free or busy if requested (ignoring other statuses)
-        if (statusToken == null) {
-            slots = data.getSlotsByHealthcareService(
-                    theHealthcareService.getValue()
-            );
-        } else {
-            if (statusToken.getValue().equals("free")
-                    || statusToken.getValue().equals("busy")) {
-                slots = data.getFreeSlotsByHCS(theHealthcareService.getValue(),
-                        statusToken.getValue());
-            } else {
-                String statusErr
-                        = "Slot.status values only 'free' or 'busy' supported.";
-                throw new UnprocessableEntityException(statusErr);
-            }
-        }
-
-        // Now we copy items that fit the start date filter into filteredSlots.
-        ArrayList filteredSlots = new ArrayList();
-
-        if (startRange != null) {
-            for (Object sl : slots) {
-                boolean lowerOkay = false;
-                boolean upperOkay = false;
-                Slot thisSlot = (Slot) sl;
-                if (lowerBound != null) {
-                    switch (lowerBound.getPrefix()) {
-                        case APPROXIMATE:
-                        case EQUAL:
-                            if (thisSlot.getStart().equals(lowerBound.getValue())) {
-                                lowerOkay = true;
-                            }
-                            break;
-                        case ENDS_BEFORE:
-                        case NOT_EQUAL:
-                        case STARTS_AFTER:
-                            String endsBeforeErrMsg = "ENDS_BEFORE, NOT_EQUAL, STARTS_AFTER not currently supported";
-                            throw new UnprocessableEntityException(endsBeforeErrMsg);
-
-                        case GREATERTHAN:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case GREATERTHAN_OR_EQUALS:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(lowerBound.getValue())
-                                            || thisSlot.getStart().equals(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN_OR_EQUALS:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(lowerBound.getValue())
-                                            || thisSlot.getStart().equals(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                    }
-                } else {
-                    lowerOkay = true;
-                }
-                if (upperBound != null) {
-                    switch (upperBound.getPrefix()) {
-                        case APPROXIMATE:
-                        case EQUAL:
-                            if (thisSlot.getStart().equals(upperBound.getValue())) {
-                                upperOkay = true;
-                            }
-                            break;
-                        case ENDS_BEFORE:
-                        case NOT_EQUAL:
-                        case STARTS_AFTER:
-                            String endsBeforeErrMsg = "ENDS_BEFORE, NOT_EQUAL, STARTS_AFTER not currently supported";
-                            throw new UnprocessableEntityException(endsBeforeErrMsg);
-
-                        case GREATERTHAN:
-                            switch (upperBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case GREATERTHAN_OR_EQUALS:
-                            switch (upperBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(upperBound.getValue())
-                                            || thisSlot.getStart().equals(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN_OR_EQUALS:
-                            switch (upperBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(upperBound.getValue())
-                                            || thisSlot.getStart().equals(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                    }
-                } else {
-                    upperOkay = true;
-                }
-                if (upperOkay && lowerOkay) {
-                    filteredSlots.add(thisSlot);
-                } else {
-                    LOG.info("Filtering out Slot: " + thisSlot.getId() + " based on time");
-                }
-            }
-        } else {
-            filteredSlots.addAll(slots);
-        }
-
-        slotCount = filteredSlots.size();
-
-        if (incSchedule) {
-            // Now iterate through the Slots and get a list of Schedules...
-            ArrayList<String> schedNames = new ArrayList<>();
-            for (Object sl : filteredSlots) {
-                Slot thisSlot = (Slot) sl;
-                String reference = thisSlot.getSchedule().getReference();
-
-                // Don't add the resource if we've already got it!!
-                if (!schedNames.contains(reference)) {
-                    LOG.info("Will add Schedule: " + reference);
-                    schedNames.add(reference);
-                }
-            }
-            for (String schedName : schedNames) {
-                Schedule sch = data.getSchedule(schedName);
-                if (sch == null) {
-                    LOG.info("Null returned when getting: " + schedName);
-                } else {
-                    LOG.info("Got schedule: " + schedName);
-                    filteredSlots.add(sch);
-                }
-            }
-        }
-
-        // Check whether they've asked for the HealthcareService to be included
-        if (incHealthcareService) {
-            if (filteredSlots.size() > 0) {
-                LOG.info("Asked to add HealthcareService");
-                HealthcareService healthcareService
-                        = data.getHealthcareService(
-                                theHealthcareService.getValue());
-                if (healthcareService != null) {
-                    LOG.info("Adding HealthcareService");
-                    filteredSlots.add(healthcareService);
-                }
-            }
-        }
-
-        // Check whether they've asked for the Practitioner to be included
-        if (incPractitioner) {
-            LOG.info("Asked to add Practitioner");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding Practitioner");
-                filteredSlots.add(data.getPractitioner());
-            }
-        }
-
-        // Check whether they've asked for the PractitionerRole to be included
-        if (incPractitionerRole) {
-            LOG.info("Asked to add PractitionerRole");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding PractitionerRole");
-                filteredSlots.add(data.getPractitionerRole());
-            }
-        }
-
-        // Check whether they've asked for the Organization to be included
-        if (incProvider) {
-            LOG.info("Asked to add the Organization");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding the Organization");
-                filteredSlots.add(data.getOrganization());
-            }
-        }
-
-        // Check whether they want Locations back too?
-        if(incLocation) {
-            LOG.info("Asked to include the Location");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding the Location");
-                // If they've specified a HealthcareService...
-                String healthcareSvcSelected = theHealthcareService.getValue().toString();
-                String locID = null;
-                if(healthcareSvcSelected != null) {
-                    switch(healthcareSvcSelected) {
-                        case "918999198999":
-                            locID = "loc1111";
-                            break;
-
-                        case "118111118111":
-                            locID = "loc2222";
-                            break;
-                    }
-                    filteredSlots.add(data.getLocation(locID));
-                } else {
-                    // They haven't, so we need to iterate through all Slots
-                    // being returned, and determine which Location(s) need
-                    // to be added
-                    boolean addingLoc1 = false;
-                    boolean addingLoc2 = false;
-
-                    for (Object obj : filteredSlots) {
-                        Slot aSlot = (Slot) obj;
-
-                        if(aSlot.getSchedule().getReference().equals("/Schedule/sched1111")) {
-                            addingLoc1 = true;
-                        }
-                        if(aSlot.getSchedule().getReference().equals("/Schedule/sched2222")) {
-                            addingLoc2 = true;
-                        }
-                    }
-                    if(addingLoc1) {
-                        locID = "loc1111";
-                        filteredSlots.add(data.getLocation(locID));
-                    }
-                    if(addingLoc2) {
-                        locID = "loc2222";
-                        filteredSlots.add(data.getLocation(locID));
-                    }
-                }
-            }
-        }
-        LOG.info("Returned " + filteredSlots.size() + " slots.");
-        ourLogger.log("Response for: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " was: " + slotCount + " slots, and " + filteredSlots.size() + " total resources.");
-        return filteredSlots;
+        return runQuery(SlotQuery.parse(theHealthcareService, statusToken,
+                startRange, theIncludes), startRange, theRequest);
     }
 
     /**
@@ -553,12 +196,12 @@ public class SlotResourceProvider implements IResourceProvider {
      * @param theIncludes Set of Resource types to be included in the response.
      * @param theRequest The underlying request used to convey to us the
      *          correlation ID that was injected in by the Request Interceptor.
-     * @return This method returns a list of Slots. This list may contain
-     * multiple matching resources, or it may also be empty.
+     * @return This method returns the matching Slots, a page at a time. There
+     * may be many matching resources, or none.
      */
     @Description(shortDefinition = "Search which takes 'start' and 'status' parameters, and also allows for loads of _includes.")
     @Search()
-    public List<IResource> searchSlots(
+    public IBundleProvider searchSlots(
             @OptionalParam(name = Slot.SP_STATUS) TokenParam statusToken,
             @OptionalParam(name = Slot.SP_START) DateRangeParam startRange,
             @IncludeParam(allow = {
@@ -575,350 +218,34 @@ public class SlotResourceProvider implements IResourceProvider {
             ourLogger.log("Request: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " getting Slots: " + theRequest.getRequestURL());
         }
 
-        boolean incSchedule = false;
-        boolean incHealthcareService = false;
-        boolean incPractitionerRole = false;
-        boolean incPractitioner = false;
-        boolean incProvider = false;
-        boolean incLocation = false;
-        DateParam lowerBound = null;
-        DateParam upperBound = null;
-
-        int slotCount = 0;
-
-        String notSecsErrMsg = "Currently requires dates to be accurate to seconds";
+        return runQuery(SlotQuery.parse(null, statusToken, startRange,
+                theIncludes), startRange, theRequest);
+    }
 
+    /**
+     * Method to run a Slot search, for any of the searchSlots() methods
+     * above. Nothing is read here: HAPI asks the returned provider for the
+     * page it wants (_count Slots, or the server's default page size), and
+     * only that page is found, from one snapshot of the data.
+     *
+     * @param query The parsed search.
+     * @param startRange The start range requested, or null, for logging.
+     * @param theRequest The underlying request, for logging.
+     * @return The first page of the matching Slots, each followed by any
+     * resources they include.
+     */
+    private IBundleProvider runQuery(final SlotQuery query,
+            final DateRangeParam startRange,
+            final HttpServletRequest theRequest) {
         if (startRange != null) {
-            lowerBound = startRange.getLowerBound();
-            upperBound = startRange.getUpperBound();
-
-            LOG.info("Date range is from: " + startRange.getLowerBoundAsInstant());
+            LOG.info("Date range is from: "
+                    + startRange.getLowerBoundAsInstant());
             LOG.info("to: " + startRange.getUpperBoundAsInstant());
-
-        }
-
-        // Here we process the array of Includes we've been asked for...
-        Iterator<Include> itr = theIncludes.iterator();
-        while (itr.hasNext()) {
-            String inc = itr.next().getValue();
-            LOG.info("Include: " + inc);
-
-            // Decide what this include is and set a boolean for each one we support.
-            switch (inc) {
-                case "Slot:schedule":
-                    incSchedule = true;
-                    break;
-
-                case "Schedule:actor:HealthcareService":
-                    incHealthcareService = true;
-                    break;
-
-                case "Schedule:actor:Practitioner":
-                    incPractitioner = true;
-                    break;
-
-                case "Schedule:actor:PractitionerRole":
-                    incPractitionerRole = true;
-                    break;
-
-                case "HealthcareService.providedBy":
-                    incProvider = true;
-                    break;
-
-                case "HealthcareService.location":
-                    incLocation = true;
-                    break;
-
-                default:
-                    LOG.info("Unexpected include sent: " + inc);
-            }
-        }
-
-        ArrayList slots;
-        // Here we filter for free or busy if requested (ignoring other statuses)
-        if (statusToken == null) {
-            slots = data.getSlots();
-        } else {
-            if (statusToken.getValue().equals("free")
-                    || statusToken.getValue().equals("busy")) {
-                slots = data.getFreeSlots();
-            } else {
-                String statusErr
-                        = "Slot.status values only 'free' or 'busy' supported.";
-                throw new UnprocessableEntityException(statusErr);
-            }
-        }
-
-        // Now we copy items that fit the start date filter into filteredSlots.
-        ArrayList filteredSlots = new ArrayList();
-        ArrayList extraResources = new ArrayList();
-
-        if (startRange != null) {
-            for (Object sl : slots) {
-                boolean lowerOkay = false;
-                boolean upperOkay = false;
-                Slot thisSlot = (Slot) sl;
-                if (lowerBound != null) {
-                    switch (lowerBound.getPrefix()) {
-                        case APPROXIMATE:
-                        case EQUAL:
-                            if (thisSlot.getStart().equals(lowerBound.getValue())) {
-                                lowerOkay = true;
-                            }
-                            break;
-                        case ENDS_BEFORE:
-                        case NOT_EQUAL:
-                        case STARTS_AFTER:
-                            String endsBeforeErrMsg = "ENDS_BEFORE, NOT_EQUAL, STARTS_AFTER not currently supported";
-                            throw new UnprocessableEntityException(endsBeforeErrMsg);
-
-                        case GREATERTHAN:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case GREATERTHAN_OR_EQUALS:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(lowerBound.getValue())
-                                            || thisSlot.getStart().equals(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN_OR_EQUALS:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(lowerBound.getValue())
-                                            || thisSlot.getStart().equals(lowerBound.getValue())) {
-                                        lowerOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                    }
-                } else {
-                    lowerOkay = true;
-                }
-                if (upperBound != null) {
-                    switch (upperBound.getPrefix()) {
-                        case APPROXIMATE:
-                        case EQUAL:
-                            if (thisSlot.getStart().equals(upperBound.getValue())) {
-                                upperOkay = true;
-                            }
-                            break;
-                        case ENDS_BEFORE:
-                        case NOT_EQUAL:
-                        case STARTS_AFTER:
-                            String endsBeforeErrMsg = "ENDS_BEFORE, NOT_EQUAL, STARTS_AFTER not currently supported";
-                            throw new UnprocessableEntityException(endsBeforeErrMsg);
-
-                        case GREATERTHAN:
-                            switch (upperBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case GREATERTHAN_OR_EQUALS:
-                            switch (upperBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().after(upperBound.getValue())
-                                            || thisSlot.getStart().equals(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN:
-                            switch (lowerBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                        case LESSTHAN_OR_EQUALS:
-                            switch (upperBound.getPrecision()) {
-                                case MILLI:
-                                case SECOND:
-                                    if (thisSlot.getStart().before(upperBound.getValue())
-                                            || thisSlot.getStart().equals(upperBound.getValue())) {
-                                        upperOkay = true;
-                                    }
-                                    break;
-                                default:
-                                    throw new UnprocessableEntityException(notSecsErrMsg);
-                            }
-                            break;
-                    }
-                } else {
-                    upperOkay = true;
-                }
-                if (upperOkay && lowerOkay) {
-                    filteredSlots.add(thisSlot);
-                } else {
-                    LOG.info("Filtering out Slot: " + thisSlot.getId() + " based on time");
-                }
-            }
-        } else {
-            filteredSlots.addAll(slots);
-        }
-
-        slotCount = filteredSlots.size();
-
-        if (incSchedule) {
-            // Now iterate through the Slots and get a list of Schedules...
-            ArrayList<String> schedNames = new ArrayList<>();
-            for (Object sl : filteredSlots) {
-                Slot thisSlot = (Slot) sl;
-                String reference = thisSlot.getSchedule().getReference();
-
-                // Don't add the resource if we've already got it!!
-                if (!schedNames.contains(reference)) {
-                    LOG.info("Will add Schedule: " + reference);
-                    schedNames.add(reference);
-                }
-            }
-            for (String schedName : schedNames) {
-                Schedule sch = data.getSchedule(schedName);
-                if (sch == null) {
-                    LOG.info("Null returned when getting: " + schedName);
-                } else {
-                    LOG.info("Got schedule: " + schedName);
-                    extraResources.add(sch);
-                }
-            }
-        }
-
-        // Check whether they've asked for the HealthcareService to be included
-        if (incHealthcareService) {
-            if (filteredSlots.size() > 0) {
-                LOG.info("Asked to add HealthcareService");
-
-                boolean addingHCS1 = false;
-                boolean addingHCS2 = false;
-
-                for (Object obj : filteredSlots) {
-                    Slot aSlot = (Slot) obj;
-
-                    if(aSlot.getSchedule().getReference().equals("/Schedule/sched1111")) {
-                        addingHCS1 = true;
-                    }
-                    if(aSlot.getSchedule().getReference().equals("/Schedule/sched2222")) {
-                        addingHCS2 = true;
-                    }
-                }
-                if(addingHCS1) {
-                    extraResources.add(data.getHealthcareService("918999198999"));
-                }
-                if(addingHCS2) {
-                    extraResources.add(data.getHealthcareService("118111118111"));
-                }
-
-            }
         }
 
-        // Check whether they've asked for the Practitioner to be included
-        if (incPractitioner) {
-            LOG.info("Asked to add Practitioner");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding Practitioner");
-                extraResources.add(data.getPractitioner());
-            }
-        }
-
-        // Check whether they've asked for the PractitionerRole to be included
-        if (incPractitionerRole) {
-            LOG.info("Asked to add PractitionerRole");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding PractitionerRole");
-                extraResources.add(data.getPractitionerRole());
-            }
-        }
-
-        // Check whether they've asked for the Organization to be included
-        if (incProvider) {
-            LOG.info("Asked to add the Organization");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding the Organization");
-                extraResources.add(data.getOrganization());
-            }
-        }
-
-        // Check whether they want Locations back too?
-        if(incLocation) {
-            LOG.info("Asked to include the Location");
-            if (filteredSlots.size() > 0) {
-                LOG.info("Adding the Location");
-
-                // They haven't, so we need to iterate through all Slots
-                // being returned, and determine which Location(s) need
-                // to be added
-                boolean addingLoc1 = false;
-                boolean addingLoc2 = false;
-
-                for (Object obj : filteredSlots) {
-                    Slot aSlot = (Slot) obj;
-
-                    if(aSlot.getSchedule().getReference().equals("/Schedule/sched1111")) {
-                        addingLoc1 = true;
-                    }
-                    if(aSlot.getSchedule().getReference().equals("/Schedule/sched2222")) {
-                        addingLoc2 = true;
-                    }
-                }
-                if(addingLoc1) {
-                    extraResources.add(data.getLocation("loc1111"));
-                }
-                if(addingLoc2) {
-                    extraResources.add(data.getLocation("loc2222"));
-                }
-
-            }
-        }
-        filteredSlots.addAll(extraResources);
-        LOG.info("Returned " + filteredSlots.size() + " slots.");
-        ourLogger.log("Response for: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " was: " + slotCount + " slots, and " + filteredSlots.size() + " total resources.");
-        return filteredSlots;
+        SlotBundleProvider results = new SlotBundleProvider(query, data);
+        LOG.info("Returning search: " + results.getUuid());
+        ourLogger.log("Response for: " + theRequest.getAttribute("uk.nhs.fhir.bookingprovider.requestid") + " was: paged search " + results.getUuid());
+        return results;
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/**
+ * A requested Slot start range, worked out once per search as the span of
+ * start times [low, high) in epoch milliseconds that it matches.
+ *
+ * Each bound of the DateRangeParam narrows the span by its prefix: eq (or
+ * ap, or no prefix) to that instant, gt to after it, ge to it or after, lt
+ * to before it, and le to it or before. The prefixes and precisions we
+ * don't support are turned away here, before any Slot is looked at, so a
+ * search never fails part way through.
+ */
+final class StartRange {
+
+    /**
+     * Error returned for a prefix we don't support.
+     */
+    private static final String PREFIX_ERR
+            = "ENDS_BEFORE, NOT_EQUAL, STARTS_AFTER not currently supported";
+
+    /**
+     * Error returned for a gt, ge, lt or le date which isn't to the second.
+     */
+    private static final String PRECISION_ERR
+            = "Currently requires dates to be accurate to seconds";
+
+    /**
+     * The range matching any start time.
+     */
+    static final StartRange ALL
+            = new StartRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    /**
+     * The earliest start time matched (inclusive), in epoch milliseconds.
+     */
+    private final long low;
+
+    /**
+     * The latest start time matched (exclusive), in epoch milliseconds.
+     */
+    private final long high;
+
+    /**
+     * Constructor.
+     *
+     * @param from The earliest start time (inclusive).
+     * @param to The latest start time (exclusive).
+     */
+    private StartRange(final long from, final long to) {
+        low = from;
+        high = to;
+    }
+
+    /**
+     * Method to work out the start times a requested range matches.
+     *
+     * @param startRange The requested range, or null for any start time.
+     * @return The range.
+     * @throws UnprocessableEntityException If it uses a prefix we don't
+     * support, or a gt, ge, lt or le date which isn't to the second.
+     */
+    static StartRange compile(final DateRangeParam startRange) {
+        if (startRange == null) {
+            return ALL;
+        }
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        DateParam[] bounds = {
+            startRange.getLowerBound(), startRange.getUpperBound()
+        };
+        for (DateParam bound : bounds) {
+            if (bound == null || bound.getValue() == null) {
+                continue;
+            }
+            long value = bound.getValue().getTime();
+            if (bound.getPrefix() == null) {
+                from = Math.max(from, value);
+                to = Math.min(to, value + 1);
+                continue;
+            }
+            switch (bound.getPrefix()) {
+                case APPROXIMATE:
+                case EQUAL:
+                    from = Math.max(from, value);
+                    to = Math.min(to, value + 1);
+                    break;
+                case GREATERTHAN:
+                    checkPrecision(bound);
+                    from = Math.max(from, value + 1);
+                    break;
+                case GREATERTHAN_OR_EQUALS:
+                    checkPrecision(bound);
+                    from = Math.max(from, value);
+                    break;
+                case LESSTHAN:
+                    checkPrecision(bound);
+                    to = Math.min(to, value);
+                    break;
+                case LESSTHAN_OR_EQUALS:
+                    checkPrecision(bound);
+                    to = Math.min(to, value + 1);
+                    break;
+                default:
+                    throw new UnprocessableEntityException(PREFIX_ERR);
+            }
+        }
+        return new StartRange(from, to);
+    }
+
+    /**
+     * Method to check a bound is given to the second (or millisecond).
+     *
+     * @param bound The bound.
+     * @throws UnprocessableEntityException If it isn't.
+     */
+    private static void checkPrecision(final DateParam bound) {
+        switch (bound.getPrecision()) {
+            case MILLI:
+            case SECOND:
+                break;
+            default:
+                throw new UnprocessableEntityException(PRECISION_ERR);
+        }
+    }
+
+    /**
+     * @return The earliest start time matched (inclusive), in epoch
+     * milliseconds.
+     */
+    long getLow() {
+        return low;
+    }
+
+    /**
+     * @return The latest start time matched (exclusive), in epoch
+     * milliseconds.
+     */
+    long getHigh() {
+        return high;
+    }
+
+    /**
+     * @return true if no start time can match.
+     */
+    boolean isEmpty() {
+        return low >= high;
+    }
+
+    /**
+     * Method to check whether a start time is in the range.
+     *
+     * @param start The start time, in epoch milliseconds.
+     * @return true if it is.
+     */
+    boolean contains(final long start) {
+        return start >= low && start < high;
+    }
+}
@@ -19,24 +19,42 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
 import uk.nhs.fhir.bookingprovider.ResourceProvider.AppointmentResourceProvider;
+import uk.nhs.fhir.bookingprovider.ResourceProvider.SlotPagingProvider;
 import uk.nhs.fhir.bookingprovider.ResourceProvider.SlotResourceProvider;
 import uk.nhs.fhir.bookingprovider.checkers.AppointmentChecker;
+import uk.nhs.fhir.bookingprovider.data.BookingStore;
+import uk.nhs.fhir.bookingprovider.data.BulkExport;
 import uk.nhs.fhir.bookingprovider.data.DataStore;
+import uk.nhs.fhir.bookingprovider.data.DiskStore;
+import uk.nhs.fhir.bookingprovider.data.ImportResult;
+import uk.nhs.fhir.bookingprovider.data.SessionTemplate;
+import uk.nhs.fhir.bookingprovider.data.SlotReader;
 import uk.nhs.fhir.bookingprovider.logging.ExternalLogger;
 
 /**
@@ -52,6 +70,94 @@ public class RestfulServlet extends RestfulServer {
 
     String environment = "Developing";
 
+    /**
+     * Directory where the DataStore journals its changes and writes its
+     * snapshots, or null to hold everything only in memory.
+     */
+    String journalDir = null;
+
+    /**
+     * Which BookingStore to use: memory (the DataStore) or disk (a
+     * DiskStore).
+     */
+    String storeBackend = "memory";
+
+    /**
+     * Directory where a DiskStore keeps its file.
+     */
+    String storeDir = null;
+
+    /**
+     * How often (in minutes) the DataStore writes a snapshot.
+     */
+    long snapshotMinutes = 15;
+
+    /**
+     * How the DataStore holds its Slots.
+     */
+    DataStore.SlotBacking slotBacking = DataStore.SlotBacking.OBJECTS;
+
+    /**
+     * Whether the DataStore is split into a shard per HealthcareService.
+     */
+    boolean sharded = false;
+
+    /**
+     * The session templates Slots are generated from.
+     */
+    List<SessionTemplate> slotTemplates = new ArrayList<>();
+
+    /**
+     * How many days of Slots are generated from the templates.
+     */
+    int horizonDays = 14;
+
+    /**
+     * A feed of Slots (a Bundle, or NDJSON if it ends .ndjson) imported at
+     * startup, or null for none.
+     */
+    String slotImportFile = null;
+
+    /**
+     * Directory that GET /poc/$export writes its files under, or null if it
+     * isn't allowed.
+     */
+    String exportDir = null;
+
+    /**
+     * The most resources written to each file of an export.
+     */
+    int exportChunkSize = 100000;
+
+    /**
+     * How many resources a page of search results has, if _count isn't
+     * given.
+     */
+    int pagingDefaultSize = 100;
+
+    /**
+     * The most resources a page of search results can have, whatever _count
+     * asks for.
+     */
+    int pagingMaximumSize = 1000;
+
+    /**
+     * How many searches are kept so that their next links can be followed.
+     */
+    int pagingSearches = 1000;
+
+    /**
+     * Whether the resources Slots _include are spliced into responses from
+     * their cached text, rather than encoded every time.
+     */
+    boolean includeFragments = true;
+
+    /**
+     * How often, in minutes, expired Slots and Appointments are cleared out.
+     * Off (0) unless set, as the fixed reference Slots aren't regenerated.
+     */
+    long housekeepingMinutes = 0;
+
     /**
      * The object we use to intercept requests, to check supplied JWTs.
      */
@@ -63,6 +169,16 @@ public class RestfulServlet extends RestfulServer {
     private static final Logger LOG
             = Logger.getLogger(RestfulServlet.class.getName());
 
+    /**
+     * Version of this class, for serialisation.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Where the files written by GET /poc/$export are served from.
+     */
+    private static final String EXPORT_FILES = "/poc/$export/";
+
 
 
     /**
@@ -80,6 +196,61 @@ public class RestfulServlet extends RestfulServer {
             serverProperties.load(input);
             String baseurl = serverProperties.getProperty("baseurl");
             environment = serverProperties.getProperty("environment");
+            journalDir = serverProperties.getProperty("journal.dir");
+            String minutes = serverProperties.getProperty(
+                    "journal.snapshot.minutes");
+            if (minutes != null) {
+                snapshotMinutes = Long.parseLong(minutes.trim());
+            }
+            slotTemplates = SessionTemplate.fromProperties(serverProperties);
+            slotImportFile = serverProperties.getProperty("slot.import.file");
+            String horizon = serverProperties.getProperty("slot.horizon.days");
+            if (horizon != null) {
+                horizonDays = Integer.parseInt(horizon.trim());
+            }
+            String housekeeping = serverProperties.getProperty(
+                    "housekeeping.minutes");
+            if (housekeeping != null) {
+                housekeepingMinutes = Long.parseLong(housekeeping.trim());
+            }
+            String backing = serverProperties.getProperty("slot.backing");
+            if (backing != null) {
+                slotBacking = DataStore.SlotBacking.valueOf(
+                        backing.trim().toUpperCase());
+            }
+            String backend = serverProperties.getProperty("store.backend");
+            if (backend != null) {
+                storeBackend = backend.trim().toLowerCase();
+            }
+            storeDir = serverProperties.getProperty("store.dir");
+            exportDir = serverProperties.getProperty("export.dir");
+            String chunk = serverProperties.getProperty("export.chunk.size");
+            if (chunk != null) {
+                exportChunkSize = Integer.parseInt(chunk.trim());
+            }
+            String pageSize = serverProperties.getProperty(
+                    "paging.default.size");
+            if (pageSize != null) {
+                pagingDefaultSize = Integer.parseInt(pageSize.trim());
+            }
+            String pageMax = serverProperties.getProperty(
+                    "paging.maximum.size");
+            if (pageMax != null) {
+                pagingMaximumSize = Integer.parseInt(pageMax.trim());
+            }
+            String searches = serverProperties.getProperty("paging.searches");
+            if (searches != null) {
+                pagingSearches = Integer.parseInt(searches.trim());
+            }
+            String fragments = serverProperties.getProperty(
+                    "include.fragments");
+            if (fragments != null) {
+                includeFragments = Boolean.parseBoolean(fragments.trim());
+            }
+            String shard = serverProperties.getProperty("store.sharded");
+            if (shard != null) {
+                sharded = Boolean.parseBoolean(shard.trim());
+            }
             if(baseurl!= null) {
                 LOG.info("Loaded baseurl from: " + propsName + " " + baseurl);
                 base = baseurl;
@@ -110,7 +281,7 @@ public class RestfulServlet extends RestfulServer {
      * The Class that holds all of our resources. Again this instance is shared
      * across various other objects.
      */
-    private DataStore data;
+    private BookingStore data;
 
     /**
      * The HAPI Fhir context see
@@ -166,9 +337,9 @@ public class RestfulServlet extends RestfulServer {
                 || request.getRequestURI().equals("/index.html")
                 || request.getRequestURI().equals("/index.htm")) {
             //LOG.info("Index page requested");
-            int appts = data.getAppointments().size();
-            int slots = data.getSlots().size();
-            int freeSlots = data.getFreeSlots().size();
+            int appts = data.getAppointmentCount();
+            int slots = data.getSlotCount();
+            int freeSlots = data.getFreeSlotCount();
             response.setStatus(HttpServletResponse.SC_OK);
             response.setContentType("text/html");
             PrintWriter outputStream = response.getWriter();
@@ -196,10 +367,282 @@ public class RestfulServlet extends RestfulServer {
             return;
         }
 
+        // Bulk exports, streamed or written to files
+        if (request.getRequestURI().equals("/poc/Slot/$export")
+                || request.getRequestURI().equals("/poc/Appointment/$export")) {
+            exportType(request, response);
+            return;
+        }
+        if (request.getRequestURI().equals("/poc/$export")) {
+            exportFiles(request, response);
+            return;
+        }
+        if (request.getRequestURI().startsWith(EXPORT_FILES)) {
+            exportedFile(request, response);
+            return;
+        }
+
         // If we haven't returned yet, get superclass to process this.
         super.doGet(request, response);
     }
 
+    /**
+     * This handles a POST to URL: /poc/Slot/$import, which streams a feed of
+     * Slots into the DataStore (see importSlots()). Anything else is handled
+     * as a normal FHIR request.
+     *
+     * @param request
+     * @param response
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    protected final void doPost(final HttpServletRequest request,
+            final HttpServletResponse response)
+            throws ServletException, IOException {
+        if (request.getRequestURI().equals("/poc/Slot/$import")) {
+            importSlots(request, response);
+            return;
+        }
+        super.doPost(request, response);
+    }
+
+    /**
+     * Method to import the Slots POSTed to /poc/Slot/$import, either NDJSON
+     * (a Content-Type containing ndjson) or a Bundle. The body is read one
+     * Slot at a time rather than as a whole, and the response is an
+     * OperationOutcome saying how many were imported and why any weren't.
+     *
+     * This bypasses HAPI's handling, so the request is checked by the
+     * RequestInterceptor here (see checkBulkRequest()).
+     *
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException If the response can't be written.
+     */
+    private void importSlots(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        if (!checkBulkRequest(request, response)) {
+            return;
+        }
+        String type = request.getContentType();
+        boolean bundle = type == null || !type.contains("ndjson");
+        ImportResult result;
+        try (SlotReader reader
+                = new SlotReader(request.getInputStream(), bundle)) {
+            result = ((DataStore) data).importSlots(reader);
+        } catch (IOException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    ex.getMessage());
+            return;
+        } catch (UnprocessableEntityException ex) {
+            response.sendError(ex.getStatusCode(), ex.getMessage());
+            return;
+        }
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics("Imported " + result.getImported()
+                        + " Slots, rejected " + result.getRejected());
+        for (String problem : result.getProblems()) {
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                    .setCode(OperationOutcome.IssueType.INVALID)
+                    .setDiagnostics(problem);
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/fhir+json");
+        PrintWriter outputStream = response.getWriter();
+        outputStream.append(ctx.newJsonParser().encodeResourceToString(outcome));
+    }
+
+    /**
+     * Method to stream every Slot or every Appointment (from the URL, eg
+     * /poc/Slot/$export) as NDJSON, gzipped if the client accepts that. The
+     * response is sent in chunks as it's written, and the export reads from
+     * one moment of the DataStore without holding up bookings.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException If the response can't be written.
+     */
+    private void exportType(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        if (!checkBulkRequest(request, response)) {
+            return;
+        }
+        BulkExport export = ((DataStore) data).startExport();
+        String accept = request.getHeader("Accept-Encoding");
+        boolean gzip = accept != null && accept.contains("gzip");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/fhir+ndjson");
+        response.setCharacterEncoding("UTF-8");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        OutputStream out = response.getOutputStream();
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        if (request.getRequestURI().startsWith("/poc/Slot/")) {
+            export.writeSlots(out);
+        } else {
+            export.writeAppointments(out);
+        }
+        if (gzip) {
+            ((GZIPOutputStream) out).finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Method to write every Slot and Appointment to gzipped NDJSON files in a
+     * new directory under export.dir, then respond with a Bulk Data style
+     * manifest listing them, each at its URL under /poc/$export/ (see
+     * exportedFile()).
+     *
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException If the response can't be written.
+     */
+    private void exportFiles(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        if (!checkBulkRequest(request, response)) {
+            return;
+        }
+        if (exportDir == null || exportDir.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED,
+                    "export.dir is not set");
+            return;
+        }
+        BulkExport export = ((DataStore) data).startExport();
+        File dir = new File(exportDir,
+                "export-" + export.getTransactionTime());
+        List<File> files;
+        try {
+            files = export.writeFiles(dir, exportChunkSize);
+        } catch (IOException ex) {
+            LOG.severe("Export failed: " + ex.getMessage());
+            response.sendError(
+                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Export failed");
+            return;
+        }
+        JsonArray output = new JsonArray();
+        for (File file : files) {
+            JsonObject item = new JsonObject();
+            String name = file.getName();
+            item.addProperty("type", name.substring(0, name.indexOf('-')));
+            item.addProperty("url", request.getRequestURL() + "/"
+                    + dir.getName() + "/" + name);
+            output.add(item);
+        }
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("transactionTime",
+                new InstantType(new Date(export.getTransactionTime()))
+                        .getValueAsString());
+        manifest.addProperty("request", request.getRequestURL().toString());
+        manifest.addProperty("requiresAccessToken", false);
+        manifest.add("output", output);
+        manifest.add("error", new JsonArray());
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        PrintWriter outputStream = response.getWriter();
+        outputStream.append(manifest.toString());
+    }
+
+    /**
+     * Method to serve one of the files written by GET /poc/$export, from the
+     * URL given in its manifest (eg
+     * /poc/$export/export-1562849200000/Slot-1.ndjson.gz). The file is sent
+     * as it is if the client accepts gzip, otherwise unzipped as it's sent.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException If the file can't be read or sent.
+     */
+    private void exportedFile(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        if (!checkBulkRequest(request, response)) {
+            return;
+        }
+        File file = exportedFile(exportDir,
+                request.getRequestURI().substring(EXPORT_FILES.length()));
+        if (file == null || !file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "No such export file");
+            return;
+        }
+        String accept = request.getHeader("Accept-Encoding");
+        boolean gzip = accept != null && accept.contains("gzip");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/fhir+ndjson");
+        response.setCharacterEncoding("UTF-8");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        OutputStream out = response.getOutputStream();
+        try (InputStream in = gzip ? new FileInputStream(file)
+                : new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Method to find the file an export file URL refers to, only allowing
+     * the names an export writes, so nothing else under export.dir (or
+     * outside it) can be read.
+     *
+     * @param dir The export.dir, or null if exports aren't allowed.
+     * @param path The part of the URL after /poc/$export/, eg
+     * export-1562849200000/Slot-1.ndjson.gz.
+     * @return The file, which may not exist, or null if the path isn't one
+     * an export could have written.
+     */
+    static File exportedFile(final String dir, final String path) {
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        String[] parts = path.split("/", -1);
+        if (parts.length != 2 || !parts[0].matches("export-[0-9]+")
+                || !parts[1].matches("[A-Za-z]+-[0-9]+\\.ndjson\\.gz")) {
+            return null;
+        }
+        return new File(new File(dir, parts[0]), parts[1]);
+    }
+
+    /**
+     * Method to check a bulk import or export request, which bypasses HAPI's
+     * handling: it must pass the RequestInterceptor, and can only be served
+     * by the in-memory DataStore.
+     *
+     * @param request The request.
+     * @param response The response, which an error is sent to if need be.
+     * @return true if the request can go ahead.
+     * @throws IOException If an error can't be sent.
+     */
+    private boolean checkBulkRequest(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        try {
+            requestInterceptor.incomingRequestPreProcessed(request, response);
+        } catch (BaseServerResponseException ex) {
+            response.sendError(ex.getStatusCode(), ex.getMessage());
+            return false;
+        }
+        if (!(data instanceof DataStore)) {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED,
+                    "Only the in-memory store supports bulk operations");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Here is where the Servlet is first initialised by the Application server
      * (e.g. Tomcat or Jetty) it's being hosted by.
@@ -218,11 +661,36 @@ public class RestfulServlet extends RestfulServer {
         checker = new AppointmentChecker(ctx);
 
         // An object holding the data (typically in memory) resources/objects.
-        data = DataStore.getInstance();
+        if (storeBackend.equals("disk")) {
+            if (storeDir == null || storeDir.isEmpty()) {
+                throw new ServletException(
+                        "store.dir must be set for store.backend=disk");
+            }
+            if (!slotTemplates.isEmpty() || (slotImportFile != null
+                    && !slotImportFile.isEmpty())) {
+                throw new ServletException("slot.template and"
+                        + " slot.import.file can't be used with"
+                        + " store.backend=disk");
+            }
+            try {
+                data = new DiskStore(new File(storeDir), slotBacking,
+                        sharded);
+            } catch (IOException ex) {
+                throw new ServletException("Unable to open store: "
+                        + storeDir, ex);
+            }
+        } else {
+            data = initializeDataStore();
+        }
 
         // An object that logs things out over some external channel (MS Teams?)
         ourLogger = ExternalLogger.GetInstance(environment);
 
+        // Registered first, so it's the last to see each outgoing response.
+        if (includeFragments) {
+            registerInterceptor(new FragmentInterceptor(data));
+        }
+
         // Create an interceptor to validate incoming requests
         requestInterceptor = new RequestInterceptor(ourLogger);
         // Now register the validating interceptor
@@ -240,9 +708,55 @@ public class RestfulServlet extends RestfulServer {
 
         // And add the list to this Servlet
         setResourceProviders(rpList);
+
+        // Searches are returned a page at a time, with next links to the rest.
+        SlotPagingProvider paging = new SlotPagingProvider(pagingSearches);
+        paging.setDefaultPageSize(pagingDefaultSize);
+        paging.setMaximumPageSize(pagingMaximumSize);
+        setPagingProvider(paging);
         LOG.info("Created server to handle the configured resources.");
     }
 
+    /**
+     * Method to set up the in-memory DataStore as server.properties says.
+     *
+     * @return The DataStore.
+     * @throws ServletException If its journal can't be opened.
+     */
+    private DataStore initializeDataStore() throws ServletException {
+        DataStore store = DataStore.getInstance();
+        if (store.getSlotBacking() != slotBacking) {
+            store.setSlotBacking(slotBacking);
+        }
+        if (store.isSharded() != sharded) {
+            store.setSharded(sharded);
+        }
+        if (!slotTemplates.isEmpty()) {
+            store.setSlotTemplates(slotTemplates, horizonDays);
+        }
+        if (journalDir != null && !journalDir.isEmpty()) {
+            try {
+                store.openJournal(new File(journalDir), snapshotMinutes);
+            } catch (IOException ex) {
+                throw new ServletException("Unable to open journal: "
+                        + journalDir, ex);
+            }
+        }
+        // Imported after the journal is replayed, so the feed is journaled.
+        if (slotImportFile != null && !slotImportFile.isEmpty()) {
+            try (SlotReader reader = new SlotReader(
+                    new FileInputStream(slotImportFile),
+                    !slotImportFile.endsWith(".ndjson"))) {
+                store.importSlots(reader);
+            } catch (IOException | UnprocessableEntityException ex) {
+                throw new ServletException("Unable to import Slots from: "
+                        + slotImportFile, ex);
+            }
+        }
+        store.startHousekeeping(housekeepingMinutes);
+        return store;
+    }
+
     /**
      * Method to return a list of resources we're here to handle. This is only
      * currently used in the unit tests.
@@ -332,7 +846,6 @@ public class RestfulServlet extends RestfulServer {
                 String line = scanner.nextLine();
                 result.append(line).append("\n");
             }
-            scanner.close();
         }
         catch (IOException e) {
             e.printStackTrace();
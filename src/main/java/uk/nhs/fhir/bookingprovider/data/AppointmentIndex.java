@@ -0,0 +1,540 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Appointment.AppointmentStatus;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+
+/**
+ * Secondary indexes of a store's Appointments, on the Slot they book, their
+ * status, the NHS Number of their (contained) Patient, their start and when
+ * they were last updated, so a search only looks at the Appointments which
+ * could match rather than every one.
+ *
+ * Each Appointment is indexed under the keys of its current version, which
+ * are copied out as it's indexed, along with an item standing for it:
+ * DataStore indexes its AppointmentVersions, DiskStore the logical id it
+ * finds the Appointment's place in its file by. A search is answered from
+ * the keys alone, so never needs the Appointments themselves. Changes are
+ * made one at a time, under a lock, while searches read without one.
+ *
+ * @param <E> The type of the item standing for each Appointment.
+ */
+final class AppointmentIndex<E> {
+
+    /**
+     * The system used to indicate an identifier is an NHS Number.
+     */
+    static final String NHSNUMSYSTEM = "https://fhir.nhs.uk/Id/nhs-number";
+
+    /**
+     * Orders entries by start, then by id, with a marker (which has no id)
+     * before all those with its start.
+     */
+    private static final Comparator<Entry<?>> BY_START
+            = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(final Entry<?> a, final Entry<?> b) {
+            return compareKeyed(a.start, a.id, b.start, b.id);
+        }
+    };
+
+    /**
+     * Orders entries by when they were last updated, then by id, with a
+     * marker before all those with its key.
+     */
+    private static final Comparator<Entry<?>> BY_UPDATED
+            = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(final Entry<?> a, final Entry<?> b) {
+            return compareKeyed(a.updated, a.id, b.updated, b.id);
+        }
+    };
+
+    /**
+     * The entry for each Appointment, keyed on its logical id.
+     */
+    private final ConcurrentHashMap<String, Entry<E>> byId;
+
+    /**
+     * The Appointments booking each Slot, keyed on its id (eg slot001).
+     */
+    private final ConcurrentHashMap<String, Set<Entry<E>>> bySlot;
+
+    /**
+     * The Appointments of each Patient, keyed on their NHS Number.
+     */
+    private final ConcurrentHashMap<String, Set<Entry<E>>> byPatient;
+
+    /**
+     * The Appointments with each status.
+     */
+    private final ConcurrentHashMap<AppointmentStatus, Set<Entry<E>>>
+            byStatus;
+
+    /**
+     * The Appointments in order of their start.
+     */
+    private final ConcurrentSkipListSet<Entry<E>> byStart;
+
+    /**
+     * The Appointments in order of when they were last updated.
+     */
+    private final ConcurrentSkipListSet<Entry<E>> byUpdated;
+
+    /**
+     * Constructor, for an empty index.
+     */
+    AppointmentIndex() {
+        byId = new ConcurrentHashMap<>();
+        bySlot = new ConcurrentHashMap<>();
+        byPatient = new ConcurrentHashMap<>();
+        byStatus = new ConcurrentHashMap<>();
+        byStart = new ConcurrentSkipListSet<>(BY_START);
+        byUpdated = new ConcurrentSkipListSet<>(BY_UPDATED);
+    }
+
+    /**
+     * Method to index an Appointment under the keys of a version of it,
+     * replacing whatever it was indexed under before.
+     *
+     * @param id The logical id of the Appointment.
+     * @param item The item standing for it.
+     * @param appt The version, usually the current one.
+     */
+    synchronized void put(final String id, final E item,
+            final Appointment appt) {
+        Entry<E> before = byId.get(id);
+        if (before != null) {
+            unindex(before);
+        }
+        Entry<E> entry = new Entry<>(id, item, appt);
+        index(entry);
+        byId.put(id, entry);
+    }
+
+    /**
+     * Method to stop indexing an Appointment.
+     *
+     * @param id The logical id of the Appointment.
+     */
+    synchronized void remove(final String id) {
+        Entry<E> entry = byId.remove(id);
+        if (entry != null) {
+            unindex(entry);
+        }
+    }
+
+    /**
+     * @return The number of Appointments indexed.
+     */
+    int size() {
+        return byId.size();
+    }
+
+    /**
+     * Method to add an entry to every index.
+     *
+     * @param entry The entry.
+     */
+    private void index(final Entry<E> entry) {
+        for (String slot : entry.slots) {
+            add(bySlot, slot, entry);
+        }
+        add(byPatient, entry.nhsNumber, entry);
+        add(byStatus, entry.status, entry);
+        byStart.add(entry);
+        byUpdated.add(entry);
+    }
+
+    /**
+     * Method to take an entry out of every index.
+     *
+     * @param entry The entry.
+     */
+    private void unindex(final Entry<E> entry) {
+        for (String slot : entry.slots) {
+            remove(bySlot, slot, entry);
+        }
+        remove(byPatient, entry.nhsNumber, entry);
+        remove(byStatus, entry.status, entry);
+        byStart.remove(entry);
+        byUpdated.remove(entry);
+    }
+
+    /**
+     * Method to find the Appointments matching a set of criteria, each of
+     * which may be left out.
+     *
+     * An Appointment changed as the search runs may be matched on the keys
+     * it had before, so a caller wanting the current version should check
+     * that still matches (see matches()).
+     *
+     * @param slotId The id of the Slot booked (eg slot001), or null.
+     * @param status The status, or null.
+     * @param nhsNumber The NHS Number of the Patient, or null.
+     * @param startFrom The earliest start (inclusive), in epoch millis.
+     * @param startTo The latest start (exclusive), in epoch millis.
+     * @param updatedFrom The earliest last update (inclusive).
+     * @param updatedTo The latest last update (exclusive).
+     * @return The item standing for each matching Appointment, in no
+     * particular order.
+     */
+    List<E> search(final String slotId,
+            final AppointmentStatus status, final String nhsNumber,
+            final long startFrom, final long startTo,
+            final long updatedFrom, final long updatedTo) {
+        Collection<Entry<E>> candidates;
+        if (slotId != null) {
+            candidates = get(bySlot, slotId);
+        } else if (nhsNumber != null) {
+            candidates = get(byPatient, nhsNumber);
+        } else if (updatedFrom != Long.MIN_VALUE
+                || updatedTo != Long.MAX_VALUE) {
+            candidates = between(byUpdated, updatedFrom, updatedTo);
+        } else if (startFrom != Long.MIN_VALUE || startTo != Long.MAX_VALUE) {
+            candidates = between(byStart, startFrom, startTo);
+        } else if (status != null) {
+            candidates = get(byStatus, status);
+        } else {
+            candidates = byId.values();
+        }
+        ArrayList<E> result = new ArrayList<>();
+        for (Entry<E> entry : candidates) {
+            if (entry.matches(slotId, status, nhsNumber, startFrom, startTo,
+                    updatedFrom, updatedTo)) {
+                result.add(entry.item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to check an Appointment against a set of search criteria, each
+     * of which may be left out (see search()).
+     *
+     * @param appt The Appointment.
+     * @param slotId The id of the Slot booked (eg slot001), or null.
+     * @param status The status, or null.
+     * @param nhsNumber The NHS Number of the Patient, or null.
+     * @param startFrom The earliest start (inclusive), in epoch millis.
+     * @param startTo The latest start (exclusive), in epoch millis.
+     * @param updatedFrom The earliest last update (inclusive).
+     * @param updatedTo The latest last update (exclusive).
+     * @return true if it matches them all.
+     */
+    static boolean matches(final Appointment appt, final String slotId,
+            final AppointmentStatus status, final String nhsNumber,
+            final long startFrom, final long startTo,
+            final long updatedFrom, final long updatedTo) {
+        if (slotId != null && !booksSlot(appt, slotId)) {
+            return false;
+        }
+        if (status != null && appt.getStatus() != status) {
+            return false;
+        }
+        if (nhsNumber != null && !nhsNumber.equals(nhsNumber(appt))) {
+            return false;
+        }
+        long start = start(appt);
+        long updated = lastUpdated(appt);
+        return start >= startFrom && start < startTo
+                && updated >= updatedFrom && updated < updatedTo;
+    }
+
+    /**
+     * Method to get the NHS Number of an Appointment's Patient.
+     *
+     * @param appt The Appointment.
+     * @return The NHS Number from the contained Patient, or null if it has
+     * none.
+     */
+    static String nhsNumber(final Appointment appt) {
+        for (Resource res : appt.getContained()) {
+            if (!(res instanceof Patient)) {
+                continue;
+            }
+            for (Identifier id : ((Patient) res).getIdentifier()) {
+                if (NHSNUMSYSTEM.equals(id.getSystem())) {
+                    return id.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param appt An Appointment.
+     * @param slotId The id of a Slot.
+     * @return true if the Appointment books that Slot.
+     */
+    private static boolean booksSlot(final Appointment appt,
+            final String slotId) {
+        for (Reference slot : appt.getSlot()) {
+            if (slotId.equals(DataStore.idPart(slot.getReference()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param appt An Appointment.
+     * @return Its start in epoch millis, or Long.MIN_VALUE if it has none.
+     */
+    private static long start(final Appointment appt) {
+        return appt.hasStart() ? appt.getStart().getTime() : Long.MIN_VALUE;
+    }
+
+    /**
+     * @param appt An Appointment.
+     * @return When it was last updated in epoch millis, or Long.MIN_VALUE if
+     * that isn't known.
+     */
+    private static long lastUpdated(final Appointment appt) {
+        return appt.hasMeta() && appt.getMeta().hasLastUpdated()
+                ? appt.getMeta().getLastUpdated().getTime() : Long.MIN_VALUE;
+    }
+
+    /**
+     * Method to compare two entries in an ordered index by their keys, then
+     * their ids, with a marker (whose id is null) first.
+     *
+     * @param key The key of the first entry.
+     * @param id The id of the first entry, or null.
+     * @param otherKey The key of the second entry.
+     * @param otherId The id of the second entry, or null.
+     * @return Less than, equal to or greater than zero as the first entry
+     * comes before, at or after the second.
+     */
+    private static int compareKeyed(final long key, final String id,
+            final long otherKey, final String otherId) {
+        if (key != otherKey) {
+            return key < otherKey ? -1 : 1;
+        }
+        if (id == null || otherId == null) {
+            return id == otherId ? 0 : id == null ? -1 : 1;
+        }
+        return id.compareTo(otherId);
+    }
+
+    /**
+     * Method to get the Appointments held under a key.
+     *
+     * @param <K> The type of the key.
+     * @param <E> The type of the item standing for each Appointment.
+     * @param index The index.
+     * @param key The key.
+     * @return The Appointments, which may be empty.
+     */
+    private static <K, E> Set<Entry<E>> get(
+            final ConcurrentHashMap<K, Set<Entry<E>>> index, final K key) {
+        Set<Entry<E>> set = index.get(key);
+        return set == null ? Collections.<Entry<E>>emptySet() : set;
+    }
+
+    /**
+     * Method to add an Appointment under a key. Only called with our lock
+     * held.
+     *
+     * @param <K> The type of the key.
+     * @param <E> The type of the item standing for each Appointment.
+     * @param index The index.
+     * @param key The key, or null for nothing to index.
+     * @param entry The Appointment.
+     */
+    private static <K, E> void add(
+            final ConcurrentHashMap<K, Set<Entry<E>>> index, final K key,
+            final Entry<E> entry) {
+        if (key == null) {
+            return;
+        }
+        Set<Entry<E>> set = index.get(key);
+        if (set == null) {
+            set = Collections.newSetFromMap(
+                    new ConcurrentHashMap<Entry<E>, Boolean>());
+            index.put(key, set);
+        }
+        set.add(entry);
+    }
+
+    /**
+     * Method to remove an Appointment from under a key, dropping the key
+     * once nothing is left under it. Only called with our lock held.
+     *
+     * @param <K> The type of the key.
+     * @param <E> The type of the item standing for each Appointment.
+     * @param index The index.
+     * @param key The key, or null for nothing indexed.
+     * @param entry The Appointment.
+     */
+    private static <K, E> void remove(
+            final ConcurrentHashMap<K, Set<Entry<E>>> index, final K key,
+            final Entry<E> entry) {
+        if (key == null) {
+            return;
+        }
+        Set<Entry<E>> set = index.get(key);
+        if (set != null) {
+            set.remove(entry);
+            if (set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Method to get the entries of an ordered index with keys in a range.
+     *
+     * @param <E> The type of the item standing for each Appointment.
+     * @param index The index.
+     * @param from The lowest key (inclusive).
+     * @param to The highest key (exclusive).
+     * @return The entries.
+     */
+    private static <E> Set<Entry<E>> between(
+            final ConcurrentSkipListSet<Entry<E>> index, final long from,
+            final long to) {
+        if (from >= to) {
+            return Collections.emptySet();
+        }
+        return index.subSet(new Entry<E>(from), new Entry<E>(to));
+    }
+
+    /**
+     * One Appointment in the index: the item standing for it and the keys of
+     * the version it's indexed under, copied out so they can't change under
+     * the index. Entries are only equal to themselves, except in an ordered
+     * index, which orders them by key and id (see BY_START).
+     *
+     * @param <E> The type of the item.
+     */
+    private static final class Entry<E> {
+
+        /**
+         * The logical id of the Appointment, or null for a marker.
+         */
+        private final String id;
+
+        /**
+         * The item standing for the Appointment, or null for a marker.
+         */
+        private final E item;
+
+        /**
+         * The ids of the Slots it books (eg slot001).
+         */
+        private final String[] slots;
+
+        /**
+         * Its status.
+         */
+        private final AppointmentStatus status;
+
+        /**
+         * The NHS Number of its Patient, or null.
+         */
+        private final String nhsNumber;
+
+        /**
+         * Its start in epoch millis, or Long.MIN_VALUE.
+         */
+        private final long start;
+
+        /**
+         * When it was last updated in epoch millis, or Long.MIN_VALUE.
+         */
+        private final long updated;
+
+        /**
+         * Constructor.
+         *
+         * @param newId The logical id of the Appointment.
+         * @param newItem The item standing for it.
+         * @param appt The version it's indexed under.
+         */
+        Entry(final String newId, final E newItem, final Appointment appt) {
+            id = newId;
+            item = newItem;
+            List<Reference> booked = appt.getSlot();
+            slots = new String[booked.size()];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = DataStore.idPart(booked.get(i).getReference());
+            }
+            status = appt.getStatus();
+            nhsNumber = nhsNumber(appt);
+            start = start(appt);
+            updated = lastUpdated(appt);
+        }
+
+        /**
+         * Constructor, for a marker of a position in an ordered index.
+         *
+         * @param key The key it marks, as both start and last update.
+         */
+        Entry(final long key) {
+            id = null;
+            item = null;
+            slots = new String[0];
+            status = null;
+            nhsNumber = null;
+            start = key;
+            updated = key;
+        }
+
+        /**
+         * Method to check the keys against a set of search criteria, as
+         * AppointmentIndex.matches() does for an Appointment.
+         *
+         * @param slotId The id of the Slot booked, or null.
+         * @param wanted The status, or null.
+         * @param nhs The NHS Number of the Patient, or null.
+         * @param startFrom The earliest start (inclusive).
+         * @param startTo The latest start (exclusive).
+         * @param updatedFrom The earliest last update (inclusive).
+         * @param updatedTo The latest last update (exclusive).
+         * @return true if they match them all.
+         */
+        boolean matches(final String slotId, final AppointmentStatus wanted,
+                final String nhs, final long startFrom, final long startTo,
+                final long updatedFrom, final long updatedTo) {
+            if (slotId != null && !Arrays.asList(slots).contains(slotId)) {
+                return false;
+            }
+            if (wanted != null && status != wanted) {
+                return false;
+            }
+            if (nhs != null && !nhs.equals(nhsNumber)) {
+                return false;
+            }
+            return start >= startFrom && start < startTo
+                    && updated >= updatedFrom && updated < updatedTo;
+        }
+    }
+}
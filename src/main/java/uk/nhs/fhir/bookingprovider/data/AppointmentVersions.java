@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Appointment.AppointmentStatus;
+
+/**
+ * Every version of one Appointment, so that a vread or _history gets back
+ * exactly what was there before.
+ *
+ * The first version held is kept whole. A later version only ever changes
+ * the status (see AppointmentResourceProvider.updateAppointment), so each is
+ * held as just its status and when it was made, and an older version is
+ * rebuilt from the first when it's asked for. The current version is also kept whole, ready to be
+ * read without taking a lock.
+ *
+ * No version is changed once it has been made: an update makes a new one.
+ */
+final class AppointmentVersions {
+
+    /**
+     * The logical id of the Appointment.
+     */
+    private final String id;
+
+    /**
+     * The id of the HealthcareService whose shard the Appointment is in, or
+     * an empty String.
+     */
+    private final String service;
+
+    /**
+     * The first version held, usually version 1.
+     */
+    private Appointment first;
+
+    /**
+     * The version number of first.
+     */
+    private long firstVersion;
+
+    /**
+     * The status of each later version, in order.
+     */
+    private final ArrayList<AppointmentStatus> statuses;
+
+    /**
+     * When each later version was made, in order.
+     */
+    private final ArrayList<Date> updated;
+
+    /**
+     * The current version.
+     */
+    private volatile Appointment current;
+
+    /**
+     * Constructor.
+     *
+     * @param appt The first version held, whose id carries its version (1 if
+     * it has none).
+     */
+    AppointmentVersions(final Appointment appt) {
+        this(appt, "");
+    }
+
+    /**
+     * Constructor, for an Appointment in a given shard.
+     *
+     * @param appt The first version held, whose id carries its version (1 if
+     * it has none).
+     * @param newService The id of the HealthcareService whose shard it's in,
+     * or an empty String.
+     */
+    AppointmentVersions(final Appointment appt, final String newService) {
+        id = appt.getIdElement().getIdPart();
+        service = newService;
+        statuses = new ArrayList<>();
+        updated = new ArrayList<>();
+        start(appt);
+    }
+
+    /**
+     * Method to begin the chain again from a given version.
+     *
+     * @param appt The version.
+     */
+    private void start(final Appointment appt) {
+        firstVersion = versionOf(appt);
+        appt.setId(new IdDt("Appointment", id, Long.toString(firstVersion)));
+        first = appt;
+        statuses.clear();
+        updated.clear();
+        current = appt;
+    }
+
+    /**
+     * @return The logical id of the Appointment.
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return The id of the HealthcareService whose shard the Appointment is
+     * in, or an empty String.
+     */
+    String getService() {
+        return service;
+    }
+
+    /**
+     * @return The current version.
+     */
+    Appointment getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return The number of the current version.
+     */
+    synchronized long getVersion() {
+        return firstVersion + statuses.size();
+    }
+
+    /**
+     * Method to get a given version.
+     *
+     * @param version The version number.
+     * @return The version, or null if there's no such version held.
+     */
+    synchronized Appointment getVersion(final long version) {
+        long latest = firstVersion + statuses.size();
+        if (version == latest) {
+            return current;
+        }
+        if (version < firstVersion || version > latest) {
+            return null;
+        }
+        if (version == firstVersion) {
+            return first;
+        }
+        return build(version);
+    }
+
+    /**
+     * @return Every version held, newest first.
+     */
+    synchronized List<Appointment> getHistory() {
+        ArrayList<Appointment> result = new ArrayList<>(statuses.size() + 1);
+        result.add(current);
+        for (long v = firstVersion + statuses.size() - 1; v > firstVersion;
+                v--) {
+            result.add(build(v));
+        }
+        if (!statuses.isEmpty()) {
+            result.add(first);
+        }
+        return result;
+    }
+
+    /**
+     * Method to make a new version with a different status.
+     *
+     * @param expected The version the change was made to, or 0 to change
+     * whatever is current.
+     * @param status The new status.
+     * @return The new version, or null if expected isn't the current version.
+     */
+    synchronized Appointment update(final long expected,
+            final AppointmentStatus status) {
+        Appointment next = next(expected, status);
+        if (next != null) {
+            add(next);
+        }
+        return next;
+    }
+
+    /**
+     * Method to build what the next version would be with a different
+     * status, without adding it, so it can be written somewhere safe first.
+     * The caller should hold our lock until it has been added by add().
+     *
+     * @param expected The version the change was made to, or 0 to change
+     * whatever is current.
+     * @param status The new status.
+     * @return The next version, or null if expected isn't the current
+     * version.
+     */
+    synchronized Appointment next(final long expected,
+            final AppointmentStatus status) {
+        long latest = firstVersion + statuses.size();
+        if (expected != 0 && expected != latest) {
+            return null;
+        }
+        Appointment next = current.copy();
+        next.setStatus(status);
+        next.setId(new IdDt("Appointment", id, Long.toString(latest + 1)));
+        next.getMeta().setVersionId(Long.toString(latest + 1));
+        next.getMeta().setLastUpdated(new Date());
+        return next;
+    }
+
+    /**
+     * Method to add a version built by next() as the current one.
+     *
+     * @param next The version.
+     */
+    synchronized void add(final Appointment next) {
+        statuses.add(next.getStatus());
+        updated.add(next.getMeta().getLastUpdated());
+        current = next;
+    }
+
+    /**
+     * Method used when replaying the journal or a snapshot, to add a version
+     * as it was written. One already held is ignored, and one which doesn't
+     * follow on from the current version starts the chain again.
+     *
+     * @param appt The version.
+     */
+    synchronized void replay(final Appointment appt) {
+        long version = versionOf(appt);
+        long latest = firstVersion + statuses.size();
+        if (version == latest + 1) {
+            appt.setId(new IdDt("Appointment", id, Long.toString(version)));
+            statuses.add(appt.getStatus());
+            updated.add(appt.getMeta().getLastUpdated());
+            current = appt;
+        } else if (version > latest + 1) {
+            start(appt);
+        }
+    }
+
+    /**
+     * Method to rebuild an older version from the first.
+     *
+     * @param version The version number, after the first.
+     * @return The version.
+     */
+    private Appointment build(final long version) {
+        int index = (int) (version - firstVersion - 1);
+        Appointment appt = first.copy();
+        appt.setStatus(statuses.get(index));
+        appt.setId(new IdDt("Appointment", id, Long.toString(version)));
+        appt.getMeta().setVersionId(Long.toString(version));
+        appt.getMeta().setLastUpdated(updated.get(index));
+        return appt;
+    }
+
+    /**
+     * @param appt A version of the Appointment.
+     * @return Its version number, 1 if it has none.
+     */
+    private static long versionOf(final Appointment appt) {
+        IdDt version = new IdDt(appt.getIdElement().getValue());
+        return version.hasVersionIdPart()
+                ? version.getVersionIdPartAsLong() : 1;
+    }
+}
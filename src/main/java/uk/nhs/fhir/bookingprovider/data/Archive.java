@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+
+/**
+ * The cold tier for Appointments which are over: a file of them, one JSON
+ * Appointment per line (archive.ndjson), in the journal directory.
+ *
+ * Appointments are written here, every version of each oldest first, before
+ * they're dropped from the DataStore.
+ * If the server stops in between, they're archived again next time, so an
+ * Appointment may appear more than once; the last copy is the latest.
+ */
+final class Archive {
+
+    /**
+     * The name of the archive file.
+     */
+    static final String FILE_NAME = "archive.ndjson";
+
+    /**
+     * Everything is written as UTF-8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Private constructor, this class only has static methods.
+     */
+    private Archive() {
+    }
+
+    /**
+     * Method to add Appointments to the archive, returning once they're
+     * safely on disk.
+     *
+     * @param dir The journal directory.
+     * @param appointments The Appointments to archive.
+     * @throws IOException If they can't be written.
+     */
+    static void append(final File dir, final List<Appointment> appointments)
+            throws IOException {
+        if (appointments.isEmpty()) {
+            return;
+        }
+        IParser parser = FhirContext.forDstu3().newJsonParser();
+        StringBuilder lines = new StringBuilder();
+        for (Appointment appt : appointments) {
+            lines.append(parser.encodeResourceToString(appt)).append('\n');
+        }
+        try (FileChannel channel = FileChannel.open(
+                new File(dir, FILE_NAME).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(
+                    lines.toString().getBytes(UTF8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Slot;
+
+/**
+ * What the ResourceProviders and the servlet need from wherever the Slots
+ * and Appointments are stored, so the storage can be swapped without them
+ * changing.
+ *
+ * DataStore holds everything in memory (optionally journalled to disk),
+ * while DiskStore keeps the Appointments on disk. Which is used is chosen in
+ * server.properties (see RestfulServlet).
+ */
+public interface BookingStore {
+
+    /**
+     * Method to get the current snapshot of the Slots and the resources they
+     * refer to. A search should call this once and do all its reading from
+     * what it gets back.
+     *
+     * @return The current StoreSnapshot.
+     */
+    StoreSnapshot getSnapshot();
+
+    /**
+     * Method to get a single Slot by ID.
+     *
+     * @param id The id of the requested Slot (eg slot001).
+     * @return The Slot resource, or null if it wasn't found.
+     */
+    Slot getSlotByID(String id);
+
+    /**
+     * @return A List of all the Slots.
+     */
+    ArrayList<Slot> getSlots();
+
+    /**
+     * @return The number of Slots.
+     */
+    int getSlotCount();
+
+    /**
+     * @return The number of free Slots.
+     */
+    int getFreeSlotCount();
+
+    /**
+     * Method to book a Slot, but only if it is currently free, as one step.
+     *
+     * @param id The id of the Slot to book.
+     * @return true if the Slot was free and is now booked.
+     */
+    boolean bookSlotIfFree(String id);
+
+    /**
+     * Method to free a Slot, but only if it is currently booked, as one step.
+     *
+     * @param id The id of the Slot to free.
+     * @return true if the Slot was booked and is now free.
+     */
+    boolean freeSlotIfBooked(String id);
+
+    /**
+     * Method to save a new Appointment, giving it a new id.
+     *
+     * @param newAppt The new Appointment to save.
+     * @return The id (a random UUID) assigned to it, at version 1.
+     */
+    IdDt addAppointment(Appointment newAppt);
+
+    /**
+     * Method to get a specific Appointment by Id.
+     *
+     * @param identifier of the appointment being requested, eg
+     * Appointment/1234 or, for a specific version,
+     * Appointment/1234/_history/2.
+     * @return The Appointment resource if found or null.
+     */
+    Appointment getAppointment(String identifier);
+
+    /**
+     * Method to get every version of an Appointment.
+     *
+     * @param identifier The identifier of the Appointment (eg
+     * Appointment/1234).
+     * @return The versions, newest first, or null if it wasn't found.
+     */
+    List<Appointment> getAppointmentHistory(String identifier);
+
+    /**
+     * Method to get the number of the current version of an Appointment.
+     *
+     * @param identifier The identifier of the Appointment (eg
+     * Appointment/1234).
+     * @return The version number, or 0 if it wasn't found.
+     */
+    long getAppointmentVersion(String identifier);
+
+    /**
+     * @return The current version of each Appointment held.
+     */
+    ArrayList<Appointment> getAppointments();
+
+    /**
+     * @return The number of Appointments held, without reading any of them.
+     */
+    int getAppointmentCount();
+
+    /**
+     * Method to find the Appointments matching a set of criteria, each of
+     * which may be left out.
+     *
+     * @param slotId The Slot booked (eg Slot/slot001), or null.
+     * @param status The status, or null.
+     * @param nhsNumber The NHS Number of the Patient, or null.
+     * @param startFrom The earliest start (inclusive), in epoch millis, or
+     * Long.MIN_VALUE.
+     * @param startTo The latest start (exclusive), or Long.MAX_VALUE.
+     * @param updatedFrom The earliest last update (inclusive), or
+     * Long.MIN_VALUE.
+     * @param updatedTo The latest last update (exclusive), or
+     * Long.MAX_VALUE.
+     * @return The current version of each matching Appointment, in no
+     * particular order.
+     */
+    List<Appointment> searchAppointments(String slotId,
+            Appointment.AppointmentStatus status, String nhsNumber,
+            long startFrom, long startTo, long updatedFrom, long updatedTo);
+
+    /**
+     * Method to update an Appointment to Cancelled or EnteredInError, only if
+     * it's still at the version the change was made to (ie If-Match).
+     *
+     * @param identifier The identifier of the Appointment.
+     * @param expectedVersion The version it must be at, or 0 for any.
+     * @param proposedStatus The status we've been asked to change it to.
+     * @return The new version of the Appointment, or null if it wasn't found.
+     * @throws ResourceVersionConflictException If it's at another version.
+     */
+    Appointment setAppointmentStatus(String identifier, long expectedVersion,
+            Appointment.AppointmentStatus proposedStatus);
+
+    /**
+     * Method to put everything back as it started: all Slots free and no
+     * Appointments.
+     */
+    void initialize();
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * A Bulk Data style export of every Slot and Appointment, as NDJSON (one
+ * resource per line), taken from one moment of the DataStore.
+ *
+ * Everything needed is captured when the export is created (see
+ * DataStore.startExport()): the StoreSnapshot's SlotStore, the status of
+ * each of its Slots, and the current version of each Appointment. None of
+ * those change afterwards, so the resources are encoded and written without
+ * holding any lock, and a long export doesn't hold up bookings.
+ *
+ * Each resource is encoded as it is written, so only one is ever held as
+ * text. The output is flushed every so often, so an HTTP response goes out
+ * in chunks rather than being built up first.
+ */
+public final class BulkExport {
+
+    /**
+     * How many resources are written between flushes.
+     */
+    private static final int FLUSH_EVERY = 1000;
+
+    /**
+     * Everything is written as UTF-8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Encodes each resource.
+     */
+    private final IParser parser = FhirContext.forDstu3().newJsonParser();
+
+    /**
+     * When the export was taken, in epoch millis.
+     */
+    private final long transactionTime;
+
+    /**
+     * The Slots exported.
+     */
+    private final SlotStore slots;
+
+    /**
+     * The status of each Slot in slots, as it was when the export was taken.
+     */
+    private final SlotStatus[] statuses;
+
+    /**
+     * The current version of each Appointment exported.
+     */
+    private final List<Appointment> appointments;
+
+    /**
+     * Constructor, which copies the status of every Slot.
+     *
+     * @param when When the export is taken, in epoch millis.
+     * @param slotStore The Slots to export.
+     * @param appts The current version of each Appointment.
+     */
+    BulkExport(final long when, final SlotStore slotStore,
+            final List<Appointment> appts) {
+        transactionTime = when;
+        slots = slotStore;
+        statuses = new SlotStatus[slotStore.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = slotStore.statusAt(i);
+        }
+        appointments = appts;
+    }
+
+    /**
+     * @return When the export was taken, in epoch millis.
+     */
+    public long getTransactionTime() {
+        return transactionTime;
+    }
+
+    /**
+     * @return How many Slots are exported.
+     */
+    public int getSlotCount() {
+        return statuses.length;
+    }
+
+    /**
+     * @return How many Appointments are exported.
+     */
+    public int getAppointmentCount() {
+        return appointments.size();
+    }
+
+    /**
+     * Method to write every Slot as NDJSON.
+     *
+     * @param out Where to write them, which is flushed but not closed.
+     * @return How many were written.
+     * @throws IOException If they can't be written.
+     */
+    public int writeSlots(final OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        writeSlots(writer, 0, statuses.length);
+        writer.flush();
+        return statuses.length;
+    }
+
+    /**
+     * Method to write every Appointment as NDJSON.
+     *
+     * @param out Where to write them, which is flushed but not closed.
+     * @return How many were written.
+     * @throws IOException If they can't be written.
+     */
+    public int writeAppointments(final OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, UTF8);
+        writeAppointments(writer, 0, appointments.size());
+        writer.flush();
+        return appointments.size();
+    }
+
+    /**
+     * Method to write everything to gzipped NDJSON files, at most chunkSize
+     * resources to a file, named eg Slot-1.ndjson.gz, Slot-2.ndjson.gz,
+     * Appointment-1.ndjson.gz.
+     *
+     * @param dir The directory to write them to, which is created if need be.
+     * @param chunkSize The most resources written to a file.
+     * @return The files written, Slots first. A type with nothing to export
+     * has no files.
+     * @throws IOException If they can't be written.
+     */
+    public List<File> writeFiles(final File dir, final int chunkSize)
+            throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        ArrayList<File> files = new ArrayList<>();
+        for (int from = 0; from < statuses.length; from += chunkSize) {
+            File file = chunkFile(dir, "Slot", files.size() + 1);
+            try (Writer writer = gzipWriter(file)) {
+                writeSlots(writer, from,
+                        Math.min(statuses.length, from + chunkSize));
+            }
+            files.add(file);
+        }
+        int slotFiles = files.size();
+        for (int from = 0; from < appointments.size(); from += chunkSize) {
+            File file = chunkFile(dir, "Appointment",
+                    files.size() - slotFiles + 1);
+            try (Writer writer = gzipWriter(file)) {
+                writeAppointments(writer, from,
+                        Math.min(appointments.size(), from + chunkSize));
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Method to write some of the Slots, one to a line.
+     *
+     * @param writer Where to write them.
+     * @param from The position of the first.
+     * @param to The position after the last.
+     * @throws IOException If they can't be written.
+     */
+    private void writeSlots(final Writer writer, final int from,
+            final int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            Slot slot = slots.slotAt(i);
+            slot.setStatus(statuses[i]);
+            parser.encodeResourceToWriter(slot, writer);
+            writer.write('\n');
+            if ((i + 1) % FLUSH_EVERY == 0) {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * Method to write some of the Appointments, one to a line.
+     *
+     * @param writer Where to write them.
+     * @param from The position of the first.
+     * @param to The position after the last.
+     * @throws IOException If they can't be written.
+     */
+    private void writeAppointments(final Writer writer, final int from,
+            final int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            parser.encodeResourceToWriter(appointments.get(i), writer);
+            writer.write('\n');
+            if ((i + 1) % FLUSH_EVERY == 0) {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * Method to get the file for one chunk of an export.
+     *
+     * @param dir The directory the export is written to.
+     * @param type The resource type in the file.
+     * @param number Which chunk of that type, counting from 1.
+     * @return The file.
+     */
+    private static File chunkFile(final File dir, final String type,
+            final int number) {
+        return new File(dir, type + "-" + number + ".ndjson.gz");
+    }
+
+    /**
+     * Method to open a gzipped file to write text to.
+     *
+     * @param file The file.
+     * @return A Writer, which must be closed.
+     * @throws IOException If the file can't be opened.
+     */
+    private static Writer gzipWriter(final File file) throws IOException {
+        return new OutputStreamWriter(new GZIPOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))), UTF8);
+    }
+}
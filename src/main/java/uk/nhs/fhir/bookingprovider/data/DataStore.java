@@ -16,25 +16,37 @@
 package uk.nhs.fhir.bookingprovider.data;
 
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import org.hl7.fhir.dstu3.model.CodeableConcept;
-import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.HealthcareService;
-import org.hl7.fhir.dstu3.model.HumanName;
-import org.hl7.fhir.dstu3.model.Identifier;
-import org.hl7.fhir.dstu3.model.Location;
-import org.hl7.fhir.dstu3.model.Meta;
 import org.hl7.fhir.dstu3.model.Organization;
 import org.hl7.fhir.dstu3.model.Practitioner;
 import org.hl7.fhir.dstu3.model.PractitionerRole;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Appointment;
-import org.hl7.fhir.dstu3.model.OperationOutcome;
 import org.hl7.fhir.dstu3.model.Schedule;
 import org.hl7.fhir.dstu3.model.Slot;
 import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
@@ -42,26 +54,75 @@ import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
 /**
  * Singleton instance of an in memory data store.
  *
+ * It is shared by all the request threads, none of which take a lock. The
+ * Slots, Schedules and the resources they refer to are held in an immutable
+ * StoreSnapshot; initialize() builds a new one and publishes it in a single
+ * volatile write, and a search takes the current one (getSnapshot()) once
+ * for the whole request, so it sees a consistent view whatever else happens.
+ *
+ * Appointments are held in the order they were saved, and indexed by their
+ * logical id, so reading or cancelling one doesn't depend on how many have
+ * been booked. Every version of each is kept (see AppointmentVersions), for
+ * vread and _history, and searches are served from an AppointmentIndex.
+ *
+ * Booking and freeing Slots changes each Slot's status by compare-and-set in
+ * the snapshot's SlotStore, so bookings keep flowing while searches read. The
+ * SlotStore holds either a Slot resource per Slot, or a table of primitive
+ * columns which only builds Slot resources as they're read (see
+ * setSlotBacking()), and may be split into a shard per HealthcareService,
+ * each with its own indexes (see setSharded()). The Appointments are then
+ * split the same way, by the service providing the Slot they book.
+ *
+ * If a Journal has been opened (see openJournal()) every change to a Slot or
+ * Appointment, every feed of imported Slots and every reset is also written
+ * to it before the method making the change returns. Every so often a
+ * SnapshotFile of the whole store is written and the journal segments it
+ * covers are deleted, so at startup only the latest snapshot and the journal
+ * written since need be read.
+ *
+ * Housekeeping (see housekeep()) keeps what's held bounded by the booking
+ * horizon rather than by how long the server has been up: Slots which have
+ * ended are dropped, the horizon of generated Slots is rolled forward, and
+ * Appointments which are over are moved to the Archive. Without a journal
+ * there's nowhere to archive them, so they're kept.
+ *
  * @author tim.coates@nhs.net
  */
-public final class DataStore {
+public final class DataStore implements BookingStore {
 
     /**
-     * This is our Singleton instance.
+     * The ways the Slots can be held.
      */
-    private static DataStore instance = null;
+    public enum SlotBacking {
+        /**
+         * A Slot resource per Slot, with indexes over them.
+         */
+        OBJECTS,
+        /**
+         * A table of primitive columns on the Java heap.
+         */
+        HEAP_TABLE,
+        /**
+         * A table of primitive columns off the Java heap.
+         */
+        OFF_HEAP_TABLE
+    }
 
     /**
-     * Where all the profiles are pulled from.
+     * Holder for our Singleton instance, so it is created (once) on first use
+     * without getInstance() needing to lock.
      */
-    private static final String PROFILEROOT
-            = "https://fhir.hl7.org.uk/STU3/StructureDefinition/";
+    private static final class Holder {
 
-    /**
-     * Where any Code Systems are pulled from.
-     */
-    private static final String CODESYSTEMROOT
-            = "https://fhir.hl7.org.uk/STU3/CodeSystem/";
+        /**
+         * This is our Singleton instance.
+         */
+        private static final DataStore INSTANCE = new DataStore();
+
+        static {
+            INSTANCE.initialize();
+        }
+    }
 
     /**
      * Logger we use throughout.
@@ -69,37 +130,74 @@ public final class DataStore {
     private static final Logger LOG
             = Logger.getLogger(DataStore.class.getName());
     /**
-     * A List of PractitionerRole resources.
+     * The current snapshot of the Slots, Schedules etc, replaced as a whole
+     * by initialize().
+     */
+    private volatile StoreSnapshot current;
+    /**
+     * The epoch of the last snapshot built, only used inside initialize().
+     */
+    private long lastEpoch;
+    /**
+     * How the Slots in each new snapshot are held.
      */
-    private ArrayList<PractitionerRole> practitionerRoles;
+    private SlotBacking slotBacking = SlotBacking.OBJECTS;
     /**
-     * A List of Practitioner resources.
+     * Whether the Slots and Appointments are split by HealthcareService.
      */
-    private ArrayList<Practitioner> practitioners;
+    private boolean sharded;
     /**
-     * A List of Organization resources.
+     * The profiles, references and codings shared between Slots.
      */
-    private ArrayList<Organization> organizations;
+    private final Flyweights flyweights = new Flyweights();
     /**
-     * A List of Location resources.
+     * Generates Slots from session templates, or null if there are none.
      */
-    private ArrayList<Object> locations;
+    private SlotGenerator generator;
     /**
-     * A List of HealthcareService resources.
+     * How many days of Slots the generator builds, from today.
      */
-    private ArrayList<HealthcareService> healthcareServices;
+    private int horizonDays;
     /**
-     * A List of Schedule resources.
+     * Midnight at the end of the last day of Slots generated.
      */
-    private ArrayList<Schedule> schedules;
+    private Calendar generatedUntil;
     /**
-     * A List of Slot resources.
+     * The ids of the Slots imported since the store was initialized, which
+     * snapshots have to hold whole.
      */
-    private ArrayList<Slot> slots;
+    private final LinkedHashSet<String> importedIds = new LinkedHashSet<>();
     /**
-     * And finally a List of Appointment resources.
+     * Runs housekeep() every so often, once started.
      */
-    private ArrayList<Appointment> appointments;
+    private ScheduledExecutorService housekeeper;
+    /**
+     * And finally the Appointment resources, in the order they were saved.
+     */
+    private volatile ConcurrentLinkedQueue<AppointmentVersions> appointments;
+    /**
+     * The versions of each Appointment, keyed on its logical id.
+     */
+    private volatile ConcurrentHashMap<String, AppointmentVersions>
+            appointmentsById;
+    /**
+     * Secondary indexes of the Appointments, for searches, one for each
+     * shard keyed on its HealthcareService id (just "" if not sharded).
+     */
+    private volatile ConcurrentHashMap<String,
+            AppointmentIndex<AppointmentVersions>> appointmentShards;
+    /**
+     * The journal changes are written to, or null if we're only in memory.
+     */
+    private volatile Journal journal;
+    /**
+     * The directory holding the journal and snapshots.
+     */
+    private File journalDir;
+    /**
+     * Writes snapshots every so often, while there's a journal.
+     */
+    private ScheduledExecutorService snapshotWriter;
 
     /**
      * Private Constructor to prevent unexpected instantiation (forces singleton
@@ -107,14 +205,14 @@ public final class DataStore {
      *
      */
     private DataStore() {
-        this.practitionerRoles = null;
-        this.practitioners = null;
-        this.organizations = null;
-        this.locations = null;
-        this.healthcareServices = null;
-        this.schedules = null;
-        this.slots = null;
-        this.appointments = null;
+        this.current = null;
+        this.lastEpoch = 0;
+        this.appointments = new ConcurrentLinkedQueue<>();
+        this.appointmentsById = new ConcurrentHashMap<>();
+        this.appointmentShards = new ConcurrentHashMap<>();
+        this.journal = null;
+        this.journalDir = null;
+        this.snapshotWriter = null;
         LOG.info("New datastore being created and populated...");
     }
 
@@ -124,11 +222,19 @@ public final class DataStore {
      * @return Gets the only instance of our Singleton class.
      */
     public static DataStore getInstance() {
-        if (instance == null) {
-            instance = new DataStore();
-            instance.initialize();
-        }
-        return instance;
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Method to get the current snapshot of the Slots and the resources they
+     * refer to. A search should call this once and do all its reading from
+     * what it gets back.
+     *
+     * @return The current StoreSnapshot.
+     */
+    @Override
+    public StoreSnapshot getSnapshot() {
+        return current;
     }
 
     /**
@@ -137,19 +243,20 @@ public final class DataStore {
      * @param id The id of the requested Slot (eg slot001).
      * @return The Slot resource.
      */
+    @Override
     public Slot getSlotByID(final String id) {
-        // First we extract just the ID part from any id we've been sent...
-        String[] words = id.split("/");
-        String idPart = words[words.length - 1];
+        return current.getSlotByID(id);
+    }
 
-        for (Slot slot : slots) {
-            Slot sl = (Slot) slot;
-            String slotId = sl.getId();
-            if (slotId.equals(idPart)) {
-                return sl;
-            }
-        }
-        return null;
+    /**
+     * Method to extract just the ID part from any id or reference we've been
+     * sent, so /Slot/slot001 and slot001 both give slot001.
+     *
+     * @param id The id or reference.
+     * @return The final part of the supplied id.
+     */
+    static String idPart(final String id) {
+        return id.substring(id.lastIndexOf('/') + 1);
     }
 
     /**
@@ -159,35 +266,41 @@ public final class DataStore {
      * @return A List of Slots which are provided by the specified
      * HealthcareService.
      */
-    public ArrayList getSlotsByHealthcareService(final String hcsID) {
-
-        ArrayList<Slot> result = new ArrayList();
+    public ArrayList<Slot> getSlotsByHealthcareService(
+            final String hcsID) {
+        return current.getSlotsByHealthcareService(hcsID);
+    }
 
-        // First find out which schedules are run by this HealthcareService.
-        ArrayList<String> scheds = new ArrayList();
-        for (int i = 0; i < schedules.size(); i++) {
-            Schedule sch = (Schedule) schedules.get(i);
-            String schedID = sch.getId();
-            List<Reference> actors = sch.getActor();
-            for (Reference actor1 : actors) {
-                String actor = actor1.getReference();
-                if (actor.equals("/HealthcareService/" + hcsID)) {
-                    scheds.add("/Schedule/" + schedID);
-                }
-            }
-        }
+    /**
+     * Method to get the Slots provided by a given HealthcareService which start
+     * within a given time range. Uses the per Schedule start time index, so
+     * only the Slots in that range (and with the requested status) are visited.
+     *
+     * @param hcsID The HealthcareService id.
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time (inclusive), in epoch milliseconds.
+     * @param to The latest start time (exclusive), in epoch milliseconds.
+     * @return A List of the matching Slots, in start time order within each
+     * Schedule.
+     */
+    public ArrayList<Slot> getSlotsByHealthcareService(final String hcsID,
+            final SlotStatus status, final long from, final long to) {
+        return current.getSlotsByHealthcareService(hcsID, status, from, to);
+    }
 
-        // Now step through Slots, and see whether they have that Schedule.
-        for (Slot slot : slots) {
-            Slot sl = (Slot) slot;
-            String schedule = sl.getSchedule().getReference();
-            for (String sched : scheds) {
-                if (sched.equals(schedule)) {
-                    result.add(sl);
-                }
-            }
-        }
-        return result;
+    /**
+     * Method to get all Slots, whichever Schedule they're in, which start
+     * within a given time range.
+     *
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time (inclusive), in epoch milliseconds.
+     * @param to The latest start time (exclusive), in epoch milliseconds.
+     * @return A List of the matching Slots, in start time order within each
+     * Schedule.
+     */
+    public ArrayList<Slot> getSlotsByStart(final SlotStatus status,
+            final long from, final long to) {
+        return current.getSlotsByStart(status, from, to);
     }
 
     /**
@@ -199,51 +312,9 @@ public final class DataStore {
      * @return A List of FREE Slot resources which are provided by the specified
      * HealthcareService.
      */
-    public ArrayList getFreeSlotsByHCS(final String hcsID,
+    public ArrayList<Slot> getFreeSlotsByHCS(final String hcsID,
             final String status) {
-
-        SlotStatus stat;
-        switch (status) {
-            case "free":
-                stat = SlotStatus.FREE;
-                break;
-
-            case "busy":
-                stat = SlotStatus.BUSY;
-                break;
-
-            default:
-                throw new UnprocessableEntityException(new OperationOutcome());
-        }
-        ArrayList<Slot> result = new ArrayList();
-
-        // First find out which schedules are run by this HealthcareService.
-        ArrayList<String> scheds = new ArrayList();
-        for (Schedule thisSchedule : schedules) {
-            String schedID = thisSchedule.getId();
-            List<Reference> actors = thisSchedule.getActor();
-            for (Reference actor1 : actors) {
-                String actor = actor1.getReference();
-                if (actor.equals("/HealthcareService/" + hcsID)) {
-                    scheds.add("/Schedule/" + schedID);
-                }
-            }
-        }
-
-        // Now step through all Slots, and see whether they have that Schedule.
-        for (Slot slot : slots) {
-            String schedule = slot.getSchedule().getReference();
-            for (String sched : scheds) {
-                if (sched.equals(schedule)) {
-                    if (slot.getStatus() == stat) {
-                        result.add(slot);
-                    } else {
-                        LOG.info("Excluding Slot: " + slot.getId() + " as not free.");
-                    }
-                }
-            }
-        }
-        return result;
+        return current.getFreeSlotsByHCS(hcsID, status);
     }
 
     /**
@@ -251,27 +322,8 @@ public final class DataStore {
      *
      * @return A List of (one) PractitionerRole resources.
      */
-    public ArrayList makePractitionerRoles() {
-        ArrayList<Object> practRoles = new ArrayList();
-
-        PractitionerRole practRole = new PractitionerRole();
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-PractitionerRole-1";
-        met.addProfile(profileName);
-        practRole.setMeta(met);
-        practRole.setId(new IdDt("R0260"));
-        CodeableConcept code = new CodeableConcept();
-        Coding codeCoding = new Coding();
-        String codeSystemName = CODESYSTEMROOT + "CareConnect-SDSJobRoleName-1";
-        codeCoding.setSystem(codeSystemName);
-        codeCoding.setCode("R0260");
-        codeCoding.setDisplay("General Medical Practitioner");
-        code.addCoding(codeCoding);
-        practRole.addCode(code);
-
-        practRoles.add(practRole);
-
-        return practRoles;
+    public ArrayList<PractitionerRole> makePractitionerRoles() {
+        return ReferenceData.makePractitionerRoles();
     }
 
     /**
@@ -280,36 +332,8 @@ public final class DataStore {
      *
      * @return A List of (one) Practitioners.
      */
-    public ArrayList makePractitioners() {
-        ArrayList<Object> practs = new ArrayList();
-
-        Practitioner pract = new Practitioner();
-
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-Practitioner-1";
-        met.addProfile(profileName);
-        pract.setMeta(met);
-        pract.setId(new IdDt("ABCD123456"));
-
-        Identifier newSDSUserIdentifier = new Identifier();
-        newSDSUserIdentifier.setSystem("https://fhir.nhs.uk/Id/sds-user-id");
-        newSDSUserIdentifier.setValue("ABCD123456");
-        pract.addIdentifier(newSDSUserIdentifier);
-
-        Identifier newSDSRoleId = new Identifier();
-        newSDSRoleId.setSystem("https://fhir.nhs.uk/Id/sds-role-profile-id");
-        newSDSRoleId.setValue("R0260");
-        pract.addIdentifier(newSDSRoleId);
-
-        HumanName name = new HumanName();
-        name.addPrefix("Dr");
-        name.addGiven("Libbie");
-        name.setFamily("Webber");
-        pract.addName(name);
-
-        practs.add(pract);
-
-        return practs;
+    public ArrayList<Practitioner> makePractitioners() {
+        return ReferenceData.makePractitioners();
     }
 
     /**
@@ -318,26 +342,8 @@ public final class DataStore {
      *
      * @return A List of Organisations.
      */
-    public ArrayList makeOrganisations() {
-        ArrayList<Object> orgs = new ArrayList();
-
-        Organization org = new Organization();
-
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-Organization-1";
-        met.addProfile(profileName);
-        org.setMeta(met);
-        org.setId(new IdDt("A91545"));
-
-        Identifier newODSID = new Identifier();
-        newODSID.setSystem("https://fhir.nhs.uk/Id/ods-organization-code");
-        newODSID.setValue("A91545");
-        org.addIdentifier(newODSID);
-
-        org.setName("Our Provider Organisation");
-
-        orgs.add(org);
-        return orgs;
+    public ArrayList<Organization> makeOrganisations() {
+        return ReferenceData.makeOrganisations();
     }
 
     /**
@@ -346,131 +352,27 @@ public final class DataStore {
      *
      * @return A List of Locations.
      */
-    public ArrayList makeLocations() {
-        ArrayList<Object> locs = new ArrayList();
-
-        Location locn1 = new Location();
-        Location locn2 = new Location();
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-Location-1";
-        met.addProfile(profileName);
-        locn1.setMeta(met);
-        locn2.setMeta(met);
-
-        locn1.setId(new IdDt("loc1111"));
-        locn1.setName("Location One");
-        locs.add(locn1);
-
-        locn2.setId(new IdDt("loc2222"));
-        locn2.setName("Location Two");
-        locs.add(locn2);
-
-        return locs;
+    public ArrayList<Object> makeLocations() {
+        return ReferenceData.makeLocations();
     }
 
     /**
-     * Method to create a list of two HealthcareService resources: Service One -
-     * 918999198999 - Location: /Location/loc1111 - Organisation:
-     * /Organization/A91545
-     *
-     * Service Two - 118111118111 - Location: /Location/loc2222 - Organisation:
-     * /Organization/A91545
+     * Method to create a list of two HealthcareService resources (see
+     * ReferenceData).
      *
      * @return A List of two HealthcareService resources.
      */
-    public ArrayList makeHealthcareServices() {
-        ArrayList<Object> hcServices = new ArrayList();
-        HealthcareService hcs1 = new HealthcareService();
-        HealthcareService hcs2 = new HealthcareService();
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-HealthcareService-1";
-        met.addProfile(profileName);
-
-        Reference providerRef = new Reference();
-        providerRef.setReference("/Organization/A91545");
-
-        Reference locRef = new Reference();
-
-        hcs1.setMeta(met);
-        hcs1.setId(new IdDt("918999198999"));
-        hcs1.setName("Service One");
-        hcs1.setProvidedBy(providerRef);
-        locRef.setReference("/Location/loc1111");
-        hcs1.addLocation(locRef);
-
-        Identifier newId1 = new Identifier();
-        newId1.setSystem("https://system.supplier.co.uk/My/Services");
-        newId1.setValue("357");
-        hcs1.addIdentifier(newId1);
-
-        hcServices.add(hcs1);
-
-        hcs2.setMeta(met);
-        hcs2.setId(new IdDt("118111118111"));
-        hcs2.setName("Service Two");
-        hcs2.setProvidedBy(providerRef);
-        locRef.setReference("/Location/loc2222");
-        hcs2.addLocation(locRef);
-
-        Identifier newId2 = new Identifier();
-        newId2.setSystem("https://system.supplier.co.uk/My/Services");
-        newId2.setValue("457");
-        hcs2.addIdentifier(newId2);
-
-        hcServices.add(hcs2);
-
-        return hcServices;
+    public ArrayList<HealthcareService> makeHealthcareServices() {
+        return ReferenceData.makeHealthcareServices();
     }
 
     /**
-     * Method to create a list of two Schedule resources: - sched1111 -
-     * Practitioner: /Practitioner/ABCD123456 - HealthcareService:
-     * /HealthcareService/918999198999
-     *
-     * - sched2222 - Practitioner: /Practitioner/ABCD123456 - HealthcareService:
-     * /HealthcareService/118111118111
+     * Method to create a list of two Schedule resources (see ReferenceData).
      *
      * @return A List of Schedules.
      */
-    public ArrayList makeSchedules() {
-        ArrayList<Object> schedls = new ArrayList();
-
-        Schedule sched1 = new Schedule();
-        Schedule sched2 = new Schedule();
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-Schedule-1";
-        met.addProfile(profileName);
-        sched1.setMeta(met);
-        sched2.setMeta(met);
-
-        Reference hcsRef = new Reference();
-        Reference practRef = new Reference();
-        practRef.setReference("/Practitioner/ABCD123456");
-
-        sched1.setId(new IdDt("sched1111"));
-        hcsRef.setReference("/HealthcareService/918999198999");
-        sched1.addActor(hcsRef);
-        sched1.addActor(practRef);
-
-        Identifier newId1 = new Identifier();
-        newId1.setSystem("https://system.supplier.co.uk/MyDiary/Numbering");
-        newId1.setValue("1015432");
-        sched1.addIdentifier(newId1);
-        schedls.add(sched1);
-
-        sched2.setId(new IdDt("sched2222"));
-        hcsRef = new Reference();
-        hcsRef.setReference("/HealthcareService/118111118111");
-        sched2.addActor(hcsRef);
-        sched2.addActor(practRef);
-
-        Identifier newId2 = new Identifier();
-        newId2.setSystem("https://system.supplier.co.uk/MyDiary/Numbering");
-        newId2.setValue("6543189");
-        sched2.addIdentifier(newId2);
-        schedls.add(sched2);
-
-        return schedls;
+    public ArrayList<Schedule> makeSchedules() {
+        return ReferenceData.makeSchedules();
     }
 
     /**
@@ -478,98 +380,181 @@ public final class DataStore {
      *
      * @return An ArrayList of free Slots
      */
-    public ArrayList makeSlots() {
-        ArrayList<Object> slotList = new ArrayList();
-
-        Slot slot;
-
-        Meta met = new Meta();
-        String profileName = PROFILEROOT + "CareConnect-Slot-1";
-        met.addProfile(profileName);
-
-        Reference schedRef = new Reference();
-
-        schedRef.setReference("/Schedule/sched1111");
-
-        // Set start time to 09:00 tomorrow...
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY, 9);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        cal.add(Calendar.DATE, 1);
-
-        for (int i = 0; i < 20; i++) {
-            slot = new Slot();
-            slot.setMeta(met);
-            slot.setStatus(Slot.SlotStatus.FREE);
-            slot.setSchedule(schedRef);
-
-            slot.setId(new IdDt("slot" + String.format("%03d", i + 1)));
-            slot.setStart(cal.getTime());
-            // Set slot end 15 minutes after start
-            cal.add(Calendar.MINUTE, 15);
-            slot.setEnd(cal.getTime());
-            slotList.add(slot);
-        }
-
-        schedRef = new Reference();
-        schedRef.setReference("/Schedule/sched2222");
-
-        cal.set(Calendar.HOUR_OF_DAY, 9);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-
-        for (int i = 0; i < 20; i++) {
-            slot = new Slot();
-            slot.setMeta(met);
-            slot.setStatus(Slot.SlotStatus.FREE);
-            slot.setSchedule(schedRef);
-
-            slot.setId(new IdDt("slot" + String.format("%03d", i + 51)));
-            slot.setStart(cal.getTime());
-            // Set slot end 15 minutes after start
-            cal.add(Calendar.MINUTE, 15);
-            slot.setEnd(cal.getTime());
-            slotList.add(slot);
-        }
-
-        return slotList;
+    public ArrayList<Slot> makeSlots() {
+        return ReferenceData.makeSlots(flyweights);
     }
 
     /**
      * Method to save a POSTed appointment into our memory backed data store.
+     * If there's a journal it is written there first, so if that fails it
+     * isn't saved at all.
      *
      * @param newAppt The new Appointment to save.
      * @return The ID (a random UUID) assigned to the new appointment.
      */
+    @Override
     public IdDt addAppointment(final Appointment newAppt) {
         String newIDValue = UUID.randomUUID().toString();
         IdDt newID = new IdDt("Appointment", newIDValue, "1");
         newAppt.setId(newID);
-        appointments.add(newAppt);
+        newAppt.getMeta().setLastUpdated(new Date());
+        journal(newAppt);
+        AppointmentVersions versions
+                = new AppointmentVersions(newAppt, shardOf(newAppt));
+        indexOf(versions).put(versions.getId(), versions,
+                versions.getCurrent());
+        appointmentsById.put(newIDValue, versions);
+        appointments.add(versions);
         return newID;
     }
 
     /**
      * Method to get a specific Appointment by Id.
      *
-     * @param identifier of the appointment being requested.
-     * @return The Appointment resource if found or null;
+     * @param identifier of the appointment being requested, eg
+     * Appointment/1234 or, for a specific version,
+     * Appointment/1234/_history/2.
+     * @return The Appointment resource (the version asked for, if any, else
+     * the current one) if found or null; also null if the version asked for
+     * isn't a number or isn't held.
      */
+    @Override
     public Appointment getAppointment(final String identifier) {
         LOG.info("Request for appointment: " + identifier);
-        Appointment appt;
-        for (int i = 0; i < appointments.size(); i++) {
-            appt = (Appointment) appointments.get(i);
-            String thisone = "Appointment/" + appt.getIdElement().getIdPart();
-            if (thisone.equals(identifier)) {
-                LOG.info("Found it");
-                return appt;
+        IdDt id = new IdDt(identifier);
+        AppointmentVersions versions = appointmentsById.get(id.getIdPart());
+        if (versions == null) {
+            return null;
+        }
+        if (!id.hasVersionIdPart()) {
+            return versions.getCurrent();
+        }
+        if (!id.isVersionIdPartValidLong()) {
+            return null;
+        }
+        return versions.getVersion(id.getVersionIdPartAsLong());
+    }
+
+    /**
+     * Method to get every version of an Appointment.
+     *
+     * @param identifier The identifier of the Appointment (eg
+     * Appointment/1234).
+     * @return The versions, newest first, or null if it wasn't found.
+     */
+    @Override
+    public List<Appointment> getAppointmentHistory(final String identifier) {
+        AppointmentVersions versions
+                = appointmentsById.get(new IdDt(identifier).getIdPart());
+        return versions == null ? null : versions.getHistory();
+    }
+
+    /**
+     * Method to get the number of the current version of an Appointment.
+     *
+     * @param identifier The identifier of the Appointment (eg
+     * Appointment/1234).
+     * @return The version number, or 0 if it wasn't found.
+     */
+    @Override
+    public long getAppointmentVersion(final String identifier) {
+        AppointmentVersions versions
+                = appointmentsById.get(new IdDt(identifier).getIdPart());
+        return versions == null ? 0 : versions.getVersion();
+    }
+
+    /**
+     * Method to find the Appointments matching a set of criteria, each of
+     * which may be left out, using the secondary indexes.
+     *
+     * @param slotId The Slot booked (eg Slot/slot001), or null.
+     * @param status The status, or null.
+     * @param nhsNumber The NHS Number of the Patient, or null.
+     * @param startFrom The earliest start (inclusive), in epoch millis, or
+     * Long.MIN_VALUE.
+     * @param startTo The latest start (exclusive), or Long.MAX_VALUE.
+     * @param updatedFrom The earliest last update (inclusive), or
+     * Long.MIN_VALUE.
+     * @param updatedTo The latest last update (exclusive), or
+     * Long.MAX_VALUE.
+     * @return The current version of each matching Appointment, in no
+     * particular order.
+     */
+    @Override
+    public List<Appointment> searchAppointments(final String slotId,
+            final Appointment.AppointmentStatus status,
+            final String nhsNumber, final long startFrom, final long startTo,
+            final long updatedFrom, final long updatedTo) {
+        String slot = slotId == null ? null : idPart(slotId);
+        ConcurrentHashMap<String, AppointmentIndex<AppointmentVersions>>
+                shards = appointmentShards;
+        String service = slot == null || !sharded ? null
+                : current.getServiceOfSlot(slot);
+        ArrayList<AppointmentVersions> found = new ArrayList<>();
+        if (service != null) {
+            // Only the shard providing the Slot can hold Appointments for it
+            AppointmentIndex<AppointmentVersions> index = shards.get(service);
+            if (index != null) {
+                found.addAll(index.search(slot, status, nhsNumber, startFrom,
+                        startTo, updatedFrom, updatedTo));
+            }
+        } else {
+            for (AppointmentIndex<AppointmentVersions> index
+                    : shards.values()) {
+                found.addAll(index.search(slot, status, nhsNumber, startFrom,
+                        startTo, updatedFrom, updatedTo));
             }
         }
-        return null;
+        ArrayList<Appointment> result = new ArrayList<>(found.size());
+        for (AppointmentVersions versions : found) {
+            // It may have changed since it was indexed
+            Appointment appt = versions.getCurrent();
+            if (AppointmentIndex.matches(appt, slot, status, nhsNumber,
+                    startFrom, startTo, updatedFrom, updatedTo)) {
+                result.add(appt);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to find which shard a new Appointment belongs in.
+     *
+     * @param appt The Appointment.
+     * @return The id of the HealthcareService providing the Slot it books,
+     * or "" if the store isn't sharded or no service provides it.
+     */
+    private String shardOf(final Appointment appt) {
+        if (!sharded || !appt.hasSlot()) {
+            return "";
+        }
+        String service = current.getServiceOfSlot(
+                appt.getSlotFirstRep().getReference());
+        return service == null ? "" : service;
+    }
+
+    /**
+     * Method to get the index of the shard an Appointment is in, making it
+     * if this is the shard's first Appointment.
+     *
+     * @param versions The versions of the Appointment.
+     * @return The AppointmentIndex.
+     */
+    private AppointmentIndex<AppointmentVersions> indexOf(
+            final AppointmentVersions versions) {
+        ConcurrentHashMap<String, AppointmentIndex<AppointmentVersions>>
+                shards = appointmentShards;
+        AppointmentIndex<AppointmentVersions> index
+                = shards.get(versions.getService());
+        if (index == null) {
+            AppointmentIndex<AppointmentVersions> made
+                    = new AppointmentIndex<>();
+            index = shards.putIfAbsent(versions.getService(), made);
+            if (index == null) {
+                index = made;
+            }
+        }
+        return index;
     }
 
     /**
@@ -578,25 +563,128 @@ public final class DataStore {
      * @param id The id of the Slot to set as booked.
      */
     public void setSlotBooked(final String id) {
+        String idPart = idPart(id);
+        LOG.info("Setting Slot " + idPart + " to 'BUSY'");
 
-        // First we extract just the ID part from any id we've been sent...
-        String[] words = id.split("/");
-        String idPart = words[words.length - 1];
+        SlotStatus previous = setSlotStatus(idPart, SlotStatus.BUSY);
+        if (previous != null) {
+            LOG.info("Slot found, was: " + previous.toCode());
+        }
+    }
 
-        LOG.info("Setting Slot " + idPart + " to 'BUSY'");
+    /**
+     * Method to book a Slot, but only if it is currently free. The check and
+     * the change are made as one step, so two requests racing for the same
+     * Slot can't both get it.
+     *
+     * @param id The id of the Slot to book.
+     * @return true if the Slot was free and is now booked, false if it was not
+     * found or was not free.
+     */
+    @Override
+    public boolean bookSlotIfFree(final String id) {
+        return compareAndSetSlotStatus(id, SlotStatus.FREE, SlotStatus.BUSY);
+    }
+
+    /**
+     * Method to free a Slot, but only if it is currently booked. As with
+     * bookSlotIfFree() only one of any number of racing requests can do this.
+     *
+     * @param id The id of the Slot to free.
+     * @return true if the Slot was booked and is now free, false if it was not
+     * found or was not booked.
+     */
+    @Override
+    public boolean freeSlotIfBooked(final String id) {
+        return compareAndSetSlotStatus(id, SlotStatus.BUSY, SlotStatus.FREE);
+    }
+
+    /**
+     * Method to move a Slot from one status to another, only if it has the
+     * expected status now, without taking any lock. If the change can't be
+     * written to the journal the Slot is moved back, so what's held never
+     * runs ahead of what's on disk.
+     *
+     * @param id The id of the Slot.
+     * @param expected The status it must have now.
+     * @param status The status to move it to.
+     * @return true if the Slot was found and moved.
+     */
+    private boolean compareAndSetSlotStatus(final String id,
+            final SlotStatus expected, final SlotStatus status) {
+        String idPart = idPart(id);
+        while (true) {
+            SlotStore slots = current.getSlotStore();
+            if (slots.compareAndSetStatus(idPart, expected, status)) {
+                try {
+                    journal(slots, idPart);
+                } catch (RuntimeException ex) {
+                    moveBack(slots, idPart, status, expected);
+                    throw ex;
+                }
+                return true;
+            }
+            if (!slots.isRetired()) {
+                return false;
+            }
+            awaitHousekeeping();
+        }
+    }
 
-        for (int x = 0; x < slots.size(); x++) {
-            Slot sl = (Slot) slots.get(x);
-            String slotId = sl.getId();
-            if (slotId.equals(idPart)) {
-                LOG.info("Slot found: " + sl.toString());
-                sl.setStatus(Slot.SlotStatus.BUSY);
-                slots.remove(x);
-                LOG.info("Slot removed: " + sl.toString());
-                slots.add(sl);
-                LOG.info("Slot added: " + sl.toString());
-                return;
+    /**
+     * Method to set the status of a Slot, whatever it is now, without taking
+     * any lock. As with compareAndSetSlotStatus() it is moved back if the
+     * change can't be written to the journal.
+     *
+     * @param idPart The id of the Slot (eg slot001).
+     * @param status The status to give it.
+     * @return The status it had before, or null if it wasn't found.
+     */
+    private SlotStatus setSlotStatus(final String idPart,
+            final SlotStatus status) {
+        while (true) {
+            SlotStore slots = current.getSlotStore();
+            SlotStatus previous = slots.setStatus(idPart, status);
+            if (previous != null && previous != status) {
+                try {
+                    journal(slots, idPart);
+                } catch (RuntimeException ex) {
+                    moveBack(slots, idPart, status, previous);
+                    throw ex;
+                }
+            }
+            if (previous != null || !slots.isRetired()) {
+                return previous;
             }
+            awaitHousekeeping();
+        }
+    }
+
+    /**
+     * Method to put a Slot back to the status it had, after its change
+     * couldn't be written to the journal, unless it has changed again since.
+     *
+     * @param slots The store holding the Slot.
+     * @param idPart The id of the Slot.
+     * @param status The status it was given.
+     * @param previous The status it had.
+     */
+    private static void moveBack(final SlotStore slots, final String idPart,
+            final SlotStatus status, final SlotStatus previous) {
+        if (!slots.compareAndSetStatus(idPart, status, previous)) {
+            LOG.warning("Slot " + idPart + " changed before it could be"
+                    + " moved back to " + previous);
+        }
+    }
+
+    /**
+     * Method to wait while housekeeping swaps in a new set of Slots. The old
+     * ones are retired and the new ones published inside housekeep(), which
+     * holds our lock throughout, so getting the lock is enough.
+     */
+    private void awaitHousekeeping() {
+        synchronized (this) {
+            LOG.fine("Waited for housekeeping");
         }
     }
 
@@ -604,20 +692,58 @@ public final class DataStore {
      * Method used to access the private ArrayList of Slots, called from the
      * index page, to show current number of appointments.
      *
-     * @return An ArrayList of the appointments that have been booked.
+     * @return A List of the current version of each appointment that has
+     * been booked.
      */
+    @Override
     public ArrayList<Appointment> getAppointments() {
-        return appointments;
+        ArrayList<Appointment> result = new ArrayList<>();
+        for (AppointmentVersions versions : appointments) {
+            result.add(versions.getCurrent());
+        }
+        return result;
+    }
+
+    @Override
+    public int getAppointmentCount() {
+        return appointmentsById.size();
+    }
+
+    /**
+     * Method to take a BulkExport of every Slot and Appointment as they are
+     * now. Nothing is locked, so bookings carry on while it's taken and
+     * written; a booking made as it is taken may show its Slot as busy but
+     * leave out the Appointment.
+     *
+     * @return The export, ready to be written.
+     */
+    public BulkExport startExport() {
+        StoreSnapshot snapshot = current;
+        return new BulkExport(System.currentTimeMillis(),
+                snapshot.getSlotStore(), getAppointments());
     }
 
     /**
      * Method to access the private ArrayList of Slots. Called from the index
-     * page to show the number of slots in the demonstrator.
+     * page to show the number of slots in the demonstrator. The List must not
+     * be modified.
      *
      * @return An ArrayList of all slots.
      */
-    public ArrayList getSlots() {
-        return slots;
+    @Override
+    public ArrayList<Slot> getSlots() {
+        return current.getSlots();
+    }
+
+    /**
+     * Method to get the number of Slots, called from the index page. Unlike
+     * getSlots() this doesn't build any Slot resources.
+     *
+     * @return The number of Slots.
+     */
+    @Override
+    public int getSlotCount() {
+        return current.getSlotCount();
     }
 
     /**
@@ -627,15 +753,7 @@ public final class DataStore {
      * @return The Schedule or null.
      */
     public Schedule getSchedule(final String schedName) {
-        LOG.info("getSchedule() looking for: " + schedName);
-        for (Schedule sched : schedules) {
-            String thisID = "/Schedule/" + sched.getId();
-            LOG.info("How about: " + thisID);
-            if (thisID.equals(schedName)) {
-                return sched;
-            }
-        }
-        return null;
+        return current.getSchedule(schedName);
     }
 
     /**
@@ -646,51 +764,271 @@ public final class DataStore {
      * @return Either an instance of a HealthcareService resource or null.
      */
     public HealthcareService getHealthcareService(final String identifier) {
-        LOG.info("Looking for: " + identifier);
-        for (HealthcareService healthcareService : healthcareServices) {
-            if (healthcareService.getId().equals(identifier)) {
-                return healthcareService;
-            } else {
-                LOG.info("Not: " + healthcareService.getId());
-            }
-        }
-        return null;
+        return current.getHealthcareService(identifier);
     }
 
     /**
      * Method used to set all the internal data structures ready for testing.
      * Sets all Slots to free and removes all Appointments.
      *
+     * A complete new snapshot is built first then published, so anything
+     * reading the old one carries on undisturbed.
      */
-    public void initialize() {
-        practitionerRoles = makePractitionerRoles();
-        practitioners = makePractitioners();
-        organizations = makeOrganisations();
-        locations = makeLocations();
-        healthcareServices = makeHealthcareServices();
-        schedules = makeSchedules();
-        slots = makeSlots();
-        appointments = new ArrayList();
-        LOG.info("Reinitiated with a set of: "
+    @Override
+    public synchronized void initialize() {
+        lastEpoch++;
+        ArrayList<Schedule> schedules = ReferenceData.makeSchedules();
+        current = ReferenceData.makeSnapshot(lastEpoch, schedules,
+                makeSlotStore(makeAllSlots(),
+                        StoreSnapshot.servicesOf(schedules)));
+        appointments = new ConcurrentLinkedQueue<>();
+        appointmentsById = new ConcurrentHashMap<>();
+        appointmentShards = new ConcurrentHashMap<>();
+        importedIds.clear();
+        if (journal != null) {
+            journal.appendReset();
+        }
+        LOG.info("Reinitiated epoch " + lastEpoch + " with a set of: "
                 + appointments.size()
                 + " appointments.");
     }
 
+    /**
+     * Method to choose how the Slots are held, then re-initialize the store
+     * that way. This has to be done before the journal is opened.
+     *
+     * @param backing How the Slots are to be held.
+     */
+    public synchronized void setSlotBacking(final SlotBacking backing) {
+        if (journal != null) {
+            throw new IllegalStateException(
+                    "The Slot backing can't be changed with a journal open");
+        }
+        slotBacking = backing;
+        initialize();
+    }
+
+    /**
+     * @return How the Slots are currently held.
+     */
+    public synchronized SlotBacking getSlotBacking() {
+        return slotBacking;
+    }
+
+    /**
+     * Method to choose whether the Slots and Appointments are split into a
+     * shard per HealthcareService, then re-initialize the store that way.
+     * Each shard has its own indexes and locks, so a busy service doesn't
+     * hold up searches or bookings for the others. This has to be done
+     * before the journal is opened.
+     *
+     * @param shard true to split them by HealthcareService.
+     */
+    public synchronized void setSharded(final boolean shard) {
+        if (journal != null) {
+            throw new IllegalStateException(
+                    "Sharding can't be changed with a journal open");
+        }
+        sharded = shard;
+        initialize();
+    }
+
+    /**
+     * @return Whether the Slots and Appointments are split by
+     * HealthcareService.
+     */
+    public synchronized boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * Method to set the session templates Slots are generated from, then
+     * re-initialize the store with them. This has to be done before the
+     * journal is opened.
+     *
+     * @param templates The templates, empty for none.
+     * @param days How many days of Slots to generate, from today.
+     */
+    public synchronized void setSlotTemplates(
+            final List<SessionTemplate> templates, final int days) {
+        if (journal != null) {
+            throw new IllegalStateException(
+                    "The Slot templates can't be changed with a journal open");
+        }
+        generator = templates.isEmpty() ? null : new SlotGenerator(templates,
+                ReferenceData.PROFILEROOT + "CareConnect-Slot-1", flyweights);
+        horizonDays = days;
+        initialize();
+    }
+
+    /**
+     * Method to make the standard Slots, plus any generated from the session
+     * templates.
+     *
+     * @return The Slots.
+     */
+    private ArrayList<Slot> makeAllSlots() {
+        ArrayList<Slot> slots = makeSlots();
+        generatedUntil = today();
+        slots.addAll(generateToHorizon());
+        return slots;
+    }
+
+    /**
+     * Method to generate the Slots from the end of those generated so far,
+     * or today if that's later, up to the horizon.
+     *
+     * @return The new Slots, empty if there are no templates or the horizon
+     * hasn't moved.
+     */
+    private List<Slot> generateToHorizon() {
+        Calendar from = today();
+        if (generator == null) {
+            return new ArrayList<>();
+        }
+        if (generatedUntil != null && generatedUntil.after(from)) {
+            from = generatedUntil;
+        }
+        Calendar until = today();
+        until.add(Calendar.DATE, horizonDays);
+        int days = 0;
+        Calendar day = (Calendar) from.clone();
+        while (day.before(until)) {
+            day.add(Calendar.DATE, 1);
+            days++;
+        }
+        long started = System.currentTimeMillis();
+        List<Slot> generated = generator.generate(from, days);
+        generatedUntil = day;
+        if (days > 0) {
+            LOG.info("Generated " + generated.size() + " Slots for "
+                    + days + " days in "
+                    + (System.currentTimeMillis() - started) + "ms");
+        }
+        return generated;
+    }
+
+    /**
+     * @return A Calendar set to midnight at the start of today.
+     */
+    private static Calendar today() {
+        Calendar today = Calendar.getInstance();
+        today.set(Calendar.HOUR_OF_DAY, 0);
+        today.set(Calendar.MINUTE, 0);
+        today.set(Calendar.SECOND, 0);
+        today.set(Calendar.MILLISECOND, 0);
+        return today;
+    }
+
+    /**
+     * Method to get the parts shared between Slots, for anything building
+     * Slots in bulk.
+     *
+     * @return The Flyweights.
+     */
+    Flyweights getFlyweights() {
+        return flyweights;
+    }
+
+    /**
+     * Method to put a List of Slots into a SlotStore of the chosen kind, with
+     * their common parts shared, split by HealthcareService if sharded.
+     *
+     * @param slots The Slots.
+     * @param scheduleServices The HealthcareService running each Schedule,
+     * keyed on the Schedule reference.
+     * @return The SlotStore.
+     */
+    private SlotStore makeSlotStore(final ArrayList<Slot> slots,
+            final Map<String, String> scheduleServices) {
+        return makeSlotStore(slots, scheduleServices, slotBacking, sharded,
+                flyweights);
+    }
+
+    /**
+     * Method to put a List of Slots into a SlotStore of a given kind, with
+     * their common parts shared, split by HealthcareService if asked. Used
+     * by any BookingStore holding Slots.
+     *
+     * @param slots The Slots.
+     * @param scheduleServices The HealthcareService running each Schedule,
+     * keyed on the Schedule reference.
+     * @param backing How the Slots are to be held.
+     * @param shard true to split them by HealthcareService.
+     * @param shared Shares the parts the Slots have in common.
+     * @return The SlotStore.
+     */
+    static SlotStore makeSlotStore(final List<Slot> slots,
+            final Map<String, String> scheduleServices,
+            final SlotBacking backing, final boolean shard,
+            final Flyweights shared) {
+        for (Slot slot : slots) {
+            shared.share(slot);
+        }
+        if (!shard) {
+            return makeShard(slots, backing);
+        }
+        return new ShardedSlotStore(slots, scheduleServices,
+                new ShardedSlotStore.ShardBuilder() {
+            @Override
+            public SlotStore build(final List<Slot> part) {
+                return makeShard(part, backing);
+            }
+        });
+    }
+
+    /**
+     * Method to put a List of Slots into a single SlotStore of a given kind.
+     *
+     * @param slots The Slots.
+     * @param backing How they are to be held.
+     * @return The SlotStore.
+     */
+    private static SlotStore makeShard(final List<Slot> slots,
+            final SlotBacking backing) {
+        switch (backing) {
+            case HEAP_TABLE:
+                return SlotTable.of(slots, false);
+
+            case OFF_HEAP_TABLE:
+                return SlotTable.of(slots, true);
+
+            default:
+                return new IndexedSlotStore(slots);
+        }
+    }
+
     /**
      * Method to get the ArrayList of free Slots. Called from the index page to
      * show the current status.
      *
      * @return An ArrayList of only the free Slots.
      */
-    public ArrayList getFreeSlots() {
-        ArrayList<Slot> freeSlots = new ArrayList<>();
+    public ArrayList<Slot> getFreeSlots() {
+        return getSlotsByStatus(SlotStatus.FREE);
+    }
 
-        for (Slot n : slots) {
-            if (n.getStatus() == SlotStatus.FREE) {
-                freeSlots.add(n);
-            }
-        }
-        return freeSlots;
+    /**
+     * Method to get all the Slots with a given status, using the per Schedule
+     * status indexes.
+     *
+     * @param status The status wanted.
+     * @return An ArrayList of the Slots with that status.
+     */
+    public ArrayList<Slot> getSlotsByStatus(final SlotStatus status) {
+        return current.getSlotsByStatus(status);
+    }
+
+    /**
+     * Method to get the number of free Slots, called from the index page. This
+     * is kept up to date as Slots are booked and freed, so costs nothing to
+     * read.
+     *
+     * @return The number of free Slots.
+     */
+    @Override
+    public int getFreeSlotCount() {
+        return current.getFreeSlotCount();
     }
 
     /**
@@ -699,7 +1037,7 @@ public final class DataStore {
      * @return The Practitioner resource.
      */
     public Practitioner getPractitioner() {
-        return practitioners.get(0);
+        return current.getPractitioner();
     }
 
     /**
@@ -708,7 +1046,7 @@ public final class DataStore {
      * @return The PractitionerRole resource.
      */
     public PractitionerRole getPractitionerRole() {
-        return practitionerRoles.get(0);
+        return current.getPractitionerRole();
     }
 
     /**
@@ -717,7 +1055,7 @@ public final class DataStore {
      * @return The Organisation or null.
      */
     public Organization getOrganization() {
-        return organizations.get(0);
+        return current.getOrganization();
     }
 
     /**
@@ -726,38 +1064,57 @@ public final class DataStore {
      * @return The matching resource as an object.
      */
     public Object getLocation(String locID) {
-        for(int i = 0; i < locations.size(); i++) {
-            Location locn = (Location) locations.get(i);
-            if(locn.getId().equals(locID))
-            {
-                return locn;
-            }
-        }
-        return null;
+        return current.getLocation(locID);
+    }
+
+    /**
+     * Method to update an Appointment to Cancelled or EnteredInError, which
+     * makes a new version of it.
+     *
+     * @param identifier The identifier of the Appointment we're manipulating
+     * @param proposedStatus The status we've been asked to change it to
+     * @return The new version of the Appointment, or null if it wasn't found.
+     */
+    public Appointment setAppointmentStatus(String identifier, Appointment.AppointmentStatus proposedStatus) {
+        return setAppointmentStatus(identifier, 0, proposedStatus);
     }
 
     /**
-     * Method to update an Appointment to Cancelled or EnteredInError
+     * Method to update an Appointment to Cancelled or EnteredInError, only if
+     * it's still at the version the change was made to (ie If-Match).
      *
-     * @param identifier The identifier of the Slot we're manipulating
+     * @param identifier The identifier of the Appointment we're manipulating
+     * @param expectedVersion The version it must be at, or 0 for any.
      * @param proposedStatus The status we've been asked to change it to
+     * @return The new version of the Appointment, or null if it wasn't found.
+     * @throws ResourceVersionConflictException If it's at another version.
      */
-    public void setAppointmentStatus(String identifier, Appointment.AppointmentStatus proposedStatus) {
+    @Override
+    public Appointment setAppointmentStatus(final String identifier,
+            final long expectedVersion,
+            final Appointment.AppointmentStatus proposedStatus) {
         LOG.info("Trying to update: " + identifier);
-        for (int i = 0; i < appointments.size(); i++) {
-            Appointment appt = (Appointment) appointments.get(i);
-            String thisone = "Appointment/" + appt.getId();
-            LOG.info("Checking: " + thisone);
-            if (thisone.equals(identifier)) {
-                LOG.info("Found it");
-                appt.setStatus(proposedStatus);
-                //IIdType oldId = appt.getIdElement();
-                //oldId.setParts(oldId.getBaseUrl(), oldId.getResourceType(), oldId.getIdPart(), Long.toString(oldId.getVersionIdPartAsLong() + 1));
-                //appt.setId(oldId);
-                //appointments.set(i, appt);
-                break;
+        AppointmentVersions versions
+                = appointmentsById.get(new IdDt(identifier).getIdPart());
+        if (versions == null) {
+            return null;
+        }
+        Appointment appt;
+        synchronized (versions) {
+            appt = versions.next(expectedVersion, proposedStatus);
+            if (appt != null) {
+                // Written first, so if it can't be the version stays as it
+                // was and a retry with the same If-Match can still succeed.
+                journal(appt);
+                versions.add(appt);
+                indexOf(versions).put(versions.getId(), versions, appt);
             }
         }
+        if (appt == null) {
+            throw new ResourceVersionConflictException("Appointment "
+                    + identifier + " is not at version " + expectedVersion);
+        }
+        return appt;
     }
 
     /**
@@ -765,26 +1122,570 @@ public final class DataStore {
      * @param id  The ID of the Slot we're manipulating.
      */
     public void setSlotFree(final String id) {
-        // First we extract just the ID part from any id we've been sent...
-        LOG.info("Setting Slot " + id + " back to free");
-        String[] words = id.split("/");
-        String idPart = words[words.length - 1];
-
+        String idPart = idPart(id);
         LOG.info("Setting Slot " + idPart + " to 'FREE'");
 
-        for (int x = 0; x < slots.size(); x++) {
-            Slot sl = (Slot) slots.get(x);
-            String slotId = sl.getId();
-            LOG.info("Trying " + slotId);
-            if (slotId.equals(idPart)) {
-                LOG.info("Slot found: " + sl.toString());
-                sl.setStatus(Slot.SlotStatus.FREE);
-                slots.remove(x);
-                LOG.info("Slot removed: " + sl.toString());
-                slots.add(sl);
-                LOG.info("Slot added: " + sl.toString());
-                return;
+        SlotStatus previous = setSlotStatus(idPart, SlotStatus.FREE);
+        if (previous != null) {
+            LOG.info("Slot found, was: " + previous.toCode());
+        }
+    }
+
+    /**
+     * Method to make the store durable: loads the latest snapshot and replays
+     * the journal written since, then writes every change from now on to the
+     * journal. Does nothing if a journal is already open.
+     *
+     * If a snapshot can't be loaded, whatever it got as far as loading is
+     * thrown away and the one before is tried.
+     *
+     * @param dir The journal directory, created if it doesn't exist.
+     * @param snapshotMinutes How often to write a snapshot, or 0 for never.
+     * @throws IOException If the journal can't be read or opened.
+     */
+    public synchronized void openJournal(final File dir,
+            final long snapshotMinutes) throws IOException {
+        if (journal != null) {
+            return;
+        }
+        long fromSegment = 0;
+        long[] snapshots = SnapshotFile.snapshots(dir);
+        for (int i = snapshots.length - 1; i >= 0; i--) {
+            File file = SnapshotFile.file(dir, snapshots[i]);
+            try {
+                SnapshotFile.load(file, this);
+                fromSegment = snapshots[i];
+                LOG.info("Loaded snapshot " + file);
+                break;
+            } catch (IOException | RuntimeException ex) {
+                // eg DataFormatException from a resource which won't parse.
+                LOG.warning("Unable to load " + file + " " + ex.getMessage());
+                initialize();
+            }
+        }
+        int replayed = Journal.replay(dir, fromSegment, this);
+        LOG.info("Replayed " + replayed + " journal entries from " + dir);
+        journal = new Journal(dir);
+        journalDir = dir;
+        if (snapshotMinutes > 0) {
+            snapshotWriter = Executors.newSingleThreadScheduledExecutor(
+                    daemonThreads("DataStore snapshot writer"));
+            snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeSnapshot();
+                    } catch (IOException | RuntimeException ex) {
+                        LOG.severe("Failed to write snapshot: "
+                                + ex.getMessage());
+                    }
+                }
+            }, snapshotMinutes, snapshotMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Method to make a ThreadFactory for background threads, which won't
+     * keep the JVM running.
+     *
+     * @param name The name of the threads.
+     * @return The ThreadFactory.
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Method to run housekeep() every so often in the background. Does
+     * nothing if it's already running.
+     *
+     * @param minutes How often to run it.
+     */
+    public synchronized void startHousekeeping(final long minutes) {
+        if (housekeeper != null || minutes <= 0) {
+            return;
+        }
+        housekeeper = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("DataStore housekeeper"));
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    housekeep(System.currentTimeMillis());
+                } catch (IOException | RuntimeException ex) {
+                    LOG.severe("Housekeeping failed: " + ex.getMessage());
+                }
+            }
+        }, minutes, minutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Method to stop running housekeeping in the background.
+     */
+    public synchronized void stopHousekeeping() {
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+            housekeeper = null;
+        }
+    }
+
+    /**
+     * Method to drop the Slots which have ended, generate Slots for any days
+     * which have come within the horizon, and archive the Appointments which
+     * are over if there's a journal directory to archive them to.
+     *
+     * The Slots are copied to a new snapshot, as publishSlots() describes, so
+     * no booking is lost. Searches carry on reading the old snapshot until
+     * the new one is published.
+     *
+     * @param now The time, in epoch millis, before which things have passed.
+     * @return The number of Slots and Appointments removed.
+     * @throws IOException If Appointments can't be archived.
+     */
+    public synchronized int housekeep(final long now) throws IOException {
+        StoreSnapshot old = current;
+        SlotStore oldSlots = old.getSlotStore();
+        int expired = 0;
+        for (int i = 0; i < oldSlots.size(); i++) {
+            if (oldSlots.endAt(i) <= now) {
+                expired++;
+            }
+        }
+        Calendar generatedBefore = generatedUntil;
+        List<Slot> generated = generateToHorizon();
+        if (expired > 0 || !generated.isEmpty()) {
+            SlotStatus[] seen = new SlotStatus[oldSlots.size()];
+            ArrayList<Slot> kept = new ArrayList<>(
+                    oldSlots.size() - expired + generated.size());
+            ArrayList<String> dropped = new ArrayList<>(expired);
+            for (int i = 0; i < oldSlots.size(); i++) {
+                if (oldSlots.endAt(i) > now) {
+                    Slot slot = oldSlots.slotAt(i);
+                    seen[i] = oldSlots.statusAt(i);
+                    slot.setStatus(seen[i]);
+                    kept.add(slot);
+                } else {
+                    dropped.add(oldSlots.idAt(i));
+                }
+            }
+            kept.addAll(generated);
+            SlotStore slots;
+            try {
+                slots = makeSlotStore(kept, old.getScheduleServices());
+            } catch (RuntimeException ex) {
+                generatedUntil = generatedBefore;
+                throw ex;
+            }
+            publishSlots(old, slots, seen,
+                    Collections.<String, SlotStatus>emptyMap());
+            for (String id : dropped) {
+                importedIds.remove(id);
+            }
+            LOG.info("Housekeeping dropped " + expired + " Slots, added "
+                    + generated.size() + ", epoch " + lastEpoch);
+        }
+        return expired + archiveAppointments(now);
+    }
+
+    /**
+     * Method to add or replace Slots from a feed, such as a nightly diary
+     * sync. Each Slot is read, checked and kept in turn, without holding our
+     * lock, then all of them are published together in one new snapshot, so
+     * a search sees either none of the feed or all of it. A Slot with the id
+     * of one already held replaces it, but a booked Slot stays booked.
+     *
+     * As with housekeep(), the Slots are copied to a new snapshot as
+     * publishSlots() describes, so no booking is lost. If the Slot backing
+     * can't hold a Slot (see SlotStore.cantHold()) none of the feed is
+     * imported.
+     *
+     * If there's a journal the Slots are written to it, as read, before they
+     * are published, and every snapshot holds all of the Slots imported
+     * since the store was last initialized, so they survive a restart.
+     *
+     * @param source The Slots.
+     * @return How many were imported, and why any were turned away.
+     * @throws IOException If the feed can't be read.
+     * @throws UnprocessableEntityException If the Slot backing can't hold
+     * the feed.
+     */
+    public ImportResult importSlots(final SlotReader source)
+            throws IOException {
+        long started = System.currentTimeMillis();
+        ImportResult result = new ImportResult();
+        StoreSnapshot old = current;
+        LinkedHashMap<String, Slot> imported = new LinkedHashMap<>();
+        while (true) {
+            Slot slot;
+            try {
+                slot = source.next();
+            } catch (DataFormatException ex) {
+                result.reject(ex.getMessage());
+                continue;
+            }
+            if (slot == null) {
+                break;
+            }
+            String problem = checkImport(slot, old);
+            if (problem != null) {
+                result.reject("Slot " + source.getCount() + ": " + problem);
+                continue;
+            }
+            String refused = old.getSlotStore().cantHold(slot);
+            if (refused != null) {
+                throw new UnprocessableEntityException("Slot "
+                        + source.getCount() + ": " + refused);
+            }
+            imported.put(slot.getId(), slot);
+            result.accept();
+        }
+        if (imported.isEmpty()) {
+            return result;
+        }
+        long parsed = System.currentTimeMillis();
+        synchronized (this) {
+            mergeSlots(imported, true);
+            LOG.info("Imported " + result.getImported() + " Slots, rejected "
+                    + result.getRejected() + ", read in "
+                    + (parsed - started) + "ms, published in "
+                    + (System.currentTimeMillis() - parsed) + "ms, epoch "
+                    + lastEpoch);
+        }
+        return result;
+    }
+
+    /**
+     * Method used when replaying the journal or loading a snapshot, to put
+     * back Slots which were imported.
+     *
+     * @param slots The Slots, as they were read.
+     */
+    synchronized void replayImport(final List<Slot> slots) {
+        LinkedHashMap<String, Slot> imported = new LinkedHashMap<>();
+        for (Slot slot : slots) {
+            slot.setId(new IdDt(slot.getIdElement().getIdPart()));
+            imported.put(slot.getId(), slot);
+        }
+        mergeSlots(imported, false);
+    }
+
+    /**
+     * Method to publish a new snapshot holding the current Slots plus some
+     * which have been imported, in place of any with the same ids. The caller
+     * must hold our lock.
+     *
+     * @param imported The Slots, which have been checked, as they were read,
+     * keyed on id.
+     * @param write true to write them to the journal, if there is one,
+     * before they are published.
+     * @throws UnprocessableEntityException If the Slot backing can't hold
+     * them.
+     */
+    private void mergeSlots(final Map<String, Slot> imported,
+            final boolean write) {
+        StoreSnapshot old = current;
+        SlotStore oldSlots = old.getSlotStore();
+        SlotStatus[] seen = new SlotStatus[oldSlots.size()];
+        HashMap<String, SlotStatus> replaced = new HashMap<>();
+        ArrayList<Slot> kept = new ArrayList<>(
+                oldSlots.size() + imported.size());
+        for (int i = 0; i < oldSlots.size(); i++) {
+            String id = oldSlots.idAt(i);
+            Slot slot = imported.get(id);
+            seen[i] = oldSlots.statusAt(i);
+            if (slot == null) {
+                slot = oldSlots.slotAt(i);
+                slot.setStatus(seen[i]);
+            } else {
+                replaced.put(id, slot.getStatus());
+                if (seen[i] == SlotStatus.BUSY) {
+                    // A copy, so the journal gets the Slot as it was read.
+                    slot = slot.copy();
+                    slot.setStatus(seen[i]);
+                }
+            }
+            kept.add(slot);
+        }
+        for (Slot slot : imported.values()) {
+            if (!replaced.containsKey(slot.getId())) {
+                kept.add(slot);
+            }
+        }
+        SlotStore slots;
+        try {
+            slots = makeSlotStore(kept, old.getScheduleServices());
+        } catch (IllegalArgumentException ex) {
+            throw new UnprocessableEntityException(ex.getMessage());
+        }
+        if (write && journal != null) {
+            journal.appendImport(imported.values());
+        }
+        publishSlots(old, slots, seen, replaced);
+        importedIds.addAll(imported.keySet());
+    }
+
+    /**
+     * Method to publish a new SlotStore in place of the current one. The new
+     * one has been built from the old one's statuses as they were read, with
+     * bookings carrying on meanwhile, so if it couldn't be built the old one
+     * is still in use and nothing is held up.
+     *
+     * Now the old one is retired, freezing every status, and any Slot which
+     * changed after it was read is brought up to date in the new one. Any
+     * booking which hits a frozen Slot waits for our lock then tries again on
+     * the new snapshot, so none are lost.
+     *
+     * @param old The snapshot being replaced.
+     * @param slots The new SlotStore.
+     * @param seen The status read for each of the old Slots, by position, or
+     * null for those which have been dropped.
+     * @param replaced The status given to each old Slot replaced by an
+     * imported one, keyed on id. These win unless the old Slot is booked.
+     */
+    private void publishSlots(final StoreSnapshot old, final SlotStore slots,
+            final SlotStatus[] seen, final Map<String, SlotStatus> replaced) {
+        SlotStore oldSlots = old.getSlotStore();
+        oldSlots.retire();
+        for (int i = 0; i < seen.length; i++) {
+            SlotStatus status = oldSlots.statusAt(i);
+            if (seen[i] == null || status == seen[i]) {
+                continue;
+            }
+            String id = oldSlots.idAt(i);
+            SlotStatus given = replaced.get(id);
+            if (given != null && status != SlotStatus.BUSY) {
+                status = given;
+            }
+            slots.setStatus(id, status);
+        }
+        lastEpoch++;
+        current = old.withSlots(lastEpoch, slots);
+    }
+
+    /**
+     * Method to check an imported Slot can be held, putting its id and
+     * Schedule reference into the same form as ours (eg slot001 and
+     * /Schedule/sched1111).
+     *
+     * @param slot The Slot.
+     * @param snapshot The snapshot holding the Schedules.
+     * @return Why it can't be held, or null if it can.
+     */
+    private static String checkImport(final Slot slot,
+            final StoreSnapshot snapshot) {
+        if (!slot.hasIdElement() || slot.getIdElement().getIdPart() == null) {
+            return "no id";
+        }
+        slot.setId(new IdDt(slot.getIdElement().getIdPart()));
+        if (!slot.hasSchedule() || !slot.getSchedule().hasReference()) {
+            return "no Schedule";
+        }
+        String sched = "/Schedule/"
+                + idPart(slot.getSchedule().getReference());
+        if (snapshot.getSchedule(sched) == null) {
+            return "unknown Schedule " + slot.getSchedule().getReference();
+        }
+        slot.setSchedule(new Reference(sched));
+        if (!slot.hasStatus()) {
+            return "no status";
+        }
+        if (!slot.hasStart() || !slot.hasEnd()
+                || !slot.getEnd().after(slot.getStart())) {
+            return "no start, or it doesn't end after it starts";
+        }
+        return null;
+    }
+
+    /**
+     * Method to move the Appointments which ended before a given time out of
+     * the store, into the Archive. Does nothing if there's no journal, as
+     * they'd be lost rather than archived.
+     *
+     * @param now The time, in epoch millis, before which they're over.
+     * @return The number of Appointments archived.
+     * @throws IOException If they can't be archived.
+     */
+    private int archiveAppointments(final long now) throws IOException {
+        if (journal == null) {
+            return 0;
+        }
+        ArrayList<AppointmentVersions> over = new ArrayList<>();
+        for (AppointmentVersions versions : appointments) {
+            Appointment appt = versions.getCurrent();
+            Date end = appt.hasEnd() ? appt.getEnd()
+                    : appt.getStart();
+            if (end != null && end.getTime() <= now) {
+                over.add(versions);
+            }
+        }
+        if (over.isEmpty()) {
+            return 0;
+        }
+        Archive.append(journalDir, allVersions(over));
+        Set<AppointmentVersions> dropped = Collections.newSetFromMap(
+                new IdentityHashMap<AppointmentVersions, Boolean>());
+        for (AppointmentVersions versions : over) {
+            indexOf(versions).remove(versions.getId());
+            appointmentsById.remove(versions.getId(), versions);
+            dropped.add(versions);
+            journal.appendExpire(versions.getId());
+        }
+        // One pass over the queue, rather than a remove() search for each.
+        Iterator<AppointmentVersions> it = appointments.iterator();
+        while (it.hasNext()) {
+            if (dropped.contains(it.next())) {
+                it.remove();
+            }
+        }
+        LOG.info("Archived " + over.size() + " Appointments");
+        return over.size();
+    }
+
+    /**
+     * Method to list every version of some Appointments.
+     *
+     * @param chains The versions of each Appointment.
+     * @return Their versions, oldest first.
+     */
+    private static List<Appointment> allVersions(
+            final Iterable<AppointmentVersions> chains) {
+        ArrayList<Appointment> result = new ArrayList<>();
+        for (AppointmentVersions versions : chains) {
+            List<Appointment> history = versions.getHistory();
+            for (int i = history.size() - 1; i >= 0; i--) {
+                result.add(history.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to write a snapshot of the whole store, then delete the journal
+     * segments and older snapshots it makes redundant. Bookings carry on while
+     * it is written; anything changed after it starts is in the journal too.
+     *
+     * @throws IOException If the snapshot can't be written.
+     */
+    public synchronized void writeSnapshot() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        long segment = journal.rotate();
+        SlotStore slots = current.getSlotStore();
+        ArrayList<Slot> imported = new ArrayList<>(importedIds.size());
+        for (String id : importedIds) {
+            Slot slot = slots.getSlot(id);
+            if (slot != null) {
+                imported.add(slot);
+            }
+        }
+        File file = SnapshotFile.write(journalDir, segment, imported, slots,
+                allVersions(appointments));
+        journal.deleteSegmentsBefore(segment);
+        SnapshotFile.deleteBefore(journalDir, segment);
+        LOG.info("Wrote snapshot " + file);
+    }
+
+    /**
+     * Method to stop writing changes to the journal, once everything already
+     * queued has been written.
+     *
+     * @throws IOException If the journal can't be closed.
+     */
+    public synchronized void closeJournal() throws IOException {
+        if (snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+            snapshotWriter = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Method to write the current status of a Slot to the journal, if there
+     * is one.
+     *
+     * @param slots The store holding the Slot.
+     * @param id The id of the Slot which has changed.
+     */
+    private void journal(final SlotStore slots, final String id) {
+        Journal j = journal;
+        if (j != null) {
+            j.append(slots, id);
+        }
+    }
+
+    /**
+     * Method to write an Appointment to the journal, if there is one.
+     *
+     * @param appt The Appointment which has been added or changed.
+     */
+    private void journal(final Appointment appt) {
+        Journal j = journal;
+        if (j != null) {
+            j.append(appt);
+        }
+    }
+
+    /**
+     * Method used when replaying the journal, to put a Slot back to the
+     * status it had.
+     *
+     * @param id The id of the Slot.
+     * @param status The status it had.
+     */
+    void replaySlot(final String id, final SlotStatus status) {
+        current.getSlotStore().setStatus(id, status);
+    }
+
+    /**
+     * Method used when replaying the journal, to drop an Appointment which
+     * has been archived.
+     *
+     * @param id The id of the Appointment.
+     */
+    void replayExpire(final String id) {
+        AppointmentVersions existing = appointmentsById.remove(id);
+        if (existing != null) {
+            indexOf(existing).remove(existing.getId());
+            appointments.remove(existing);
+        }
+    }
+
+    /**
+     * Method used when replaying the journal, to put back a version of an
+     * Appointment, after any earlier versions of it.
+     *
+     * @param appt The Appointment as it was written.
+     */
+    void replayAppointment(final Appointment appt) {
+        String idPart = appt.getIdElement().getIdPart();
+        AppointmentVersions existing = appointmentsById.get(idPart);
+        if (existing != null) {
+            synchronized (existing) {
+                Appointment before = existing.getCurrent();
+                existing.replay(appt);
+                if (existing.getCurrent() != before) {
+                    indexOf(existing).put(idPart, existing,
+                            existing.getCurrent());
+                }
             }
+            return;
         }
+        AppointmentVersions versions
+                = new AppointmentVersions(appt, shardOf(appt));
+        indexOf(versions).put(versions.getId(), versions,
+                versions.getCurrent());
+        appointmentsById.put(idPart, versions);
+        appointments.add(versions);
     }
 }
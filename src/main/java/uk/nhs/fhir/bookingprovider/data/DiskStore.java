@@ -0,0 +1,1005 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Schedule;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * BookingStore which keeps the Appointments on disk rather than in memory:
+ * an embedded key-value store, in a single file written only by appending.
+ *
+ * Each record is one line of text:
+ *
+ * R - the store was reset, forget everything before this.
+ * S [tab] slotid [tab] STATUS - a Slot now has this status.
+ * A [tab] appointmentid [tab] json - a new version of an Appointment.
+ *
+ * Only where each version of each Appointment starts in the file is held in
+ * memory, along with an AppointmentIndex of the keys searches use, keyed on
+ * the logical id the Appointment's place in the file is found by. A search
+ * looks up which Appointments match in the index, then reads back and
+ * parses just those, and counting them reads nothing at all. The Slots, and
+ * the Schedules and other resources they refer to, are the standard
+ * demonstrator set (see ReferenceData) held in a StoreSnapshot, in a
+ * SlotStore of the kind chosen, with each change to a Slot's status also
+ * written to the file. Slots aren't generated from templates, imported or
+ * dropped once they've passed. Opening the file reads it through once, to
+ * rebuild where everything is and the status of each Slot, then parses the
+ * current version of each Appointment to index it.
+ *
+ * Records are encoded by the request thread, then written by a GroupCommit
+ * (as the Journal's are), so under load many bookings share one fsync.
+ *
+ * Each change to a Slot's status leaves the record of its last one dead, as
+ * does a reset everything before it. Once there are more dead records than
+ * live ones the file is compacted: everything still wanted (every Slot's
+ * status and every version of every Appointment) is copied to a new file,
+ * which then replaces it.
+ */
+public final class DiskStore implements BookingStore, Closeable {
+
+    /**
+     * Logger we use throughout.
+     */
+    private static final Logger LOG
+            = Logger.getLogger(DiskStore.class.getName());
+
+    /**
+     * The file is always written as UTF-8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The name of the file, in the directory given.
+     */
+    static final String FILE_NAME = "store.db";
+
+    /**
+     * The name of the file a compacted copy is written to, before it
+     * replaces the file.
+     */
+    static final String COMPACT_NAME = "store.db.compact";
+
+    /**
+     * Record type for a reset.
+     */
+    private static final byte RESET = 'R';
+
+    /**
+     * Record type for a Slot status.
+     */
+    private static final byte SLOT = 'S';
+
+    /**
+     * Record type for a version of an Appointment.
+     */
+    private static final byte APPOINTMENT = 'A';
+
+    /**
+     * The fewest dead records worth compacting the file for.
+     */
+    private static final long COMPACT_MIN = 10000;
+
+    /**
+     * How much of a compacted copy is built up before it's written out.
+     */
+    private static final int COMPACT_CHUNK = 1 << 16;
+
+    /**
+     * One record waiting to be written, and once it has been, where.
+     */
+    private static final class Record {
+
+        /**
+         * The encoded record, or null for a Slot's status.
+         */
+        private final byte[] bytes;
+
+        /**
+         * The store holding the Slot whose status is to be written.
+         */
+        private final SlotStore store;
+
+        /**
+         * The id of the Slot whose status is to be written.
+         */
+        private final String slotId;
+
+        /**
+         * Where in the file the record was written.
+         */
+        private long position;
+
+        /**
+         * Constructor, for a record already encoded.
+         *
+         * @param newBytes The record, including its newline.
+         */
+        Record(final byte[] newBytes) {
+            bytes = newBytes;
+            store = null;
+            slotId = null;
+        }
+
+        /**
+         * Constructor, for a Slot's status, which the writer reads as it
+         * writes so the last record for any Slot holds its latest status.
+         *
+         * @param newStore The store holding the Slot.
+         * @param newSlotId The id of the Slot.
+         */
+        Record(final SlotStore newStore, final String newSlotId) {
+            bytes = null;
+            store = newStore;
+            slotId = newSlotId;
+        }
+    }
+
+    /**
+     * Where one version of an Appointment is in the file.
+     */
+    private static final class Location {
+
+        /**
+         * The position of its JSON.
+         */
+        private final long offset;
+
+        /**
+         * The length of its JSON, in bytes.
+         */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param newOffset The position of its JSON.
+         * @param newLength The length of its JSON, in bytes.
+         */
+        Location(final long newOffset, final int newLength) {
+            offset = newOffset;
+            length = newLength;
+        }
+    }
+
+    /**
+     * Used to make parsers, one for each read or write.
+     */
+    private final FhirContext ctx = FhirContext.forDstu3();
+
+    /**
+     * The directory holding the file.
+     */
+    private final File dir;
+
+    /**
+     * The file.
+     */
+    private final File file;
+
+    /**
+     * The file, open for reading and appending. Only replaced (by a
+     * compaction) with the write lock held.
+     */
+    private volatile FileChannel channel;
+
+    /**
+     * Held for reading by anything writing to the file or reading from it
+     * at a Location, and for writing while the file is reset or compacted,
+     * which moves everything in it.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The writer thread, which writes and forces batches of records.
+     */
+    private final GroupCommit<Record> writer;
+
+    /**
+     * How the Slots are held.
+     */
+    private final DataStore.SlotBacking slotBacking;
+
+    /**
+     * Whether the Slots are split into a shard per HealthcareService.
+     */
+    private final boolean sharded;
+
+    /**
+     * Shares the parts the Slots have in common.
+     */
+    private final Flyweights flyweights = new Flyweights();
+
+    /**
+     * The epoch of the last snapshot built.
+     */
+    private long lastEpoch;
+
+    /**
+     * The current snapshot of the Slots, Schedules etc.
+     */
+    private volatile StoreSnapshot current;
+
+    /**
+     * Where each version of each Appointment is, oldest first, keyed on its
+     * logical id. Each List is changed only with its lock held.
+     */
+    private volatile ConcurrentHashMap<String, ArrayList<Location>>
+            appointments;
+
+    /**
+     * The logical ids of the Appointments, in the order they were saved.
+     */
+    private volatile ConcurrentLinkedQueue<String> order;
+
+    /**
+     * The keys of the current version of each Appointment, for searches.
+     */
+    private volatile AppointmentIndex<String> index;
+
+    /**
+     * The ids of the Slots with a live status record in the file.
+     */
+    private volatile Set<String> slotsWritten;
+
+    /**
+     * The number of records in the file.
+     */
+    private final AtomicLong records = new AtomicLong();
+
+    /**
+     * The number of those which are dead, so would go in a compaction.
+     */
+    private final AtomicLong dead = new AtomicLong();
+
+    /**
+     * Constructor, opens (creating if need be) the store in a directory and
+     * reads it through, with a Slot resource held for each Slot.
+     *
+     * @param dir The directory holding the store.
+     * @throws IOException If the store can't be opened or read.
+     */
+    public DiskStore(final File dir) throws IOException {
+        this(dir, DataStore.SlotBacking.OBJECTS, false);
+    }
+
+    /**
+     * Constructor, opens (creating if need be) the store in a directory and
+     * reads it through. Any partly written last record, left by a crash, is
+     * cut off, and the file is compacted if it's mostly dead records.
+     *
+     * @param storeDir The directory holding the store.
+     * @param backing How the Slots are to be held.
+     * @param shard true to split the Slots by HealthcareService.
+     * @throws IOException If the store can't be opened or read.
+     */
+    public DiskStore(final File storeDir, final DataStore.SlotBacking backing,
+            final boolean shard) throws IOException {
+        dir = storeDir;
+        slotBacking = backing;
+        sharded = shard;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        file = new File(dir, FILE_NAME);
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        channel.truncate(Journal.completeLength(channel));
+        channel.position(channel.size());
+        reset();
+        long started = System.currentTimeMillis();
+        int count = load();
+        LOG.info("Read " + count + " records from " + file + " in "
+                + (System.currentTimeMillis() - started) + "ms");
+        writer = new GroupCommit<>("DiskStore writer", "store",
+                new GroupCommit.Batch<Record>() {
+                    @Override
+                    public void write(final List<Record> batch)
+                            throws IOException {
+                        writeBatch(batch);
+                    }
+                });
+        compactIfWorthwhile();
+    }
+
+    /**
+     * Method to start again with all the standard Slots free and no
+     * Appointments, counting everything in the file so far as dead.
+     */
+    private void reset() {
+        lastEpoch++;
+        ArrayList<Schedule> schedules = ReferenceData.makeSchedules();
+        current = ReferenceData.makeSnapshot(lastEpoch, schedules,
+                DataStore.makeSlotStore(ReferenceData.makeSlots(flyweights),
+                        StoreSnapshot.servicesOf(schedules), slotBacking,
+                        sharded, flyweights));
+        appointments = new ConcurrentHashMap<>();
+        order = new ConcurrentLinkedQueue<>();
+        index = new AppointmentIndex<>();
+        slotsWritten = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+        dead.set(records.get());
+    }
+
+    /**
+     * Method to read the file through, rebuilding where each Appointment is
+     * and the status of each Slot, then to index the Appointments. Records
+     * which can't be read are logged and skipped.
+     *
+     * @return The number of records read.
+     * @throws IOException If the file can't be read.
+     */
+    private int load() throws IOException {
+        long length = channel.size();
+        int count = 0;
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(file.toPath()))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long start = 0;
+            long pos = 0;
+            int b;
+            while (pos < length && (b = in.read()) >= 0) {
+                pos++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                try {
+                    if (load(line.toByteArray(), start)) {
+                        count++;
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.warning("Skipping record at " + start + ": "
+                            + ex.getMessage());
+                }
+                line.reset();
+                start = pos;
+            }
+        }
+        for (String id : order) {
+            try {
+                index.put(id, id, read(latest(id)));
+            } catch (RuntimeException ex) {
+                LOG.warning("Unable to index Appointment " + id + ": "
+                        + ex.getMessage());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to apply one record read from the file.
+     *
+     * @param line The record, without its newline.
+     * @param start Where in the file it starts.
+     * @return true if it was applied, false if it was empty.
+     */
+    private boolean load(final byte[] line, final long start) {
+        if (line.length == 0) {
+            return false;
+        }
+        switch (line[0]) {
+            case RESET:
+                records.incrementAndGet();
+                reset();
+                return true;
+
+            case SLOT:
+                String[] parts = new String(line, UTF8).split("\t");
+                current.getSlotStore().setStatus(parts[1],
+                        SlotStatus.valueOf(parts[2]));
+                records.incrementAndGet();
+                if (!slotsWritten.add(parts[1])) {
+                    dead.incrementAndGet();
+                }
+                return true;
+
+            case APPOINTMENT:
+                int idEnd = indexOf(line, 2);
+                String id = new String(line, 2, idEnd - 2, UTF8);
+                versionsOf(id).add(new Location(start + idEnd + 1,
+                        line.length - idEnd - 1));
+                records.incrementAndGet();
+                return true;
+
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown record type " + (char) line[0]);
+        }
+    }
+
+    /**
+     * @param line A record.
+     * @param from Where to start looking.
+     * @return The position of the first tab from there.
+     */
+    private static int indexOf(final byte[] line, final int from) {
+        for (int i = from; i < line.length; i++) {
+            if (line[i] == '\t') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Record has too few fields");
+    }
+
+    /**
+     * Method to get where the versions of an Appointment are, making an
+     * empty List if it's new.
+     *
+     * @param id The logical id of the Appointment.
+     * @return The List of Locations.
+     */
+    private ArrayList<Location> versionsOf(final String id) {
+        ArrayList<Location> versions = appointments.get(id);
+        if (versions == null) {
+            versions = new ArrayList<>();
+            appointments.put(id, versions);
+            order.add(id);
+        }
+        return versions;
+    }
+
+    /**
+     * Method to get where the current version of an Appointment is.
+     *
+     * @param id The logical id of the Appointment.
+     * @return Its Location, or null if there's no such Appointment.
+     */
+    private Location latest(final String id) {
+        ArrayList<Location> versions = appointments.get(id);
+        if (versions == null) {
+            return null;
+        }
+        synchronized (versions) {
+            return versions.get(versions.size() - 1);
+        }
+    }
+
+    @Override
+    public StoreSnapshot getSnapshot() {
+        return current;
+    }
+
+    @Override
+    public Slot getSlotByID(final String id) {
+        return current.getSlotByID(id);
+    }
+
+    @Override
+    public ArrayList<Slot> getSlots() {
+        return current.getSlots();
+    }
+
+    @Override
+    public int getSlotCount() {
+        return current.getSlotCount();
+    }
+
+    @Override
+    public int getFreeSlotCount() {
+        return current.getFreeSlotCount();
+    }
+
+    @Override
+    public boolean bookSlotIfFree(final String id) {
+        return compareAndSetSlotStatus(id, SlotStatus.FREE, SlotStatus.BUSY);
+    }
+
+    @Override
+    public boolean freeSlotIfBooked(final String id) {
+        return compareAndSetSlotStatus(id, SlotStatus.BUSY, SlotStatus.FREE);
+    }
+
+    /**
+     * Method to move a Slot from one status to another, only if it has the
+     * expected status now, and write its new status to disk. If it can't be
+     * written the Slot is moved back, so what's held never runs ahead of
+     * what's on disk.
+     *
+     * @param id The id of the Slot.
+     * @param expected The status it must have now.
+     * @param status The status to move it to.
+     * @return true if the Slot was found and moved.
+     */
+    private boolean compareAndSetSlotStatus(final String id,
+            final SlotStatus expected, final SlotStatus status) {
+        String idPart = DataStore.idPart(id);
+        lock.readLock().lock();
+        try {
+            SlotStore slots = current.getSlotStore();
+            if (!slots.compareAndSetStatus(idPart, expected, status)) {
+                return false;
+            }
+            try {
+                writer.await(new Record(slots, idPart));
+            } catch (InternalErrorException ex) {
+                if (!slots.compareAndSetStatus(idPart, status, expected)) {
+                    LOG.warning("Slot " + idPart + " changed before it"
+                            + " could be moved back to " + expected);
+                }
+                throw ex;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        compactIfWorthwhile();
+        return true;
+    }
+
+    @Override
+    public IdDt addAppointment(final Appointment newAppt) {
+        String newIDValue = UUID.randomUUID().toString();
+        IdDt newID = new IdDt("Appointment", newIDValue, "1");
+        newAppt.setId(newID);
+        newAppt.getMeta().setLastUpdated(new Date());
+        lock.readLock().lock();
+        try {
+            Location location = write(newIDValue, newAppt);
+            ArrayList<Location> versions = new ArrayList<>();
+            versions.add(location);
+            appointments.put(newIDValue, versions);
+            order.add(newIDValue);
+            index.put(newIDValue, newIDValue, newAppt);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return newID;
+    }
+
+    @Override
+    public Appointment getAppointment(final String identifier) {
+        IdDt id = new IdDt(identifier);
+        lock.readLock().lock();
+        try {
+            ArrayList<Location> versions = appointments.get(id.getIdPart());
+            if (versions == null) {
+                return null;
+            }
+            Location location;
+            synchronized (versions) {
+                if (!id.hasVersionIdPart()) {
+                    location = versions.get(versions.size() - 1);
+                } else if (!id.isVersionIdPartValidLong()) {
+                    return null;
+                } else {
+                    long version = id.getVersionIdPartAsLong();
+                    if (version < 1 || version > versions.size()) {
+                        return null;
+                    }
+                    location = versions.get((int) version - 1);
+                }
+            }
+            return read(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> getAppointmentHistory(final String identifier) {
+        lock.readLock().lock();
+        try {
+            ArrayList<Location> versions
+                    = appointments.get(new IdDt(identifier).getIdPart());
+            if (versions == null) {
+                return null;
+            }
+            ArrayList<Location> held;
+            synchronized (versions) {
+                held = new ArrayList<>(versions);
+            }
+            ArrayList<Appointment> result = new ArrayList<>(held.size());
+            for (int i = held.size() - 1; i >= 0; i--) {
+                result.add(read(held.get(i)));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getAppointmentVersion(final String identifier) {
+        ArrayList<Location> versions
+                = appointments.get(new IdDt(identifier).getIdPart());
+        if (versions == null) {
+            return 0;
+        }
+        synchronized (versions) {
+            return versions.size();
+        }
+    }
+
+    @Override
+    public ArrayList<Appointment> getAppointments() {
+        ArrayList<Appointment> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String id : order) {
+                Location location = latest(id);
+                if (location != null) {
+                    result.add(read(location));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public int getAppointmentCount() {
+        return appointments.size();
+    }
+
+    @Override
+    public List<Appointment> searchAppointments(final String slotId,
+            final Appointment.AppointmentStatus status,
+            final String nhsNumber, final long startFrom, final long startTo,
+            final long updatedFrom, final long updatedTo) {
+        String slot = slotId == null ? null : DataStore.idPart(slotId);
+        ArrayList<Appointment> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String id : index.search(slot, status, nhsNumber,
+                    startFrom, startTo, updatedFrom, updatedTo)) {
+                Location location = latest(id);
+                if (location == null) {
+                    continue;
+                }
+                // It may have changed since it was indexed
+                Appointment appt = read(location);
+                if (AppointmentIndex.matches(appt, slot, status, nhsNumber,
+                        startFrom, startTo, updatedFrom, updatedTo)) {
+                    result.add(appt);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public Appointment setAppointmentStatus(final String identifier,
+            final long expectedVersion,
+            final Appointment.AppointmentStatus proposedStatus) {
+        String id = new IdDt(identifier).getIdPart();
+        lock.readLock().lock();
+        try {
+            ArrayList<Location> versions = appointments.get(id);
+            if (versions == null) {
+                return null;
+            }
+            synchronized (versions) {
+                long latest = versions.size();
+                if (expectedVersion != 0 && expectedVersion != latest) {
+                    throw new ResourceVersionConflictException("Appointment "
+                            + identifier + " is not at version "
+                            + expectedVersion);
+                }
+                Appointment next = read(versions.get(versions.size() - 1));
+                next.setStatus(proposedStatus);
+                next.setId(new IdDt("Appointment", id,
+                        Long.toString(latest + 1)));
+                next.getMeta().setVersionId(Long.toString(latest + 1));
+                next.getMeta().setLastUpdated(new Date());
+                versions.add(write(id, next));
+                index.put(id, id, next);
+                return next;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Method to put everything back as it started. The reset is recorded,
+     * then the file is compacted to leave nothing from before it.
+     */
+    @Override
+    public void initialize() {
+        lock.writeLock().lock();
+        try {
+            writer.await(new Record(new byte[]{RESET, '\n'}));
+            reset();
+            LOG.info("Reinitiated epoch " + lastEpoch);
+            compact();
+        } catch (IOException ex) {
+            LOG.warning("Unable to compact " + file + ": " + ex.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Method to write a version of an Appointment, returning once it's on
+     * disk. Only called with the read lock held.
+     *
+     * @param id The logical id of the Appointment.
+     * @param appt The version.
+     * @return Where it was written.
+     */
+    private Location write(final String id, final Appointment appt) {
+        byte[] prefix = prefix(id);
+        byte[] json = ctx.newJsonParser().encodeResourceToString(appt)
+                .getBytes(UTF8);
+        byte[] bytes = new byte[prefix.length + json.length + 1];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        System.arraycopy(json, 0, bytes, prefix.length, json.length);
+        bytes[bytes.length - 1] = '\n';
+        Record record = new Record(bytes);
+        writer.await(record);
+        return new Location(record.position + prefix.length, json.length);
+    }
+
+    /**
+     * @param id The logical id of an Appointment.
+     * @return The start of a record of a version of it, up to its JSON.
+     */
+    private static byte[] prefix(final String id) {
+        return ((char) APPOINTMENT + "\t" + id + "\t").getBytes(UTF8);
+    }
+
+    /**
+     * @param id The id of a Slot.
+     * @param status Its status.
+     * @return The record of it having that status.
+     */
+    private static byte[] slotRecord(final String id,
+            final SlotStatus status) {
+        return ((char) SLOT + "\t" + id + "\t" + status.name() + "\n")
+                .getBytes(UTF8);
+    }
+
+    /**
+     * Method used by the writer thread to append a batch of records and
+     * force them to disk, noting where each went.
+     *
+     * @param batch The records, in the order they were queued.
+     * @throws IOException If they can't be written.
+     */
+    private void writeBatch(final List<Record> batch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long position = channel.position();
+        for (Record record : batch) {
+            record.position = position + out.size();
+            if (record.bytes != null) {
+                out.write(record.bytes);
+                continue;
+            }
+            out.write(slotRecord(record.slotId,
+                    record.store.getStatus(record.slotId)));
+            if (!slotsWritten.add(record.slotId)) {
+                dead.incrementAndGet();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        records.addAndGet(batch.size());
+    }
+
+    /**
+     * Method to read a version of an Appointment back from disk, only
+     * called with the read lock held.
+     *
+     * @param location Where it is.
+     * @return The Appointment.
+     */
+    private Appointment read(final Location location) {
+        return ctx.newJsonParser().parseResource(Appointment.class,
+                new String(readBytes(location), UTF8));
+    }
+
+    /**
+     * Method to read the JSON of a version of an Appointment from disk.
+     *
+     * @param location Where it is.
+     * @return Its bytes.
+     */
+    private byte[] readBytes(final Location location) {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer,
+                        location.offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of store");
+                }
+            }
+        } catch (IOException ex) {
+            throw new InternalErrorException("Failed to read store", ex);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return true if more of the file is dead than live, and there's
+     * enough dead to be worth a compaction.
+     */
+    private boolean worthCompacting() {
+        long deadNow = dead.get();
+        return deadNow >= COMPACT_MIN && deadNow > records.get() - deadNow;
+    }
+
+    /**
+     * Method to compact the file if it's worth it, logging rather than
+     * throwing if it can't be.
+     */
+    private void compactIfWorthwhile() {
+        if (!worthCompacting()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (worthCompacting()) {
+                compact();
+            }
+        } catch (IOException ex) {
+            LOG.warning("Unable to compact " + file + ": " + ex.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Method to compact the file, leaving out every dead record: the status
+     * of each Slot and every version of each Appointment, in the order they
+     * were saved, are copied to a new file, which is forced to disk and
+     * then replaces the file. Bookings wait while it runs. If it fails the
+     * file is left as it was.
+     *
+     * @throws IOException If the new file can't be written.
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long started = System.currentTimeMillis();
+            File compacted = new File(dir, COMPACT_NAME);
+            FileChannel out = FileChannel.open(compacted.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            boolean done = false;
+            try {
+                ConcurrentHashMap<String, ArrayList<Location>> moved
+                        = new ConcurrentHashMap<>();
+                ConcurrentLinkedQueue<String> movedOrder
+                        = new ConcurrentLinkedQueue<>();
+                Set<String> written = Collections.newSetFromMap(
+                        new ConcurrentHashMap<String, Boolean>());
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                long position = 0;
+                long count = 0;
+                SlotStore slots = current.getSlotStore();
+                for (int i = 0; i < slots.size(); i++) {
+                    chunk.write(slotRecord(slots.idAt(i), slots.statusAt(i)));
+                    written.add(slots.idAt(i));
+                    count++;
+                }
+                for (String id : order) {
+                    ArrayList<Location> versions = appointments.get(id);
+                    if (versions == null) {
+                        continue;
+                    }
+                    byte[] prefix = prefix(id);
+                    ArrayList<Location> copied
+                            = new ArrayList<>(versions.size());
+                    for (Location location : versions) {
+                        chunk.write(prefix);
+                        copied.add(new Location(position + chunk.size(),
+                                location.length));
+                        chunk.write(readBytes(location));
+                        chunk.write('\n');
+                        count++;
+                    }
+                    moved.put(id, copied);
+                    movedOrder.add(id);
+                    if (chunk.size() >= COMPACT_CHUNK) {
+                        position += writeChunk(out, chunk);
+                    }
+                }
+                writeChunk(out, chunk);
+                out.force(false);
+                Files.move(compacted.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                FileChannel old = channel;
+                channel = out;
+                appointments = moved;
+                order = movedOrder;
+                slotsWritten = written;
+                records.set(count);
+                dead.set(0);
+                done = true;
+                old.close();
+                LOG.info("Compacted " + file + " to " + count
+                        + " records in "
+                        + (System.currentTimeMillis() - started) + "ms");
+            } finally {
+                if (!done) {
+                    out.close();
+                    Files.deleteIfExists(compacted.toPath());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Method to append what's been built up of a compacted copy.
+     *
+     * @param out The copy.
+     * @param chunk What's been built up, emptied once written.
+     * @return The number of bytes written.
+     * @throws IOException If they can't be written.
+     */
+    private static int writeChunk(final FileChannel out,
+            final ByteArrayOutputStream chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.toByteArray());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        int written = chunk.size();
+        chunk.reset();
+        return written;
+    }
+
+    /**
+     * Method to stop the store, once everything queued has been written.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        channel.close();
+    }
+}
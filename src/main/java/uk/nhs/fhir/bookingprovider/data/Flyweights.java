@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Slot;
+
+/**
+ * Interns the small parts which thousands of Slots have in common: the Meta
+ * naming their profile, the Reference to their Schedule and the Codings of
+ * their service type etc. Each distinct value is held once and shared by
+ * every resource which has it, rather than each Slot carrying its own copy.
+ *
+ * Because they're shared, nothing may change a part once it has been handed
+ * out, which is why reads never modify a stored resource. Only plain parts
+ * are shared; one carrying anything more (eg a Meta with a tag, a Reference
+ * with a display) is left as the resource's own.
+ *
+ * Safe for use by any number of threads.
+ */
+final class Flyweights {
+
+    /**
+     * Meta objects, keyed on the one profile they name.
+     */
+    private final ConcurrentHashMap<String, Meta> metas;
+
+    /**
+     * Reference objects, keyed on what they refer to.
+     */
+    private final ConcurrentHashMap<String, Reference> references;
+
+    /**
+     * Coding objects, keyed on their system, code and display.
+     */
+    private final ConcurrentHashMap<String, Coding> codings;
+
+    /**
+     * Constructor.
+     */
+    Flyweights() {
+        metas = new ConcurrentHashMap<>();
+        references = new ConcurrentHashMap<>();
+        codings = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Method to get the shared Meta naming a given profile.
+     *
+     * @param profile The profile URL.
+     * @return The Meta, which must not be changed.
+     */
+    Meta profile(final String profile) {
+        Meta meta = metas.get(profile);
+        if (meta == null) {
+            Meta made = new Meta();
+            made.addProfile(profile);
+            meta = metas.putIfAbsent(profile, made);
+            if (meta == null) {
+                meta = made;
+            }
+        }
+        return meta;
+    }
+
+    /**
+     * Method to get the shared Reference to a given resource.
+     *
+     * @param reference What it refers to (eg /Schedule/sched1111).
+     * @return The Reference, which must not be changed.
+     */
+    Reference reference(final String reference) {
+        Reference ref = references.get(reference);
+        if (ref == null) {
+            Reference made = new Reference(reference);
+            ref = references.putIfAbsent(reference, made);
+            if (ref == null) {
+                ref = made;
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * Method to get the shared Coding for a given code.
+     *
+     * @param system The code system.
+     * @param code The code.
+     * @param display The display text, or null.
+     * @return The Coding, which must not be changed.
+     */
+    Coding coding(final String system, final String code,
+            final String display) {
+        String key = system + '|' + code + '|' + display;
+        Coding coding = codings.get(key);
+        if (coding == null) {
+            Coding made = new Coding(system, code, display);
+            coding = codings.putIfAbsent(key, made);
+            if (coding == null) {
+                coding = made;
+            }
+        }
+        return coding;
+    }
+
+    /**
+     * Method to swap the plain parts of a Slot for the shared ones.
+     *
+     * @param slot The Slot, which is changed.
+     * @return The same Slot.
+     */
+    Slot share(final Slot slot) {
+        if (slot.hasMeta() && isPlain(slot.getMeta())) {
+            slot.setMeta(profile(slot.getMeta().getProfile().get(0)
+                    .getValue()));
+        }
+        if (slot.hasSchedule() && isPlain(slot.getSchedule())) {
+            slot.setSchedule(reference(slot.getSchedule().getReference()));
+        }
+        if (slot.hasServiceCategory()) {
+            share(slot.getServiceCategory());
+        }
+        for (CodeableConcept concept : slot.getServiceType()) {
+            share(concept);
+        }
+        for (CodeableConcept concept : slot.getSpecialty()) {
+            share(concept);
+        }
+        if (slot.hasAppointmentType()) {
+            share(slot.getAppointmentType());
+        }
+        return slot;
+    }
+
+    /**
+     * Method to swap the plain Codings in a CodeableConcept for the shared
+     * ones.
+     *
+     * @param concept The CodeableConcept, which is changed.
+     */
+    private void share(final CodeableConcept concept) {
+        List<Coding> list = concept.getCoding();
+        for (int i = 0; i < list.size(); i++) {
+            Coding coding = list.get(i);
+            if (isPlain(coding)) {
+                list.set(i, coding(coding.getSystem(), coding.getCode(),
+                        coding.getDisplay()));
+            }
+        }
+    }
+
+    /**
+     * @param meta A Meta.
+     * @return true if all it holds is one profile.
+     */
+    private static boolean isPlain(final Meta meta) {
+        return meta.getProfile().size() == 1 && !meta.hasVersionId()
+                && !meta.hasLastUpdated() && !meta.hasSecurity()
+                && !meta.hasTag() && !meta.hasId() && !meta.hasExtension();
+    }
+
+    /**
+     * @param ref A Reference.
+     * @return true if all it holds is what it refers to.
+     */
+    private static boolean isPlain(final Reference ref) {
+        return ref.hasReference() && !ref.hasDisplay()
+                && !ref.hasIdentifier() && !ref.hasId()
+                && !ref.hasExtension();
+    }
+
+    /**
+     * @param coding A Coding.
+     * @return true if all it holds is a system, code and display.
+     */
+    private static boolean isPlain(final Coding coding) {
+        return !coding.hasVersion() && !coding.hasUserSelected()
+                && !coding.hasId() && !coding.hasExtension();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The encoded text of the resources Slots _include (Schedules,
+ * HealthcareServices, Practitioners, PractitionerRoles, Organizations and
+ * Locations), kept for each format they are sent in, so that a response
+ * Bundle can splice them in rather than encoding them again every time.
+ *
+ * The cache belongs to the IncludeGraph of a StoreSnapshot, and holds only
+ * the resource objects that graph was built from. When the DataStore
+ * replaces them, the new snapshot comes with a new, empty cache, so nothing
+ * encoded from an old resource is ever returned for a new one. The Slots
+ * themselves are never cached, as their status changes.
+ *
+ * A format is whatever string the caller uses to tell its encodings apart
+ * (eg json, xml-pretty); the cache doesn't interpret it.
+ */
+public final class FragmentCache {
+
+    /**
+     * The position of each resource held, by identity.
+     */
+    private final IdentityHashMap<Object, Integer> positions;
+
+    /**
+     * The encoded text of each resource, by format, in position order.
+     */
+    private final ConcurrentHashMap<String, AtomicReferenceArray<String>>
+            byFormat = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param resources The resources whose encodings may be kept.
+     */
+    FragmentCache(final List<Object> resources) {
+        positions = new IdentityHashMap<>();
+        for (Object resource : resources) {
+            if (!positions.containsKey(resource)) {
+                positions.put(resource, positions.size());
+            }
+        }
+    }
+
+    /**
+     * Method to check whether a resource's encodings can be kept.
+     *
+     * @param resource The resource.
+     * @return true if it is one of the resources this cache was made for.
+     */
+    public boolean holds(final Object resource) {
+        return positions.containsKey(resource);
+    }
+
+    /**
+     * Method to get the kept encoding of a resource.
+     *
+     * @param resource The resource.
+     * @param format The format wanted.
+     * @return The encoded text, or null if it hasn't been kept.
+     */
+    public String get(final Object resource, final String format) {
+        Integer position = positions.get(resource);
+        AtomicReferenceArray<String> texts = byFormat.get(format);
+        if (position == null || texts == null) {
+            return null;
+        }
+        return texts.get(position);
+    }
+
+    /**
+     * Method to keep the encoding of a resource. It's ignored if the resource
+     * isn't one this cache was made for.
+     *
+     * @param resource The resource.
+     * @param format The format it was encoded in.
+     * @param text The encoded text.
+     */
+    public void put(final Object resource, final String format,
+            final String text) {
+        Integer position = positions.get(resource);
+        if (position == null) {
+            return;
+        }
+        AtomicReferenceArray<String> texts = byFormat.get(format);
+        if (texts == null) {
+            byFormat.putIfAbsent(format,
+                    new AtomicReferenceArray<String>(positions.size()));
+            texts = byFormat.get(format);
+        }
+        texts.set(position, text);
+    }
+
+    /**
+     * @return How many resources' encodings can be kept.
+     */
+    public int size() {
+        return positions.size();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A single writer thread appending records to a file on behalf of many
+ * request threads (group commit), as used by the Journal and the DiskStore.
+ *
+ * A request thread queues its record and waits. The writer takes everything
+ * queued so far and hands the whole batch to be written and forced to disk
+ * once, then releases all of the waiting threads together. So under load
+ * many changes share one fsync.
+ *
+ * @param <T> The type of the records.
+ */
+final class GroupCommit<T> implements Closeable {
+
+    /**
+     * Logger we use throughout.
+     */
+    private static final Logger LOG
+            = Logger.getLogger(GroupCommit.class.getName());
+
+    /**
+     * How long the writer waits for work before checking if it is closed.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * How a batch of records is written, by the writer thread.
+     *
+     * @param <T> The type of the records.
+     */
+    interface Batch<T> {
+
+        /**
+         * Method to write a batch of records and force them to disk,
+         * returning only once they're there.
+         *
+         * @param records The records, in the order they were queued.
+         * @throws IOException If they can't all be written.
+         */
+        void write(List<T> records) throws IOException;
+    }
+
+    /**
+     * One record waiting to be written, and the means to tell the thread
+     * which queued it that it has been.
+     *
+     * @param <T> The type of the record.
+     */
+    private static final class Pending<T> {
+
+        /**
+         * The record, which may be null.
+         */
+        private final T record;
+
+        /**
+         * Released once the record is on disk (or has failed).
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * Set if the record could not be written.
+         */
+        private volatile Throwable failure;
+
+        /**
+         * Constructor.
+         *
+         * @param newRecord The record.
+         */
+        Pending(final T newRecord) {
+            record = newRecord;
+        }
+    }
+
+    /**
+     * What is being written, eg journal, used in messages.
+     */
+    private final String what;
+
+    /**
+     * How each batch is written.
+     */
+    private final Batch<T> batch;
+
+    /**
+     * Records waiting for the writer thread.
+     */
+    private final LinkedBlockingQueue<Pending<T>> queue;
+
+    /**
+     * The thread which writes and forces batches of records.
+     */
+    private final Thread writer;
+
+    /**
+     * Set once close() has been called.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor, starts the writer thread.
+     *
+     * @param threadName The name of the writer thread.
+     * @param newWhat What is being written, eg journal, used in messages.
+     * @param newBatch How each batch is written.
+     */
+    GroupCommit(final String threadName, final String newWhat,
+            final Batch<T> newBatch) {
+        what = newWhat;
+        batch = newBatch;
+        queue = new LinkedBlockingQueue<>();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, threadName);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Method to queue a record for the writer and wait for it to be written.
+     *
+     * @param record The record.
+     * @throws InternalErrorException If it couldn't be written, or we're
+     * closed.
+     */
+    void await(final T record) {
+        if (closed) {
+            throw new InternalErrorException("The " + what + " is closed");
+        }
+        Pending<T> pending = new Pending<>(record);
+        queue.add(pending);
+        // If we closed as it was queued, the writer may have already gone.
+        // Whoever takes it out of the queue, us or the writer, settles it.
+        if (closed && queue.remove(pending)) {
+            throw new InternalErrorException("The " + what + " is closed");
+        }
+        try {
+            pending.done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException(
+                    "Interrupted waiting for " + what, ex);
+        }
+        if (pending.failure != null) {
+            throw new InternalErrorException("Failed to write " + what,
+                    pending.failure);
+        }
+    }
+
+    /**
+     * The writer thread: takes whatever has been queued, has it all written
+     * and forced to disk, then releases the waiting threads.
+     */
+    private void writeLoop() {
+        ArrayList<Pending<T>> pendings = new ArrayList<>();
+        ArrayList<T> records = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending<T> first
+                        = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                pendings.add(first);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            queue.drainTo(pendings);
+            for (Pending<T> pending : pendings) {
+                records.add(pending.record);
+            }
+            Throwable failure = null;
+            try {
+                batch.write(records);
+            } catch (IOException | RuntimeException | Error ex) {
+                // Whatever went wrong, the waiting threads must be told, and
+                // the writer kept going for the records after them.
+                LOG.severe("Failed to write " + what + ": " + ex);
+                failure = ex;
+            }
+            for (Pending<T> pending : pendings) {
+                pending.failure = failure;
+                pending.done.countDown();
+            }
+            records.clear();
+            pendings.clear();
+        }
+        // Anything which slipped in as we closed will never be written.
+        queue.drainTo(pendings);
+        for (Pending<T> pending : pendings) {
+            pending.failure = new IOException("The " + what + " is closed");
+            pending.done.countDown();
+        }
+    }
+
+    /**
+     * Method to stop the writer, once everything queued has been written.
+     * The file itself is left for the owner to close.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What happened when a feed of Slots was imported: how many were taken in,
+ * how many were turned away, and why (the first few reasons at least).
+ */
+public final class ImportResult {
+
+    /**
+     * How many reasons for turning a Slot away are kept.
+     */
+    private static final int MAX_PROBLEMS = 100;
+
+    /**
+     * How many Slots were added or replaced.
+     */
+    private int imported;
+
+    /**
+     * How many Slots were turned away.
+     */
+    private int rejected;
+
+    /**
+     * Why the first Slots turned away were.
+     */
+    private final ArrayList<String> problems = new ArrayList<>();
+
+    /**
+     * Method to count a Slot which was taken in.
+     */
+    void accept() {
+        imported++;
+    }
+
+    /**
+     * Method to count a Slot which was turned away.
+     *
+     * @param problem Why.
+     */
+    void reject(final String problem) {
+        rejected++;
+        if (problems.size() < MAX_PROBLEMS) {
+            problems.add(problem);
+        }
+    }
+
+    /**
+     * @return How many Slots were added or replaced.
+     */
+    public int getImported() {
+        return imported;
+    }
+
+    /**
+     * @return How many Slots were turned away.
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return Why the Slots were turned away, at most the first 100.
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.dstu3.model.HealthcareService;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.PractitionerRole;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Schedule;
+
+/**
+ * The resources a Slot can _include, worked out once per Schedule when a
+ * StoreSnapshot is made, by following the references from each Schedule:
+ * its actors (HealthcareService, Practitioner, PractitionerRole), then each
+ * HealthcareService's providedBy Organization and Locations.
+ *
+ * Every Slot of a Schedule includes the same resources, so a search only has
+ * to collect the distinct Schedules of the Slots it found, and look each one
+ * up here. That costs the same whichever _includes are asked for, and each
+ * resource is returned once however many Slots lead to it.
+ *
+ * Our Schedules don't name a PractitionerRole, so one which doesn't is taken
+ * to be run under the first (and only) PractitionerRole, as it always has
+ * been.
+ */
+public final class IncludeGraph {
+
+    /**
+     * The kinds of resource a Slot search can _include.
+     */
+    public enum Target {
+        /**
+         * The Slot's Schedule (Slot:schedule).
+         */
+        SCHEDULE,
+        /**
+         * The Schedule's HealthcareService
+         * (Schedule:actor:HealthcareService).
+         */
+        HEALTHCARE_SERVICE,
+        /**
+         * The Schedule's Practitioner (Schedule:actor:Practitioner).
+         */
+        PRACTITIONER,
+        /**
+         * The Schedule's PractitionerRole (Schedule:actor:PractitionerRole).
+         */
+        PRACTITIONER_ROLE,
+        /**
+         * The Organization providing the HealthcareService
+         * (HealthcareService.providedBy).
+         */
+        ORGANIZATION,
+        /**
+         * The HealthcareService's Locations (HealthcareService.location).
+         */
+        LOCATION
+    }
+
+    /**
+     * The resources reached from each Schedule, by kind, keyed on the
+     * Schedule reference (eg /Schedule/sched1111).
+     */
+    private final HashMap<String, EnumMap<Target, List<Object>>> bySchedule;
+
+    /**
+     * The encoded text of the resources in the graph.
+     */
+    private final FragmentCache fragments;
+
+    /**
+     * Constructor, which follows every reference from each Schedule.
+     *
+     * @param schedules The Schedules.
+     * @param services The HealthcareServices.
+     * @param practitioners The Practitioners.
+     * @param roles The PractitionerRoles.
+     * @param organizations The Organizations.
+     * @param locations The Locations.
+     */
+    IncludeGraph(final List<Schedule> schedules,
+            final List<HealthcareService> services,
+            final List<Practitioner> practitioners,
+            final List<PractitionerRole> roles,
+            final List<Organization> organizations,
+            final List<Object> locations) {
+        HashMap<String, Object> byRef = new HashMap<>();
+        for (HealthcareService hcs : services) {
+            byRef.put("/HealthcareService/" + hcs.getId(), hcs);
+        }
+        for (Practitioner pract : practitioners) {
+            byRef.put("/Practitioner/" + pract.getId(), pract);
+        }
+        for (PractitionerRole role : roles) {
+            byRef.put("/PractitionerRole/" + role.getId(), role);
+        }
+        for (Organization org : organizations) {
+            byRef.put("/Organization/" + org.getId(), org);
+        }
+        for (Object loc : locations) {
+            byRef.put("/Location/" + ((Location) loc).getId(), loc);
+        }
+        bySchedule = new HashMap<>();
+        for (Schedule sched : schedules) {
+            EnumMap<Target, List<Object>> reached = new EnumMap<>(Target.class);
+            for (Target target : Target.values()) {
+                reached.put(target, new ArrayList<>());
+            }
+            reached.get(Target.SCHEDULE).add(sched);
+            for (Reference actor : sched.getActor()) {
+                Object resource = byRef.get(actor.getReference());
+                if (resource instanceof HealthcareService) {
+                    HealthcareService hcs = (HealthcareService) resource;
+                    reached.get(Target.HEALTHCARE_SERVICE).add(hcs);
+                    addIfFound(byRef, hcs.getProvidedBy(),
+                            reached.get(Target.ORGANIZATION));
+                    for (Reference loc : hcs.getLocation()) {
+                        addIfFound(byRef, loc, reached.get(Target.LOCATION));
+                    }
+                } else if (resource instanceof Practitioner) {
+                    reached.get(Target.PRACTITIONER).add(resource);
+                } else if (resource instanceof PractitionerRole) {
+                    reached.get(Target.PRACTITIONER_ROLE).add(resource);
+                }
+            }
+            if (reached.get(Target.PRACTITIONER_ROLE).isEmpty()
+                    && !roles.isEmpty()) {
+                reached.get(Target.PRACTITIONER_ROLE).add(roles.get(0));
+            }
+            bySchedule.put("/Schedule/" + sched.getId(), reached);
+        }
+        ArrayList<Object> resources = new ArrayList<Object>(schedules);
+        resources.addAll(byRef.values());
+        resources.addAll(roles);
+        fragments = new FragmentCache(resources);
+    }
+
+    /**
+     * @return The encoded text of the resources in the graph, which is
+     * emptied whenever the resources are replaced.
+     */
+    public FragmentCache getFragments() {
+        return fragments;
+    }
+
+    /**
+     * Method to add the resource a reference points at to a List, if it's
+     * one we hold.
+     *
+     * @param byRef The resources we hold, keyed on their reference.
+     * @param ref The reference.
+     * @param result The List to add it to.
+     */
+    private static void addIfFound(final Map<String, Object> byRef,
+            final Reference ref, final List<Object> result) {
+        Object resource = byRef.get(ref.getReference());
+        if (resource != null) {
+            result.add(resource);
+        }
+    }
+
+    /**
+     * Method to find the resources a set of Schedules' Slots include.
+     *
+     * @param scheduleRefs The Schedule references (eg /Schedule/sched1111).
+     * Any not known are skipped.
+     * @param targets The kinds of resource wanted.
+     * @return Each resource once, grouped by kind in the order of Target, and
+     * in the order they were reached within each kind.
+     */
+    public List<Object> resolve(final Iterable<String> scheduleRefs,
+            final Set<Target> targets) {
+        EnumMap<Target, LinkedHashSet<Object>> found
+                = new EnumMap<>(Target.class);
+        for (Target target : targets) {
+            found.put(target, new LinkedHashSet<>());
+        }
+        for (String ref : scheduleRefs) {
+            EnumMap<Target, List<Object>> reached = bySchedule.get(ref);
+            if (reached == null) {
+                continue;
+            }
+            for (Map.Entry<Target, LinkedHashSet<Object>> entry
+                    : found.entrySet()) {
+                entry.getValue().addAll(reached.get(entry.getKey()));
+            }
+        }
+        ArrayList<Object> result = new ArrayList<>();
+        for (LinkedHashSet<Object> resources : found.values()) {
+            result.addAll(resources);
+        }
+        return result;
+    }
+}
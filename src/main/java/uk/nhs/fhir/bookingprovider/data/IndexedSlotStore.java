@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * SlotStore which holds a Slot resource for every Slot, indexed by id and by
+ * Schedule (see ScheduleSlots for the start time and status indexes).
+ */
+final class IndexedSlotStore implements SlotStore {
+
+    /**
+     * Every Slot, in the order they were supplied.
+     */
+    private final ArrayList<SlotEntry> entries;
+
+    /**
+     * Primary index of the Slots, keyed on their id (eg slot001).
+     */
+    private final HashMap<String, SlotEntry> byId;
+
+    /**
+     * Time ordered index of the Slots in each Schedule, keyed on the Schedule
+     * reference (eg /Schedule/sched1111).
+     */
+    private final HashMap<String, ScheduleSlots> bySchedule;
+
+    /**
+     * Count of the Slots which are currently free, kept in step by the
+     * ScheduleSlots.
+     */
+    private final AtomicInteger freeCount;
+
+    /**
+     * Set once the store has been retired.
+     */
+    private volatile boolean retired;
+
+    /**
+     * Constructor, indexes the supplied Slots.
+     *
+     * @param slots The Slots to hold.
+     */
+    IndexedSlotStore(final List<Slot> slots) {
+        entries = new ArrayList<>(slots.size());
+        byId = new HashMap<>();
+        bySchedule = new HashMap<>();
+        freeCount = new AtomicInteger();
+        for (Slot slot : slots) {
+            String sched = slot.getSchedule().getReference();
+            ScheduleSlots index = bySchedule.get(sched);
+            if (index == null) {
+                index = new ScheduleSlots(freeCount);
+                bySchedule.put(sched, index);
+            }
+            SlotEntry entry = index.add(slot);
+            entries.add(entry);
+            byId.put(slot.getId(), entry);
+        }
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public int count(final SlotStatus status) {
+        if (status == SlotStatus.FREE) {
+            return freeCount.get();
+        }
+        int count = 0;
+        for (ScheduleSlots index : bySchedule.values()) {
+            count += index.size(status);
+        }
+        return count;
+    }
+
+    @Override
+    public Slot getSlot(final String id) {
+        SlotEntry entry = byId.get(id);
+        return entry == null ? null : entry.getCurrentSlot();
+    }
+
+    @Override
+    public SlotStatus getStatus(final String id) {
+        SlotEntry entry = byId.get(id);
+        return entry == null ? null : entry.getStatus();
+    }
+
+    @Override
+    public SlotStatus setStatus(final String id, final SlotStatus status) {
+        SlotEntry entry = byId.get(id);
+        return entry == null ? null
+                : entry.getSchedule().setStatus(entry, status);
+    }
+
+    @Override
+    public boolean compareAndSetStatus(final String id,
+            final SlotStatus expected, final SlotStatus status) {
+        SlotEntry entry = byId.get(id);
+        return entry != null
+                && entry.getSchedule().compareAndSetStatus(entry, expected,
+                        status);
+    }
+
+    @Override
+    public void addStartingBetween(final String scheduleRef,
+            final SlotStatus status, final long from, final long to,
+            final List<Slot> result) {
+        ScheduleSlots index = bySchedule.get(scheduleRef);
+        if (index != null) {
+            index.addStartingBetween(status, from, to, result);
+        }
+    }
+
+    @Override
+    public int addPage(final String scheduleRef, final SlotStatus status,
+            final long afterStart, final String afterId, final long to,
+            final int limit, final List<Slot> result) {
+        ScheduleSlots index = bySchedule.get(scheduleRef);
+        if (index == null) {
+            return 0;
+        }
+        return index.addPage(status, afterStart, afterId, to, limit, result);
+    }
+
+    @Override
+    public void addAll(final String scheduleRef, final SlotStatus status,
+            final List<Slot> result) {
+        ScheduleSlots index = bySchedule.get(scheduleRef);
+        if (index != null) {
+            index.addAll(status, result);
+        }
+    }
+
+    @Override
+    public String idAt(final int index) {
+        return entries.get(index).getId();
+    }
+
+    @Override
+    public SlotStatus statusAt(final int index) {
+        return entries.get(index).getStatus();
+    }
+
+    @Override
+    public Slot slotAt(final int index) {
+        return entries.get(index).getSlot().copy();
+    }
+
+    @Override
+    public long endAt(final int index) {
+        return entries.get(index).getSlot().getEnd().getTime();
+    }
+
+    @Override
+    public void retire() {
+        retired = true;
+        for (SlotEntry entry : entries) {
+            entry.freeze();
+        }
+    }
+
+    @Override
+    public boolean isRetired() {
+        return retired;
+    }
+
+    @Override
+    public SlotStore shard(final String serviceId) {
+        return this;
+    }
+
+    @Override
+    public String cantHold(final Slot slot) {
+        return null;
+    }
+}
@@ -0,0 +1,663 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * Append-only journal of the changes made to the DataStore, so that bookings
+ * survive a restart.
+ *
+ * The journal is a directory of segment files (journal-NNN.log), appended to
+ * in turn. rotate() starts a new segment, so that once a SnapshotFile holding
+ * everything in the older segments has been written they can be deleted.
+ *
+ * Each change is one line of text:
+ *
+ * R - the store was reset, forget everything before this.
+ * S [tab] slotid [tab] STATUS - a Slot now has this status.
+ * A [tab] json - an Appointment, as it now stands.
+ * X [tab] appointmentid - an Appointment has been archived.
+ * J [tab] json - a Bundle of some of a feed of imported Slots, as they were
+ * read, with more of the feed to follow.
+ * I [tab] json - a Bundle of the last of a feed of imported Slots.
+ *
+ * A feed is split into Bundles of at most IMPORT_BATCH Slots, so no line
+ * grows with the size of the feed, and is written out in one go. Replay
+ * only imports the feed once it reaches its I line, so a feed cut short by
+ * a crash is left out, as it was never published.
+ *
+ * Request threads queue the changed Slot or Appointment and wait, while a
+ * single writer thread writes and forces to disk everything queued so far
+ * in one go (see GroupCommit). So under load many bookings share one fsync.
+ *
+ * The writer records the state of each Slot or Appointment at the time it
+ * writes the line, not at the time it was queued. Whatever order racing
+ * threads queue their changes in, the last line for any item therefore
+ * holds its latest state.
+ */
+final class Journal implements Closeable {
+
+    /**
+     * Logger we use throughout.
+     */
+    private static final Logger LOG
+            = Logger.getLogger(Journal.class.getName());
+
+    /**
+     * The journal is always written as UTF-8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Record type for a reset.
+     */
+    private static final String RESET = "R";
+
+    /**
+     * Record type for a Slot status.
+     */
+    private static final String SLOT = "S";
+
+    /**
+     * Record type for an Appointment.
+     */
+    private static final String APPOINTMENT = "A";
+
+    /**
+     * Record type for an archived Appointment.
+     */
+    private static final String EXPIRE = "X";
+
+    /**
+     * Record type for the last (or only) Bundle of a feed of imported Slots.
+     */
+    private static final String IMPORT = "I";
+
+    /**
+     * Record type for a Bundle of imported Slots with more of the feed to
+     * follow.
+     */
+    private static final String IMPORT_PART = "J";
+
+    /**
+     * The most imported Slots written in one line.
+     */
+    static final int IMPORT_BATCH = 1000;
+
+    /**
+     * Marks a request to start a new segment.
+     */
+    private static final Object ROTATE = new Object();
+
+    /**
+     * How segment files are named, from their sequence number.
+     */
+    private static final String SEGMENT_NAME = "journal-%020d.log";
+
+    /**
+     * How much is read at a time when looking back for the last newline.
+     */
+    private static final int BACKWARDS_CHUNK = 8192;
+
+    /**
+     * Which Slot has changed, so the writer can read its status as it writes.
+     */
+    private static final class SlotChange {
+
+        /**
+         * The store holding the Slot.
+         */
+        private final SlotStore store;
+
+        /**
+         * The id of the Slot.
+         */
+        private final String id;
+
+        /**
+         * Constructor.
+         *
+         * @param newStore The store holding the Slot.
+         * @param newId The id of the Slot.
+         */
+        SlotChange(final SlotStore newStore, final String newId) {
+            store = newStore;
+            id = newId;
+        }
+    }
+
+    /**
+     * Which Appointment has been archived.
+     */
+    private static final class Expiry {
+
+        /**
+         * The id of the Appointment.
+         */
+        private final String id;
+
+        /**
+         * Constructor.
+         *
+         * @param newId The id of the Appointment.
+         */
+        Expiry(final String newId) {
+            id = newId;
+        }
+    }
+
+    /**
+     * Which Slots have been imported.
+     */
+    private static final class Import {
+
+        /**
+         * The Slots, as they were read.
+         */
+        private final Collection<Slot> slots;
+
+        /**
+         * Constructor.
+         *
+         * @param newSlots The Slots, as they were read.
+         */
+        Import(final Collection<Slot> newSlots) {
+            slots = newSlots;
+        }
+    }
+
+    /**
+     * The directory holding the segments.
+     */
+    private final File dir;
+
+    /**
+     * The segment we are appending to, only changed by the writer thread.
+     */
+    private FileChannel channel;
+
+    /**
+     * The sequence number of the segment we are appending to.
+     */
+    private volatile long segment;
+
+    /**
+     * Used to write and read Appointments as JSON, only ever by one thread
+     * at a time.
+     */
+    private final IParser parser;
+
+    /**
+     * The writer thread, which writes and forces batches of changes.
+     */
+    private final GroupCommit<Object> writer;
+
+    /**
+     * Constructor, opens (creating if need be) the latest segment in the
+     * directory for appending. Any partly written last line, left by a crash,
+     * is cut off.
+     *
+     * @param journalDir The journal directory.
+     * @throws IOException If the segment can't be opened.
+     */
+    Journal(final File journalDir) throws IOException {
+        dir = journalDir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        long[] existing = segments(dir);
+        segment = existing.length == 0 ? 1 : existing[existing.length - 1];
+        channel = openSegment(segment);
+        parser = FhirContext.forDstu3().newJsonParser();
+        writer = new GroupCommit<>("DataStore journal writer", "journal",
+                new GroupCommit.Batch<Object>() {
+                    @Override
+                    public void write(final List<Object> items)
+                            throws IOException {
+                        writeBatch(items);
+                    }
+                });
+    }
+
+    /**
+     * Method to record the current status of a Slot, returning once it is
+     * safely on disk.
+     *
+     * @param store The store holding the Slot.
+     * @param id The id of the Slot which has changed.
+     */
+    void append(final SlotStore store, final String id) {
+        await(new SlotChange(store, id));
+    }
+
+    /**
+     * Method to record an Appointment as it now stands, returning once it is
+     * safely on disk.
+     *
+     * @param appt The Appointment which has been added or changed.
+     */
+    void append(final Appointment appt) {
+        await(appt);
+    }
+
+    /**
+     * Method to record that an Appointment has been archived, so is no longer
+     * held by the DataStore, returning once it is safely on disk.
+     *
+     * @param id The id of the Appointment.
+     */
+    void appendExpire(final String id) {
+        await(new Expiry(id));
+    }
+
+    /**
+     * Method to record a feed of Slots imported together, returning once it
+     * is safely on disk. The Slots must not change until it returns.
+     *
+     * @param slots The Slots, as they were read.
+     */
+    void appendImport(final Collection<Slot> slots) {
+        await(new Import(slots));
+    }
+
+    /**
+     * Method to record that the store has been reset, returning once it is
+     * safely on disk.
+     */
+    void appendReset() {
+        await(null);
+    }
+
+    /**
+     * Method to start a new segment. Everything appended before this call
+     * returns is in the older segments.
+     *
+     * @return The sequence number of the new segment.
+     */
+    long rotate() {
+        await(ROTATE);
+        return segment;
+    }
+
+    /**
+     * Method to delete the segments older than a given one, once they are no
+     * longer needed.
+     *
+     * @param keepFrom The oldest segment to keep.
+     */
+    void deleteSegmentsBefore(final long keepFrom) {
+        for (long seq : segments(dir)) {
+            if (seq < keepFrom && !segmentFile(dir, seq).delete()) {
+                LOG.warning("Unable to delete " + segmentFile(dir, seq));
+            }
+        }
+    }
+
+    /**
+     * Method to open a segment for appending, cutting off any partly written
+     * last line.
+     *
+     * @param seq The sequence number of the segment.
+     * @return The open segment.
+     * @throws IOException If it can't be opened.
+     */
+    private FileChannel openSegment(final long seq) throws IOException {
+        FileChannel file = FileChannel.open(segmentFile(dir, seq).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        file.truncate(completeLength(file));
+        file.position(file.size());
+        return file;
+    }
+
+    /**
+     * Method to get the file for a given segment.
+     *
+     * @param journalDir The journal directory.
+     * @param seq The sequence number of the segment.
+     * @return The segment file.
+     */
+    static File segmentFile(final File journalDir, final long seq) {
+        return new File(journalDir, String.format(SEGMENT_NAME, seq));
+    }
+
+    /**
+     * Method to list the segments in a journal directory.
+     *
+     * @param journalDir The journal directory.
+     * @return The sequence numbers of the segments, oldest first.
+     */
+    static long[] segments(final File journalDir) {
+        return SnapshotFile.sequences(journalDir, "journal-", ".log");
+    }
+
+    /**
+     * Method to queue a change for the writer and wait for it to be written.
+     *
+     * @param item The change, or null for a reset.
+     */
+    private void await(final Object item) {
+        writer.await(item);
+    }
+
+    /**
+     * Method used by the writer thread to write a batch of changes.
+     *
+     * @param items The changes, in the order they were queued.
+     * @throws IOException If they can't be written.
+     */
+    private void writeBatch(final List<Object> items) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Object item : items) {
+            if (item == ROTATE) {
+                write(lines);
+                channel.force(false);
+                channel.close();
+                channel = openSegment(segment + 1);
+                segment++;
+            } else if (item instanceof Import) {
+                write(lines);
+                writeImport(((Import) item).slots, lines);
+            } else {
+                lines.append(format(item)).append('\n');
+            }
+        }
+        write(lines);
+        channel.force(false);
+    }
+
+    /**
+     * Method used by the writer thread to write a feed of imported Slots, a
+     * line of at most IMPORT_BATCH Slots at a time. If it can't all be
+     * written, whatever was is cut off again so as not to be mistaken for
+     * the start of a later feed.
+     *
+     * @param slots The Slots, as they were read.
+     * @param lines Used to build each line, empty on entry and exit.
+     * @throws IOException If they can't be written.
+     */
+    private void writeImport(final Collection<Slot> slots,
+            final StringBuilder lines) throws IOException {
+        long start = channel.position();
+        try {
+            Bundle bundle = new Bundle();
+            bundle.setType(Bundle.BundleType.COLLECTION);
+            int left = slots.size();
+            for (Slot slot : slots) {
+                bundle.addEntry().setResource(slot);
+                left--;
+                if (bundle.getEntry().size() == IMPORT_BATCH || left == 0) {
+                    lines.append(left == 0 ? IMPORT : IMPORT_PART)
+                            .append('\t')
+                            .append(parser.encodeResourceToString(bundle))
+                            .append('\n');
+                    write(lines);
+                    bundle.getEntry().clear();
+                }
+            }
+        } catch (IOException | RuntimeException | Error ex) {
+            lines.setLength(0);
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException truncateFailed) {
+                LOG.severe("Unable to cut off a partly written import: "
+                        + truncateFailed.getMessage());
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Method to write out the lines built up so far, leaving them to be
+     * forced to disk with the rest of the batch.
+     *
+     * @param lines The lines, emptied once written.
+     * @throws IOException If they can't be written.
+     */
+    private void write(final StringBuilder lines) throws IOException {
+        if (lines.length() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(UTF8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        lines.setLength(0);
+    }
+
+    /**
+     * Method to turn a change into its journal line, from the current state
+     * of the item changed.
+     *
+     * @param item The change, or null for a reset.
+     * @return The line, without its newline.
+     */
+    private String format(final Object item) {
+        if (item == null) {
+            return RESET;
+        }
+        if (item instanceof SlotChange) {
+            SlotChange change = (SlotChange) item;
+            return SLOT + '\t' + change.id + '\t'
+                    + change.store.getStatus(change.id).name();
+        }
+        if (item instanceof Expiry) {
+            return EXPIRE + '\t' + ((Expiry) item).id;
+        }
+        return APPOINTMENT + '\t'
+                + parser.encodeResourceToString((Appointment) item);
+    }
+
+    /**
+     * Method to replay the segments of a journal into the DataStore, as it
+     * starts up.
+     *
+     * @param journalDir The journal directory.
+     * @param fromSegment The first segment to replay.
+     * @param store The DataStore to replay into.
+     * @return The number of lines replayed.
+     * @throws IOException If a segment can't be read.
+     */
+    static int replay(final File journalDir, final long fromSegment,
+            final DataStore store) throws IOException {
+        int count = 0;
+        for (long seq : segments(journalDir)) {
+            if (seq >= fromSegment) {
+                count += replay(segmentFile(journalDir, seq), store);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to replay one journal segment into the DataStore, a line at a
+     * time. Lines which can't be read are logged and skipped, and any partly
+     * written last line, left by a crash, is ignored, as is a feed of
+     * imported Slots which doesn't reach its last line.
+     *
+     * @param file The journal segment.
+     * @param store The DataStore to replay into.
+     * @return The number of lines replayed.
+     * @throws IOException If the file can't be read.
+     */
+    static int replay(final File file, final DataStore store)
+            throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        IParser reader = FhirContext.forDstu3().newJsonParser();
+        ArrayList<Slot> feed = new ArrayList<>();
+        int count = 0;
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(file.toPath()))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if (line.size() > 0) {
+                    try {
+                        replay(new String(line.toByteArray(), UTF8), reader,
+                                store, feed);
+                        count++;
+                    } catch (RuntimeException ex) {
+                        LOG.warning("Skipping journal line: "
+                                + ex.getMessage());
+                    }
+                }
+                line.reset();
+            }
+        }
+        if (!feed.isEmpty()) {
+            LOG.warning("Skipping " + feed.size()
+                    + " Slots from an import cut short");
+        }
+        return count;
+    }
+
+    /**
+     * Method to replay one journal line into the DataStore.
+     *
+     * @param line The line, without its newline.
+     * @param reader Used to read Appointments and Slots from JSON.
+     * @param store The DataStore to replay into.
+     * @param feed The Slots read so far of a feed being imported, held until
+     * its last line.
+     */
+    private static void replay(final String line, final IParser reader,
+            final DataStore store, final List<Slot> feed) {
+        String[] parts = line.split("\t", 3);
+        if (!feed.isEmpty() && !parts[0].equals(IMPORT)
+                && !parts[0].equals(IMPORT_PART)) {
+            LOG.warning("Skipping " + feed.size()
+                    + " Slots from an import cut short");
+            feed.clear();
+        }
+        switch (parts[0]) {
+            case RESET:
+                store.initialize();
+                break;
+
+            case SLOT:
+                store.replaySlot(parts[1], SlotStatus.valueOf(parts[2]));
+                break;
+
+            case APPOINTMENT:
+                store.replayAppointment(reader.parseResource(
+                        Appointment.class, parts[1]));
+                break;
+
+            case EXPIRE:
+                store.replayExpire(parts[1]);
+                break;
+
+            case IMPORT_PART:
+                addSlots(reader.parseResource(Bundle.class, parts[1]), feed);
+                break;
+
+            case IMPORT:
+                try {
+                    addSlots(reader.parseResource(Bundle.class, parts[1]),
+                            feed);
+                    store.replayImport(feed);
+                } finally {
+                    feed.clear();
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown record type " + parts[0]);
+        }
+    }
+
+    /**
+     * Method to add the Slots in an imported Bundle to those read so far.
+     *
+     * @param bundle The Bundle.
+     * @param slots The Slots read so far.
+     */
+    private static void addSlots(final Bundle bundle, final List<Slot> slots) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            slots.add((Slot) entry.getResource());
+        }
+    }
+
+    /**
+     * Method to find how much of a journal file is made of whole lines, by
+     * reading backwards from the end to the last newline.
+     *
+     * @param file The open journal file.
+     * @return The length up to and including the last newline.
+     * @throws IOException If the file can't be read.
+     */
+    static long completeLength(final FileChannel file)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BACKWARDS_CHUNK);
+        long end = file.size();
+        while (end > 0) {
+            long start = Math.max(0, end - BACKWARDS_CHUNK);
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while (buffer.hasRemaining()
+                    && file.read(buffer, start + buffer.position()) >= 0) {
+                // Keep reading until the chunk is full.
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Method to stop the journal, once everything queued has been written.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import java.util.ArrayList;
+import java.util.Calendar;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.HealthcareService;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.PractitionerRole;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Schedule;
+import org.hl7.fhir.dstu3.model.Slot;
+
+/**
+ * Makes the standard demonstrator resources: the PractitionerRole,
+ * Practitioner, Organisation, Locations, HealthcareServices and Schedules,
+ * and the Slots in those Schedules. Every call makes a new set, so each
+ * BookingStore can hold its own without building any other.
+ */
+final class ReferenceData {
+
+    /**
+     * Where all the profiles are pulled from.
+     */
+    static final String PROFILEROOT
+            = "https://fhir.hl7.org.uk/STU3/StructureDefinition/";
+
+    /**
+     * Where any Code Systems are pulled from.
+     */
+    private static final String CODESYSTEMROOT
+            = "https://fhir.hl7.org.uk/STU3/CodeSystem/";
+
+    /**
+     * Private constructor, this class only has static methods.
+     */
+    private ReferenceData() {
+    }
+
+    /**
+     * Method to make a snapshot of the standard resources around a set of
+     * Slots.
+     *
+     * @param epoch The epoch of the snapshot.
+     * @param schedules The Schedules the Slots are in.
+     * @param slots The Slots.
+     * @return The snapshot.
+     */
+    static StoreSnapshot makeSnapshot(final long epoch,
+            final ArrayList<Schedule> schedules, final SlotStore slots) {
+        return new StoreSnapshot(epoch,
+                makePractitionerRoles(),
+                makePractitioners(),
+                makeOrganisations(),
+                makeLocations(),
+                makeHealthcareServices(),
+                schedules,
+                slots);
+    }
+
+    /**
+     * Method to create a list of one PractitionerRole resources: - R0260.
+     *
+     * @return A List of (one) PractitionerRole resources.
+     */
+    static ArrayList<PractitionerRole> makePractitionerRoles() {
+        ArrayList<PractitionerRole> practRoles = new ArrayList<>();
+
+        PractitionerRole practRole = new PractitionerRole();
+        Meta met = new Meta();
+        String profileName = PROFILEROOT + "CareConnect-PractitionerRole-1";
+        met.addProfile(profileName);
+        practRole.setMeta(met);
+        practRole.setId(new IdDt("R0260"));
+        CodeableConcept code = new CodeableConcept();
+        Coding codeCoding = new Coding();
+        String codeSystemName = CODESYSTEMROOT + "CareConnect-SDSJobRoleName-1";
+        codeCoding.setSystem(codeSystemName);
+        codeCoding.setCode("R0260");
+        codeCoding.setDisplay("General Medical Practitioner");
+        code.addCoding(codeCoding);
+        practRole.addCode(code);
+
+        practRoles.add(practRole);
+
+        return practRoles;
+    }
+
+    /**
+     * Method to create a list of one Practitioner resources: - Dr Libbie Webber
+     * - ABCD123456 - SDS User ID ABCD123456 - SDS Role ID R0260.
+     *
+     * @return A List of (one) Practitioners.
+     */
+    static ArrayList<Practitioner> makePractitioners() {
+        ArrayList<Practitioner> practs = new ArrayList<>();
+
+        Practitioner pract = new Practitioner();
+
+        Meta met = new Meta();
+        String profileName = PROFILEROOT + "CareConnect-Practitioner-1";
+        met.addProfile(profileName);
+        pract.setMeta(met);
+        pract.setId(new IdDt("ABCD123456"));
+
+        Identifier newSDSUserIdentifier = new Identifier();
+        newSDSUserIdentifier.setSystem("https://fhir.nhs.uk/Id/sds-user-id");
+        newSDSUserIdentifier.setValue("ABCD123456");
+        pract.addIdentifier(newSDSUserIdentifier);
+
+        Identifier newSDSRoleId = new Identifier();
+        newSDSRoleId.setSystem("https://fhir.nhs.uk/Id/sds-role-profile-id");
+        newSDSRoleId.setValue("R0260");
+        pract.addIdentifier(newSDSRoleId);
+
+        HumanName name = new HumanName();
+        name.addPrefix("Dr");
+        name.addGiven("Libbie");
+        name.setFamily("Webber");
+        pract.addName(name);
+
+        practs.add(pract);
+
+        return practs;
+    }
+
+    /**
+     * Method to create a list of one Organisation resources: - A91545 - Name:
+     * Our Provider Organisation - ODS Code: A91545.
+     *
+     * @return A List of Organisations.
+     */
+    static ArrayList<Organization> makeOrganisations() {
+        ArrayList<Organization> orgs = new ArrayList<>();
+
+        Organization org = new Organization();
+
+        Meta met = new Meta();
+        String profileName = PROFILEROOT + "CareConnect-Organization-1";
+        met.addProfile(profileName);
+        org.setMeta(met);
+        org.setId(new IdDt("A91545"));
+
+        Identifier newODSID = new Identifier();
+        newODSID.setSystem("https://fhir.nhs.uk/Id/ods-organization-code");
+        newODSID.setValue("A91545");
+        org.addIdentifier(newODSID);
+
+        org.setName("Our Provider Organisation");
+
+        orgs.add(org);
+        return orgs;
+    }
+
+    /**
+     * Method to create a list of two Location resources: - Location One -
+     * loc1111. - Location Two - loc2222.
+     *
+     * @return A List of Locations.
+     */
+    static ArrayList<Object> makeLocations() {
+        ArrayList<Object> locs = new ArrayList<>();
+
+        Location locn1 = new Location();
+        Location locn2 = new Location();
+        Meta met = new Meta();
+        String profileName = PROFILEROOT + "CareConnect-Location-1";
+        met.addProfile(profileName);
+        locn1.setMeta(met);
+        locn2.setMeta(met);
+
+        locn1.setId(new IdDt("loc1111"));
+        locn1.setName("Location One");
+        locs.add(locn1);
+
+        locn2.setId(new IdDt("loc2222"));
+        locn2.setName("Location Two");
+        locs.add(locn2);
+
+        return locs;
+    }
+
+    /**
+     * Method to create a list of two HealthcareService resources: Service One -
+     * 918999198999 - Location: /Location/loc1111 - Organisation:
+     * /Organization/A91545
+     *
+     * Service Two - 118111118111 - Location: /Location/loc2222 - Organisation:
+     * /Organization/A91545
+     *
+     * @return A List of two HealthcareService resources.
+     */
+    static ArrayList<HealthcareService> makeHealthcareServices() {
+        ArrayList<HealthcareService> hcServices = new ArrayList<>();
+        HealthcareService hcs1 = new HealthcareService();
+        HealthcareService hcs2 = new HealthcareService();
+        Meta met = new Meta();
+        String profileName = PROFILEROOT + "CareConnect-HealthcareService-1";
+        met.addProfile(profileName);
+
+        Reference providerRef = new Reference();
+        providerRef.setReference("/Organization/A91545");
+
+        Reference locRef = new Reference();
+
+        hcs1.setMeta(met);
+        hcs1.setId(new IdDt("918999198999"));
+        hcs1.setName("Service One");
+        hcs1.setProvidedBy(providerRef);
+        locRef.setReference("/Location/loc1111");
+        hcs1.addLocation(locRef);
+
+        Identifier newId1 = new Identifier();
+        newId1.setSystem("https://system.supplier.co.uk/My/Services");
+        newId1.setValue("357");
+        hcs1.addIdentifier(newId1);
+
+        hcServices.add(hcs1);
+
+        hcs2.setMeta(met);
+        hcs2.setId(new IdDt("118111118111"));
+        hcs2.setName("Service Two");
+        hcs2.setProvidedBy(providerRef);
+        locRef = new Reference();
+        locRef.setReference("/Location/loc2222");
+        hcs2.addLocation(locRef);
+
+        Identifier newId2 = new Identifier();
+        newId2.setSystem("https://system.supplier.co.uk/My/Services");
+        newId2.setValue("457");
+        hcs2.addIdentifier(newId2);
+
+        hcServices.add(hcs2);
+
+        return hcServices;
+    }
+
+    /**
+     * Method to create a list of two Schedule resources: - sched1111 -
+     * Practitioner: /Practitioner/ABCD123456 - HealthcareService:
+     * /HealthcareService/918999198999
+     *
+     * - sched2222 - Practitioner: /Practitioner/ABCD123456 - HealthcareService:
+     * /HealthcareService/118111118111
+     *
+     * @return A List of Schedules.
+     */
+    static ArrayList<Schedule> makeSchedules() {
+        ArrayList<Schedule> schedls = new ArrayList<>();
+
+        Schedule sched1 = new Schedule();
+        Schedule sched2 = new Schedule();
+        Meta met = new Meta();
+        String profileName = PROFILEROOT + "CareConnect-Schedule-1";
+        met.addProfile(profileName);
+        sched1.setMeta(met);
+        sched2.setMeta(met);
+
+        Reference hcsRef = new Reference();
+        Reference practRef = new Reference();
+        practRef.setReference("/Practitioner/ABCD123456");
+
+        sched1.setId(new IdDt("sched1111"));
+        hcsRef.setReference("/HealthcareService/918999198999");
+        sched1.addActor(hcsRef);
+        sched1.addActor(practRef);
+
+        Identifier newId1 = new Identifier();
+        newId1.setSystem("https://system.supplier.co.uk/MyDiary/Numbering");
+        newId1.setValue("1015432");
+        sched1.addIdentifier(newId1);
+        schedls.add(sched1);
+
+        sched2.setId(new IdDt("sched2222"));
+        hcsRef = new Reference();
+        hcsRef.setReference("/HealthcareService/118111118111");
+        sched2.addActor(hcsRef);
+        sched2.addActor(practRef);
+
+        Identifier newId2 = new Identifier();
+        newId2.setSystem("https://system.supplier.co.uk/MyDiary/Numbering");
+        newId2.setValue("6543189");
+        sched2.addIdentifier(newId2);
+        schedls.add(sched2);
+
+        return schedls;
+    }
+
+    /**
+     * Method used to initially create a set of Slots for test use.
+     *
+     * @param flyweights Shares the parts the Slots have in common.
+     * @return An ArrayList of free Slots
+     */
+    static ArrayList<Slot> makeSlots(final Flyweights flyweights) {
+        ArrayList<Slot> slotList = new ArrayList<>();
+
+        Slot slot;
+
+        Meta met = flyweights.profile(PROFILEROOT + "CareConnect-Slot-1");
+
+        Reference schedRef = flyweights.reference("/Schedule/sched1111");
+
+        // Set start time to 09:00 tomorrow...
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 9);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DATE, 1);
+
+        for (int i = 0; i < 20; i++) {
+            slot = new Slot();
+            slot.setMeta(met);
+            slot.setStatus(Slot.SlotStatus.FREE);
+            slot.setSchedule(schedRef);
+
+            slot.setId(new IdDt("slot" + String.format("%03d", i + 1)));
+            slot.setStart(cal.getTime());
+            // Set slot end 15 minutes after start
+            cal.add(Calendar.MINUTE, 15);
+            slot.setEnd(cal.getTime());
+            slotList.add(slot);
+        }
+
+        schedRef = flyweights.reference("/Schedule/sched2222");
+
+        cal.set(Calendar.HOUR_OF_DAY, 9);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        for (int i = 0; i < 20; i++) {
+            slot = new Slot();
+            slot.setMeta(met);
+            slot.setStatus(Slot.SlotStatus.FREE);
+            slot.setSchedule(schedRef);
+
+            slot.setId(new IdDt("slot" + String.format("%03d", i + 51)));
+            slot.setStart(cal.getTime());
+            // Set slot end 15 minutes after start
+            cal.add(Calendar.MINUTE, 15);
+            slot.setEnd(cal.getTime());
+            slotList.add(slot);
+        }
+
+        return slotList;
+    }
+}
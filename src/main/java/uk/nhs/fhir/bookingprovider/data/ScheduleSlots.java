@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * Index of the Slots belonging to one Schedule, kept in order of their start
+ * time so that a range of start times can be looked up without walking every
+ * Slot in the diary.
+ *
+ * The Slots are also held separately for each status, so that for example a
+ * search for free Slots never has to step over the busy ones.
+ *
+ * Nothing here takes a lock. The status of each Slot lives in its SlotEntry
+ * and is changed by compare-and-set, then the status sets are brought into
+ * line with it. A reader can briefly find an entry in the set for its old
+ * status as well as its new one, so readers check the status of the Slot
+ * they get from the entry (see SlotEntry.getCurrentSlot()) before using it.
+ */
+final class ScheduleSlots {
+
+    /**
+     * All the Slots, in start time order.
+     */
+    private final ConcurrentSkipListSet<SlotEntry> byStart;
+
+    /**
+     * The same Slots, split up by their current status. One set is made for
+     * each status up front, so the map itself never changes.
+     */
+    private final EnumMap<SlotStatus, ConcurrentSkipListSet<SlotEntry>> byStatus;
+
+    /**
+     * Count of all the Slots held.
+     */
+    private final AtomicInteger size;
+
+    /**
+     * Count of the Slots held for each status.
+     */
+    private final EnumMap<SlotStatus, AtomicInteger> statusSizes;
+
+    /**
+     * Count of free Slots shared with the rest of the DataStore, kept in step
+     * as Slots here change status.
+     */
+    private final AtomicInteger freeCount;
+
+    /**
+     * Constructor, creates an empty index with its own free Slot count.
+     */
+    ScheduleSlots() {
+        this(new AtomicInteger());
+    }
+
+    /**
+     * Constructor, creates an empty index.
+     *
+     * @param sharedFreeCount Count of free Slots to keep in step.
+     */
+    ScheduleSlots(final AtomicInteger sharedFreeCount) {
+        byStart = new ConcurrentSkipListSet<>(SlotEntry.BY_START);
+        byStatus = new EnumMap<>(SlotStatus.class);
+        statusSizes = new EnumMap<>(SlotStatus.class);
+        for (SlotStatus status : SlotStatus.values()) {
+            byStatus.put(status,
+                    new ConcurrentSkipListSet<>(SlotEntry.BY_START));
+            statusSizes.put(status, new AtomicInteger());
+        }
+        size = new AtomicInteger();
+        freeCount = sharedFreeCount;
+    }
+
+    /**
+     * Method to add a Slot into the index, under its current status.
+     *
+     * @param slot The Slot to add.
+     * @return The entry holding the Slot and its status.
+     */
+    SlotEntry add(final Slot slot) {
+        SlotEntry entry = new SlotEntry(slot, this);
+        byStart.add(entry);
+        size.incrementAndGet();
+        count(entry.getStatus(), 1);
+        sync(entry);
+        return entry;
+    }
+
+    /**
+     * Method to change the status of a Slot held in this index, whatever it
+     * is now.
+     *
+     * @param entry The Slot to change.
+     * @param status The new status.
+     * @return The status the Slot had before, or null if it is frozen.
+     */
+    SlotStatus setStatus(final SlotEntry entry, final SlotStatus status) {
+        while (true) {
+            SlotStatus current = entry.getStatus();
+            if (entry.isFrozen()) {
+                return null;
+            }
+            if (current == status
+                    || compareAndSetStatus(entry, current, status)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Method to change the status of a Slot only if it currently has the
+     * expected status, as one atomic step. When several threads race to make
+     * the same change, exactly one of them gets true.
+     *
+     * @param entry The Slot to change.
+     * @param expected The status the Slot must have now.
+     * @param status The new status.
+     * @return true if the Slot had the expected status and has been changed.
+     */
+    boolean compareAndSetStatus(final SlotEntry entry,
+            final SlotStatus expected, final SlotStatus status) {
+        if (expected == status || !entry.compareAndSetStatus(expected, status)) {
+            return false;
+        }
+        count(expected, -1);
+        count(status, 1);
+        sync(entry);
+        return true;
+    }
+
+    /**
+     * Method to copy the Slots which start in a given range into a List, in
+     * start time order.
+     *
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time wanted (inclusive), in epoch millis.
+     * @param to The latest start time wanted (exclusive), in epoch millis.
+     * @param result The List the matching Slots are added to.
+     */
+    void addStartingBetween(final SlotStatus status, final long from,
+            final long to, final List<Slot> result) {
+        if (from >= to) {
+            return;
+        }
+        addMatching(status, index(status).subSet(SlotEntry.probe(from), true,
+                SlotEntry.probe(to), false), result);
+    }
+
+    /**
+     * Method to copy, in start time order, up to a given number of the Slots
+     * which come after a given point and start before a given time.
+     *
+     * @param status The status wanted, or null for any status.
+     * @param afterStart The start time of the point, in epoch millis.
+     * @param afterId The id of the Slot at the point, which isn't copied, or
+     * null to copy every Slot starting from afterStart.
+     * @param to The latest start time wanted (exclusive), in epoch millis.
+     * @param limit The most Slots to copy.
+     * @param result The List the matching Slots are added to.
+     * @return How many Slots were copied.
+     */
+    int addPage(final SlotStatus status, final long afterStart,
+            final String afterId, final long to, final int limit,
+            final List<Slot> result) {
+        NavigableSet<SlotEntry> tail = afterId == null
+                ? index(status).tailSet(SlotEntry.probe(afterStart), true)
+                : index(status).tailSet(
+                        SlotEntry.probe(afterStart, afterId), false);
+        int added = 0;
+        for (SlotEntry entry : tail) {
+            if (added >= limit || entry.getStart() >= to) {
+                break;
+            }
+            Slot slot = entry.getCurrentSlot();
+            if (status == null || slot.getStatus() == status) {
+                result.add(slot);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Method to copy all of the Slots with a given status into a List, in
+     * start time order.
+     *
+     * @param status The status wanted, or null for any status.
+     * @param result The List the Slots are added to.
+     */
+    void addAll(final SlotStatus status, final List<Slot> result) {
+        addMatching(status, index(status), result);
+    }
+
+    /**
+     * Method to get the number of Slots held.
+     *
+     * @return The number of Slots in this Schedule.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Method to get the number of Slots held with a given status.
+     *
+     * @param status The status being counted.
+     * @return The number of Slots in this Schedule with that status.
+     */
+    int size(final SlotStatus status) {
+        return statusSizes.get(status).get();
+    }
+
+    /**
+     * Method to get the set to read for a given status.
+     *
+     * @param status The status, or null for all Slots.
+     * @return The set of entries.
+     */
+    private NavigableSet<SlotEntry> index(final SlotStatus status) {
+        return status == null ? byStart : byStatus.get(status);
+    }
+
+    /**
+     * Method to copy the Slots from a set into a List, skipping any whose
+     * status has moved on since they were put in the set.
+     *
+     * @param status The status wanted, or null for any status.
+     * @param entries The entries to copy.
+     * @param result The List the Slots are added to.
+     */
+    private static void addMatching(final SlotStatus status,
+            final Iterable<SlotEntry> entries, final List<Slot> result) {
+        for (SlotEntry entry : entries) {
+            Slot slot = entry.getCurrentSlot();
+            if (status == null || slot.getStatus() == status) {
+                result.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Method to adjust the counts held for a status.
+     *
+     * @param status The status.
+     * @param delta The amount to add.
+     */
+    private void count(final SlotStatus status, final int delta) {
+        statusSizes.get(status).addAndGet(delta);
+        if (status == SlotStatus.FREE) {
+            freeCount.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Method to bring the status sets, and the status on the Slot resource,
+     * into line with the status held in the entry. The resource is swapped
+     * for a copy rather than changed, as readers may hold it. If the status
+     * changes again while this is going on, it goes round again, so whichever
+     * thread makes the last change leaves everything matching it.
+     *
+     * @param entry The entry whose status has changed.
+     */
+    private void sync(final SlotEntry entry) {
+        SlotStatus status;
+        do {
+            status = entry.getStatus();
+            byStatus.get(status).add(entry);
+            for (SlotStatus other : SlotStatus.values()) {
+                if (other != status) {
+                    byStatus.get(other).remove(entry);
+                }
+            }
+            entry.stamp(status);
+        } while (entry.getStatus() != status);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A repeating session in a Schedule's diary, eg Monday to Friday 09:00 to
+ * 12:30 in 15 minute Slots, except on bank holidays. SlotGenerator expands
+ * these into Slots.
+ *
+ * Templates are read from properties like these, where 1 is the template's
+ * number (see getNumber()):
+ *
+ * slot.template.1.schedule=/Schedule/sched1111
+ * slot.template.1.days=MON,TUE,WED,THU,FRI
+ * slot.template.1.session=09:00-12:30
+ * slot.template.1.length=15
+ * slot.template.1.exclude=2019-12-25,2019-12-26
+ */
+public final class SessionTemplate {
+
+    /**
+     * The start of the property names templates are read from.
+     */
+    private static final String PREFIX = "slot.template.";
+
+    /**
+     * The names of the days, in Calendar.DAY_OF_WEEK order from SUNDAY.
+     */
+    private static final String[] DAYS
+            = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+    /**
+     * The largest template number, so that Slot ids stay within a long.
+     */
+    static final int MAX_NUMBER = 999999;
+
+    /**
+     * The number of the template, which makes its Slot ids unique.
+     */
+    private final int number;
+
+    /**
+     * The Schedule the Slots go in (eg /Schedule/sched1111).
+     */
+    private final String scheduleRef;
+
+    /**
+     * The days of the week the session runs, a bit for each
+     * Calendar.DAY_OF_WEEK value.
+     */
+    private final int days;
+
+    /**
+     * The start of the session, in minutes after midnight.
+     */
+    private final int startMinute;
+
+    /**
+     * The end of the session, in minutes after midnight.
+     */
+    private final int endMinute;
+
+    /**
+     * The length of each Slot, in minutes.
+     */
+    private final int slotMinutes;
+
+    /**
+     * The dates the session doesn't run, as yyyymmdd.
+     */
+    private final Set<Integer> exclusions;
+
+    /**
+     * Constructor.
+     *
+     * @param newNumber The number of the template, from 1 to 999999.
+     * @param newScheduleRef The Schedule the Slots go in.
+     * @param newDays The days the session runs, a bit for each
+     * Calendar.DAY_OF_WEEK value (eg 1 &lt;&lt; Calendar.MONDAY).
+     * @param newStartMinute The start of the session, in minutes after
+     * midnight.
+     * @param newEndMinute The end of the session, in minutes after midnight.
+     * @param newSlotMinutes The length of each Slot, in minutes.
+     * @param newExclusions The dates it doesn't run, as yyyymmdd.
+     */
+    public SessionTemplate(final int newNumber, final String newScheduleRef,
+            final int newDays, final int newStartMinute,
+            final int newEndMinute, final int newSlotMinutes,
+            final Set<Integer> newExclusions) {
+        if (newNumber < 1 || newNumber > MAX_NUMBER) {
+            throw new IllegalArgumentException("Template number "
+                    + newNumber + " is not from 1 to " + MAX_NUMBER);
+        }
+        if (newStartMinute < 0 || newEndMinute > 24 * 60
+                || newStartMinute >= newEndMinute) {
+            throw new IllegalArgumentException("Template " + newNumber
+                    + " has no time between its start and end");
+        }
+        if (newSlotMinutes < 2) {
+            throw new IllegalArgumentException("Template " + newNumber
+                    + " has Slots shorter than 2 minutes");
+        }
+        number = newNumber;
+        scheduleRef = newScheduleRef;
+        days = newDays;
+        startMinute = newStartMinute;
+        endMinute = newEndMinute;
+        slotMinutes = newSlotMinutes;
+        exclusions = Collections.unmodifiableSet(
+                new HashSet<>(newExclusions));
+    }
+
+    /**
+     * Method to read all the templates defined in a set of properties.
+     *
+     * @param props The properties (eg from server.properties).
+     * @return The templates, in number order.
+     * @throws IllegalArgumentException If a template is incomplete or badly
+     * written.
+     */
+    public static List<SessionTemplate> fromProperties(
+            final Properties props) {
+        TreeMap<Integer, SessionTemplate> templates = new TreeMap<>();
+        for (String name : props.stringPropertyNames()) {
+            if (!name.startsWith(PREFIX) || !name.endsWith(".schedule")) {
+                continue;
+            }
+            String key = name.substring(0, name.lastIndexOf('.'));
+            int num = Integer.parseInt(key.substring(PREFIX.length()));
+            String session = required(props, key + ".session");
+            int dash = session.indexOf('-');
+            if (dash < 0) {
+                throw new IllegalArgumentException(key
+                        + ".session should be like 09:00-12:30");
+            }
+            Set<Integer> excluded = new HashSet<>();
+            String exclude = props.getProperty(key + ".exclude", "").trim();
+            if (!exclude.isEmpty()) {
+                for (String date : exclude.split(",")) {
+                    excluded.add(Integer.valueOf(date.trim().replace("-", "")));
+                }
+            }
+            templates.put(num, new SessionTemplate(num,
+                    props.getProperty(name).trim(),
+                    parseDays(required(props, key + ".days")),
+                    parseTime(session.substring(0, dash)),
+                    parseTime(session.substring(dash + 1)),
+                    Integer.parseInt(required(props, key + ".length")),
+                    excluded));
+        }
+        return new ArrayList<>(templates.values());
+    }
+
+    /**
+     * Method to get a property which must be there.
+     *
+     * @param props The properties.
+     * @param name The name of the property.
+     * @return Its value, trimmed.
+     */
+    private static String required(final Properties props,
+            final String name) {
+        String value = props.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(name + " is missing");
+        }
+        return value.trim();
+    }
+
+    /**
+     * Method to read a list of days like MON,TUE,WED.
+     *
+     * @param text The list.
+     * @return A bit for each Calendar.DAY_OF_WEEK value listed.
+     */
+    private static int parseDays(final String text) {
+        int result = 0;
+        for (String day : text.split(",")) {
+            int index = Arrays.asList(DAYS).indexOf(
+                    day.trim().toUpperCase());
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown day " + day);
+            }
+            result |= 1 << (Calendar.SUNDAY + index);
+        }
+        return result;
+    }
+
+    /**
+     * Method to read a time like 09:30.
+     *
+     * @param text The time.
+     * @return Minutes after midnight.
+     */
+    private static int parseTime(final String text) {
+        String[] parts = text.trim().split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Time " + text
+                    + " should be like 09:30");
+        }
+        return Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+    }
+
+    /**
+     * @return The number of the template.
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * @return The Schedule the Slots go in (eg /Schedule/sched1111).
+     */
+    public String getScheduleRef() {
+        return scheduleRef;
+    }
+
+    /**
+     * @return The start of the session, in minutes after midnight.
+     */
+    public int getStartMinute() {
+        return startMinute;
+    }
+
+    /**
+     * @return The end of the session, in minutes after midnight.
+     */
+    public int getEndMinute() {
+        return endMinute;
+    }
+
+    /**
+     * @return The length of each Slot, in minutes.
+     */
+    public int getSlotMinutes() {
+        return slotMinutes;
+    }
+
+    /**
+     * Method to work out whether the session runs on a given day.
+     *
+     * @param day A Calendar set to the day.
+     * @return true if it runs that day.
+     */
+    public boolean runsOn(final Calendar day) {
+        if ((days & (1 << day.get(Calendar.DAY_OF_WEEK))) == 0) {
+            return false;
+        }
+        return !exclusions.contains(dateKey(day));
+    }
+
+    /**
+     * Method to get a day as a number like 20191225.
+     *
+     * @param day A Calendar set to the day.
+     * @return The day as yyyymmdd.
+     */
+    static int dateKey(final Calendar day) {
+        return day.get(Calendar.YEAR) * 10000
+                + (day.get(Calendar.MONTH) + 1) * 100
+                + day.get(Calendar.DAY_OF_MONTH);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * SlotStore which splits the Slots by HealthcareService: the Slots of each
+ * service's Schedules are held in a store of their own (a shard), with its
+ * own indexes and counts, so bookings and searches for one service never
+ * touch the same memory as those for another.
+ *
+ * A search by service goes straight to its shard (see shard()). Anything
+ * else is routed by the Slot's id or Schedule, or runs over every shard in
+ * turn. Slots in a Schedule which isn't run by any service share one more
+ * shard.
+ */
+final class ShardedSlotStore implements SlotStore {
+
+    /**
+     * Makes the store for each shard.
+     */
+    interface ShardBuilder {
+
+        /**
+         * Method to make the store for one shard.
+         *
+         * @param slots The Slots in the shard.
+         * @return The store.
+         */
+        SlotStore build(List<Slot> slots);
+    }
+
+    /**
+     * The key of the shard holding Slots no service runs.
+     */
+    private static final String NO_SERVICE = "";
+
+    /**
+     * A store with nothing in it, for a service with no Slots.
+     */
+    private static final SlotStore EMPTY
+            = new IndexedSlotStore(new ArrayList<Slot>());
+
+    /**
+     * The shards, keyed on the HealthcareService id.
+     */
+    private final LinkedHashMap<String, SlotStore> shards;
+
+    /**
+     * The shard holding each Schedule's Slots, keyed on the Schedule
+     * reference (eg /Schedule/sched1111).
+     */
+    private final HashMap<String, SlotStore> bySchedule;
+
+    /**
+     * The shard holding each Slot, keyed on its id (eg slot001).
+     */
+    private final HashMap<String, SlotStore> byId;
+
+    /**
+     * The shards in order, for working through every Slot by position.
+     */
+    private final SlotStore[] order;
+
+    /**
+     * The position of the first Slot of each shard in order.
+     */
+    private final int[] offsets;
+
+    /**
+     * The number of Slots held.
+     */
+    private final int size;
+
+    /**
+     * Set once the store has been retired.
+     */
+    private volatile boolean retired;
+
+    /**
+     * Constructor, splits the Slots into shards.
+     *
+     * @param slots The Slots to hold.
+     * @param scheduleServices The HealthcareService id running each
+     * Schedule, keyed on the Schedule reference.
+     * @param builder Makes the store for each shard.
+     */
+    ShardedSlotStore(final List<Slot> slots,
+            final Map<String, String> scheduleServices,
+            final ShardBuilder builder) {
+        LinkedHashMap<String, List<Slot>> split = new LinkedHashMap<>();
+        for (Slot slot : slots) {
+            String service
+                    = scheduleServices.get(slot.getSchedule().getReference());
+            if (service == null) {
+                service = NO_SERVICE;
+            }
+            List<Slot> list = split.get(service);
+            if (list == null) {
+                list = new ArrayList<>();
+                split.put(service, list);
+            }
+            list.add(slot);
+        }
+        shards = new LinkedHashMap<>();
+        bySchedule = new HashMap<>();
+        byId = new HashMap<>();
+        order = new SlotStore[split.size()];
+        offsets = new int[split.size()];
+        int count = 0;
+        for (Map.Entry<String, List<Slot>> entry : split.entrySet()) {
+            SlotStore shard = builder.build(entry.getValue());
+            for (Slot slot : entry.getValue()) {
+                bySchedule.put(slot.getSchedule().getReference(), shard);
+                byId.put(slot.getId(), shard);
+            }
+            offsets[shards.size()] = count;
+            order[shards.size()] = shard;
+            shards.put(entry.getKey(), shard);
+            count += shard.size();
+        }
+        size = count;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int count(final SlotStatus status) {
+        int count = 0;
+        for (SlotStore shard : order) {
+            count += shard.count(status);
+        }
+        return count;
+    }
+
+    @Override
+    public Slot getSlot(final String id) {
+        SlotStore shard = byId.get(id);
+        return shard == null ? null : shard.getSlot(id);
+    }
+
+    @Override
+    public SlotStatus getStatus(final String id) {
+        SlotStore shard = byId.get(id);
+        return shard == null ? null : shard.getStatus(id);
+    }
+
+    @Override
+    public SlotStatus setStatus(final String id, final SlotStatus status) {
+        SlotStore shard = byId.get(id);
+        return shard == null ? null : shard.setStatus(id, status);
+    }
+
+    @Override
+    public boolean compareAndSetStatus(final String id,
+            final SlotStatus expected, final SlotStatus status) {
+        SlotStore shard = byId.get(id);
+        return shard != null
+                && shard.compareAndSetStatus(id, expected, status);
+    }
+
+    @Override
+    public void addStartingBetween(final String scheduleRef,
+            final SlotStatus status, final long from, final long to,
+            final List<Slot> result) {
+        SlotStore shard = bySchedule.get(scheduleRef);
+        if (shard != null) {
+            shard.addStartingBetween(scheduleRef, status, from, to, result);
+        }
+    }
+
+    @Override
+    public int addPage(final String scheduleRef, final SlotStatus status,
+            final long afterStart, final String afterId, final long to,
+            final int limit, final List<Slot> result) {
+        SlotStore shard = bySchedule.get(scheduleRef);
+        if (shard == null) {
+            return 0;
+        }
+        return shard.addPage(scheduleRef, status, afterStart, afterId, to,
+                limit, result);
+    }
+
+    @Override
+    public void addAll(final String scheduleRef, final SlotStatus status,
+            final List<Slot> result) {
+        SlotStore shard = bySchedule.get(scheduleRef);
+        if (shard != null) {
+            shard.addAll(scheduleRef, status, result);
+        }
+    }
+
+    @Override
+    public String idAt(final int index) {
+        int shard = shardAt(index);
+        return order[shard].idAt(index - offsets[shard]);
+    }
+
+    @Override
+    public SlotStatus statusAt(final int index) {
+        int shard = shardAt(index);
+        return order[shard].statusAt(index - offsets[shard]);
+    }
+
+    @Override
+    public Slot slotAt(final int index) {
+        int shard = shardAt(index);
+        return order[shard].slotAt(index - offsets[shard]);
+    }
+
+    @Override
+    public long endAt(final int index) {
+        int shard = shardAt(index);
+        return order[shard].endAt(index - offsets[shard]);
+    }
+
+    @Override
+    public void retire() {
+        retired = true;
+        for (SlotStore shard : order) {
+            shard.retire();
+        }
+    }
+
+    @Override
+    public boolean isRetired() {
+        return retired;
+    }
+
+    @Override
+    public SlotStore shard(final String serviceId) {
+        SlotStore shard = shards.get(serviceId);
+        return shard == null ? EMPTY : shard;
+    }
+
+    @Override
+    public String cantHold(final Slot slot) {
+        SlotStore shard = bySchedule.get(slot.getSchedule().getReference());
+        return shard == null ? null : shard.cantHold(slot);
+    }
+
+    /**
+     * @return The number of shards.
+     */
+    int getShardCount() {
+        return order.length;
+    }
+
+    /**
+     * Method to find which shard holds the Slot at a given position.
+     *
+     * @param index The position, from 0 to size() - 1.
+     * @return The index of the shard in order.
+     */
+    private int shardAt(final int index) {
+        int found = Arrays.binarySearch(offsets, index);
+        if (found >= 0) {
+            // Skip over any empty shards starting at the same position.
+            while (found + 1 < offsets.length
+                    && offsets[found + 1] == index) {
+                found++;
+            }
+            return found;
+        }
+        return -found - 2;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import org.hl7.fhir.dstu3.model.Slot;
+
+/**
+ * The point a page of Slot search results finished at: the Schedule, start
+ * time and id of its last Slot. Slots are ordered by Schedule, then start
+ * time, then id, so the next page starts straight after that point in the
+ * Schedule's start time index.
+ *
+ * A cursor names a Slot rather than counting results, so pages don't slip
+ * when Slots are booked or cancelled in between (for a status search) and
+ * the next page costs the same however far through the results it is.
+ *
+ * As text it is the Schedule id, start time and Slot id, separated by
+ * colons (eg sched1111:1546329600000:slot001), which is what goes in the
+ * _pageId of a next link.
+ */
+public final class SlotCursor {
+
+    /**
+     * The reference of the Schedule of the last Slot (eg /Schedule/sched1111).
+     */
+    private final String scheduleRef;
+
+    /**
+     * The start time of the last Slot, in epoch millis.
+     */
+    private final long start;
+
+    /**
+     * The id of the last Slot.
+     */
+    private final String id;
+
+    /**
+     * Constructor.
+     *
+     * @param schedule The reference of the Schedule of the last Slot.
+     * @param startTime The start time of the last Slot, in epoch millis.
+     * @param slotId The id of the last Slot.
+     */
+    SlotCursor(final String schedule, final long startTime,
+            final String slotId) {
+        scheduleRef = schedule;
+        start = startTime;
+        id = slotId;
+    }
+
+    /**
+     * Method to make the cursor just after a given Slot.
+     *
+     * @param slot The last Slot of a page.
+     * @return The cursor.
+     */
+    static SlotCursor after(final Slot slot) {
+        return new SlotCursor(slot.getSchedule().getReference(),
+                slot.getStart().getTime(), slot.getId());
+    }
+
+    /**
+     * Method to read a cursor back from its text.
+     *
+     * @param text The text, as made by toString().
+     * @return The cursor, or null if the text isn't one.
+     */
+    public static SlotCursor parse(final String text) {
+        if (text == null) {
+            return null;
+        }
+        String[] parts = text.split(":", 3);
+        if (parts.length != 3 || parts[0].isEmpty() || parts[2].isEmpty()) {
+            return null;
+        }
+        try {
+            return new SlotCursor("/Schedule/" + parts[0],
+                    Long.parseLong(parts[1]), parts[2]);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The reference of the Schedule of the last Slot.
+     */
+    String getScheduleRef() {
+        return scheduleRef;
+    }
+
+    /**
+     * @return The start time of the last Slot, in epoch millis.
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @return The id of the last Slot.
+     */
+    String getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        String sched = scheduleRef.substring(scheduleRef.lastIndexOf('/') + 1);
+        return sched + ":" + start + ":" + id;
+    }
+}
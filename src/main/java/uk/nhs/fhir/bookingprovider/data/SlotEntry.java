@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * A Slot held in the DataStore, along with its status.
+ *
+ * The status held here is the master copy, and it is only ever changed by a
+ * compare-and-set. Any number of threads can race to book (FREE to BUSY) or
+ * free (BUSY to FREE) a Slot without taking a lock, and exactly one of them
+ * wins each change. Other transitions, such as FREE to BUSY_TENTATIVE, work
+ * the same way.
+ *
+ * The status is held as its ordinal, so that freeze() can mark it with the
+ * FROZEN bit in the same atomic step: once frozen, the status reads as it was
+ * but can't be changed again, which is how a SlotStore hands its Slots over
+ * to the next one without losing a booking.
+ *
+ * The Slot resource is never changed once readers can see it, as it may be
+ * being encoded into a response. When the status changes a copy with the new
+ * status is swapped in (see stamp()).
+ */
+final class SlotEntry {
+
+    /**
+     * Orders entries by start time, then by id so that Slots starting at the
+     * same time are still distinct.
+     */
+    static final Comparator<SlotEntry> BY_START = new Comparator<SlotEntry>() {
+        @Override
+        public int compare(final SlotEntry a, final SlotEntry b) {
+            int result = Long.compare(a.start, b.start);
+            if (result == 0) {
+                result = a.id.compareTo(b.id);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Added to a status ordinal once it is frozen.
+     */
+    static final int FROZEN = 0x100;
+
+    /**
+     * The SlotStatus for each ordinal.
+     */
+    private static final SlotStatus[] STATUSES = SlotStatus.values();
+
+    /**
+     * The Slot resource itself, replaced rather than changed.
+     */
+    private volatile Slot slot;
+
+    /**
+     * The index of the Schedule the Slot belongs to.
+     */
+    private final ScheduleSlots schedule;
+
+    /**
+     * The id of the Slot (eg slot001).
+     */
+    private final String id;
+
+    /**
+     * The start time of the Slot, in epoch milliseconds.
+     */
+    private final long start;
+
+    /**
+     * The ordinal of the current status of the Slot, plus FROZEN once it is
+     * frozen, or -1 for a probe.
+     */
+    private final AtomicInteger status;
+
+    /**
+     * Constructor, takes the status from the Slot resource.
+     *
+     * @param newSlot The Slot being held.
+     * @param newSchedule The index of the Schedule the Slot belongs to.
+     */
+    SlotEntry(final Slot newSlot, final ScheduleSlots newSchedule) {
+        this(newSlot, newSchedule, newSlot.getId(),
+                newSlot.getStart().getTime(), newSlot.getStatus());
+    }
+
+    /**
+     * Constructor used for real entries and for probes.
+     *
+     * @param newSlot The Slot being held, or null for a probe.
+     * @param newSchedule The index of the Schedule, or null for a probe.
+     * @param newId The id of the Slot.
+     * @param newStart The start time in epoch milliseconds.
+     * @param newStatus The initial status.
+     */
+    private SlotEntry(final Slot newSlot, final ScheduleSlots newSchedule,
+            final String newId, final long newStart,
+            final SlotStatus newStatus) {
+        slot = newSlot;
+        schedule = newSchedule;
+        id = newId;
+        start = newStart;
+        status = new AtomicInteger(
+                newStatus == null ? -1 : newStatus.ordinal());
+    }
+
+    /**
+     * Method to make an entry which holds no Slot, but which sorts before any
+     * real entry starting at the same time. Used as the bounds when looking up
+     * a range of start times.
+     *
+     * @param start The start time in epoch milliseconds.
+     * @return The probe entry.
+     */
+    static SlotEntry probe(final long start) {
+        return new SlotEntry(null, null, "", start, null);
+    }
+
+    /**
+     * Method to make an entry which holds no Slot, but which sorts exactly
+     * where a Slot with a given start time and id would. Used to pick up a
+     * search where an earlier page of it finished.
+     *
+     * @param start The start time in epoch milliseconds.
+     * @param id The id of the Slot.
+     * @return The probe entry.
+     */
+    static SlotEntry probe(final long start, final String id) {
+        return new SlotEntry(null, null, id, start, null);
+    }
+
+    /**
+     * @return The Slot resource.
+     */
+    Slot getSlot() {
+        return slot;
+    }
+
+    /**
+     * Method to get the Slot resource with the status the entry has now, for
+     * a reader. It is only copied if the status has changed and the new one
+     * hasn't been stamped on yet.
+     *
+     * @return The Slot, which must not be changed.
+     */
+    Slot getCurrentSlot() {
+        Slot held = slot;
+        SlotStatus now = getStatus();
+        if (held.getStatus() == now) {
+            return held;
+        }
+        Slot stamped = held.copy();
+        stamped.setStatus(now);
+        return stamped;
+    }
+
+    /**
+     * Method to swap in a copy of the Slot resource with a given status,
+     * unless it already has it.
+     *
+     * @param newStatus The status the resource should have.
+     */
+    void stamp(final SlotStatus newStatus) {
+        Slot held = slot;
+        if (held.getStatus() != newStatus) {
+            Slot stamped = held.copy();
+            stamped.setStatus(newStatus);
+            slot = stamped;
+        }
+    }
+
+    /**
+     * @return The index of the Schedule the Slot belongs to.
+     */
+    ScheduleSlots getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * @return The id of the Slot.
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return The start time of the Slot in epoch milliseconds.
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @return The current status of the Slot.
+     */
+    SlotStatus getStatus() {
+        int value = status.get();
+        return value < 0 ? null : STATUSES[value & ~FROZEN];
+    }
+
+    /**
+     * @return true once the status has been frozen.
+     */
+    boolean isFrozen() {
+        return (status.get() & FROZEN) != 0;
+    }
+
+    /**
+     * Method to fix the status as it is now, so it can't be changed again.
+     *
+     * @return The status it is frozen with.
+     */
+    SlotStatus freeze() {
+        while (true) {
+            int value = status.get();
+            if ((value & FROZEN) != 0
+                    || status.compareAndSet(value, value | FROZEN)) {
+                return STATUSES[value & ~FROZEN];
+            }
+        }
+    }
+
+    /**
+     * Method to change the status, but only if it is currently the expected
+     * one.
+     *
+     * @param expected The status the Slot must have now.
+     * @param update The new status.
+     * @return true if the status was changed, false if it wasn't the
+     * expected one or is frozen.
+     */
+    boolean compareAndSetStatus(final SlotStatus expected,
+            final SlotStatus update) {
+        return status.compareAndSet(expected.ordinal(), update.ordinal());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Slot;
+
+/**
+ * Expands SessionTemplates into free Slots for a range of days.
+ *
+ * Each call generates just the days asked for, so the diary can be built
+ * out a day at a time as the horizon rolls forward. The Schedules are
+ * generated in parallel, one task per Schedule, so weeks of diary for
+ * thousands of services don't hold up startup for long.
+ *
+ * The id of each Slot comes from its template, date and place in the
+ * session, eg slot120191225003 is the fourth Slot of template 1 on
+ * 25/12/2019. So the same Slot always has the same id, however many times
+ * it's generated, which lets the journal refer to it.
+ */
+final class SlotGenerator {
+
+    /**
+     * The most Slots one template can have in a day.
+     */
+    private static final int MAX_PER_DAY = 1000;
+
+    /**
+     * The templates to expand, grouped by Schedule.
+     */
+    private final LinkedHashMap<String, List<SessionTemplate>> bySchedule;
+
+    /**
+     * The Meta shared by all the Slots generated.
+     */
+    private final Meta meta;
+
+    /**
+     * Where the shared Schedule References come from.
+     */
+    private final Flyweights flyweights;
+
+    /**
+     * Constructor.
+     *
+     * @param templates The templates to expand.
+     * @param profile The profile of the Slots generated.
+     * @param newFlyweights Where shared parts come from.
+     */
+    SlotGenerator(final List<SessionTemplate> templates,
+            final String profile, final Flyweights newFlyweights) {
+        flyweights = newFlyweights;
+        meta = flyweights.profile(profile);
+        bySchedule = new LinkedHashMap<>();
+        for (SessionTemplate template : templates) {
+            List<SessionTemplate> list
+                    = bySchedule.get(template.getScheduleRef());
+            if (list == null) {
+                list = new ArrayList<>();
+                bySchedule.put(template.getScheduleRef(), list);
+            }
+            list.add(template);
+        }
+    }
+
+    /**
+     * Method to generate the Slots for a range of days.
+     *
+     * @param firstDay A Calendar set to midnight at the start of the first
+     * day wanted, which isn't changed.
+     * @param dayCount How many days to generate.
+     * @return The Slots, Schedule by Schedule in start time order.
+     */
+    List<Slot> generate(final Calendar firstDay, final int dayCount) {
+        ArrayList<Slot> result = new ArrayList<>();
+        if (bySchedule.isEmpty() || dayCount <= 0) {
+            return result;
+        }
+        int threads = Math.min(bySchedule.size(),
+                Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "Slot generator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            ArrayList<Future<List<Slot>>> tasks = new ArrayList<>();
+            for (final List<SessionTemplate> templates : bySchedule.values()) {
+                // Each task gets its own Calendar, they aren't thread safe.
+                final Calendar start = (Calendar) firstDay.clone();
+                tasks.add(pool.submit(new Callable<List<Slot>>() {
+                    @Override
+                    public List<Slot> call() {
+                        return generate(templates, start, dayCount);
+                    }
+                }));
+            }
+            for (Future<List<Slot>> task : tasks) {
+                result.addAll(task.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Interrupted generating Slots");
+        } catch (ExecutionException ex) {
+            throw new InternalErrorException("Unable to generate Slots",
+                    ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Method to generate the Slots of one Schedule for a range of days.
+     *
+     * @param templates The templates for the Schedule.
+     * @param firstDay Midnight at the start of the first day, which is
+     * changed.
+     * @param dayCount How many days to generate.
+     * @return The Slots, in start time order.
+     */
+    private List<Slot> generate(final List<SessionTemplate> templates,
+            final Calendar firstDay, final int dayCount) {
+        ArrayList<Slot> result = new ArrayList<>();
+        Reference schedRef
+                = flyweights.reference(templates.get(0).getScheduleRef());
+        Calendar day = firstDay;
+        Calendar time = (Calendar) firstDay.clone();
+        for (int d = 0; d < dayCount; d++) {
+            int dayStart = result.size();
+            for (SessionTemplate template : templates) {
+                if (!template.runsOn(day)) {
+                    continue;
+                }
+                long idBase = (template.getNumber() * 100000000L
+                        + SessionTemplate.dateKey(day)) * MAX_PER_DAY;
+                int n = 0;
+                for (int minute = template.getStartMinute();
+                        minute + template.getSlotMinutes()
+                        <= template.getEndMinute() && n < MAX_PER_DAY;
+                        minute += template.getSlotMinutes()) {
+                    Slot slot = new Slot();
+                    slot.setMeta(meta);
+                    slot.setStatus(Slot.SlotStatus.FREE);
+                    slot.setSchedule(schedRef);
+                    slot.setId(new IdDt("slot" + (idBase + n)));
+                    slot.setStart(timeOfDay(time, day, minute));
+                    slot.setEnd(timeOfDay(time, day,
+                            minute + template.getSlotMinutes()));
+                    result.add(slot);
+                    n++;
+                }
+            }
+            if (templates.size() > 1) {
+                sortByStart(result.subList(dayStart, result.size()));
+            }
+            day.add(Calendar.DATE, 1);
+        }
+        return result;
+    }
+
+    /**
+     * Method to get a time on a given day, set by the clock so it's right
+     * across a change to or from summer time.
+     *
+     * @param time A Calendar to work in.
+     * @param day Midnight at the start of the day.
+     * @param minute Minutes after midnight.
+     * @return The time.
+     */
+    private static Date timeOfDay(final Calendar time,
+            final Calendar day, final int minute) {
+        time.setTimeInMillis(day.getTimeInMillis());
+        time.set(Calendar.HOUR_OF_DAY, minute / 60);
+        time.set(Calendar.MINUTE, minute % 60);
+        return time.getTime();
+    }
+
+    /**
+     * Method to put one day's Slots from several sessions into start time
+     * order.
+     *
+     * @param slots The Slots, which are sorted in place.
+     */
+    private static void sortByStart(final List<Slot> slots) {
+        Collections.sort(slots, new Comparator<Slot>() {
+            @Override
+            public int compare(final Slot a, final Slot b) {
+                return a.getStart().compareTo(b.getStart());
+            }
+        });
+    }
+}
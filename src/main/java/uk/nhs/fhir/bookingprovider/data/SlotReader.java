@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import org.hl7.fhir.dstu3.model.Slot;
+
+/**
+ * Reads Slots one at a time from a stream, either NDJSON (one Slot resource
+ * per line) or a FHIR Bundle in JSON, so a feed of millions of Slots never
+ * has to be held as text. Each Slot is parsed by HAPI as it is reached.
+ *
+ * A Bundle is walked with a streaming JSON reader: only the entry being
+ * read is ever built up, and any entry which isn't a Slot is skipped. A
+ * resource which can't be parsed is reported by next(), and reading carries
+ * on with the one after it.
+ */
+public final class SlotReader implements Closeable {
+
+    /**
+     * Feeds are always read as UTF-8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Parses each resource.
+     */
+    private final IParser parser = FhirContext.forDstu3().newJsonParser();
+
+    /**
+     * The lines of an NDJSON feed, or null for a Bundle.
+     */
+    private final BufferedReader lines;
+
+    /**
+     * The JSON of a Bundle, or null for NDJSON.
+     */
+    private final JsonReader json;
+
+    /**
+     * Set once a Bundle has been read up to its first entry.
+     */
+    private boolean inEntries;
+
+    /**
+     * How many resources have been read, including any which failed.
+     */
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param in The stream to read, which is closed by close().
+     * @param bundle true if it holds a Bundle, false for NDJSON.
+     */
+    public SlotReader(final InputStream in, final boolean bundle) {
+        InputStreamReader reader = new InputStreamReader(in, UTF8);
+        if (bundle) {
+            lines = null;
+            json = new JsonReader(reader);
+        } else {
+            lines = new BufferedReader(reader);
+            json = null;
+        }
+    }
+
+    /**
+     * Method to read the next Slot.
+     *
+     * @return The Slot, or null at the end of the feed.
+     * @throws IOException If the stream can't be read.
+     * @throws DataFormatException If the next resource can't be parsed, or
+     * isn't a Slot.
+     */
+    public Slot next() throws IOException {
+        String text = lines != null ? nextLine() : nextEntry();
+        if (text == null) {
+            return null;
+        }
+        count++;
+        try {
+            return parser.parseResource(Slot.class, text);
+        } catch (DataFormatException ex) {
+            throw new DataFormatException("Resource " + count + ": "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return How many resources have been read so far, including any which
+     * failed to parse.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The next line of an NDJSON feed which isn't blank, or null at
+     * the end.
+     * @throws IOException If the stream can't be read.
+     */
+    private String nextLine() throws IOException {
+        String line = lines.readLine();
+        while (line != null && line.trim().isEmpty()) {
+            line = lines.readLine();
+        }
+        return line;
+    }
+
+    /**
+     * @return The JSON of the next Slot in a Bundle, or null at the end.
+     * @throws IOException If the stream can't be read, or isn't a Bundle.
+     */
+    private String nextEntry() throws IOException {
+        try {
+            if (!inEntries) {
+                if (!findEntries()) {
+                    return null;
+                }
+                inEntries = true;
+            }
+            while (json.hasNext()) {
+                JsonElement resource = null;
+                json.beginObject();
+                while (json.hasNext()) {
+                    if (json.nextName().equals("resource")) {
+                        resource = new JsonParser().parse(json);
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+                if (resource != null && resource.isJsonObject()
+                        && resource.getAsJsonObject().has("resourceType")
+                        && "Slot".equals(resource.getAsJsonObject()
+                                .get("resourceType").getAsString())) {
+                    return resource.toString();
+                }
+            }
+            return null;
+        } catch (IllegalStateException | JsonParseException ex) {
+            throw new IOException("Not a valid Bundle: " + ex.getMessage(),
+                    ex);
+        }
+    }
+
+    /**
+     * Method to read a Bundle up to the start of its entries.
+     *
+     * @return true if it has entries, false if it has none.
+     * @throws IOException If the stream can't be read.
+     */
+    private boolean findEntries() throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("entry")
+                    && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                return true;
+            }
+            json.skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Method to close the stream.
+     *
+     * @throws IOException If it can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lines != null) {
+            lines.close();
+        } else {
+            json.close();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * How a StoreSnapshot holds its Slots.
+ *
+ * Which Slots exist, and when they start, never changes once the store is
+ * built; only their status does, and always by compare-and-set, so every
+ * method here is safe to call from any number of threads without a lock.
+ *
+ * When the Slots are rebuilt (eg to drop the ones which have passed) the old
+ * store is retired first: every status is frozen as it stands, so no booking
+ * can slip in after its Slot has been copied. A change which fails on a
+ * retired store should be tried again on the store which replaces it.
+ *
+ * IndexedSlotStore holds a Slot resource for every Slot. SlotTable holds
+ * them as primitive columns and only builds Slot resources for the ones
+ * asked for. ShardedSlotStore splits them by HealthcareService, into a store
+ * of either kind for each.
+ */
+interface SlotStore {
+
+    /**
+     * @return The number of Slots held.
+     */
+    int size();
+
+    /**
+     * Method to count the Slots with a given status.
+     *
+     * @param status The status being counted.
+     * @return The number of Slots with that status.
+     */
+    int count(SlotStatus status);
+
+    /**
+     * Method to get a Slot by id.
+     *
+     * @param id The id of the Slot (eg slot001).
+     * @return The Slot resource, or null if there is no such Slot.
+     */
+    Slot getSlot(String id);
+
+    /**
+     * Method to get the current status of a Slot.
+     *
+     * @param id The id of the Slot.
+     * @return Its status, or null if there is no such Slot.
+     */
+    SlotStatus getStatus(String id);
+
+    /**
+     * Method to change the status of a Slot, whatever it is now.
+     *
+     * @param id The id of the Slot.
+     * @param status The new status.
+     * @return The status it had before, or null if there is no such Slot or
+     * the store has been retired.
+     */
+    SlotStatus setStatus(String id, SlotStatus status);
+
+    /**
+     * Method to change the status of a Slot only if it currently has the
+     * expected status. When several threads race to make the same change,
+     * exactly one of them gets true.
+     *
+     * @param id The id of the Slot.
+     * @param expected The status it must have now.
+     * @param status The new status.
+     * @return true if the Slot was found and changed, false if not or if the
+     * store has been retired.
+     */
+    boolean compareAndSetStatus(String id, SlotStatus expected,
+            SlotStatus status);
+
+    /**
+     * Method to copy the Slots in a Schedule which start in a given range into
+     * a List, in start time order.
+     *
+     * @param scheduleRef The Schedule reference (eg /Schedule/sched1111).
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time wanted (inclusive), in epoch millis.
+     * @param to The latest start time wanted (exclusive), in epoch millis.
+     * @param result The List the matching Slots are added to.
+     */
+    void addStartingBetween(String scheduleRef, SlotStatus status, long from,
+            long to, List<Slot> result);
+
+    /**
+     * Method to copy, in start time order, up to a given number of the Slots
+     * in a Schedule which come after a given point and start before a given
+     * time. Slots are ordered by start time then id, so a point (the start
+     * time and id of the last Slot of one page) is where the next page
+     * starts, without counting through the Slots before it.
+     *
+     * @param scheduleRef The Schedule reference (eg /Schedule/sched1111).
+     * @param status The status wanted, or null for any status.
+     * @param afterStart The start time of the point, in epoch millis.
+     * @param afterId The id of the Slot at the point, which isn't copied, or
+     * null to copy every Slot starting from afterStart.
+     * @param to The latest start time wanted (exclusive), in epoch millis.
+     * @param limit The most Slots to copy.
+     * @param result The List the matching Slots are added to.
+     * @return How many Slots were copied.
+     */
+    int addPage(String scheduleRef, SlotStatus status, long afterStart,
+            String afterId, long to, int limit, List<Slot> result);
+
+    /**
+     * Method to copy all the Slots in a Schedule with a given status into a
+     * List, in start time order.
+     *
+     * @param scheduleRef The Schedule reference (eg /Schedule/sched1111).
+     * @param status The status wanted, or null for any status.
+     * @param result The List the Slots are added to.
+     */
+    void addAll(String scheduleRef, SlotStatus status, List<Slot> result);
+
+    /**
+     * Method to get the id of the Slot at a given position, for walking
+     * through every Slot (eg to write a snapshot).
+     *
+     * @param index The position, from 0 to size() - 1.
+     * @return The id of the Slot there.
+     */
+    String idAt(int index);
+
+    /**
+     * Method to get the status of the Slot at a given position.
+     *
+     * @param index The position, from 0 to size() - 1.
+     * @return The status of the Slot there.
+     */
+    SlotStatus statusAt(int index);
+
+    /**
+     * Method to get a copy of the Slot at a given position, which the caller
+     * may change. Its status may lag behind statusAt(), so use that for the
+     * status.
+     *
+     * @param index The position, from 0 to size() - 1.
+     * @return A copy of the Slot there.
+     */
+    Slot slotAt(int index);
+
+    /**
+     * Method to get the end time of the Slot at a given position.
+     *
+     * @param index The position, from 0 to size() - 1.
+     * @return The end time, in epoch millis.
+     */
+    long endAt(int index);
+
+    /**
+     * Method to freeze the status of every Slot, so that it can't change
+     * again, before the Slots are copied to a new store.
+     */
+    void retire();
+
+    /**
+     * @return true once retire() has been called.
+     */
+    boolean isRetired();
+
+    /**
+     * Method to get the part of the store holding the Slots of a given
+     * HealthcareService's Schedules, which is where a search by service need
+     * look.
+     *
+     * @param serviceId The HealthcareService id.
+     * @return The store holding its Slots; a store which isn't split by
+     * service returns itself.
+     */
+    SlotStore shard(String serviceId);
+
+    /**
+     * Method to check a Slot could be held alongside these in a store of the
+     * same kind, before one is built with it.
+     *
+     * @param slot The Slot, with its id and Schedule reference in our form
+     * (eg slot001 and /Schedule/sched1111).
+     * @return Why it couldn't be, or null if it could.
+     */
+    String cantHold(Slot slot);
+}
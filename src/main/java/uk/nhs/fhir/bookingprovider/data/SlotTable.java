@@ -0,0 +1,674 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * SlotStore which holds the Slots as columns of primitives rather than as
+ * Slot resources, so a store of millions of Slots costs a few tens of bytes
+ * each and nothing for the garbage collector to walk. Slot resources are only
+ * built for the Slots a request actually returns.
+ *
+ * Each row is one Slot. The rows are sorted by Schedule, then start time, so
+ * the Slots in a Schedule are a contiguous run of rows and a start time range
+ * within it is found by binary search. The columns are:
+ *
+ * start and end (epoch millis), the Schedule (an index into the Schedule
+ * references), the number in the Slot's id, and its status.
+ *
+ * The first four never change after the table is built and are held in
+ * ByteBuffers, allocated off the heap if asked. The status is the only column
+ * which changes, always by compare-and-set, so it is an AtomicIntegerArray of
+ * SlotStatus ordinals (plus SlotEntry.FROZEN once retired).
+ *
+ * The ids must all be one prefix followed by a number (eg slot001, slot002
+ * ...), so they are held as that number. Numbers are padded with zeros to
+ * the width of the shortest, so slot001 and slot120191225003 can share a
+ * table but slot001 and slot0001 can't. All the
+ * Slots share one Meta, and all those in a Schedule one Reference to it.
+ * Nothing else a Slot has (eg a serviceType or comment) is kept, so
+ * cantHold() turns away Slots which have more.
+ */
+final class SlotTable implements SlotStore {
+
+    /**
+     * The SlotStatus for each ordinal held in the status column.
+     */
+    private static final SlotStatus[] STATUSES = SlotStatus.values();
+
+    /**
+     * The most rows a table can hold, so its widest column (8 bytes a row)
+     * fits in one buffer.
+     */
+    static final int MAX_ROWS = Integer.MAX_VALUE / 8;
+
+    /**
+     * Ranges of rows this short are sorted by insertion rather than merged.
+     */
+    private static final int INSERTION_SORT_ROWS = 16;
+
+    /**
+     * How two rows compare when sorting them.
+     */
+    private interface RowOrder {
+
+        /**
+         * @param a One row.
+         * @param b Another row.
+         * @return Less than, equal to or more than zero as a sorts before,
+         * with or after b.
+         */
+        int compare(int a, int b);
+    }
+
+    /**
+     * The number of rows (Slots).
+     */
+    private final int size;
+
+    /**
+     * Start time of each row, in epoch millis.
+     */
+    private final LongBuffer starts;
+
+    /**
+     * End time of each row, in epoch millis.
+     */
+    private final LongBuffer ends;
+
+    /**
+     * Schedule of each row, an index into scheduleRefs.
+     */
+    private final IntBuffer schedules;
+
+    /**
+     * The number from the id of each row.
+     */
+    private final LongBuffer idNumbers;
+
+    /**
+     * Status of each row, as a SlotStatus ordinal.
+     */
+    private final AtomicIntegerArray statuses;
+
+    /**
+     * How many rows have each status, by ordinal.
+     */
+    private final AtomicIntegerArray statusCounts;
+
+    /**
+     * The id numbers in ascending order, to binary search for an id.
+     */
+    private final LongBuffer sortedIds;
+
+    /**
+     * The row holding each of sortedIds.
+     */
+    private final IntBuffer rowsById;
+
+    /**
+     * The Reference to each Schedule, shared by the Slots built for it.
+     */
+    private final Reference[] scheduleRefs;
+
+    /**
+     * The index in scheduleRefs of each Schedule reference.
+     */
+    private final HashMap<String, Integer> scheduleIndexes;
+
+    /**
+     * The first row of each Schedule, with one extra entry holding size, so
+     * the rows of Schedule n are scheduleRows[n] to scheduleRows[n + 1] - 1.
+     */
+    private final int[] scheduleRows;
+
+    /**
+     * The Meta shared by all the Slots built.
+     */
+    private final Meta meta;
+
+    /**
+     * What comes before the number in every id (eg slot).
+     */
+    private final String idPrefix;
+
+    /**
+     * The number of digits the number in an id is padded to with zeros.
+     */
+    private final int idWidth;
+
+    /**
+     * Set once the table has been retired.
+     */
+    private volatile boolean retired;
+
+    /**
+     * Method to build a table holding a List of Slots. The Slots themselves
+     * are not kept.
+     *
+     * @param slots The Slots to hold.
+     * @param offHeap true to allocate the columns off the Java heap.
+     * @return The table.
+     * @throws IllegalArgumentException If the ids don't fit the pattern (see
+     * above) or are repeated, or there are more than MAX_ROWS Slots.
+     */
+    static SlotTable of(final List<Slot> slots, final boolean offHeap) {
+        return new SlotTable(slots, offHeap);
+    }
+
+    /**
+     * Constructor, see of().
+     *
+     * @param slots The Slots to hold.
+     * @param offHeap true to allocate the columns off the Java heap.
+     */
+    private SlotTable(final List<Slot> slots, final boolean offHeap) {
+        size = slots.size();
+        if (size > MAX_ROWS) {
+            throw new IllegalArgumentException(size
+                    + " Slots are more than a table can hold (" + MAX_ROWS
+                    + ")");
+        }
+        meta = size == 0 ? new Meta() : slots.get(0).getMeta();
+        String firstId = size == 0 ? "slot0" : slots.get(0).getId();
+        idPrefix = firstId.replaceAll("[0-9]+$", "");
+        int width = firstId.length() - idPrefix.length();
+        for (Slot slot : slots) {
+            width = Math.min(width, slot.getId().length() - idPrefix.length());
+        }
+        idWidth = width;
+
+        // Gather the columns in Slot order first...
+        final long[] start = new long[size];
+        long[] end = new long[size];
+        final int[] sched = new int[size];
+        final long[] number = new long[size];
+        int[] status = new int[size];
+        ArrayList<Reference> refs = new ArrayList<>();
+        scheduleIndexes = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Slot slot = slots.get(i);
+            String ref = slot.getSchedule().getReference();
+            Integer index = scheduleIndexes.get(ref);
+            if (index == null) {
+                index = refs.size();
+                refs.add(slot.getSchedule());
+                scheduleIndexes.put(ref, index);
+            }
+            start[i] = slot.getStart().getTime();
+            end[i] = slot.getEnd().getTime();
+            sched[i] = index;
+            number[i] = parseId(slot.getId());
+            if (number[i] < 0) {
+                throw new IllegalArgumentException("Slot id " + slot.getId()
+                        + " is not " + idPrefix + " and a number");
+            }
+            status[i] = slot.getStatus().ordinal();
+        }
+        scheduleRefs = refs.toArray(new Reference[refs.size()]);
+
+        // ...then lay them out in Schedule and start time order.
+        int[] order = sortRows(size, new RowOrder() {
+            @Override
+            public int compare(final int a, final int b) {
+                if (sched[a] != sched[b]) {
+                    return sched[a] < sched[b] ? -1 : 1;
+                }
+                if (start[a] != start[b]) {
+                    return start[a] < start[b] ? -1 : 1;
+                }
+                return Long.compare(number[a], number[b]);
+            }
+        });
+        starts = allocate(size * 8L, offHeap).asLongBuffer();
+        ends = allocate(size * 8L, offHeap).asLongBuffer();
+        schedules = allocate(size * 4L, offHeap).asIntBuffer();
+        idNumbers = allocate(size * 8L, offHeap).asLongBuffer();
+        statuses = new AtomicIntegerArray(size);
+        statusCounts = new AtomicIntegerArray(STATUSES.length);
+        scheduleRows = new int[scheduleRefs.length + 1];
+        for (int row = 0; row < size; row++) {
+            int i = order[row];
+            starts.put(row, start[i]);
+            ends.put(row, end[i]);
+            schedules.put(row, sched[i]);
+            idNumbers.put(row, number[i]);
+            statuses.set(row, status[i]);
+            statusCounts.incrementAndGet(status[i]);
+            scheduleRows[sched[i] + 1] = row + 1;
+        }
+        for (int n = 1; n < scheduleRows.length; n++) {
+            scheduleRows[n] = Math.max(scheduleRows[n], scheduleRows[n - 1]);
+        }
+
+        // And finally the index from id number to row.
+        int[] byId = sortRows(size, new RowOrder() {
+            @Override
+            public int compare(final int a, final int b) {
+                return Long.compare(idNumbers.get(a), idNumbers.get(b));
+            }
+        });
+        sortedIds = allocate(size * 8L, offHeap).asLongBuffer();
+        rowsById = allocate(size * 4L, offHeap).asIntBuffer();
+        for (int i = 0; i < size; i++) {
+            sortedIds.put(i, idNumbers.get(byId[i]));
+            rowsById.put(i, byId[i]);
+            if (i > 0 && sortedIds.get(i) == sortedIds.get(i - 1)) {
+                throw new IllegalArgumentException("Slot id "
+                        + idAt(byId[i]) + " is repeated");
+            }
+        }
+    }
+
+    /**
+     * Method to sort the rows 0 to size - 1 into order, as primitive ints
+     * rather than boxed Integers. It is a merge sort, which skips the merge
+     * where two runs are already in order, so rows which arrive in order (as
+     * generated and imported Slots mostly do) take a single pass.
+     *
+     * @param size The number of rows.
+     * @param order How the rows compare.
+     * @return The rows, in order.
+     */
+    private static int[] sortRows(final int size, final RowOrder order) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        int[] work = null;
+        for (int from = 0; from < size; from += INSERTION_SORT_ROWS) {
+            int to = Math.min(size, from + INSERTION_SORT_ROWS);
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i;
+                while (j > from && order.compare(rows[j - 1], row) > 0) {
+                    rows[j] = rows[j - 1];
+                    j--;
+                }
+                rows[j] = row;
+            }
+        }
+        for (int run = INSERTION_SORT_ROWS; run < size; run *= 2) {
+            for (int from = 0; from < size - run; from += 2 * run) {
+                int mid = from + run;
+                int to = Math.min(size, mid + run);
+                if (order.compare(rows[mid - 1], rows[mid]) <= 0) {
+                    continue;
+                }
+                if (work == null) {
+                    work = new int[size];
+                }
+                System.arraycopy(rows, from, work, from, to - from);
+                int a = from;
+                int b = mid;
+                for (int i = from; i < to; i++) {
+                    if (b >= to || (a < mid
+                            && order.compare(work[a], work[b]) <= 0)) {
+                        rows[i] = work[a++];
+                    } else {
+                        rows[i] = work[b++];
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Method to allocate the space for a column.
+     *
+     * @param bytes The size of the column.
+     * @param offHeap true to allocate it off the Java heap.
+     * @return The buffer, in the platform's byte order.
+     * @throws IllegalArgumentException If it is too big for one buffer.
+     */
+    private static ByteBuffer allocate(final long bytes,
+            final boolean offHeap) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A column of " + bytes
+                    + " bytes is too big");
+        }
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect((int) bytes)
+                : ByteBuffer.allocate((int) bytes);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int count(final SlotStatus status) {
+        return statusCounts.get(status.ordinal());
+    }
+
+    @Override
+    public Slot getSlot(final String id) {
+        int row = findRow(id);
+        return row < 0 ? null : build(row);
+    }
+
+    @Override
+    public SlotStatus getStatus(final String id) {
+        int row = findRow(id);
+        return row < 0 ? null : statusAt(row);
+    }
+
+    @Override
+    public SlotStatus setStatus(final String id, final SlotStatus status) {
+        int row = findRow(id);
+        if (row < 0) {
+            return null;
+        }
+        while (true) {
+            int previous = statuses.get(row);
+            if ((previous & SlotEntry.FROZEN) != 0) {
+                return null;
+            }
+            if (previous == status.ordinal()) {
+                return status;
+            }
+            if (statuses.compareAndSet(row, previous, status.ordinal())) {
+                statusCounts.decrementAndGet(previous);
+                statusCounts.incrementAndGet(status.ordinal());
+                return STATUSES[previous];
+            }
+        }
+    }
+
+    @Override
+    public boolean compareAndSetStatus(final String id,
+            final SlotStatus expected, final SlotStatus status) {
+        int row = findRow(id);
+        if (row < 0 || !statuses.compareAndSet(row, expected.ordinal(),
+                status.ordinal())) {
+            return false;
+        }
+        if (expected != status) {
+            statusCounts.decrementAndGet(expected.ordinal());
+            statusCounts.incrementAndGet(status.ordinal());
+        }
+        return true;
+    }
+
+    @Override
+    public void addStartingBetween(final String scheduleRef,
+            final SlotStatus status, final long from, final long to,
+            final List<Slot> result) {
+        Integer index = scheduleIndexes.get(scheduleRef);
+        if (index == null) {
+            return;
+        }
+        int last = scheduleRows[index + 1];
+        for (int row = firstStartingFrom(scheduleRows[index], last, from);
+                row < last && starts.get(row) < to; row++) {
+            addIfStatus(row, status, result);
+        }
+    }
+
+    @Override
+    public int addPage(final String scheduleRef, final SlotStatus status,
+            final long afterStart, final String afterId, final long to,
+            final int limit, final List<Slot> result) {
+        Integer index = scheduleIndexes.get(scheduleRef);
+        if (index == null) {
+            return 0;
+        }
+        int last = scheduleRows[index + 1];
+        int row = firstStartingFrom(scheduleRows[index], last, afterStart);
+        if (afterId != null) {
+            long afterNumber = parseId(afterId);
+            while (row < last && starts.get(row) == afterStart
+                    && (afterNumber >= 0 ? idNumbers.get(row) <= afterNumber
+                            : idAt(row).compareTo(afterId) <= 0)) {
+                row++;
+            }
+        }
+        int before = result.size();
+        for (; row < last && starts.get(row) < to
+                && result.size() - before < limit; row++) {
+            addIfStatus(row, status, result);
+        }
+        return result.size() - before;
+    }
+
+    @Override
+    public void addAll(final String scheduleRef, final SlotStatus status,
+            final List<Slot> result) {
+        Integer index = scheduleIndexes.get(scheduleRef);
+        if (index == null) {
+            return;
+        }
+        for (int row = scheduleRows[index]; row < scheduleRows[index + 1];
+                row++) {
+            addIfStatus(row, status, result);
+        }
+    }
+
+    @Override
+    public String idAt(final int index) {
+        String digits = Long.toString(idNumbers.get(index));
+        StringBuilder id = new StringBuilder(idPrefix.length() + idWidth);
+        id.append(idPrefix);
+        for (int i = digits.length(); i < idWidth; i++) {
+            id.append('0');
+        }
+        return id.append(digits).toString();
+    }
+
+    @Override
+    public SlotStatus statusAt(final int index) {
+        return STATUSES[statuses.get(index) & ~SlotEntry.FROZEN];
+    }
+
+    @Override
+    public Slot slotAt(final int index) {
+        return build(index);
+    }
+
+    @Override
+    public long endAt(final int index) {
+        return ends.get(index);
+    }
+
+    @Override
+    public void retire() {
+        retired = true;
+        for (int row = 0; row < size; row++) {
+            while (true) {
+                int value = statuses.get(row);
+                if ((value & SlotEntry.FROZEN) != 0 || statuses.compareAndSet(
+                        row, value, value | SlotEntry.FROZEN)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isRetired() {
+        return retired;
+    }
+
+    @Override
+    public SlotStore shard(final String serviceId) {
+        return this;
+    }
+
+    @Override
+    public String cantHold(final Slot slot) {
+        if (size > 0 && parseId(slot.getId()) < 0) {
+            return "id " + slot.getId() + " is not " + idPrefix
+                    + " and a number of at least " + idWidth
+                    + " digits, so can't be held in a Slot table";
+        }
+
+        // Anything but the columns and our Meta would be lost.
+        Slot rest = slot.copy();
+        rest.setIdElement(null);
+        rest.setStatusElement(null);
+        rest.setSchedule(null);
+        rest.setStartElement(null);
+        rest.setEndElement(null);
+        if (size == 0 || meta.equalsDeep(rest.getMeta())) {
+            rest.setMeta(null);
+        }
+        if (!rest.isEmpty()) {
+            return "Slot " + slot.getId() + " has more than its id, status,"
+                    + " Schedule, start and end, which a Slot table can't"
+                    + " hold";
+        }
+        return null;
+    }
+
+    /**
+     * Method to add the Slot in a row to a List, if it has a given status.
+     * The status is read once, so the Slot built has that same status.
+     *
+     * @param row The row.
+     * @param status The status wanted, or null for any status.
+     * @param result The List to add it to.
+     */
+    private void addIfStatus(final int row, final SlotStatus status,
+            final List<Slot> result) {
+        SlotStatus actual = statusAt(row);
+        if (status == null || actual == status) {
+            result.add(build(row, actual));
+        }
+    }
+
+    /**
+     * Method to build the Slot resource for a row.
+     *
+     * @param row The row.
+     * @return A new Slot.
+     */
+    private Slot build(final int row) {
+        return build(row, statusAt(row));
+    }
+
+    /**
+     * Method to build the Slot resource for a row, with a given status.
+     *
+     * @param row The row.
+     * @param status The status to give it.
+     * @return A new Slot.
+     */
+    private Slot build(final int row, final SlotStatus status) {
+        Slot slot = new Slot();
+        slot.setMeta(meta);
+        slot.setStatus(status);
+        slot.setSchedule(scheduleRefs[schedules.get(row)]);
+        slot.setId(new IdDt(idAt(row)));
+        slot.setStart(new Date(starts.get(row)));
+        slot.setEnd(new Date(ends.get(row)));
+        return slot;
+    }
+
+    /**
+     * Method to find the first row in a range which starts at or after a
+     * given time.
+     *
+     * @param first The first row of the range.
+     * @param last One past the last row of the range.
+     * @param from The start time.
+     * @return The row, or last if there isn't one.
+     */
+    private int firstStartingFrom(final int first, final int last,
+            final long from) {
+        int low = first;
+        int high = last;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts.get(mid) < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Method to find the row holding a given Slot id.
+     *
+     * @param id The id (eg slot001).
+     * @return The row, or -1 if there is no such Slot.
+     */
+    private int findRow(final String id) {
+        long number = parseId(id);
+        if (number < 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = sortedIds.get(mid);
+            if (value < number) {
+                low = mid + 1;
+            } else if (value > number) {
+                high = mid - 1;
+            } else {
+                return rowsById.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Method to get the number from an id, if it is written exactly as this
+     * table would write it.
+     *
+     * @param id The id (eg slot001).
+     * @return The number (eg 1), or -1 if the id doesn't fit.
+     */
+    private long parseId(final String id) {
+        if (id == null || !id.startsWith(idPrefix)) {
+            return -1;
+        }
+        String digits = id.substring(idPrefix.length());
+        if (digits.isEmpty() || digits.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        if (digits.length() > idWidth && digits.charAt(0) == '0'
+                || digits.length() < idWidth) {
+            return -1;
+        }
+        return Long.parseLong(digits);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * Compact binary image of everything the journal would otherwise have to
+ * replay: the Slots which have been imported, the status of every Slot and
+ * every Appointment.
+ *
+ * The Schedules and the other Slots are rebuilt by DataStore.initialize(),
+ * so only their status is held here. The layout is:
+ *
+ * int MAGIC, int VERSION,
+ * int imported Slot count, then per Slot: int length, JSON bytes,
+ * int slot count, then per Slot: short id length, id bytes, byte status,
+ * int Appointment count, then per Appointment: int length, JSON bytes,
+ * long CRC32 of everything before it.
+ *
+ * Version 1 snapshots, written before Slots could be imported, have no
+ * imported Slots and are still read.
+ *
+ * A snapshot named snapshot-NNN.bin holds everything written to journal
+ * segments before NNN, so recovery loads the latest snapshot then replays
+ * segments NNN onwards. It is written to a temporary file with bulk
+ * FileChannel writes then renamed into place, and read back through a memory
+ * mapped buffer, so a store of millions of Slots loads in well under a second
+ * of I/O.
+ */
+final class SnapshotFile {
+
+    /**
+     * Logger we use throughout.
+     */
+    private static final Logger LOG
+            = Logger.getLogger(SnapshotFile.class.getName());
+
+    /**
+     * Marks the start of a snapshot file ("BPSN").
+     */
+    private static final int MAGIC = 0x4250534E;
+
+    /**
+     * The layout version written.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The layout version without imported Slots.
+     */
+    private static final int VERSION_1 = 1;
+
+    /**
+     * Size of the buffer used when writing.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Size of the chunks read when checking the CRC.
+     */
+    private static final int CRC_CHUNK = 1 << 16;
+
+    /**
+     * The file name prefix of snapshots.
+     */
+    private static final String PREFIX = "snapshot-";
+
+    /**
+     * The file name suffix of snapshots.
+     */
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * Everything is written as UTF-8.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Private constructor, this class only has static methods.
+     */
+    private SnapshotFile() {
+    }
+
+    /**
+     * Method to write a snapshot of the store.
+     *
+     * @param dir The journal directory.
+     * @param seq The first journal segment NOT covered by the snapshot.
+     * @param imported The Slots which have been imported, written whole.
+     * @param slots The Slots, whose current status is written.
+     * @param appointments The Appointments.
+     * @return The snapshot file written.
+     * @throws IOException If it can't be written.
+     */
+    static File write(final File dir, final long seq,
+            final Collection<Slot> imported, final SlotStore slots,
+            final Collection<Appointment> appointments) throws IOException {
+        IParser parser = FhirContext.forDstu3().newJsonParser();
+        File target = file(dir, seq);
+        File temp = new File(dir, target.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            putResources(out, parser, imported);
+            out.putInt(slots.size());
+            for (int i = 0; i < slots.size(); i++) {
+                byte[] id = slots.idAt(i).getBytes(UTF8);
+                out.putShort((short) id.length);
+                out.put(id);
+                out.put((byte) slots.statusAt(i).ordinal());
+            }
+            putResources(out, parser, appointments);
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    /**
+     * Method to write a count of resources, then each as JSON, encoding one
+     * at a time as it is written.
+     *
+     * @param out Where to write them.
+     * @param parser Used to encode them.
+     * @param resources The resources, which mustn't change meanwhile.
+     * @throws IOException If they can't be written.
+     */
+    private static void putResources(final Writer out, final IParser parser,
+            final Collection<? extends Resource> resources)
+            throws IOException {
+        int count = resources.size();
+        out.putInt(count);
+        for (Resource resource : resources) {
+            if (count-- == 0) {
+                throw new IOException("More resources than counted");
+            }
+            byte[] json = parser.encodeResourceToString(resource)
+                    .getBytes(UTF8);
+            out.putInt(json.length);
+            out.put(json);
+        }
+        if (count != 0) {
+            throw new IOException("Fewer resources than counted");
+        }
+    }
+
+    /**
+     * Method to load a snapshot into the DataStore, which should have just
+     * been initialized.
+     *
+     * @param file The snapshot file.
+     * @param store The DataStore to load into.
+     * @throws IOException If it can't be read or is damaged.
+     */
+    static void load(final File file, final DataStore store)
+            throws IOException {
+        IParser parser = FhirContext.forDstu3().newJsonParser();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (in.limit() < 16 || in.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION && version != VERSION_1) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            ByteBuffer body = in.duplicate();
+            body.position(0);
+            body.limit(in.limit() - 8);
+            if (crc(body) != in.getLong(in.limit() - 8)) {
+                throw new IOException("Snapshot is damaged: " + file);
+            }
+            if (version == VERSION) {
+                int importCount = in.getInt();
+                ArrayList<Slot> imported = new ArrayList<>(importCount);
+                for (int i = 0; i < importCount; i++) {
+                    byte[] json = new byte[in.getInt()];
+                    in.get(json);
+                    imported.add(parser.parseResource(Slot.class,
+                            new String(json, UTF8)));
+                }
+                if (!imported.isEmpty()) {
+                    store.replayImport(imported);
+                }
+            }
+            SlotStatus[] statuses = SlotStatus.values();
+            int slotCount = in.getInt();
+            for (int i = 0; i < slotCount; i++) {
+                byte[] id = new byte[in.getShort()];
+                in.get(id);
+                store.replaySlot(new String(id, UTF8), statuses[in.get()]);
+            }
+            int apptCount = in.getInt();
+            for (int i = 0; i < apptCount; i++) {
+                byte[] json = new byte[in.getInt()];
+                in.get(json);
+                store.replayAppointment(parser.parseResource(
+                        Appointment.class, new String(json, UTF8)));
+            }
+        }
+    }
+
+    /**
+     * Method to work out the CRC32 of what's left in a buffer.
+     *
+     * @param buffer The buffer, which is read to its limit.
+     * @return The CRC.
+     */
+    private static long crc(final ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CRC_CHUNK];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Method to get the file for a given snapshot.
+     *
+     * @param dir The journal directory.
+     * @param seq The first journal segment not covered by the snapshot.
+     * @return The snapshot file.
+     */
+    static File file(final File dir, final long seq) {
+        return new File(dir, String.format(PREFIX + "%020d" + SUFFIX, seq));
+    }
+
+    /**
+     * Method to list the snapshots in a journal directory.
+     *
+     * @param dir The journal directory.
+     * @return Their sequence numbers, oldest first.
+     */
+    static long[] snapshots(final File dir) {
+        return sequences(dir, PREFIX, SUFFIX);
+    }
+
+    /**
+     * Method to delete the snapshots older than a given one.
+     *
+     * @param dir The journal directory.
+     * @param keepFrom The oldest snapshot to keep.
+     */
+    static void deleteBefore(final File dir, final long keepFrom) {
+        for (long seq : snapshots(dir)) {
+            if (seq < keepFrom && !file(dir, seq).delete()) {
+                LOG.warning("Unable to delete " + file(dir, seq));
+            }
+        }
+    }
+
+    /**
+     * Method to find the sequence numbers in the names of the files in a
+     * directory which are named prefix + number + suffix.
+     *
+     * @param dir The directory.
+     * @param prefix The start of the file names.
+     * @param suffix The end of the file names.
+     * @return The sequence numbers, in order.
+     */
+    static long[] sequences(final File dir, final String prefix,
+            final String suffix) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] result = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    result[count] = Long.parseLong(name.substring(
+                            prefix.length(), name.length() - suffix.length()));
+                    count++;
+                } catch (NumberFormatException ex) {
+                    LOG.warning("Ignoring " + name);
+                }
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Buffers output into large bulk writes to a FileChannel, keeping a CRC
+     * of everything written.
+     */
+    private static final class Writer {
+
+        /**
+         * Where the output goes.
+         */
+        private final FileChannel channel;
+
+        /**
+         * The buffer being filled.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * CRC of everything written so far.
+         */
+        private final CRC32 crc;
+
+        /**
+         * Constructor.
+         *
+         * @param newChannel Where the output goes.
+         */
+        Writer(final FileChannel newChannel) {
+            channel = newChannel;
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            crc = new CRC32();
+        }
+
+        /**
+         * @param value An int to write.
+         * @throws IOException If it can't be written.
+         */
+        void putInt(final int value) throws IOException {
+            room(4);
+            buffer.putInt(value);
+        }
+
+        /**
+         * @param value A short to write.
+         * @throws IOException If it can't be written.
+         */
+        void putShort(final short value) throws IOException {
+            room(2);
+            buffer.putShort(value);
+        }
+
+        /**
+         * @param value A byte to write.
+         * @throws IOException If it can't be written.
+         */
+        void put(final byte value) throws IOException {
+            room(1);
+            buffer.put(value);
+        }
+
+        /**
+         * @param value Bytes to write.
+         * @throws IOException If they can't be written.
+         */
+        void put(final byte[] value) throws IOException {
+            int offset = 0;
+            while (offset < value.length) {
+                room(1);
+                int length = Math.min(buffer.remaining(),
+                        value.length - offset);
+                buffer.put(value, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * Method to write out everything buffered, then the CRC.
+         *
+         * @throws IOException If it can't be written.
+         */
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Method to make sure there's room in the buffer, writing it out if
+         * not.
+         *
+         * @param size The number of bytes needed.
+         * @throws IOException If the buffer can't be written.
+         */
+        private void room(final int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        /**
+         * Method to write out and empty the buffer.
+         *
+         * @throws IOException If it can't be written.
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
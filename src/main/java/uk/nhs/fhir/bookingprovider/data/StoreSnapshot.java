@@ -0,0 +1,590 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.dstu3.model.HealthcareService;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.PractitionerRole;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Schedule;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+
+/**
+ * One version (epoch) of the Slots, Schedules and the other resources they
+ * refer to, along with the indexes over them.
+ *
+ * Everything here is built once in the constructor and never changed after,
+ * so a search can take the current snapshot from the DataStore at the start
+ * of a request and read it without any locks, seeing the same set of
+ * resources throughout. A reset of the DataStore publishes a new snapshot
+ * rather than changing this one.
+ *
+ * The one thing which does move is the status of each Slot, which bookings
+ * change by compare-and-set in the SlotStore. Each Slot read from a snapshot
+ * has a single, definite status.
+ */
+public final class StoreSnapshot {
+
+    /**
+     * Which version of the data this is, counting up from 1.
+     */
+    private final long epoch;
+    /**
+     * A List of PractitionerRole resources.
+     */
+    private final ArrayList<PractitionerRole> practitionerRoles;
+    /**
+     * A List of Practitioner resources.
+     */
+    private final ArrayList<Practitioner> practitioners;
+    /**
+     * A List of Organization resources.
+     */
+    private final ArrayList<Organization> organizations;
+    /**
+     * A List of Location resources.
+     */
+    private final ArrayList<Object> locations;
+    /**
+     * A List of HealthcareService resources.
+     */
+    private final ArrayList<HealthcareService> healthcareServices;
+    /**
+     * A List of Schedule resources.
+     */
+    private final ArrayList<Schedule> schedules;
+    /**
+     * The Slots, indexed by id and by Schedule and start time.
+     */
+    private final SlotStore slots;
+    /**
+     * Reverse index from a HealthcareService id to the references of the
+     * Schedules it runs.
+     */
+    private final HashMap<String, ArrayList<String>> serviceSchedules;
+    /**
+     * Index from a Schedule reference to the id of the HealthcareService
+     * which runs it (the first, if there's more than one).
+     */
+    private final HashMap<String, String> scheduleServices;
+
+    /**
+     * The resources each Schedule's Slots can _include.
+     */
+    private final IncludeGraph includeGraph;
+
+    /**
+     * Constructor, builds all the indexes over the supplied resources. The
+     * Lists passed in become part of the snapshot, so must not be changed
+     * afterwards.
+     *
+     * @param newEpoch The version number of this snapshot.
+     * @param newPractitionerRoles The PractitionerRole resources.
+     * @param newPractitioners The Practitioner resources.
+     * @param newOrganizations The Organization resources.
+     * @param newLocations The Location resources.
+     * @param newHealthcareServices The HealthcareService resources.
+     * @param newSchedules The Schedule resources.
+     * @param newSlots The Slots.
+     */
+    StoreSnapshot(final long newEpoch,
+            final ArrayList<PractitionerRole> newPractitionerRoles,
+            final ArrayList<Practitioner> newPractitioners,
+            final ArrayList<Organization> newOrganizations,
+            final ArrayList<Object> newLocations,
+            final ArrayList<HealthcareService> newHealthcareServices,
+            final ArrayList<Schedule> newSchedules,
+            final SlotStore newSlots) {
+        this(newEpoch, newPractitionerRoles, newPractitioners,
+                newOrganizations, newLocations, newHealthcareServices,
+                newSchedules, newSlots, new IncludeGraph(newSchedules,
+                        newHealthcareServices, newPractitioners,
+                        newPractitionerRoles, newOrganizations,
+                        newLocations));
+    }
+
+    /**
+     * Constructor, for a snapshot which shares an IncludeGraph (and so the
+     * resources it was built from) with an earlier one.
+     *
+     * @param newEpoch The version number of this snapshot.
+     * @param newPractitionerRoles The PractitionerRole resources.
+     * @param newPractitioners The Practitioner resources.
+     * @param newOrganizations The Organization resources.
+     * @param newLocations The Location resources.
+     * @param newHealthcareServices The HealthcareService resources.
+     * @param newSchedules The Schedule resources.
+     * @param newSlots The Slots.
+     * @param graph The IncludeGraph over those resources.
+     */
+    private StoreSnapshot(final long newEpoch,
+            final ArrayList<PractitionerRole> newPractitionerRoles,
+            final ArrayList<Practitioner> newPractitioners,
+            final ArrayList<Organization> newOrganizations,
+            final ArrayList<Object> newLocations,
+            final ArrayList<HealthcareService> newHealthcareServices,
+            final ArrayList<Schedule> newSchedules,
+            final SlotStore newSlots, final IncludeGraph graph) {
+        epoch = newEpoch;
+        practitionerRoles = newPractitionerRoles;
+        practitioners = newPractitioners;
+        organizations = newOrganizations;
+        locations = newLocations;
+        healthcareServices = newHealthcareServices;
+        schedules = newSchedules;
+        slots = newSlots;
+        serviceSchedules = new HashMap<>();
+        scheduleServices = servicesOf(schedules);
+        includeGraph = graph;
+        for (Schedule sched : schedules) {
+            for (Reference actor : sched.getActor()) {
+                String ref = actor.getReference();
+                if (ref.startsWith("/HealthcareService/")) {
+                    String hcsID = DataStore.idPart(ref);
+                    ArrayList<String> scheds = serviceSchedules.get(hcsID);
+                    if (scheds == null) {
+                        scheds = new ArrayList<>();
+                        serviceSchedules.put(hcsID, scheds);
+                    }
+                    scheds.add("/Schedule/" + sched.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to find which HealthcareService runs each of a set of Schedules.
+     *
+     * @param scheds The Schedules.
+     * @return The id of the HealthcareService running each (the first, if
+     * there's more than one), keyed on the Schedule reference (eg
+     * /Schedule/sched1111).
+     */
+    static HashMap<String, String> servicesOf(final List<Schedule> scheds) {
+        HashMap<String, String> result = new HashMap<>();
+        for (Schedule sched : scheds) {
+            for (Reference actor : sched.getActor()) {
+                String ref = actor.getReference();
+                if (ref.startsWith("/HealthcareService/")) {
+                    result.put("/Schedule/" + sched.getId(),
+                            DataStore.idPart(ref));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to make a new snapshot holding the same Schedules and other
+     * resources as this one, but a different set of Slots. It shares this
+     * one's IncludeGraph, so anything already encoded for an _include is
+     * kept.
+     *
+     * @param newEpoch The version number of the new snapshot.
+     * @param newSlots The Slots.
+     * @return The new snapshot.
+     */
+    StoreSnapshot withSlots(final long newEpoch, final SlotStore newSlots) {
+        return new StoreSnapshot(newEpoch, practitionerRoles, practitioners,
+                organizations, locations, healthcareServices, schedules,
+                newSlots, includeGraph);
+    }
+
+    /**
+     * @return The version number of this snapshot.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Method to get the store holding the Slots, which is where their status
+     * is changed.
+     *
+     * @return The SlotStore.
+     */
+    SlotStore getSlotStore() {
+        return slots;
+    }
+
+    /**
+     * Method to get which HealthcareService runs each Schedule, which is how
+     * a sharded SlotStore splits up the Slots.
+     *
+     * @return The HealthcareService ids, keyed on the Schedule reference (eg
+     * /Schedule/sched1111).
+     */
+    Map<String, String> getScheduleServices() {
+        return scheduleServices;
+    }
+
+    /**
+     * @return The resources each Schedule's Slots can _include.
+     */
+    public IncludeGraph getIncludeGraph() {
+        return includeGraph;
+    }
+
+    /**
+     * Method to find which HealthcareService runs a given Schedule.
+     *
+     * @param scheduleRef The Schedule reference (eg /Schedule/sched1111).
+     * @return The HealthcareService id, or null if there's no such Schedule
+     * or no service runs it.
+     */
+    public String getServiceOfSchedule(final String scheduleRef) {
+        return scheduleServices.get(scheduleRef);
+    }
+
+    /**
+     * Method to find which HealthcareService provides a given Slot.
+     *
+     * @param id The id of the Slot (eg slot001).
+     * @return The HealthcareService id, or null if the Slot isn't known or
+     * no service runs its Schedule.
+     */
+    String getServiceOfSlot(final String id) {
+        Slot slot = slots.getSlot(DataStore.idPart(id));
+        return slot == null ? null
+                : scheduleServices.get(slot.getSchedule().getReference());
+    }
+
+    /**
+     * Method to get a single Slot by ID.
+     *
+     * @param id The id of the requested Slot (eg slot001).
+     * @return The Slot resource.
+     */
+    public Slot getSlotByID(final String id) {
+        return slots.getSlot(DataStore.idPart(id));
+    }
+
+    /**
+     * Method to get all of the Slots, Schedule by Schedule.
+     *
+     * @return An ArrayList of all slots.
+     */
+    public ArrayList<Slot> getSlots() {
+        return getSlotsByStatus(null);
+    }
+
+    /**
+     * Method to get the number of Slots, without building a List of them.
+     *
+     * @return The number of Slots.
+     */
+    public int getSlotCount() {
+        return slots.size();
+    }
+
+    /**
+     * Method to get a set of Slots that have a given HealthcareService.
+     *
+     * @param hcsID The HealthcareService id.
+     * @return A List of Slots which are provided by the specified
+     * HealthcareService.
+     */
+    public ArrayList<Slot> getSlotsByHealthcareService(final String hcsID) {
+        return findSlots(hcsID, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to get the Slots provided by a given HealthcareService which start
+     * within a given time range.
+     *
+     * @param hcsID The HealthcareService id.
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time (inclusive), in epoch milliseconds.
+     * @param to The latest start time (exclusive), in epoch milliseconds.
+     * @return A List of the matching Slots, in start time order within each
+     * Schedule.
+     */
+    public ArrayList<Slot> getSlotsByHealthcareService(final String hcsID,
+            final SlotStatus status, final long from, final long to) {
+        return findSlots(hcsID, status, from, to);
+    }
+
+    /**
+     * Method to get all Slots, whichever Schedule they're in, which start
+     * within a given time range.
+     *
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time (inclusive), in epoch milliseconds.
+     * @param to The latest start time (exclusive), in epoch milliseconds.
+     * @return A List of the matching Slots, in start time order within each
+     * Schedule.
+     */
+    public ArrayList<Slot> getSlotsByStart(final SlotStatus status,
+            final long from, final long to) {
+        return findSlots(null, status, from, to);
+    }
+
+    /**
+     * Method to find the Slots matching any mix of HealthcareService, status
+     * and start time, going through the narrowest index there is for each.
+     *
+     * The Schedules looked in are those of the HealthcareService, in its
+     * shard, if one is given, or else every Schedule. Within each Schedule
+     * the start time index picks out the Slots in range if there is a range,
+     * or else the whole Schedule is walked; the status is checked as each
+     * Slot is reached, so it costs nothing extra.
+     *
+     * @param hcsID The HealthcareService id, or null for any.
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time (inclusive), in epoch milliseconds,
+     * or Long.MIN_VALUE.
+     * @param to The latest start time (exclusive), or Long.MAX_VALUE.
+     * @return A List of the matching Slots, in start time order within each
+     * Schedule.
+     */
+    public ArrayList<Slot> findSlots(final String hcsID,
+            final SlotStatus status, final long from, final long to) {
+        ArrayList<Slot> result = new ArrayList<>();
+        if (from >= to) {
+            return result;
+        }
+        SlotStore store = hcsID == null ? slots : slots.shard(hcsID);
+        boolean ranged = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        for (String sched : searchedSchedules(hcsID)) {
+            if (ranged) {
+                store.addStartingBetween(sched, status, from, to, result);
+            } else {
+                store.addAll(sched, status, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to find one page of the Slots findSlots() would return, in the
+     * same order, starting after a cursor. Only the Slots on the page (and
+     * one more, to tell whether there is a next page) are looked at: the
+     * cursor's Schedule is found, the start time index is entered at the
+     * cursor, and the Schedules before it are skipped without being read.
+     *
+     * @param hcsID The HealthcareService id, or null for any.
+     * @param status The status wanted, or null for any status.
+     * @param from The earliest start time (inclusive), in epoch milliseconds,
+     * or Long.MIN_VALUE.
+     * @param to The latest start time (exclusive), or Long.MAX_VALUE.
+     * @param after Where the previous page finished, or null for the first
+     * page.
+     * @param count The most Slots wanted.
+     * @param result The List the Slots on the page are added to.
+     * @return Where the page finished, or null if there are no more Slots.
+     */
+    public SlotCursor findSlotPage(final String hcsID,
+            final SlotStatus status, final long from, final long to,
+            final SlotCursor after, final int count, final List<Slot> result) {
+        if (from >= to || count < 1) {
+            return null;
+        }
+        SlotStore store = hcsID == null ? slots : slots.shard(hcsID);
+        List<String> scheds = searchedSchedules(hcsID);
+        int first = 0;
+        long afterStart = from;
+        String afterId = null;
+        if (after != null) {
+            first = scheds.indexOf(after.getScheduleRef());
+            if (first < 0) {
+                return null;
+            }
+            if (after.getStart() >= from) {
+                afterStart = after.getStart();
+                afterId = after.getId();
+            }
+        }
+        int limit = count == Integer.MAX_VALUE ? count : count + 1;
+        ArrayList<Slot> page = new ArrayList<>();
+        for (int i = first; i < scheds.size() && page.size() < limit; i++) {
+            store.addPage(scheds.get(i), status, afterStart, afterId, to,
+                    limit - page.size(), page);
+            afterStart = from;
+            afterId = null;
+        }
+        SlotCursor next = null;
+        if (page.size() > count) {
+            page.remove(count);
+            next = SlotCursor.after(page.get(count - 1));
+        }
+        result.addAll(page);
+        return next;
+    }
+
+    /**
+     * Method to list the Schedules a Slot search looks in, in the order it
+     * looks in them.
+     *
+     * @param hcsID The HealthcareService id, or null for every Schedule.
+     * @return A List of Schedule references (eg /Schedule/sched1111).
+     */
+    private List<String> searchedSchedules(final String hcsID) {
+        if (hcsID != null) {
+            return getScheduleRefs(hcsID);
+        }
+        ArrayList<String> scheds = new ArrayList<>();
+        for (Schedule sched : schedules) {
+            scheds.add("/Schedule/" + sched.getId());
+        }
+        return scheds;
+    }
+
+    /**
+     * Method to get a set of Slots with a given status (free/busy) that are
+     * provided by a given HealthcareService.
+     *
+     * @param hcsID The Id of a HealthcareService.
+     * @param status The status being searched for.
+     * @return A List of Slot resources with that status which are provided by
+     * the specified HealthcareService.
+     */
+    public ArrayList<Slot> getFreeSlotsByHCS(final String hcsID,
+            final String status) {
+        SlotStatus stat;
+        switch (status) {
+            case "free":
+                stat = SlotStatus.FREE;
+                break;
+
+            case "busy":
+                stat = SlotStatus.BUSY;
+                break;
+
+            default:
+                throw new UnprocessableEntityException(
+                        "Unknown Slot status: " + status);
+        }
+        return findSlots(hcsID, stat, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to get all the Slots with a given status, Schedule by Schedule.
+     *
+     * @param status The status wanted, or null for any status.
+     * @return An ArrayList of the Slots with that status.
+     */
+    public ArrayList<Slot> getSlotsByStatus(final SlotStatus status) {
+        return findSlots(null, status, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to get the number of free Slots.
+     *
+     * @return The number of free Slots.
+     */
+    public int getFreeSlotCount() {
+        return slots.count(SlotStatus.FREE);
+    }
+
+    /**
+     * Method to find the references of the Schedules run by a given
+     * HealthcareService.
+     *
+     * @param hcsID The HealthcareService id.
+     * @return A List of Schedule references (eg /Schedule/sched1111).
+     */
+    private List<String> getScheduleRefs(final String hcsID) {
+        ArrayList<String> scheds = serviceSchedules.get(hcsID);
+        if (scheds == null) {
+            return new ArrayList<>();
+        }
+        return scheds;
+    }
+
+    /**
+     * Method to retrieve a given Schedule object by name.
+     *
+     * @param schedName The name of the requested Schedule
+     * @return The Schedule or null.
+     */
+    public Schedule getSchedule(final String schedName) {
+        for (Schedule sched : schedules) {
+            String thisID = "/Schedule/" + sched.getId();
+            if (thisID.equals(schedName)) {
+                return sched;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to return a specific HealthcareService.
+     *
+     * @param identifier ID of the one we want.
+     *
+     * @return Either an instance of a HealthcareService resource or null.
+     */
+    public HealthcareService getHealthcareService(final String identifier) {
+        for (HealthcareService healthcareService : healthcareServices) {
+            if (healthcareService.getId().equals(identifier)) {
+                return healthcareService;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to get a specific Location resource based on it's id.
+     *
+     * @param locID The id of the requested Location.
+     * @return The matching resource as an object.
+     */
+    public Object getLocation(final String locID) {
+        for (Object loc : locations) {
+            Location locn = (Location) loc;
+            if (locn.getId().equals(locID)) {
+                return locn;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to get our one and only Practitioner
+     *
+     * @return The Practitioner resource.
+     */
+    public Practitioner getPractitioner() {
+        return practitioners.get(0);
+    }
+
+    /**
+     * Method to get our one and only PractitionerRole
+     *
+     * @return The PractitionerRole resource.
+     */
+    public PractitionerRole getPractitionerRole() {
+        return practitionerRoles.get(0);
+    }
+
+    /**
+     * Method to get our only Organisation resource.
+     *
+     * @return The Organisation or null.
+     */
+    public Organization getOrganization() {
+        return organizations.get(0);
+    }
+}
@@ -16,7 +16,8 @@
 
 /**
  * This is the package to hold the DataStore class which acts as a simple in
- * memory database.
+ * memory database, and the DiskStore which keeps Appointments on disk instead.
+ * Both are used through the BookingStore interface.
  *
  *
  */
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.util.Arrays;
+import java.util.EnumSet;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.nhs.fhir.bookingprovider.data.DataStore;
+import uk.nhs.fhir.bookingprovider.data.FragmentCache;
+import uk.nhs.fhir.bookingprovider.data.IncludeGraph;
+import uk.nhs.fhir.bookingprovider.data.StoreSnapshot;
+
+public class FragmentInterceptorTest {
+
+    private final FhirContext ctx = FhirContext.forDstu3();
+
+    private StoreSnapshot view;
+
+    public FragmentInterceptorTest() {
+    }
+
+    @Before
+    public void setUp() {
+        DataStore store = DataStore.getInstance();
+        store.initialize();
+        view = store.getSnapshot();
+    }
+
+    /**
+     * Helper to make a search Bundle of some Slots and everything they
+     * include.
+     *
+     * @return The Bundle.
+     */
+    private Bundle makeBundle() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.addLink().setRelation("self").setUrl("http://localhost/Slot");
+        for (Slot slot : view.getSlotsByHealthcareService("918999198999")) {
+            bundle.addEntry().setFullUrl("Slot/" + slot.getId())
+                    .setResource(slot).getSearch()
+                    .setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        for (Object include : view.getIncludeGraph().resolve(
+                Arrays.asList("/Schedule/sched1111", "/Schedule/sched2222"),
+                EnumSet.allOf(IncludeGraph.Target.class))) {
+            bundle.addEntry().setResource((Resource) include).getSearch()
+                    .setMode(Bundle.SearchEntryMode.INCLUDE);
+        }
+        return bundle;
+    }
+
+    /**
+     * Test of encode method, of class FragmentInterceptor, checking the
+     * spliced Bundle is exactly what the parser writes, in each format, both
+     * when the fragments are first encoded and when they come from the
+     * cache.
+     */
+    @Test
+    public void testEncode() {
+        System.out.println("encode");
+        FragmentInterceptor instance = new FragmentInterceptor(
+                DataStore.getInstance());
+        FragmentCache cache = view.getIncludeGraph().getFragments();
+        Bundle bundle = makeBundle();
+        IParser[] parsers = {
+            ctx.newJsonParser(),
+            ctx.newJsonParser().setPrettyPrint(true),
+            ctx.newXmlParser(),
+            ctx.newXmlParser().setPrettyPrint(true)
+        };
+        String[] formats = {"json", "json-pretty", "xml", "xml-pretty"};
+        for (int i = 0; i < parsers.length; i++) {
+            String expected = parsers[i].encodeResourceToString(bundle);
+            assertEquals(expected, instance.encode(bundle, cache, parsers[i],
+                    formats[i]));
+            Location loc = (Location) view.getLocation("loc2222");
+            assertNotNull(cache.get(loc, formats[i]));
+            assertEquals(expected, instance.encode(bundle, cache, parsers[i],
+                    formats[i]));
+        }
+        assertEquals(29, bundle.getEntry().size());
+        assertSame(view.getLocation("loc2222"),
+                bundle.getEntry().get(28).getResource());
+    }
+
+    /**
+     * Test of encode method, of class FragmentInterceptor, checking nothing
+     * is spliced for resources the cache doesn't hold.
+     */
+    @Test
+    public void testEncodeNothingCached() {
+        System.out.println("encode");
+        FragmentInterceptor instance = new FragmentInterceptor(
+                DataStore.getInstance());
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(view.getSlotByID("slot001"));
+        Location other = new Location();
+        other.setId("loc1111");
+        bundle.addEntry().setResource(other);
+        assertNull(instance.encode(bundle,
+                view.getIncludeGraph().getFragments(), ctx.newJsonParser(),
+                "json"));
+    }
+}
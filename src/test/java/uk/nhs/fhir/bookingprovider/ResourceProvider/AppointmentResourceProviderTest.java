@@ -16,13 +16,16 @@
 package uk.nhs.fhir.bookingprovider.ResourceProvider;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.parser.XmlParser;
 import ca.uhn.fhir.parser.JsonParser;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.logging.Logger;
@@ -32,6 +35,7 @@ import org.hl7.fhir.dstu3.model.Appointment;
 import org.hl7.fhir.dstu3.model.Appointment.AppointmentStatus;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Slot;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -42,7 +46,9 @@ import static org.junit.Assert.*;
 import uk.nhs.fhir.bookingprovider.MockRequest;
 import uk.nhs.fhir.bookingprovider.MockResponse;
 import uk.nhs.fhir.bookingprovider.checkers.AppointmentChecker;
+import uk.nhs.fhir.bookingprovider.data.BookingStore;
 import uk.nhs.fhir.bookingprovider.data.DataStore;
+import uk.nhs.fhir.bookingprovider.data.StoreSnapshot;
 import uk.nhs.fhir.bookingprovider.logging.ExternalLogger;
 
 /**
@@ -297,6 +303,28 @@ public class AppointmentResourceProviderTest {
         return result.toString();
     }
 
+    /**
+     * Test of createAppointment method, of class AppointmentResourceProvider,
+     * where the Appointment can't be saved, which should leave the Slot free.
+     */
+    @Test
+    public void testCreateAppointmentSaveFails() {
+        System.out.println("createAppointment");
+        newData.initialize();
+        checker = new AppointmentChecker(ctx);
+        String apptString = getFileContents("goodAppt_1.json");
+        Appointment newAppointment = parser.parseResource(Appointment.class, apptString);
+        AppointmentResourceProvider instance = new AppointmentResourceProvider(ctx, new FailingStore(newData), checker, ourLogger);
+        try {
+            instance.createAppointment(newAppointment, myRequestMock);
+            fail("The Appointment couldn't be saved");
+        } catch (InternalErrorException ex) {
+            assertEquals("Disk full", ex.getMessage());
+        }
+        assertEquals(Slot.SlotStatus.FREE, newData.getSlotByID("slot003").getStatus());
+        assertEquals(0, newData.getAppointmentCount());
+    }
+
     /**
      * Test of getAppointment method, of class AppointmentResourceProvider.
      * Gets ALL Appointments
@@ -339,7 +367,7 @@ public class AppointmentResourceProviderTest {
         MethodOutcome result2 = instance.updateAppointment(newId, savedAppt, myRequestMock2);
         Appointment updated = (Appointment) result2.getResource();
         
-        assertEquals(updated.getSlotFirstRep(), newAppointment.getSlotFirstRep());
+        assertEquals(newAppointment.getSlotFirstRep().getReference(), updated.getSlotFirstRep().getReference());
         
         // Now we assert that the version has been updated to Version 2!
         Long updatedVersion = updated.getIdElement().getVersionIdPartAsLong();
@@ -348,6 +376,44 @@ public class AppointmentResourceProviderTest {
         
     }
 
+    /**
+     * Test of updateAppointment method, of class AppointmentResourceProvider,
+     * cancelling an Appointment again after its Slot has been booked by
+     * another.
+     */
+    @Test
+    public void testUpdateAppointmentCancelTwice() {
+        System.out.println("updateAppointment");
+        newData.initialize();
+        checker = new AppointmentChecker(ctx);
+        String apptString = getFileContents("goodAppt_1.json");
+        AppointmentResourceProvider instance = new AppointmentResourceProvider(ctx, newData, checker, ourLogger);
+        assertTrue(newData.bookSlotIfFree("Slot/slot003"));
+        String identifier = "Appointment/" + newData.addAppointment(parser.parseResource(Appointment.class, apptString)).getIdPart();
+        Appointment first = newData.getAppointment(identifier).copy();
+        IdType firstId = new IdType(identifier);
+        first.setStatus(AppointmentStatus.CANCELLED);
+        MockRequest cancelRequest = new MockRequest();
+        cancelRequest.addHeader("If-Match", "W/\"1\"");
+        instance.updateAppointment(firstId, first, cancelRequest);
+        assertEquals(Slot.SlotStatus.FREE, newData.getSlotByID("slot003").getStatus());
+
+        // Someone else books the Slot...
+        assertTrue(newData.bookSlotIfFree("Slot/slot003"));
+        newData.addAppointment(parser.parseResource(Appointment.class, apptString));
+
+        // ...so cancelling the first again mustn't free it.
+        MockRequest againRequest = new MockRequest();
+        againRequest.addHeader("If-Match", "W/\"2\"");
+        try {
+            instance.updateAppointment(firstId, first, againRequest);
+            fail("The first Appointment is no longer booked");
+        } catch (UnprocessableEntityException ex) {
+            assertTrue(ex.getMessage().contains("not booked"));
+        }
+        assertEquals(Slot.SlotStatus.BUSY, newData.getSlotByID("slot003").getStatus());
+    }
+
     /**
      * Test of updateAppointment method, of class AppointmentResourceProvider.
      */
@@ -551,4 +617,103 @@ public class AppointmentResourceProviderTest {
         myRequestMock2.addHeader("If-Match", "W/\"1\"");
 
         instance.updateAppointment(newId, newAppointment, myRequestMock2);
-    }}
+    }
+
+    /**
+     * A BookingStore which can't save Appointments, as when its disk is full,
+     * but otherwise passes everything on to another.
+     */
+    private static final class FailingStore implements BookingStore {
+
+        private final BookingStore store;
+
+        FailingStore(BookingStore newStore) {
+            store = newStore;
+        }
+
+        @Override
+        public IdDt addAppointment(Appointment newAppt) {
+            throw new InternalErrorException("Disk full");
+        }
+
+        @Override
+        public StoreSnapshot getSnapshot() {
+            return store.getSnapshot();
+        }
+
+        @Override
+        public Slot getSlotByID(String id) {
+            return store.getSlotByID(id);
+        }
+
+        @Override
+        public ArrayList<Slot> getSlots() {
+            return store.getSlots();
+        }
+
+        @Override
+        public int getSlotCount() {
+            return store.getSlotCount();
+        }
+
+        @Override
+        public int getFreeSlotCount() {
+            return store.getFreeSlotCount();
+        }
+
+        @Override
+        public boolean bookSlotIfFree(String id) {
+            return store.bookSlotIfFree(id);
+        }
+
+        @Override
+        public boolean freeSlotIfBooked(String id) {
+            return store.freeSlotIfBooked(id);
+        }
+
+        @Override
+        public Appointment getAppointment(String identifier) {
+            return store.getAppointment(identifier);
+        }
+
+        @Override
+        public List<Appointment> getAppointmentHistory(String identifier) {
+            return store.getAppointmentHistory(identifier);
+        }
+
+        @Override
+        public long getAppointmentVersion(String identifier) {
+            return store.getAppointmentVersion(identifier);
+        }
+
+        @Override
+        public ArrayList<Appointment> getAppointments() {
+            return store.getAppointments();
+        }
+
+        @Override
+        public int getAppointmentCount() {
+            return store.getAppointmentCount();
+        }
+
+        @Override
+        public List<Appointment> searchAppointments(String slotId,
+                AppointmentStatus status, String nhsNumber, long startFrom,
+                long startTo, long updatedFrom, long updatedTo) {
+            return store.searchAppointments(slotId, status, nhsNumber,
+                    startFrom, startTo, updatedFrom, updatedTo);
+        }
+
+        @Override
+        public Appointment setAppointmentStatus(String identifier,
+                long expectedVersion, AppointmentStatus proposedStatus) {
+            return store.setAppointmentStatus(identifier, expectedVersion,
+                    proposedStatus);
+        }
+
+        @Override
+        public void initialize() {
+            store.initialize();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.param.TokenParam;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.hl7.fhir.dstu3.model.Schedule;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.nhs.fhir.bookingprovider.data.DataStore;
+
+public class SlotBundleProviderTest {
+
+    private DataStore store;
+
+    public SlotBundleProviderTest() {
+    }
+
+    @Before
+    public void setUp() {
+        store = DataStore.getInstance();
+        store.initialize();
+    }
+
+    /**
+     * Test of getResources method, of class SlotBundleProvider, following
+     * the next page ids through every Slot.
+     */
+    @Test
+    public void testGetResources() {
+        System.out.println("getResources");
+        SlotQuery query = SlotQuery.parse(null, null, null,
+                new HashSet<Include>());
+        List<Slot> all = query.findSlots(store.getSnapshot());
+        SlotBundleProvider instance = new SlotBundleProvider(query, store);
+        assertEquals("first", instance.getCurrentPageId());
+        assertNull(instance.size());
+        ArrayList<IBaseResource> result = new ArrayList<>();
+        int pages = 0;
+        while (instance != null) {
+            List<IBaseResource> page = instance.getResources(0, 15);
+            assertTrue(page.size() <= 15);
+            result.addAll(page);
+            pages++;
+            String next = instance.getNextPageId();
+            if (next == null) {
+                instance = null;
+            } else {
+                SlotBundleProvider later = instance.page(next);
+                assertEquals(instance.getUuid(), later.getUuid());
+                assertEquals(next, later.getCurrentPageId());
+                instance = later;
+            }
+        }
+        assertEquals((all.size() + 14) / 15, pages);
+        assertEquals(all.size(), result.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.get(i).getId(), ((Slot) result.get(i)).getId());
+        }
+    }
+
+    /**
+     * Test of getResources method, of class SlotBundleProvider, checking that
+     * a booking made between pages doesn't shift the next page of a search
+     * for free Slots.
+     */
+    @Test
+    public void testGetResourcesAfterBooking() {
+        System.out.println("getResources");
+        SlotQuery query = SlotQuery.parse(new TokenParam("918999198999"),
+                new TokenParam("free"), null, new HashSet<Include>());
+        SlotBundleProvider instance = new SlotBundleProvider(query, store);
+        List<IBaseResource> page = instance.getResources(0, 5);
+        assertEquals("slot005", ((Slot) page.get(4)).getId());
+        store.bookSlotIfFree("/Slot/slot002");
+        store.bookSlotIfFree("/Slot/slot007");
+        page = instance.page(instance.getNextPageId()).getResources(0, 5);
+        assertEquals("slot006", ((Slot) page.get(0)).getId());
+        assertEquals("slot008", ((Slot) page.get(1)).getId());
+        assertEquals("slot011", ((Slot) page.get(4)).getId());
+    }
+
+    /**
+     * Test of getResources method, of class SlotBundleProvider, checking the
+     * _includes are those of each page's Slots.
+     */
+    @Test
+    public void testGetResourcesIncludes() {
+        System.out.println("getResources");
+        Set<Include> includes = new HashSet<>();
+        includes.add(new Include("Slot:schedule"));
+        SlotQuery query = SlotQuery.parse(null, null, null, includes);
+        SlotBundleProvider instance = new SlotBundleProvider(query, store);
+        List<IBaseResource> page = instance.getResources(0, 20);
+        assertEquals(21, page.size());
+        assertEquals("sched1111", ((Schedule) page.get(20)).getId());
+        page = instance.page(instance.getNextPageId()).getResources(0, 20);
+        assertEquals(21, page.size());
+        assertEquals("sched2222", ((Schedule) page.get(20)).getId());
+    }
+
+    /**
+     * Test of getResources method, of class SlotBundleProvider, skipping
+     * Slots at the start of the first page.
+     */
+    @Test
+    public void testGetResourcesOffset() {
+        System.out.println("getResources");
+        SlotQuery query = SlotQuery.parse(new TokenParam("918999198999"),
+                null, null, new HashSet<Include>());
+        SlotBundleProvider instance = new SlotBundleProvider(query, store);
+        List<IBaseResource> page = instance.getResources(10, 15);
+        assertEquals(5, page.size());
+        assertEquals("slot011", ((Slot) page.get(0)).getId());
+        assertEquals(0, instance.getResources(20, 30).size());
+        assertNull(instance.getNextPageId());
+    }
+
+    /**
+     * Test of page method, of class SlotBundleProvider.
+     */
+    @Test
+    public void testPage() {
+        System.out.println("page");
+        SlotQuery query = SlotQuery.parse(null, null, null,
+                new HashSet<Include>());
+        SlotBundleProvider instance = new SlotBundleProvider(query, store);
+        assertEquals("first", instance.page("first").getCurrentPageId());
+        assertNull(instance.page("nonsense"));
+    }
+}
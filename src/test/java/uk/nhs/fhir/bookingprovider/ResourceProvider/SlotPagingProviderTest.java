@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import java.util.HashSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.nhs.fhir.bookingprovider.data.DataStore;
+
+public class SlotPagingProviderTest {
+
+    public SlotPagingProviderTest() {
+    }
+
+    /**
+     * Test of storeResultList and retrieveResultList methods, of class
+     * SlotPagingProvider.
+     */
+    @Test
+    public void testStoreResultList() {
+        System.out.println("storeResultList");
+        SlotPagingProvider instance = new SlotPagingProvider(10);
+        SlotBundleProvider slots = new SlotBundleProvider(
+                SlotQuery.parse(null, null, null, new HashSet<Include>()),
+                DataStore.getInstance());
+        assertEquals(slots.getUuid(), instance.storeResultList(slots));
+        IBundleProvider other = new SimpleBundleProvider();
+        String otherId = instance.storeResultList(other);
+        assertNotNull(otherId);
+        assertSame(slots, instance.retrieveResultList(slots.getUuid()));
+        assertSame(other, instance.retrieveResultList(otherId));
+        assertSame(other, instance.retrieveResultList(otherId, "first"));
+        IBundleProvider page = instance.retrieveResultList(slots.getUuid(),
+                "sched1111:0:slot001");
+        assertEquals(slots.getUuid(), page.getUuid());
+        assertEquals("sched1111:0:slot001", page.getCurrentPageId());
+        assertNull(instance.retrieveResultList("nosuch"));
+        assertNull(instance.retrieveResultList("nosuch", "first"));
+    }
+
+    /**
+     * Test of storeResultList method, of class SlotPagingProvider, checking
+     * that the oldest search is dropped once too many are kept.
+     */
+    @Test
+    public void testStoreResultListDropsOldest() {
+        System.out.println("storeResultList");
+        SlotPagingProvider instance = new SlotPagingProvider(2);
+        String first = instance.storeResultList(new SimpleBundleProvider());
+        String second = instance.storeResultList(new SimpleBundleProvider());
+        String third = instance.storeResultList(new SimpleBundleProvider());
+        assertNull(instance.retrieveResultList(first));
+        assertNotNull(instance.retrieveResultList(second));
+        assertNotNull(instance.retrieveResultList(third));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.hl7.fhir.dstu3.model.HealthcareService;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Schedule;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.nhs.fhir.bookingprovider.data.DataStore;
+import uk.nhs.fhir.bookingprovider.data.StoreSnapshot;
+
+public class SlotQueryTest {
+
+    private StoreSnapshot view;
+
+    public SlotQueryTest() {
+    }
+
+    @Before
+    public void setUp() {
+        DataStore store = DataStore.getInstance();
+        store.initialize();
+        store.bookSlotIfFree("/Slot/slot001");
+        view = store.getSnapshot();
+    }
+
+    /**
+     * Test of findSlots method, of class SlotQuery, by HealthcareService and
+     * status.
+     */
+    @Test
+    public void testFindSlotsByService() {
+        System.out.println("findSlots");
+        SlotQuery instance = SlotQuery.parse(new TokenParam("918999198999"),
+                new TokenParam("free"), null, new HashSet<Include>());
+        List<Slot> result = instance.findSlots(view);
+        assertEquals(19, result.size());
+        for (Slot slot : result) {
+            assertEquals(SlotStatus.FREE, slot.getStatus());
+            assertEquals("/Schedule/sched1111", slot.getSchedule().getReference());
+        }
+        assertTrue(instance.findIncludes(view, result).isEmpty());
+    }
+
+    /**
+     * Test of findSlots and findIncludes methods, of class SlotQuery, by
+     * start time across every service.
+     */
+    @Test
+    public void testFindIncludes() {
+        System.out.println("findIncludes");
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DATE, 1);
+        DateRangeParam range = new DateRangeParam(cal.getTime(), null);
+        cal.set(Calendar.HOUR_OF_DAY, 9);
+        cal.set(Calendar.MINUTE, 15);
+        range.setUpperBoundInclusive(cal.getTime());
+        Set<Include> includes = new HashSet<>();
+        includes.add(new Include("Slot:schedule"));
+        includes.add(new Include("Schedule:actor:HealthcareService"));
+        includes.add(new Include("HealthcareService.location"));
+        includes.add(new Include("HealthcareService.providedBy"));
+        SlotQuery instance = SlotQuery.parse(null, null, range, includes);
+        List<Slot> slots = instance.findSlots(view);
+        assertEquals(4, slots.size());
+        List<Object> result = instance.findIncludes(view, slots);
+        ArrayList<String> ids = new ArrayList<>();
+        for (Object resource : result) {
+            ids.add(((Resource) resource).getIdElement().getIdPart());
+        }
+        assertEquals(7, result.size());
+        assertTrue(result.get(0) instanceof Schedule);
+        assertTrue(result.get(2) instanceof HealthcareService);
+        assertTrue(result.get(5) instanceof Location);
+        assertTrue(ids.contains("loc1111"));
+        assertTrue(ids.contains("loc2222"));
+        assertTrue(ids.contains("A91545"));
+    }
+
+    /**
+     * Test of parse method, of class SlotQuery, with a status we don't
+     * support.
+     */
+    @Test(expected = UnprocessableEntityException.class)
+    public void testParseBadStatus() {
+        System.out.println("parse");
+        SlotQuery.parse(null, new TokenParam("tentative"), null, new HashSet<Include>());
+    }
+}
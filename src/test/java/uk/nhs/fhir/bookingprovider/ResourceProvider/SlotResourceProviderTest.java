@@ -16,7 +16,6 @@
 package uk.nhs.fhir.bookingprovider.ResourceProvider;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -30,6 +29,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -107,6 +107,27 @@ public class SlotResourceProviderTest {
         assertEquals(idName, result.getId());
     }
 
+    /**
+     * Test that getResourceById, of class SlotResourceProvider, leaves the
+     * stored Slot as it was however many times it is read.
+     */
+    @Test
+    public void testGetResourceByIdUnchanged() {
+        System.out.println("getResourceByIdUnchanged");
+        IdType theId = new IdType("slot002");
+        ctx = FhirContext.forDstu3();
+        DataStore newData = DataStore.getInstance();
+        newData.initialize();
+        SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
+        String before = ctx.newJsonParser().encodeResourceToString(newData.getSlotByID("slot002"));
+        for (int i = 0; i < 3; i++) {
+            instance.getResourceById(theId, myRequestMock);
+        }
+        Slot result = instance.getResourceById(theId, myRequestMock);
+        assertEquals(0, result.getIdentifier().size());
+        assertEquals(before, ctx.newJsonParser().encodeResourceToString(result));
+    }
+
     /**
      * Test of searchSlots method, of class SlotResourceProvider.
      */
@@ -118,7 +139,8 @@ public class SlotResourceProviderTest {
         newData.initialize();
         SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
         int expResult = 40;
-        List<Slot> result = instance.searchSlots(myRequestMock);
+        List<IBaseResource> result = instance.searchSlots(myRequestMock)
+                .getResources(0, Integer.MAX_VALUE);
         assertEquals(expResult, result.size());
     }
 
@@ -148,7 +170,8 @@ public class SlotResourceProviderTest {
         newData.initialize();
         SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
         int expResult = 21;
-        List<IResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock);
+        List<IBaseResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock)
+                .getResources(0, Integer.MAX_VALUE);
         //int Schedcount = 0;
         for (int i = 0; i < result.size(); i++) {
             Resource res = (Resource) result.get(i);
@@ -188,7 +211,8 @@ public class SlotResourceProviderTest {
         newData.initialize();
         SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
         int expResult = 6;
-        List<IResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock);
+        List<IBaseResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock)
+                .getResources(0, Integer.MAX_VALUE);
         for (int i = 0; i < result.size(); i++) {
             Resource res = (Resource) result.get(i);
             System.out.println(res.getResourceType().toString() + " - " + res.getId());
@@ -226,7 +250,8 @@ public class SlotResourceProviderTest {
         newData.initialize();
         SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
         int expResult = 4;
-        List<IResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock);
+        List<IBaseResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock)
+                .getResources(0, Integer.MAX_VALUE);
         assertEquals(expResult, result.size());
     }
     
@@ -261,7 +286,8 @@ public class SlotResourceProviderTest {
         newData.initialize();
         SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
         int expResult = 5;
-        List<IResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock);
+        List<IBaseResource> result = instance.searchSlots(theHealthcareService, statusToken, startRange, theIncludes, myRequestMock)
+                .getResources(0, Integer.MAX_VALUE);
         assertEquals(expResult, result.size());
     }
 
@@ -294,7 +320,8 @@ public class SlotResourceProviderTest {
         newData.initialize();
         SlotResourceProvider instance = new SlotResourceProvider(ctx, newData, ourLogger);
         int expResult = 10;
-        List<IResource> result = instance.searchSlots(statusToken, startRange, theIncludes, myRequestMock);
+        List<IBaseResource> result = instance.searchSlots(statusToken, startRange, theIncludes, myRequestMock)
+                .getResources(0, Integer.MAX_VALUE);
         assertEquals(expResult, result.size());
     }
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.ResourceProvider;
+
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StartRangeTest {
+
+    private static final long TEN = new InstantType("2019-03-01T10:00:00Z").getValue().getTime();
+
+    private static final long ELEVEN = new InstantType("2019-03-01T11:00:00Z").getValue().getTime();
+
+    public StartRangeTest() {
+    }
+
+    /**
+     * Test of compile method, of class StartRange, with a ge and an lt bound.
+     */
+    @Test
+    public void testCompileGeLt() {
+        System.out.println("compile");
+        StartRange instance = StartRange.compile(new DateRangeParam(
+                new DateParam("ge2019-03-01T10:00:00Z"),
+                new DateParam("lt2019-03-01T11:00:00Z")));
+        assertEquals(TEN, instance.getLow());
+        assertEquals(ELEVEN, instance.getHigh());
+        assertTrue(instance.contains(TEN));
+        assertTrue(instance.contains(ELEVEN - 1));
+        assertFalse(instance.contains(ELEVEN));
+        assertFalse(instance.contains(TEN - 1));
+    }
+
+    /**
+     * Test of compile method, of class StartRange, with a gt and an le bound.
+     */
+    @Test
+    public void testCompileGtLe() {
+        System.out.println("compile");
+        StartRange instance = StartRange.compile(new DateRangeParam(
+                new DateParam("gt2019-03-01T10:00:00Z"),
+                new DateParam("le2019-03-01T11:00:00Z")));
+        assertFalse(instance.contains(TEN));
+        assertTrue(instance.contains(TEN + 1));
+        assertTrue(instance.contains(ELEVEN));
+        assertFalse(instance.contains(ELEVEN + 1));
+    }
+
+    /**
+     * Test of compile method, of class StartRange, with an eq bound.
+     */
+    @Test
+    public void testCompileEqual() {
+        System.out.println("compile");
+        StartRange instance = StartRange.compile(new DateRangeParam(
+                new DateParam("eq2019-03-01T10:00:00Z"), null));
+        assertTrue(instance.contains(TEN));
+        assertFalse(instance.contains(TEN + 1));
+        assertFalse(instance.isEmpty());
+        assertSame(StartRange.ALL, StartRange.compile(null));
+        assertTrue(StartRange.compile(new DateRangeParam(
+                new DateParam("gt2019-03-01T10:00:00Z"),
+                new DateParam("lt2019-03-01T10:00:00Z"))).isEmpty());
+    }
+
+    /**
+     * Test of compile method, of class StartRange, with a prefix which isn't
+     * supported.
+     */
+    @Test(expected = UnprocessableEntityException.class)
+    public void testCompileBadPrefix() {
+        System.out.println("compile");
+        StartRange.compile(new DateRangeParam(
+                new DateParam("sa2019-03-01T10:00:00Z"), null));
+    }
+
+    /**
+     * Test of compile method, of class StartRange, with a date which isn't to
+     * the second.
+     */
+    @Test(expected = UnprocessableEntityException.class)
+    public void testCompileBadPrecision() {
+        System.out.println("compile");
+        StartRange.compile(new DateRangeParam(
+                new DateParam("ge2019-03-01"), null));
+    }
+}
@@ -16,6 +16,7 @@
 package uk.nhs.fhir.bookingprovider;
 
 import uk.nhs.fhir.bookingprovider.RestfulServlet;
+import java.io.File;
 import java.util.List;
 import javax.servlet.ServletException;
 import org.junit.After;
@@ -80,4 +81,19 @@ public class RestfulServletTest {
         assertEquals(result.size(), 2);
     }
 
+    /**
+     * Test of exportedFile method, of class RestfulServlet, which should
+     * only find the files an export writes.
+     */
+    @Test
+    public void testExportedFile() {
+        System.out.println("exportedFile");
+        File expected = new File(new File("/tmp/export", "export-1562849200000"), "Slot-1.ndjson.gz");
+        assertEquals(expected, RestfulServlet.exportedFile("/tmp/export", "export-1562849200000/Slot-1.ndjson.gz"));
+        assertNull(RestfulServlet.exportedFile(null, "export-1562849200000/Slot-1.ndjson.gz"));
+        assertNull(RestfulServlet.exportedFile("/tmp/export", "export-1562849200000/../../etc/passwd"));
+        assertNull(RestfulServlet.exportedFile("/tmp/export", "../Slot-1.ndjson.gz"));
+        assertNull(RestfulServlet.exportedFile("/tmp/export", "export-1562849200000/Slot-1.ndjson.gz/"));
+    }
+
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import java.util.Date;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Appointment.AppointmentStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AppointmentIndexTest {
+
+    private static final long MIN = Long.MIN_VALUE;
+    private static final long MAX = Long.MAX_VALUE;
+
+    public AppointmentIndexTest() {
+    }
+
+    private Appointment makeAppointment(String id, String slot, String nhsNumber, long start, long updated) {
+        Appointment appt = new Appointment();
+        appt.setId(new IdDt("Appointment", id, "1"));
+        appt.setStatus(AppointmentStatus.BOOKED);
+        appt.addSlot(new Reference("Slot/" + slot));
+        appt.setStart(new Date(start));
+        appt.getMeta().setLastUpdated(new Date(updated));
+        Patient patient = new Patient();
+        patient.setId("P1");
+        patient.addIdentifier().setSystem(AppointmentIndex.NHSNUMSYSTEM).setValue(nhsNumber);
+        appt.addContained(patient);
+        return appt;
+    }
+
+    /**
+     * Test of search method, of class AppointmentIndex, with each criterion.
+     */
+    @Test
+    public void testSearch() {
+        System.out.println("search");
+        AppointmentIndex<String> instance = new AppointmentIndex<>();
+        instance.put("a1", "a1", makeAppointment("a1", "slot001", "1231231234", 1000, 5000));
+        instance.put("a2", "a2", makeAppointment("a2", "slot002", "1231231234", 2000, 6000));
+        instance.put("a3", "a3", makeAppointment("a3", "slot003", "9999999999", 3000, 7000));
+        assertEquals(3, instance.size());
+        assertEquals(3, instance.search(null, null, null, MIN, MAX, MIN, MAX).size());
+        List<String> result = instance.search("slot002", null, null, MIN, MAX, MIN, MAX);
+        assertEquals(1, result.size());
+        assertEquals("a2", result.get(0));
+        assertEquals(2, instance.search(null, null, "1231231234", MIN, MAX, MIN, MAX).size());
+        assertEquals(2, instance.search(null, null, null, 2000, MAX, MIN, MAX).size());
+        assertEquals(1, instance.search(null, null, null, 2000, 3000, MIN, MAX).size());
+        assertEquals(1, instance.search(null, null, null, MIN, MAX, 6001, MAX).size());
+        assertEquals(0, instance.search(null, AppointmentStatus.CANCELLED, null, MIN, MAX, MIN, MAX).size());
+        assertEquals(0, instance.search("slot003", null, "1231231234", MIN, MAX, MIN, MAX).size());
+        assertEquals(0, instance.search(null, null, null, 3000, 2000, MIN, MAX).size());
+    }
+
+    /**
+     * Test of put and remove methods, of class AppointmentIndex, as an
+     * Appointment is updated.
+     */
+    @Test
+    public void testUpdate() {
+        System.out.println("update");
+        AppointmentIndex<AppointmentVersions> instance = new AppointmentIndex<>();
+        AppointmentVersions versions = new AppointmentVersions(makeAppointment("a1", "slot001", "1231231234", 1000, 5000));
+        instance.put("a1", versions, versions.getCurrent());
+        Appointment after = versions.update(1, AppointmentStatus.CANCELLED);
+        instance.put("a1", versions, after);
+        assertEquals(1, instance.size());
+        assertEquals(0, instance.search(null, AppointmentStatus.BOOKED, null, MIN, MAX, MIN, MAX).size());
+        assertEquals(1, instance.search(null, AppointmentStatus.CANCELLED, null, MIN, MAX, MIN, MAX).size());
+        assertEquals(0, instance.search(null, null, null, MIN, MAX, MIN, 5001).size());
+        assertEquals(1, instance.search(null, null, null, MIN, MAX, 5001, MAX).size());
+        assertSame(versions, instance.search(null, AppointmentStatus.CANCELLED, null, MIN, MAX, MIN, MAX).get(0));
+        instance.remove("a1");
+        assertEquals(0, instance.size());
+        assertEquals(0, instance.search(null, null, null, MIN, MAX, MIN, MAX).size());
+        assertEquals(0, instance.search("slot001", null, null, MIN, MAX, MIN, MAX).size());
+    }
+
+    /**
+     * Test of nhsNumber method, of class AppointmentIndex.
+     */
+    @Test
+    public void testNhsNumber() {
+        System.out.println("nhsNumber");
+        assertEquals("1231231234", AppointmentIndex.nhsNumber(makeAppointment("a1", "slot001", "1231231234", 0, 0)));
+        assertNull(AppointmentIndex.nhsNumber(new Appointment()));
+    }
+}
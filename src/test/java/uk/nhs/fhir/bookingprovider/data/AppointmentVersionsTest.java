@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Appointment.AppointmentStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AppointmentVersionsTest {
+
+    public AppointmentVersionsTest() {
+    }
+
+    private Appointment makeAppointment(String version) {
+        Appointment appt = new Appointment();
+        appt.setId(new IdDt("Appointment", "appt1", version));
+        appt.setStatus(AppointmentStatus.BOOKED);
+        appt.setDescription("Check up");
+        return appt;
+    }
+
+    /**
+     * Test of update method, of class AppointmentVersions.
+     */
+    @Test
+    public void testUpdate() {
+        System.out.println("update");
+        AppointmentVersions instance = new AppointmentVersions(makeAppointment("1"));
+        assertEquals(1, instance.getVersion());
+        assertNull(instance.update(2, AppointmentStatus.CANCELLED));
+        Appointment result = instance.update(1, AppointmentStatus.CANCELLED);
+        assertEquals("2", result.getIdElement().getVersionIdPart());
+        assertEquals("appt1", result.getIdElement().getIdPart());
+        assertEquals(AppointmentStatus.CANCELLED, result.getStatus());
+        assertEquals("2", result.getMeta().getVersionId());
+        assertNull(instance.update(1, AppointmentStatus.ENTEREDINERROR));
+        assertNotNull(instance.update(0, AppointmentStatus.ENTEREDINERROR));
+        assertEquals(3, instance.getVersion());
+        assertEquals(AppointmentStatus.ENTEREDINERROR, instance.getCurrent().getStatus());
+    }
+
+    /**
+     * Test of getVersion method, of class AppointmentVersions, getting back
+     * each earlier version as it was.
+     */
+    @Test
+    public void testGetVersion() {
+        System.out.println("getVersion");
+        AppointmentVersions instance = new AppointmentVersions(makeAppointment(null));
+        instance.update(1, AppointmentStatus.CANCELLED);
+        instance.update(2, AppointmentStatus.ENTEREDINERROR);
+        assertEquals(AppointmentStatus.BOOKED, instance.getVersion(1).getStatus());
+        Appointment second = instance.getVersion(2);
+        assertEquals(AppointmentStatus.CANCELLED, second.getStatus());
+        assertEquals("Check up", second.getDescription());
+        assertEquals("2", second.getIdElement().getVersionIdPart());
+        assertSame(instance.getCurrent(), instance.getVersion(3));
+        assertNull(instance.getVersion(0));
+        assertNull(instance.getVersion(4));
+    }
+
+    /**
+     * Test of getHistory method, of class AppointmentVersions.
+     */
+    @Test
+    public void testGetHistory() {
+        System.out.println("getHistory");
+        AppointmentVersions instance = new AppointmentVersions(makeAppointment("1"));
+        assertEquals(1, instance.getHistory().size());
+        instance.update(1, AppointmentStatus.CANCELLED);
+        instance.update(2, AppointmentStatus.ENTEREDINERROR);
+        List<Appointment> result = instance.getHistory();
+        assertEquals(3, result.size());
+        assertEquals("3", result.get(0).getIdElement().getVersionIdPart());
+        assertEquals(AppointmentStatus.CANCELLED, result.get(1).getStatus());
+        assertEquals("1", result.get(2).getIdElement().getVersionIdPart());
+    }
+
+    /**
+     * Test of replay method, of class AppointmentVersions.
+     */
+    @Test
+    public void testReplay() {
+        System.out.println("replay");
+        AppointmentVersions instance = new AppointmentVersions(makeAppointment("1"));
+        Appointment second = makeAppointment("2");
+        second.setStatus(AppointmentStatus.CANCELLED);
+        instance.replay(second);
+        instance.replay(makeAppointment("2"));
+        assertEquals(2, instance.getVersion());
+        assertEquals(AppointmentStatus.CANCELLED, instance.getCurrent().getStatus());
+        instance.replay(makeAppointment("5"));
+        assertEquals(5, instance.getVersion());
+        assertEquals(1, instance.getHistory().size());
+    }
+}
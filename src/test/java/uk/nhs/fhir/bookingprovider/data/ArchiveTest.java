@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ArchiveTest {
+
+    private File dir;
+
+    public ArchiveTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("archive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test of append method, of class Archive, adding to the file twice.
+     */
+    @Test
+    public void testAppend() throws IOException {
+        System.out.println("append");
+        ArrayList<Appointment> appts = new ArrayList<>();
+        Appointment appt = new Appointment();
+        appt.setId("appt1");
+        appt.setDescription("First");
+        appts.add(appt);
+        Archive.append(dir, appts);
+        appt = new Appointment();
+        appt.setId("appt2");
+        appts.add(appt);
+        Archive.append(dir, appts);
+        Archive.append(dir, new ArrayList<Appointment>());
+        List<String> lines = Files.readAllLines(
+                new File(dir, Archive.FILE_NAME).toPath(),
+                Charset.forName("UTF-8"));
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).contains("\"First\""));
+        assertTrue(lines.get(2).contains("appt2"));
+    }
+}
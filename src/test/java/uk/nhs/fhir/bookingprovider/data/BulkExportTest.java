@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BulkExportTest {
+
+    private DataStore store;
+
+    public BulkExportTest() {
+    }
+
+    @Before
+    public void setUp() {
+        store = DataStore.getInstance();
+        store.initialize();
+    }
+
+    private Appointment makeAppointment(String slot) {
+        Appointment appt = new Appointment();
+        appt.setStatus(Appointment.AppointmentStatus.BOOKED);
+        appt.addSlot().setReference(slot);
+        return appt;
+    }
+
+    /**
+     * Test of writeSlots method, of class BulkExport.
+     */
+    @Test
+    public void testWriteSlots() throws IOException {
+        System.out.println("writeSlots");
+        assertTrue(store.bookSlotIfFree("/Slot/slot001"));
+        BulkExport instance = store.startExport();
+        assertTrue(store.freeSlotIfBooked("/Slot/slot001"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(40, instance.writeSlots(out));
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(40, lines.length);
+        int busy = 0;
+        for (String line : lines) {
+            Slot slot = FhirContext.forDstu3().newJsonParser().parseResource(Slot.class, line);
+            if (slot.getStatus() == SlotStatus.BUSY) {
+                assertEquals("slot001", slot.getIdElement().getIdPart());
+                busy++;
+            }
+        }
+        assertEquals(1, busy);
+    }
+
+    /**
+     * Test of writeAppointments method, of class BulkExport.
+     */
+    @Test
+    public void testWriteAppointments() throws IOException {
+        System.out.println("writeAppointments");
+        store.addAppointment(makeAppointment("Slot/slot001"));
+        BulkExport instance = store.startExport();
+        store.addAppointment(makeAppointment("Slot/slot002"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, instance.writeAppointments(out));
+        assertEquals(1, instance.getAppointmentCount());
+        String text = out.toString("UTF-8");
+        assertTrue(text.endsWith("\n"));
+        assertTrue(text.contains("Slot/slot001"));
+    }
+
+    /**
+     * Test of writeFiles method, of class BulkExport.
+     */
+    @Test
+    public void testWriteFiles() throws IOException {
+        System.out.println("writeFiles");
+        store.addAppointment(makeAppointment("Slot/slot001"));
+        BulkExport instance = store.startExport();
+        File dir = new File(Files.createTempDirectory("export").toFile(), "out");
+        List<File> files = instance.writeFiles(dir, 15);
+        assertEquals(4, files.size());
+        assertEquals("Slot-1.ndjson.gz", files.get(0).getName());
+        assertEquals("Slot-3.ndjson.gz", files.get(2).getName());
+        assertEquals("Appointment-1.ndjson.gz", files.get(3).getName());
+        int[] expected = {15, 15, 10, 1};
+        for (int i = 0; i < files.size(); i++) {
+            int count = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(files.get(i))), "UTF-8"))) {
+                while (reader.readLine() != null) {
+                    count++;
+                }
+            }
+            assertEquals(expected[i], count);
+            files.get(i).delete();
+        }
+        dir.delete();
+        dir.getParentFile().delete();
+    }
+}
@@ -19,11 +19,16 @@ import uk.nhs.fhir.bookingprovider.data.DataStore;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import org.hl7.fhir.dstu3.model.Address;
 import org.hl7.fhir.dstu3.model.Appointment;
@@ -85,6 +90,8 @@ public class DataStoreTest {
 
     @After
     public void tearDown() {
+        // Put the shared store back as it was, for the next test.
+        DataStore.getInstance().initialize();
     }
 
     /**
@@ -145,6 +152,30 @@ public class DataStoreTest {
         assertEquals(expResult, result.getSchedule().getReference());
     }
 
+    /**
+     * Test of getSlotByID method, of class DataStore, using a reference.
+     */
+    @Test
+    public void testGetSlotByID3() {
+        System.out.println("getSlotByID");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        Slot result = instance.getSlotByID("/Slot/slot055");
+        assertEquals("slot055", result.getId());
+    }
+
+    /**
+     * Test of getSlotByID method, of class DataStore, with an unknown id.
+     */
+    @Test
+    public void testGetSlotByID4() {
+        System.out.println("getSlotByID");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        Slot result = instance.getSlotByID("slot999");
+        assertNull(result);
+    }
+
     /**
      * Test of getSlotsByHealthcareService method, of class DataStore.
      */
@@ -159,6 +190,76 @@ public class DataStoreTest {
         assertEquals(expResult, result.size());
     }
 
+    /**
+     * Test of getSlotsByHealthcareService method, of class DataStore, for a
+     * HealthcareService which runs no Schedules.
+     */
+    @Test
+    public void testGetSlotsByHealthcareServiceUnknown() {
+        System.out.println("getSlotsByHealthcareService");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        ArrayList result = instance.getSlotsByHealthcareService("000000000000");
+        assertEquals(0, result.size());
+    }
+
+    /**
+     * Test of getSlotsByHealthcareService method, of class DataStore, checking
+     * only Slots from that service's Schedule are returned.
+     */
+    @Test
+    public void testGetSlotsByHealthcareService2() {
+        System.out.println("getSlotsByHealthcareService");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        ArrayList result = instance.getSlotsByHealthcareService("118111118111");
+        assertEquals(20, result.size());
+        for (Object obj : result) {
+            Slot sl = (Slot) obj;
+            assertEquals("/Schedule/sched2222", sl.getSchedule().getReference());
+        }
+    }
+
+    /**
+     * Test of getSlotsByHealthcareService method, of class DataStore, with a
+     * range of start times.
+     */
+    @Test
+    public void testGetSlotsByHealthcareServiceStart() {
+        System.out.println("getSlotsByHealthcareService");
+        String HCS = "918999198999";
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        // From 09:00 tomorrow up to (but not including) 10:00 tomorrow...
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 9);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DATE, 1);
+        long from = cal.getTimeInMillis();
+        cal.add(Calendar.HOUR_OF_DAY, 1);
+        long to = cal.getTimeInMillis();
+        ArrayList<Slot> result = instance.getSlotsByHealthcareService(HCS, null, from, to);
+        assertEquals(4, result.size());
+        assertEquals("slot001", result.get(0).getId());
+        assertEquals("slot004", result.get(3).getId());
+    }
+
+    /**
+     * Test of getSlotsByStart method, of class DataStore.
+     */
+    @Test
+    public void testGetSlotsByStart() {
+        System.out.println("getSlotsByStart");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        Slot first = instance.getSlotByID("slot001");
+        long from = first.getStart().getTime();
+        ArrayList<Slot> result = instance.getSlotsByStart(null, from, from + 1);
+        assertEquals(2, result.size());
+    }
+
     /**
      * Test of MakePractitionerRoles method, of class DataStore.
      */
@@ -522,6 +623,207 @@ public class DataStoreTest {
         assertEquals(SlotStatus.BUSY, sl.getStatus());
     }
 
+    /**
+     * Test of bookSlotIfFree method, of class DataStore.
+     */
+    @Test
+    public void testBookSlotIfFree() {
+        System.out.println("bookSlotIfFree");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        assertTrue(instance.bookSlotIfFree("/Slot/slot011"));
+        assertFalse(instance.bookSlotIfFree("/Slot/slot011"));
+        assertFalse(instance.bookSlotIfFree("/Slot/slot999"));
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot011").getStatus());
+        assertEquals(39, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of getSnapshot method, of class DataStore, checking that a reset
+     * publishes a new snapshot and leaves the old one as it was.
+     */
+    @Test
+    public void testGetSnapshot() {
+        System.out.println("getSnapshot");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        StoreSnapshot before = instance.getSnapshot();
+        assertTrue(instance.bookSlotIfFree("/Slot/slot013"));
+        instance.initialize();
+        StoreSnapshot after = instance.getSnapshot();
+        assertEquals(before.getEpoch() + 1, after.getEpoch());
+        assertEquals(SlotStatus.BUSY, before.getSlotByID("slot013").getStatus());
+        assertEquals(SlotStatus.FREE, after.getSlotByID("slot013").getStatus());
+        assertEquals(40, before.getSlots().size());
+        assertEquals(40, after.getFreeSlotCount());
+    }
+
+    /**
+     * Test of setSlotTemplates method, of class DataStore.
+     */
+    @Test
+    public void testSetSlotTemplates() {
+        System.out.println("setSlotTemplates");
+        DataStore instance = DataStore.getInstance();
+        ArrayList<SessionTemplate> templates = new ArrayList<>();
+        templates.add(new SessionTemplate(1, "/Schedule/sched1111", 0xFE,
+                9 * 60, 10 * 60, 15, new java.util.HashSet<Integer>()));
+        try {
+            instance.setSlotTemplates(templates, 7);
+            assertEquals(40 + 7 * 4, instance.getSlotCount());
+            assertEquals(20 + 7 * 4, instance.getSlotsByHealthcareService("918999198999").size());
+            String id = ((Slot) instance.getSlotsByHealthcareService("918999198999").get(20)).getId();
+            assertTrue(instance.bookSlotIfFree("/Slot/" + id));
+            assertEquals(SlotStatus.BUSY, instance.getSlotByID(id).getStatus());
+        } finally {
+            instance.setSlotTemplates(new ArrayList<SessionTemplate>(), 0);
+        }
+        assertEquals(40, instance.getSlotCount());
+    }
+
+    /**
+     * Test of housekeep method, of class DataStore, dropping the Slots which
+     * have ended and keeping the bookings of the rest.
+     *
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testHousekeep() throws java.io.IOException {
+        System.out.println("housekeep");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        assertTrue(instance.bookSlotIfFree("/Slot/slot013"));
+        assertEquals(0, instance.housekeep(System.currentTimeMillis()));
+        Slot second = instance.getSlotByID("slot002");
+        StoreSnapshot before = instance.getSnapshot();
+        assertEquals(4, instance.housekeep(second.getEnd().getTime()));
+        assertEquals(36, instance.getSlotCount());
+        assertNull(instance.getSlotByID("slot002"));
+        assertNull(instance.getSlotByID("slot052"));
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot013").getStatus());
+        assertEquals(35, instance.getFreeSlotCount());
+        assertTrue(instance.freeSlotIfBooked("/Slot/slot013"));
+        assertEquals(40, before.getSlotCount());
+        assertEquals(SlotStatus.BUSY, before.getSlotByID("slot013").getStatus());
+    }
+
+    /**
+     * Test of housekeep method, of class DataStore, keeping the Appointments
+     * which are over as there's no journal to archive them to.
+     *
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testHousekeepAppointments() throws java.io.IOException {
+        System.out.println("housekeep");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        Appointment over = new Appointment();
+        over.setStart(new Date(System.currentTimeMillis() - 7200000));
+        over.setEnd(new Date(System.currentTimeMillis() - 3600000));
+        instance.addAppointment(over);
+        Appointment unfinished = new Appointment();
+        unfinished.setStart(new Date(System.currentTimeMillis() - 3600000));
+        instance.addAppointment(unfinished);
+        Appointment future = new Appointment();
+        future.setStart(new Date(System.currentTimeMillis() + 3600000));
+        instance.addAppointment(future);
+        assertEquals(0, instance.housekeep(System.currentTimeMillis()));
+        assertEquals(3, instance.getAppointments().size());
+        assertEquals(40, instance.getSlotCount());
+    }
+
+    /**
+     * Test of setSlotBacking method, of class DataStore, booking and reading
+     * Slots held in an off heap table.
+     */
+    @Test
+    public void testSetSlotBacking() {
+        System.out.println("setSlotBacking");
+        DataStore instance = DataStore.getInstance();
+        try {
+            instance.setSlotBacking(DataStore.SlotBacking.OFF_HEAP_TABLE);
+            assertEquals(40, instance.getSlotCount());
+            assertTrue(instance.bookSlotIfFree("/Slot/slot061"));
+            assertFalse(instance.bookSlotIfFree("/Slot/slot061"));
+            assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot061").getStatus());
+            assertEquals(39, instance.getFreeSlotCount());
+            assertEquals(1, instance.getSlotsByStatus(SlotStatus.BUSY).size());
+        } finally {
+            instance.setSlotBacking(DataStore.SlotBacking.OBJECTS);
+        }
+        assertEquals(40, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of freeSlotIfBooked method, of class DataStore.
+     */
+    @Test
+    public void testFreeSlotIfBooked() {
+        System.out.println("freeSlotIfBooked");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        assertFalse(instance.freeSlotIfBooked("/Slot/slot012"));
+        assertTrue(instance.bookSlotIfFree("/Slot/slot012"));
+        assertTrue(instance.freeSlotIfBooked("/Slot/slot012"));
+        assertFalse(instance.freeSlotIfBooked("/Slot/slot012"));
+        assertFalse(instance.freeSlotIfBooked("/Slot/slot999"));
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot012").getStatus());
+        assertEquals(40, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of bookSlotIfFree method, of class DataStore, with lots of threads
+     * racing to book the same Slot.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testBookSlotIfFreeConcurrent() throws InterruptedException {
+        System.out.println("bookSlotIfFree");
+        final DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        final AtomicInteger bookings = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (instance.bookSlotIfFree("slot012")) {
+                        bookings.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, bookings.get());
+        assertEquals(39, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of setSlotFree method, of class DataStore.
+     */
+    @Test
+    public void testSetSlotFree() {
+        System.out.println("setSlotFree");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        instance.setSlotBooked("/Slot/slot010");
+        instance.setSlotFree("/Slot/slot010");
+        Slot sl = instance.getSlotByID("slot010");
+        assertEquals(SlotStatus.FREE, sl.getStatus());
+    }
+
     /**
      * Test of getAppointments method, of class DataStore.
      */
@@ -573,6 +875,209 @@ public class DataStoreTest {
         assertEquals(identifier, result.getIdElement().getIdPart());
     }
 
+    /**
+     * Test of getAppointment method, of class DataStore, asking for a
+     * specific version.
+     */
+    @Test
+    public void testGetAppointmentVersion() {
+        System.out.println("getAppointment");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        IdDt newId = instance.addAppointment(makeAppointment(true));
+        String identifier = "Appointment/" + newId.getIdPart();
+        assertNotNull(instance.getAppointment(identifier + "/_history/1"));
+        assertNull(instance.getAppointment(identifier + "/_history/2"));
+        assertNull(instance.getAppointment("Appointment/" + UUID.randomUUID()));
+    }
+
+    /**
+     * Test of getAppointmentHistory method, of class DataStore.
+     */
+    @Test
+    public void testGetAppointmentHistory() {
+        System.out.println("getAppointmentHistory");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        IdDt newId = instance.addAppointment(makeAppointment(true));
+        String identifier = "Appointment/" + newId.getIdPart();
+        instance.setAppointmentStatus(identifier, 1, Appointment.AppointmentStatus.CANCELLED);
+        try {
+            instance.setAppointmentStatus(identifier, 1, Appointment.AppointmentStatus.ENTEREDINERROR);
+            fail("Updated an old version");
+        } catch (ResourceVersionConflictException ex) {
+        }
+        assertEquals(2, instance.getAppointmentVersion(identifier));
+        List<Appointment> history = instance.getAppointmentHistory(identifier);
+        assertEquals(2, history.size());
+        assertEquals(Appointment.AppointmentStatus.CANCELLED, history.get(0).getStatus());
+        assertEquals(Appointment.AppointmentStatus.BOOKED, history.get(1).getStatus());
+        assertEquals(Appointment.AppointmentStatus.BOOKED, instance.getAppointment(identifier + "/_history/1").getStatus());
+        assertNull(instance.getAppointmentHistory("Appointment/" + UUID.randomUUID()));
+        assertEquals(0, instance.getAppointmentVersion("Appointment/" + UUID.randomUUID()));
+    }
+
+    /**
+     * Test of searchAppointments method, of class DataStore.
+     */
+    @Test
+    public void testSearchAppointments() {
+        System.out.println("searchAppointments");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        long before = System.currentTimeMillis();
+        Appointment booked = makeAppointment(true);
+        booked.getSlotFirstRep().setReference("Slot/slot005");
+        String identifier = "Appointment/" + instance.addAppointment(booked).getIdPart();
+        instance.addAppointment(makeAppointment(true));
+        instance.setAppointmentStatus(identifier, Appointment.AppointmentStatus.CANCELLED);
+        assertEquals(2, instance.searchAppointments(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        List<Appointment> result = instance.searchAppointments("Slot/slot005", null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(1, result.size());
+        assertEquals("2", result.get(0).getIdElement().getVersionIdPart());
+        assertEquals(1, instance.searchAppointments(null, Appointment.AppointmentStatus.CANCELLED, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(2, instance.searchAppointments(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE, before, Long.MAX_VALUE).size());
+        instance.initialize();
+        assertEquals(0, instance.searchAppointments(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    /**
+     * Test of importSlots method, of class DataStore.
+     */
+    @Test
+    public void testImportSlots() throws IOException {
+        System.out.println("importSlots");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        assertTrue(instance.bookSlotIfFree("/Slot/slot001"));
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DATE, 2);
+        String start = new org.hl7.fhir.dstu3.model.InstantType(cal.getTime()).getValueAsString();
+        cal.add(Calendar.MINUTE, 15);
+        String end = new org.hl7.fhir.dstu3.model.InstantType(cal.getTime()).getValueAsString();
+        String times = ",\"start\":\"" + start + "\",\"end\":\"" + end + "\"}";
+        String feed = "{\"resourceType\":\"Slot\",\"id\":\"imp001\",\"status\":\"free\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n"
+                + "{\"resourceType\":\"Slot\",\"id\":\"slot001\",\"status\":\"free\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n"
+                + "{\"resourceType\":\"Slot\",\"id\":\"imp002\",\"status\":\"free\",\"schedule\":{\"reference\":\"Schedule/nowhere\"}" + times + "\n"
+                + "not json\n";
+        SlotReader reader = new SlotReader(new java.io.ByteArrayInputStream(feed.getBytes("UTF-8")), false);
+        ImportResult result = instance.importSlots(reader);
+        assertEquals(2, result.getImported());
+        assertEquals(2, result.getRejected());
+        assertEquals(2, result.getProblems().size());
+        assertEquals(41, instance.getSlotCount());
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("imp001").getStatus());
+        assertEquals("/Schedule/sched1111", instance.getSlotByID("imp001").getSchedule().getReference());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot001").getStatus());
+        assertEquals(cal.getTime().getTime() / 1000, instance.getSlotByID("slot001").getEnd().getTime() / 1000);
+        assertEquals(21, instance.getSlotsByHealthcareService("918999198999").size());
+        assertTrue(instance.bookSlotIfFree("/Slot/imp001"));
+    }
+
+    /**
+     * Test of importSlots method, of class DataStore, with the Slots held in
+     * a table which can't take the ids in the feed.
+     */
+    @Test
+    public void testImportSlotsTable() throws IOException {
+        System.out.println("importSlots");
+        DataStore instance = DataStore.getInstance();
+        try {
+            instance.setSlotBacking(DataStore.SlotBacking.HEAP_TABLE);
+            Calendar cal = Calendar.getInstance();
+            cal.add(Calendar.DATE, 2);
+            String start = new org.hl7.fhir.dstu3.model.InstantType(cal.getTime()).getValueAsString();
+            cal.add(Calendar.MINUTE, 15);
+            String end = new org.hl7.fhir.dstu3.model.InstantType(cal.getTime()).getValueAsString();
+            String times = ",\"start\":\"" + start + "\",\"end\":\"" + end + "\"}";
+            String feed = "{\"resourceType\":\"Slot\",\"id\":\"slot201\",\"status\":\"free\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n"
+                    + "{\"resourceType\":\"Slot\",\"id\":\"imp001\",\"status\":\"free\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n";
+            SlotReader reader = new SlotReader(new java.io.ByteArrayInputStream(feed.getBytes("UTF-8")), false);
+            try {
+                instance.importSlots(reader);
+                fail("The table can't hold imp001");
+            } catch (UnprocessableEntityException ex) {
+                assertTrue(ex.getMessage().contains("imp001"));
+            }
+            assertEquals(40, instance.getSlotCount());
+            assertNull(instance.getSlotByID("slot201"));
+            assertTrue(instance.bookSlotIfFree("/Slot/slot001"));
+            assertTrue(instance.freeSlotIfBooked("/Slot/slot001"));
+
+            // A comment would be lost, so that is refused too...
+            feed = "{\"resourceType\":\"Slot\",\"id\":\"slot202\",\"status\":\"free\",\"comment\":\"Ramp\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n";
+            reader = new SlotReader(new java.io.ByteArrayInputStream(feed.getBytes("UTF-8")), false);
+            try {
+                instance.importSlots(reader);
+                fail("The table can't hold a comment");
+            } catch (UnprocessableEntityException ex) {
+                assertTrue(ex.getMessage().contains("slot202"));
+            }
+
+            // ...but a plain Slot comes back just as it went in.
+            feed = "{\"resourceType\":\"Slot\",\"id\":\"slot203\",\"status\":\"busy\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n";
+            reader = new SlotReader(new java.io.ByteArrayInputStream(feed.getBytes("UTF-8")), false);
+            assertEquals(1, instance.importSlots(reader).getImported());
+            Slot result = instance.getSlotByID("slot203");
+            assertEquals(SlotStatus.BUSY, result.getStatus());
+            assertEquals("/Schedule/sched1111", result.getSchedule().getReference());
+            assertEquals(cal.getTime().getTime() / 1000, result.getEnd().getTime() / 1000);
+            assertEquals(instance.getSlotByID("slot001").getMeta().getProfile().get(0).getValue(),
+                    result.getMeta().getProfile().get(0).getValue());
+            assertEquals(41, instance.getSlotCount());
+        } finally {
+            instance.setSlotBacking(DataStore.SlotBacking.OBJECTS);
+        }
+    }
+
+    /**
+     * Test of setSharded method, of class DataStore.
+     */
+    @Test
+    public void testSetSharded() {
+        System.out.println("setSharded");
+        DataStore instance = DataStore.getInstance();
+        try {
+            instance.setSharded(true);
+            assertTrue(instance.isSharded());
+            assertEquals(40, instance.getSlotCount());
+            assertTrue(instance.bookSlotIfFree("/Slot/slot051"));
+            assertFalse(instance.bookSlotIfFree("/Slot/slot051"));
+            assertEquals(39, instance.getFreeSlotCount());
+            assertEquals(19, instance.getFreeSlotsByHCS("118111118111", "free").size());
+            assertEquals(20, instance.getFreeSlotsByHCS("918999198999", "free").size());
+            Appointment other = makeAppointment(true);
+            other.getSlotFirstRep().setReference("Slot/slot051");
+            instance.addAppointment(other);
+            instance.addAppointment(makeAppointment(true));
+            assertEquals(1, instance.searchAppointments("Slot/slot051", null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            assertEquals(1, instance.searchAppointments("Slot/slot004", null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            assertEquals(2, instance.searchAppointments(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        } finally {
+            instance.setSharded(false);
+        }
+        assertFalse(instance.isSharded());
+        assertEquals(40, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of setAppointmentStatus method, of class DataStore.
+     */
+    @Test
+    public void testSetAppointmentStatus() {
+        System.out.println("setAppointmentStatus");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        IdDt newId = instance.addAppointment(makeAppointment(true));
+        String identifier = "Appointment/" + newId.getIdPart();
+        Appointment result = instance.setAppointmentStatus(identifier, Appointment.AppointmentStatus.CANCELLED);
+        assertEquals(Appointment.AppointmentStatus.CANCELLED, result.getStatus());
+        assertEquals(newId.getIdPart(), result.getIdElement().getIdPart());
+        assertEquals("2", result.getIdElement().getVersionIdPart());
+        assertSame(result, instance.getAppointment(identifier + "/_history/2"));
+        assertNull(instance.setAppointmentStatus("Appointment/" + UUID.randomUUID(), Appointment.AppointmentStatus.CANCELLED));
+    }
+
     /**
      * Test of getSlots method, of class DataStore.
      */
@@ -660,6 +1165,56 @@ public class DataStoreTest {
         assertEquals(expResult, result.size());
     }
 
+    /**
+     * Test of getFreeSlotCount method, of class DataStore.
+     */
+    @Test
+    public void testGetFreeSlotCount() {
+        System.out.println("getFreeSlotCount");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        assertEquals(40, instance.getFreeSlotCount());
+        instance.setSlotBooked("slot001");
+        instance.setSlotBooked("slot001");
+        instance.setSlotBooked("slot051");
+        assertEquals(38, instance.getFreeSlotCount());
+        instance.setSlotFree("slot001");
+        assertEquals(39, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of getSlotsByStatus method, of class DataStore.
+     */
+    @Test
+    public void testGetSlotsByStatus() {
+        System.out.println("getSlotsByStatus");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        instance.setSlotBooked("slot002");
+        instance.setSlotBooked("slot052");
+        ArrayList<Slot> result = instance.getSlotsByStatus(SlotStatus.BUSY);
+        assertEquals(2, result.size());
+        assertEquals("slot002", result.get(0).getId());
+        assertEquals(38, instance.getSlotsByStatus(SlotStatus.FREE).size());
+    }
+
+    /**
+     * Test of getSlotsByHealthcareService method, of class DataStore, asking
+     * only for busy Slots within a range of start times.
+     */
+    @Test
+    public void testGetSlotsByHealthcareServiceStartBusy() {
+        System.out.println("getSlotsByHealthcareService");
+        DataStore instance = DataStore.getInstance();
+        instance.initialize();
+        instance.setSlotBooked("slot003");
+        instance.setSlotBooked("slot053");
+        ArrayList<Slot> result = instance.getSlotsByHealthcareService(
+                "918999198999", SlotStatus.BUSY, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(1, result.size());
+        assertEquals("slot003", result.get(0).getId());
+    }
+
     /**
      * Test of getPractitioner method, of class DataStore.
      */
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DiskStoreTest {
+
+    private File dir;
+
+    private DiskStore instance;
+
+    public DiskStoreTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("diskstore").toFile();
+        instance = new DiskStore(dir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        instance.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private Appointment makeAppointment(String slot) {
+        Appointment appt = new Appointment();
+        appt.setStatus(Appointment.AppointmentStatus.BOOKED);
+        appt.addSlot().setReference(slot);
+        return appt;
+    }
+
+    /**
+     * Test of bookSlotIfFree and freeSlotIfBooked methods, of class
+     * DiskStore.
+     */
+    @Test
+    public void testBookSlotIfFree() {
+        System.out.println("bookSlotIfFree");
+        assertEquals(40, instance.getSlotCount());
+        assertTrue(instance.bookSlotIfFree("/Slot/slot001"));
+        assertFalse(instance.bookSlotIfFree("/Slot/slot001"));
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot001").getStatus());
+        assertEquals(39, instance.getFreeSlotCount());
+        assertTrue(instance.freeSlotIfBooked("/Slot/slot001"));
+        assertFalse(instance.freeSlotIfBooked("/Slot/slot999"));
+        assertEquals(40, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of bookSlotIfFree method, of class DiskStore, when the booking
+     * can't be written.
+     */
+    @Test
+    public void testBookSlotIfFreeUnwritten() throws IOException {
+        System.out.println("bookSlotIfFree");
+        instance.close();
+        try {
+            instance.bookSlotIfFree("/Slot/slot001");
+            fail("The store is closed");
+        } catch (InternalErrorException ex) {
+            assertEquals(SlotStatus.FREE, instance.getSlotByID("slot001").getStatus());
+            assertEquals(40, instance.getFreeSlotCount());
+        }
+    }
+
+    /**
+     * Test of addAppointment and setAppointmentStatus methods, of class
+     * DiskStore.
+     */
+    @Test
+    public void testSetAppointmentStatus() {
+        System.out.println("setAppointmentStatus");
+        String id = instance.addAppointment(makeAppointment("Slot/slot001")).getIdPart();
+        String identifier = "Appointment/" + id;
+        assertEquals(1, instance.getAppointmentVersion(identifier));
+        Appointment result = instance.setAppointmentStatus(identifier, 1, Appointment.AppointmentStatus.CANCELLED);
+        assertEquals("2", result.getIdElement().getVersionIdPart());
+        assertEquals(Appointment.AppointmentStatus.CANCELLED, instance.getAppointment(identifier).getStatus());
+        assertEquals(Appointment.AppointmentStatus.BOOKED, instance.getAppointment(identifier + "/_history/1").getStatus());
+        assertNull(instance.getAppointment(identifier + "/_history/3"));
+        List<Appointment> history = instance.getAppointmentHistory(identifier);
+        assertEquals(2, history.size());
+        assertEquals("2", history.get(0).getIdElement().getVersionIdPart());
+        try {
+            instance.setAppointmentStatus(identifier, 1, Appointment.AppointmentStatus.ENTEREDINERROR);
+            fail("Expected a version conflict");
+        } catch (ResourceVersionConflictException ex) {
+            assertEquals(2, instance.getAppointmentVersion(identifier));
+        }
+        assertNull(instance.setAppointmentStatus("Appointment/unknown", 0, Appointment.AppointmentStatus.CANCELLED));
+    }
+
+    /**
+     * Test of searchAppointments method, of class DiskStore.
+     */
+    @Test
+    public void testSearchAppointments() {
+        System.out.println("searchAppointments");
+        instance.addAppointment(makeAppointment("Slot/slot001"));
+        String id = instance.addAppointment(makeAppointment("Slot/slot002")).getIdPart();
+        instance.setAppointmentStatus("Appointment/" + id, 0, Appointment.AppointmentStatus.CANCELLED);
+        assertEquals(2, instance.getAppointments().size());
+        assertEquals(2, instance.getAppointmentCount());
+        assertEquals(1, instance.searchAppointments("Slot/slot002", null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(1, instance.searchAppointments(null, Appointment.AppointmentStatus.BOOKED, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        List<Appointment> cancelled = instance.searchAppointments(null, Appointment.AppointmentStatus.CANCELLED, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(1, cancelled.size());
+        assertEquals(id, cancelled.get(0).getIdElement().getIdPart());
+        assertEquals(0, instance.searchAppointments("Slot/slot002", Appointment.AppointmentStatus.BOOKED, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    /**
+     * Test of searchAppointments method, of class DiskStore, after it has
+     * been reopened, which should index what it reads back.
+     */
+    @Test
+    public void testSearchAppointmentsReopened() throws IOException {
+        System.out.println("searchAppointments");
+        String id = instance.addAppointment(makeAppointment("Slot/slot002")).getIdPart();
+        instance.setAppointmentStatus("Appointment/" + id, 0, Appointment.AppointmentStatus.CANCELLED);
+        instance.close();
+
+        instance = new DiskStore(dir);
+        assertEquals(1, instance.getAppointmentCount());
+        assertEquals(1, instance.searchAppointments("Slot/slot002", Appointment.AppointmentStatus.CANCELLED, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(0, instance.searchAppointments(null, Appointment.AppointmentStatus.BOOKED, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    /**
+     * Test of compact method, of class DiskStore, which should leave out the
+     * dead records but keep everything else where it can be found.
+     */
+    @Test
+    public void testCompact() throws IOException {
+        System.out.println("compact");
+        for (int i = 0; i < 50; i++) {
+            assertTrue(instance.bookSlotIfFree("/Slot/slot001"));
+            assertTrue(instance.freeSlotIfBooked("/Slot/slot001"));
+        }
+        assertTrue(instance.bookSlotIfFree("/Slot/slot055"));
+        String id = instance.addAppointment(makeAppointment("Slot/slot055")).getIdPart();
+        instance.setAppointmentStatus("Appointment/" + id, 0, Appointment.AppointmentStatus.CANCELLED);
+        File file = new File(dir, DiskStore.FILE_NAME);
+        long before = file.length();
+        instance.compact();
+        assertTrue(file.length() < before);
+        assertFalse(new File(dir, DiskStore.COMPACT_NAME).exists());
+        assertEquals(Appointment.AppointmentStatus.BOOKED, instance.getAppointment("Appointment/" + id + "/_history/1").getStatus());
+        assertEquals(1, instance.searchAppointments("Slot/slot055", null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+        assertTrue(instance.bookSlotIfFree("/Slot/slot002"));
+        instance.setAppointmentStatus("Appointment/" + id, 2, Appointment.AppointmentStatus.ENTEREDINERROR);
+        instance.close();
+        instance = new DiskStore(dir);
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot001").getStatus());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot002").getStatus());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot055").getStatus());
+        assertEquals(3, instance.getAppointmentVersion("Appointment/" + id));
+        assertEquals(Appointment.AppointmentStatus.CANCELLED, instance.getAppointment("Appointment/" + id + "/_history/2").getStatus());
+        assertEquals(Appointment.AppointmentStatus.ENTEREDINERROR, instance.getAppointment("Appointment/" + id).getStatus());
+    }
+
+    /**
+     * Test of reopening a DiskStore, which should find everything as it was
+     * left.
+     */
+    @Test
+    public void testReopen() throws IOException {
+        System.out.println("reopen");
+        assertTrue(instance.bookSlotIfFree("/Slot/slot055"));
+        String id = instance.addAppointment(makeAppointment("Slot/slot055")).getIdPart();
+        instance.setAppointmentStatus("Appointment/" + id, 0, Appointment.AppointmentStatus.CANCELLED);
+        instance.close();
+
+        instance = new DiskStore(dir);
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot055").getStatus());
+        assertEquals(39, instance.getFreeSlotCount());
+        assertEquals(2, instance.getAppointmentVersion("Appointment/" + id));
+        assertEquals(Appointment.AppointmentStatus.CANCELLED, instance.getAppointment("Appointment/" + id).getStatus());
+
+        instance.initialize();
+        assertEquals(0, instance.getAppointmentCount());
+        instance.close();
+        instance = new DiskStore(dir);
+        assertEquals(40, instance.getFreeSlotCount());
+        assertEquals(0, instance.getAppointments().size());
+    }
+
+    /**
+     * Test of a DiskStore holding its Slots in sharded tables, which should
+     * be kept as they are whichever way the Slots are held.
+     */
+    @Test
+    public void testSlotBacking() throws IOException {
+        System.out.println("slotBacking");
+        assertTrue(instance.bookSlotIfFree("/Slot/slot055"));
+        instance.close();
+
+        instance = new DiskStore(dir, DataStore.SlotBacking.HEAP_TABLE, true);
+        assertTrue(instance.getSnapshot().getSlotStore() instanceof ShardedSlotStore);
+        assertTrue(instance.getSnapshot().getSlotStore().shard("118111118111") instanceof SlotTable);
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot055").getStatus());
+        assertEquals(39, instance.getFreeSlotCount());
+        assertTrue(instance.bookSlotIfFree("/Slot/slot001"));
+        assertEquals(38, instance.getFreeSlotCount());
+    }
+}
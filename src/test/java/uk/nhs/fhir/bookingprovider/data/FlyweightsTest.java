@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlyweightsTest {
+
+    public FlyweightsTest() {
+    }
+
+    /**
+     * Test of profile, reference and coding methods, of class Flyweights.
+     */
+    @Test
+    public void testIntern() {
+        System.out.println("intern");
+        Flyweights instance = new Flyweights();
+        assertSame(instance.profile("http://a"), instance.profile("http://a"));
+        assertNotSame(instance.profile("http://a"), instance.profile("http://b"));
+        assertEquals("http://a", instance.profile("http://a").getProfile().get(0).getValue());
+        assertSame(instance.reference("/Schedule/s1"), instance.reference("/Schedule/s1"));
+        assertEquals("/Schedule/s1", instance.reference("/Schedule/s1").getReference());
+        assertSame(instance.coding("sys", "c", "d"), instance.coding("sys", "c", "d"));
+        assertNotSame(instance.coding("sys", "c", "d"), instance.coding("sys", "c", null));
+    }
+
+    /**
+     * Test of share method, of class Flyweights.
+     */
+    @Test
+    public void testShare() {
+        System.out.println("share");
+        Flyweights instance = new Flyweights();
+        Slot a = makeSlot();
+        Slot b = makeSlot();
+        instance.share(a);
+        instance.share(b);
+        assertSame(a.getMeta(), b.getMeta());
+        assertSame(a.getSchedule(), b.getSchedule());
+        assertSame(a.getServiceTypeFirstRep().getCodingFirstRep(),
+                b.getServiceTypeFirstRep().getCodingFirstRep());
+        assertEquals("/Schedule/s1", a.getSchedule().getReference());
+
+        // Parts carrying more than the plain value are left alone.
+        Slot c = makeSlot();
+        c.getMeta().addTag("sys", "tag", null);
+        c.getSchedule().setDisplay("Schedule One");
+        Meta meta = c.getMeta();
+        Reference ref = c.getSchedule();
+        instance.share(c);
+        assertSame(meta, c.getMeta());
+        assertSame(ref, c.getSchedule());
+    }
+
+    /**
+     * Helper to make a Slot with its own copy of each part.
+     *
+     * @return The new Slot.
+     */
+    private Slot makeSlot() {
+        Slot slot = new Slot();
+        Meta meta = new Meta();
+        meta.addProfile("http://profile");
+        slot.setMeta(meta);
+        slot.setSchedule(new Reference("/Schedule/s1"));
+        CodeableConcept type = new CodeableConcept();
+        type.addCoding(new Coding("sys", "c", "d"));
+        slot.addServiceType(type);
+        return slot;
+    }
+}
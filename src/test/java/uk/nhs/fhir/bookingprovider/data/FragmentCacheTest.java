@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import org.hl7.fhir.dstu3.model.Location;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FragmentCacheTest {
+
+    public FragmentCacheTest() {
+    }
+
+    /**
+     * Test of get and put methods, of class FragmentCache.
+     */
+    @Test
+    public void testPut() {
+        System.out.println("put");
+        ArrayList<Object> locations = DataStore.getInstance().makeLocations();
+        locations.add(locations.get(0));
+        FragmentCache instance = new FragmentCache(locations);
+        assertEquals(2, instance.size());
+        Object loc = locations.get(1);
+        assertTrue(instance.holds(loc));
+        assertNull(instance.get(loc, "json"));
+        instance.put(loc, "json", "{}");
+        assertEquals("{}", instance.get(loc, "json"));
+        assertNull(instance.get(loc, "xml"));
+        assertNull(instance.get(locations.get(0), "json"));
+        Location copy = new Location();
+        copy.setId("loc2222");
+        assertFalse(instance.holds(copy));
+        instance.put(copy, "json", "{}");
+        assertNull(instance.get(copy, "json"));
+    }
+
+    /**
+     * Test of getFragments method, of class IncludeGraph, checking that a
+     * snapshot with new Slots keeps the cache, and one with new resources
+     * doesn't.
+     */
+    @Test
+    public void testSnapshotFragments() {
+        System.out.println("getFragments");
+        DataStore store = DataStore.getInstance();
+        store.initialize();
+        StoreSnapshot view = store.getSnapshot();
+        FragmentCache cache = view.getIncludeGraph().getFragments();
+        assertEquals(9, cache.size());
+        assertTrue(cache.holds(view.getLocation("loc1111")));
+        assertFalse(cache.holds(view.getSlotByID("slot001")));
+        assertSame(cache, view.withSlots(2, view.getSlotStore())
+                .getIncludeGraph().getFragments());
+        store.initialize();
+        assertNotSame(cache,
+                store.getSnapshot().getIncludeGraph().getFragments());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GroupCommitTest {
+
+    public GroupCommitTest() {
+    }
+
+    /**
+     * Test of await method, of class GroupCommit, which should only return
+     * once the record has been written.
+     */
+    @Test
+    public void testAwait() throws InterruptedException {
+        System.out.println("await");
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final GroupCommit<String> instance = new GroupCommit<>("test writer", "test",
+                new GroupCommit.Batch<String>() {
+                    @Override
+                    public void write(List<String> records) {
+                        written.addAll(records);
+                    }
+                });
+        final List<String> early = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final String record = "r" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    instance.await(record);
+                    if (!written.contains(record)) {
+                        early.add(record);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        instance.close();
+        assertTrue(early.isEmpty());
+        assertEquals(threads.length, written.size());
+    }
+
+    /**
+     * Test of await method, of class GroupCommit, when the batch can't be
+     * written or the writer is closed.
+     */
+    @Test
+    public void testAwaitFailed() {
+        System.out.println("await");
+        GroupCommit<String> instance = new GroupCommit<>("test writer", "test",
+                new GroupCommit.Batch<String>() {
+                    @Override
+                    public void write(List<String> records) throws IOException {
+                        throw new IOException("Disk full");
+                    }
+                });
+        try {
+            instance.await("r1");
+            fail("The write failed");
+        } catch (InternalErrorException ex) {
+            assertEquals("Disk full", ex.getCause().getMessage());
+        }
+        instance.close();
+        try {
+            instance.await("r2");
+            fail("The writer is closed");
+        } catch (InternalErrorException ex) {
+            assertNull(ex.getCause());
+        }
+    }
+
+    /**
+     * Test of await method, of class GroupCommit, when writing the batch
+     * throws an unchecked exception, which should fail that record but leave
+     * the writer running.
+     */
+    @Test
+    public void testAwaitUncheckedFailure() {
+        System.out.println("await");
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        GroupCommit<String> instance = new GroupCommit<>("test writer", "test",
+                new GroupCommit.Batch<String>() {
+                    @Override
+                    public void write(List<String> records) {
+                        if (records.contains("bad")) {
+                            throw new IllegalStateException("Can't encode");
+                        }
+                        written.addAll(records);
+                    }
+                });
+        try {
+            instance.await("bad");
+            fail("The write failed");
+        } catch (InternalErrorException ex) {
+            assertEquals("Can't encode", ex.getCause().getMessage());
+        }
+        instance.await("r1");
+        assertEquals(1, written.size());
+        instance.close();
+    }
+
+    /**
+     * Test of await method, of class GroupCommit, with threads still queueing
+     * records as it is closed, none of which should be left waiting.
+     */
+    @Test
+    public void testAwaitWhileClosing() throws InterruptedException {
+        System.out.println("await");
+        for (int round = 0; round < 50; round++) {
+            final GroupCommit<String> instance = new GroupCommit<>("test writer", "test",
+                    new GroupCommit.Batch<String>() {
+                        @Override
+                        public void write(List<String> records) {
+                        }
+                    });
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                instance.await("r");
+                            }
+                        } catch (InternalErrorException ex) {
+                            // Closed, as expected.
+                        }
+                    }
+                });
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+            instance.close();
+            for (Thread thread : threads) {
+                thread.join(5000);
+                assertFalse(thread.isAlive());
+            }
+        }
+    }
+}
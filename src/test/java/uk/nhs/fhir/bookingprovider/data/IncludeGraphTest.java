@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.HealthcareService;
+import org.hl7.fhir.dstu3.model.Location;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Practitioner;
+import org.hl7.fhir.dstu3.model.PractitionerRole;
+import org.hl7.fhir.dstu3.model.Schedule;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.nhs.fhir.bookingprovider.data.IncludeGraph.Target;
+
+public class IncludeGraphTest {
+
+    public IncludeGraphTest() {
+    }
+
+    /**
+     * Helper to build a graph from the standard test data.
+     *
+     * @return The new graph.
+     */
+    private IncludeGraph makeGraph() {
+        DataStore store = DataStore.getInstance();
+        return new IncludeGraph(store.makeSchedules(),
+                store.makeHealthcareServices(),
+                store.makePractitioners(),
+                store.makePractitionerRoles(),
+                store.makeOrganisations(),
+                store.makeLocations());
+    }
+
+    /**
+     * Test of resolve method, of class IncludeGraph, for one Schedule.
+     */
+    @Test
+    public void testResolve() {
+        System.out.println("resolve");
+        IncludeGraph instance = makeGraph();
+        List<Object> result = instance.resolve(
+                Arrays.asList("/Schedule/sched1111"),
+                EnumSet.allOf(Target.class));
+        assertEquals(6, result.size());
+        assertEquals("sched1111", ((Schedule) result.get(0)).getId());
+        assertEquals("918999198999", ((HealthcareService) result.get(1)).getId());
+        assertEquals("ABCD123456", ((Practitioner) result.get(2)).getId());
+        assertEquals("R0260", ((PractitionerRole) result.get(3)).getId());
+        assertEquals("A91545", ((Organization) result.get(4)).getId());
+        assertEquals("loc1111", ((Location) result.get(5)).getId());
+    }
+
+    /**
+     * Test of resolve method, of class IncludeGraph, checking resources
+     * shared by both Schedules are returned once, grouped by kind.
+     */
+    @Test
+    public void testResolveBoth() {
+        System.out.println("resolve");
+        IncludeGraph instance = makeGraph();
+        List<Object> result = instance.resolve(
+                Arrays.asList("/Schedule/sched1111", "/Schedule/sched2222",
+                        "/Schedule/sched1111", "/Schedule/nosuch"),
+                EnumSet.of(Target.LOCATION, Target.ORGANIZATION,
+                        Target.PRACTITIONER));
+        assertEquals(4, result.size());
+        assertTrue(result.get(0) instanceof Practitioner);
+        assertEquals("A91545", ((Organization) result.get(1)).getId());
+        assertEquals("loc1111", ((Location) result.get(2)).getId());
+        assertEquals("loc2222", ((Location) result.get(3)).getId());
+        assertTrue(instance.resolve(Arrays.asList("/Schedule/sched2222"),
+                EnumSet.noneOf(Target.class)).isEmpty());
+        assertTrue(instance.resolve(new ArrayList<String>(),
+                EnumSet.allOf(Target.class)).isEmpty());
+    }
+}
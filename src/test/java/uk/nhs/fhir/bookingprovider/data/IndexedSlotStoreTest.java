@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IndexedSlotStoreTest {
+
+    public IndexedSlotStoreTest() {
+    }
+
+    /**
+     * Test of compareAndSetStatus and count methods, of class
+     * IndexedSlotStore.
+     */
+    @Test
+    public void testCompareAndSetStatus() {
+        System.out.println("compareAndSetStatus");
+        IndexedSlotStore instance = new IndexedSlotStore(DataStore.getInstance().makeSlots());
+        assertEquals(40, instance.size());
+        assertTrue(instance.compareAndSetStatus("slot051", SlotStatus.FREE, SlotStatus.BUSY));
+        assertFalse(instance.compareAndSetStatus("slot051", SlotStatus.FREE, SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.getSlot("slot051").getStatus());
+        assertEquals(39, instance.count(SlotStatus.FREE));
+        assertEquals(1, instance.count(SlotStatus.BUSY));
+        assertNull(instance.getStatus("slot999"));
+    }
+
+    /**
+     * Test of addAll method, of class IndexedSlotStore.
+     */
+    @Test
+    public void testAddAll() {
+        System.out.println("addAll");
+        IndexedSlotStore instance = new IndexedSlotStore(DataStore.getInstance().makeSlots());
+        instance.setStatus("slot002", SlotStatus.BUSY);
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addAll("/Schedule/sched1111", SlotStatus.FREE, result);
+        assertEquals(19, result.size());
+        assertEquals("slot001", instance.idAt(0));
+        assertEquals(SlotStatus.BUSY, instance.statusAt(1));
+    }
+
+    /**
+     * Test of addPage method, of class IndexedSlotStore.
+     */
+    @Test
+    public void testAddPage() {
+        System.out.println("addPage");
+        IndexedSlotStore instance = new IndexedSlotStore(DataStore.getInstance().makeSlots());
+        long start = instance.getSlot("slot052").getStart().getTime();
+        instance.setStatus("slot054", SlotStatus.BUSY);
+        ArrayList<Slot> result = new ArrayList<>();
+        assertEquals(2, instance.addPage("/Schedule/sched2222", null, start, null, Long.MAX_VALUE, 2, result));
+        assertEquals("slot052", result.get(0).getId());
+        assertEquals("slot053", result.get(1).getId());
+        result.clear();
+        assertEquals(2, instance.addPage("/Schedule/sched2222", SlotStatus.FREE, start, "slot052", Long.MAX_VALUE, 2, result));
+        assertEquals("slot053", result.get(0).getId());
+        assertEquals("slot055", result.get(1).getId());
+        result.clear();
+        assertEquals(18, instance.addPage("/Schedule/sched2222", null, start, "slot052", Long.MAX_VALUE, 100, result));
+        result.clear();
+        assertEquals(0, instance.addPage("/Schedule/nosuch", null, start, null, Long.MAX_VALUE, 10, result));
+    }
+
+    /**
+     * Test of retire method, of class IndexedSlotStore.
+     */
+    @Test
+    public void testRetire() {
+        System.out.println("retire");
+        IndexedSlotStore instance = new IndexedSlotStore(DataStore.getInstance().makeSlots());
+        instance.setStatus("slot003", SlotStatus.BUSY);
+        assertFalse(instance.isRetired());
+        instance.retire();
+        assertTrue(instance.isRetired());
+        assertFalse(instance.compareAndSetStatus("slot003", SlotStatus.BUSY, SlotStatus.FREE));
+        assertNull(instance.setStatus("slot004", SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.statusAt(2));
+        assertEquals(SlotStatus.FREE, instance.getStatus("slot004"));
+        assertEquals(instance.slotAt(2).getEnd().getTime(), instance.endAt(2));
+    }
+}
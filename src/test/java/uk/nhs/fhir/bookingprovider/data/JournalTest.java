@@ -0,0 +1,284 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    private File dir;
+
+    public JournalTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+        DataStore.getInstance().initialize();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DataStore.getInstance().closeJournal();
+        DataStore.getInstance().initialize();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test of replay method, of class Journal, with bookings and an
+     * Appointment written through the DataStore.
+     */
+    @Test
+    public void testReplay() throws IOException {
+        System.out.println("replay");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        assertTrue(instance.bookSlotIfFree("/Slot/slot020"));
+        Appointment appt = new Appointment();
+        appt.setStatus(Appointment.AppointmentStatus.BOOKED);
+        String id = instance.addAppointment(appt).getIdPart();
+        instance.setAppointmentStatus("Appointment/" + appt.getId(), Appointment.AppointmentStatus.CANCELLED);
+        instance.closeJournal();
+
+        instance.initialize();
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot020").getStatus());
+        assertEquals(3, Journal.replay(dir, 0, instance));
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot020").getStatus());
+        assertEquals(39, instance.getFreeSlotCount());
+        List<Appointment> appts = instance.getAppointments();
+        assertEquals(1, appts.size());
+        assertEquals(id, appts.get(0).getIdElement().getIdPart());
+        assertEquals(Appointment.AppointmentStatus.CANCELLED, appts.get(0).getStatus());
+    }
+
+    /**
+     * Test of replay method, of class Journal, where the store was reset
+     * after a booking.
+     */
+    @Test
+    public void testReplayReset() throws IOException {
+        System.out.println("replay");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        assertTrue(instance.bookSlotIfFree("/Slot/slot014"));
+        instance.addAppointment(new Appointment());
+        instance.initialize();
+        assertTrue(instance.bookSlotIfFree("/Slot/slot015"));
+        instance.closeJournal();
+
+        instance.initialize();
+        Journal.replay(dir, 0, instance);
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot014").getStatus());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot015").getStatus());
+        assertEquals(0, instance.getAppointments().size());
+    }
+
+    /**
+     * Test of replay method, of class Journal, where an Appointment has been
+     * archived by housekeeping.
+     */
+    @Test
+    public void testReplayExpire() throws IOException {
+        System.out.println("replay");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        Appointment appt = new Appointment();
+        appt.setEnd(new Date(System.currentTimeMillis() - 60000));
+        instance.addAppointment(appt);
+        Appointment later = new Appointment();
+        later.setEnd(new Date(System.currentTimeMillis() + 3600000));
+        String id = instance.addAppointment(later).getIdPart();
+        assertEquals(1, instance.housekeep(System.currentTimeMillis()));
+        assertTrue(new File(dir, Archive.FILE_NAME).length() > 0);
+        instance.closeJournal();
+
+        instance.initialize();
+        assertEquals(3, Journal.replay(dir, 0, instance));
+        List<Appointment> appts = instance.getAppointments();
+        assertEquals(1, appts.size());
+        assertEquals(id, appts.get(0).getIdElement().getIdPart());
+    }
+
+    /**
+     * Test of the DataStore with a journal which can no longer be written,
+     * which should leave each change undone.
+     */
+    @Test
+    public void testAppendFails() throws Exception {
+        System.out.println("append");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        Appointment appt = new Appointment();
+        appt.setStatus(Appointment.AppointmentStatus.BOOKED);
+        String id = "Appointment/" + instance.addAppointment(appt).getIdPart();
+        Field field = DataStore.class.getDeclaredField("journal");
+        field.setAccessible(true);
+        ((Journal) field.get(instance)).close();
+
+        try {
+            instance.bookSlotIfFree("/Slot/slot019");
+            fail("The journal is closed");
+        } catch (InternalErrorException ex) {
+            assertEquals(SlotStatus.FREE, instance.getSlotByID("slot019").getStatus());
+        }
+        try {
+            instance.addAppointment(new Appointment());
+            fail("The journal is closed");
+        } catch (InternalErrorException ex) {
+            assertEquals(1, instance.getAppointmentCount());
+        }
+        try {
+            instance.setAppointmentStatus(id, 1, Appointment.AppointmentStatus.CANCELLED);
+            fail("The journal is closed");
+        } catch (InternalErrorException ex) {
+            assertEquals(1, instance.getAppointmentVersion(id));
+            assertEquals(Appointment.AppointmentStatus.BOOKED, instance.getAppointment(id).getStatus());
+        }
+    }
+
+    /**
+     * Test of replay method, of class Journal, with a feed of imported Slots
+     * too big for one line, and with the same feed cut short.
+     */
+    @Test
+    public void testReplayImport() throws IOException {
+        System.out.println("replay");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DATE, 2);
+        String start = new InstantType(cal.getTime()).getValueAsString();
+        cal.add(Calendar.MINUTE, 15);
+        String end = new InstantType(cal.getTime()).getValueAsString();
+        StringBuilder feed = new StringBuilder();
+        int count = Journal.IMPORT_BATCH + 10;
+        for (int i = 0; i < count; i++) {
+            feed.append("{\"resourceType\":\"Slot\",\"id\":\"imp").append(i)
+                    .append("\",\"status\":\"free\",\"schedule\":{\"reference\":\"Schedule/sched1111\"},\"start\":\"")
+                    .append(start).append("\",\"end\":\"").append(end).append("\"}\n");
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        SlotReader reader = new SlotReader(new ByteArrayInputStream(feed.toString().getBytes(utf8)), false);
+        assertEquals(count, instance.importSlots(reader).getImported());
+        instance.closeJournal();
+        File file = Journal.segmentFile(dir, 1);
+        List<String> lines = Files.readAllLines(file.toPath(), utf8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("J\t"));
+        assertTrue(lines.get(1).startsWith("I\t"));
+
+        instance.initialize();
+        assertEquals(2, Journal.replay(dir, 0, instance));
+        assertEquals(40 + count, instance.getSlotCount());
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("imp" + (count - 1)).getStatus());
+
+        // Without its last line the feed was never published, so is left out
+        Files.write(file.toPath(), (lines.get(0) + "\n").getBytes(utf8));
+        instance.initialize();
+        assertEquals(1, Journal.replay(dir, 0, instance));
+        assertEquals(40, instance.getSlotCount());
+    }
+
+    /**
+     * Test of the Journal constructor and replay, where the last line was
+     * only partly written.
+     */
+    @Test
+    public void testTornLastLine() throws IOException {
+        System.out.println("tornLastLine");
+        Charset utf8 = Charset.forName("UTF-8");
+        String whole = "S\tslot016\tBUSY\n";
+        File file = Journal.segmentFile(dir, 1);
+        Files.write(file.toPath(), (whole + "S\tslot01").getBytes(utf8));
+        DataStore instance = DataStore.getInstance();
+        assertEquals(1, Journal.replay(dir, 0, instance));
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot016").getStatus());
+        new Journal(dir).close();
+        assertEquals(whole, new String(Files.readAllBytes(file.toPath()), utf8));
+    }
+
+    /**
+     * Test of append method, of class Journal, with lots of threads writing
+     * at once so that their changes are committed in groups.
+     */
+    @Test
+    public void testAppendConcurrent() throws Exception {
+        System.out.println("append");
+        final DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            final String slot = "/Slot/slot0" + (51 + i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    instance.bookSlotIfFree(slot);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        instance.closeJournal();
+        instance.initialize();
+        assertEquals(10, Journal.replay(dir, 0, instance));
+        assertEquals(30, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of rotate and deleteSegmentsBefore methods, of class Journal.
+     */
+    @Test
+    public void testRotate() throws IOException {
+        System.out.println("rotate");
+        DataStore instance = DataStore.getInstance();
+        Journal journal = new Journal(dir);
+        assertTrue(instance.bookSlotIfFree("/Slot/slot017"));
+        journal.append(instance.getSnapshot().getSlotStore(), "slot017");
+        assertEquals(2L, journal.rotate());
+        assertTrue(instance.bookSlotIfFree("/Slot/slot018"));
+        journal.append(instance.getSnapshot().getSlotStore(), "slot018");
+        assertEquals(2, Journal.segments(dir).length);
+        journal.deleteSegmentsBefore(2);
+        journal.close();
+        assertArrayEquals(new long[] {2}, Journal.segments(dir));
+
+        instance.initialize();
+        assertEquals(1, Journal.replay(dir, 0, instance));
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot017").getStatus());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot018").getStatus());
+    }
+}
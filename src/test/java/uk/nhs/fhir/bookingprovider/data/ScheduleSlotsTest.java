@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ScheduleSlotsTest {
+
+    public ScheduleSlotsTest() {
+    }
+
+    /**
+     * Helper to make a Slot starting at a given time.
+     *
+     * @param id The id to give the Slot.
+     * @param start The start time in epoch millis.
+     * @return The new Slot.
+     */
+    private Slot makeSlot(String id, long start) {
+        Slot slot = new Slot();
+        slot.setId(id);
+        slot.setStart(new Date(start));
+        slot.setEnd(new Date(start + 900000));
+        slot.setStatus(Slot.SlotStatus.FREE);
+        return slot;
+    }
+
+    /**
+     * Test of addStartingBetween method, of class ScheduleSlots.
+     */
+    @Test
+    public void testAddStartingBetween() {
+        System.out.println("addStartingBetween");
+        ScheduleSlots instance = new ScheduleSlots();
+        instance.add(makeSlot("c", 3000));
+        instance.add(makeSlot("a", 1000));
+        instance.add(makeSlot("b", 2000));
+        instance.add(makeSlot("b2", 2000));
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addStartingBetween(null, 2000, 3000, result);
+        assertEquals(2, result.size());
+        assertEquals("b", result.get(0).getId());
+        assertEquals("b2", result.get(1).getId());
+    }
+
+    /**
+     * Test of addStartingBetween method, of class ScheduleSlots, with an empty
+     * range.
+     */
+    @Test
+    public void testAddStartingBetweenEmpty() {
+        System.out.println("addStartingBetween");
+        ScheduleSlots instance = new ScheduleSlots();
+        instance.add(makeSlot("a", 1000));
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addStartingBetween(null, 1000, 1000, result);
+        assertEquals(0, result.size());
+    }
+
+    /**
+     * Test of addAll method, of class ScheduleSlots.
+     */
+    @Test
+    public void testAddAll() {
+        System.out.println("addAll");
+        ScheduleSlots instance = new ScheduleSlots();
+        instance.add(makeSlot("b", 2000));
+        instance.add(makeSlot("a", 1000));
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addAll(null, result);
+        assertEquals(2, instance.size());
+        assertEquals("a", result.get(0).getId());
+    }
+
+    /**
+     * Test of setStatus method, of class ScheduleSlots.
+     */
+    @Test
+    public void testSetStatus() {
+        System.out.println("setStatus");
+        ScheduleSlots instance = new ScheduleSlots();
+        Slot a = makeSlot("a", 1000);
+        SlotEntry entryA = instance.add(a);
+        instance.add(makeSlot("b", 2000));
+        assertEquals(Slot.SlotStatus.FREE, instance.setStatus(entryA, Slot.SlotStatus.BUSY));
+        assertEquals(Slot.SlotStatus.BUSY, instance.setStatus(entryA, Slot.SlotStatus.BUSY));
+        assertEquals(Slot.SlotStatus.FREE, a.getStatus());
+        assertEquals(Slot.SlotStatus.BUSY, entryA.getCurrentSlot().getStatus());
+        assertEquals(1, instance.size(Slot.SlotStatus.FREE));
+        assertEquals(1, instance.size(Slot.SlotStatus.BUSY));
+
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addStartingBetween(Slot.SlotStatus.FREE, 0, 5000, result);
+        assertEquals(1, result.size());
+        assertEquals("b", result.get(0).getId());
+    }
+
+    /**
+     * Test of compareAndSetStatus method, of class ScheduleSlots.
+     */
+    @Test
+    public void testCompareAndSetStatus() {
+        System.out.println("compareAndSetStatus");
+        ScheduleSlots instance = new ScheduleSlots();
+        SlotEntry a = instance.add(makeSlot("a", 1000));
+        assertTrue(instance.compareAndSetStatus(a, Slot.SlotStatus.FREE, Slot.SlotStatus.BUSY));
+        assertFalse(instance.compareAndSetStatus(a, Slot.SlotStatus.FREE, Slot.SlotStatus.BUSY));
+        assertEquals(0, instance.size(Slot.SlotStatus.FREE));
+        assertTrue(instance.compareAndSetStatus(a, Slot.SlotStatus.BUSY, Slot.SlotStatus.FREE));
+        assertEquals(1, instance.size(Slot.SlotStatus.FREE));
+        assertEquals(Slot.SlotStatus.FREE, a.getSlot().getStatus());
+    }
+
+    /**
+     * Test that a Slot a reader already has keeps its status when the status
+     * changes, of class ScheduleSlots.
+     */
+    @Test
+    public void testReaderSlotUnchanged() {
+        System.out.println("readerSlotUnchanged");
+        ScheduleSlots instance = new ScheduleSlots();
+        SlotEntry a = instance.add(makeSlot("a", 1000));
+        ArrayList<Slot> before = new ArrayList<>();
+        instance.addAll(Slot.SlotStatus.FREE, before);
+        assertTrue(instance.compareAndSetStatus(a, Slot.SlotStatus.FREE, Slot.SlotStatus.BUSY));
+        assertEquals(Slot.SlotStatus.FREE, before.get(0).getStatus());
+        ArrayList<Slot> after = new ArrayList<>();
+        instance.addAll(Slot.SlotStatus.BUSY, after);
+        assertEquals(1, after.size());
+        assertEquals(Slot.SlotStatus.BUSY, after.get(0).getStatus());
+        assertEquals("a", after.get(0).getId());
+    }
+
+    /**
+     * Test of the shared free count, of class ScheduleSlots.
+     */
+    @Test
+    public void testSharedFreeCount() {
+        System.out.println("sharedFreeCount");
+        AtomicInteger free = new AtomicInteger();
+        ScheduleSlots first = new ScheduleSlots(free);
+        ScheduleSlots second = new ScheduleSlots(free);
+        SlotEntry a = first.add(makeSlot("a", 1000));
+        second.add(makeSlot("b", 1000));
+        assertEquals(2, free.get());
+        first.compareAndSetStatus(a, Slot.SlotStatus.FREE, Slot.SlotStatus.BUSYTENTATIVE);
+        assertEquals(1, free.get());
+        assertEquals(1, first.size(Slot.SlotStatus.BUSYTENTATIVE));
+    }
+
+    /**
+     * Test of compareAndSetStatus method, of class ScheduleSlots, with many
+     * threads all trying to book the same Slots.
+     */
+    @Test
+    public void testCompareAndSetStatusConcurrent() throws InterruptedException {
+        System.out.println("compareAndSetStatusConcurrent");
+        final ScheduleSlots instance = new ScheduleSlots();
+        final ArrayList<SlotEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            entries.add(instance.add(makeSlot("s" + i, i * 1000)));
+        }
+        final AtomicInteger booked = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (SlotEntry entry : entries) {
+                        if (instance.compareAndSetStatus(entry, Slot.SlotStatus.FREE, Slot.SlotStatus.BUSY)) {
+                            booked.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, booked.get());
+        assertEquals(0, instance.size(Slot.SlotStatus.FREE));
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addAll(Slot.SlotStatus.BUSY, result);
+        assertEquals(50, result.size());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionTemplateTest {
+
+    public SessionTemplateTest() {
+    }
+
+    /**
+     * Test of fromProperties method, of class SessionTemplate.
+     */
+    @Test
+    public void testFromProperties() {
+        System.out.println("fromProperties");
+        Properties props = new Properties();
+        props.setProperty("slot.template.2.schedule", "/Schedule/sched2222");
+        props.setProperty("slot.template.2.days", "SAT");
+        props.setProperty("slot.template.2.session", "14:00-16:00");
+        props.setProperty("slot.template.2.length", "10");
+        props.setProperty("slot.template.1.schedule", "/Schedule/sched1111");
+        props.setProperty("slot.template.1.days", "MON, tue");
+        props.setProperty("slot.template.1.session", "09:00-12:30");
+        props.setProperty("slot.template.1.length", "15");
+        props.setProperty("slot.template.1.exclude", "2019-12-23");
+        props.setProperty("baseurl", "https://localhost:8080/poc/");
+        List<SessionTemplate> result = SessionTemplate.fromProperties(props);
+        assertEquals(2, result.size());
+        SessionTemplate first = result.get(0);
+        assertEquals(1, first.getNumber());
+        assertEquals("/Schedule/sched1111", first.getScheduleRef());
+        assertEquals(9 * 60, first.getStartMinute());
+        assertEquals(12 * 60 + 30, first.getEndMinute());
+        assertEquals(15, first.getSlotMinutes());
+
+        Calendar day = Calendar.getInstance();
+        day.set(2019, Calendar.DECEMBER, 16);
+        assertTrue(first.runsOn(day));
+        day.set(2019, Calendar.DECEMBER, 17);
+        assertTrue(first.runsOn(day));
+        day.set(2019, Calendar.DECEMBER, 18);
+        assertFalse(first.runsOn(day));
+        day.set(2019, Calendar.DECEMBER, 23);
+        assertFalse(first.runsOn(day));
+        day.set(2019, Calendar.DECEMBER, 21);
+        assertTrue(result.get(1).runsOn(day));
+    }
+
+    /**
+     * Test of fromProperties method, of class SessionTemplate, with a
+     * template missing its session.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromPropertiesMissing() {
+        System.out.println("fromPropertiesMissing");
+        Properties props = new Properties();
+        props.setProperty("slot.template.1.schedule", "/Schedule/sched1111");
+        props.setProperty("slot.template.1.days", "MON");
+        props.setProperty("slot.template.1.length", "15");
+        SessionTemplate.fromProperties(props);
+    }
+
+    /**
+     * Test of the SessionTemplate constructor, with a session which ends
+     * before it starts.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadSession() {
+        System.out.println("badSession");
+        new SessionTemplate(1, "/Schedule/sched1111", 2, 600, 540, 15,
+                new HashSet<Integer>());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShardedSlotStoreTest {
+
+    public ShardedSlotStoreTest() {
+    }
+
+    private ShardedSlotStore makeStore() {
+        DataStore data = DataStore.getInstance();
+        return new ShardedSlotStore(data.makeSlots(),
+                StoreSnapshot.servicesOf(data.makeSchedules()),
+                new ShardedSlotStore.ShardBuilder() {
+            @Override
+            public SlotStore build(List<Slot> slots) {
+                return new IndexedSlotStore(slots);
+            }
+        });
+    }
+
+    /**
+     * Test of shard method, of class ShardedSlotStore.
+     */
+    @Test
+    public void testShard() {
+        System.out.println("shard");
+        ShardedSlotStore instance = makeStore();
+        assertEquals(2, instance.getShardCount());
+        assertEquals(40, instance.size());
+        SlotStore shard = instance.shard("918999198999");
+        assertEquals(20, shard.size());
+        ArrayList<Slot> result = new ArrayList<>();
+        shard.addAll("/Schedule/sched2222", null, result);
+        assertEquals(0, result.size());
+        shard.addAll("/Schedule/sched1111", null, result);
+        assertEquals(20, result.size());
+        assertEquals(0, instance.shard("000000000000").size());
+    }
+
+    /**
+     * Test of compareAndSetStatus and count methods, of class
+     * ShardedSlotStore.
+     */
+    @Test
+    public void testCompareAndSetStatus() {
+        System.out.println("compareAndSetStatus");
+        ShardedSlotStore instance = makeStore();
+        assertTrue(instance.compareAndSetStatus("slot001", SlotStatus.FREE, SlotStatus.BUSY));
+        assertFalse(instance.compareAndSetStatus("slot001", SlotStatus.FREE, SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.getSlot("slot001").getStatus());
+        assertEquals(39, instance.count(SlotStatus.FREE));
+        assertEquals(19, instance.shard("918999198999").count(SlotStatus.FREE));
+        assertEquals(20, instance.shard("118111118111").count(SlotStatus.FREE));
+        assertNull(instance.getStatus("slot999"));
+        assertFalse(instance.compareAndSetStatus("slot999", SlotStatus.FREE, SlotStatus.BUSY));
+    }
+
+    /**
+     * Test of idAt and statusAt methods, of class ShardedSlotStore.
+     */
+    @Test
+    public void testIdAt() {
+        System.out.println("idAt");
+        ShardedSlotStore instance = makeStore();
+        instance.setStatus("slot002", SlotStatus.BUSY);
+        assertEquals("slot001", instance.idAt(0));
+        assertEquals(SlotStatus.BUSY, instance.statusAt(1));
+        for (int i = 0; i < instance.size(); i++) {
+            String id = instance.idAt(i);
+            assertEquals(id, instance.slotAt(i).getId());
+            assertEquals(instance.getSlot(id).getEnd().getTime(), instance.endAt(i));
+        }
+    }
+
+    /**
+     * Test of retire method, of class ShardedSlotStore.
+     */
+    @Test
+    public void testRetire() {
+        System.out.println("retire");
+        ShardedSlotStore instance = makeStore();
+        assertFalse(instance.isRetired());
+        instance.retire();
+        assertTrue(instance.isRetired());
+        assertTrue(instance.shard("118111118111").isRetired());
+        assertFalse(instance.compareAndSetStatus("slot001", SlotStatus.FREE, SlotStatus.BUSY));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SlotCursorTest {
+
+    public SlotCursorTest() {
+    }
+
+    /**
+     * Test of after and toString methods, of class SlotCursor.
+     */
+    @Test
+    public void testAfter() {
+        System.out.println("after");
+        Slot slot = DataStore.getInstance().makeSlots().get(0);
+        SlotCursor instance = SlotCursor.after(slot);
+        assertEquals("/Schedule/sched1111", instance.getScheduleRef());
+        assertEquals(slot.getStart().getTime(), instance.getStart());
+        assertEquals("slot001", instance.getId());
+        assertEquals("sched1111:" + slot.getStart().getTime() + ":slot001", instance.toString());
+    }
+
+    /**
+     * Test of parse method, of class SlotCursor.
+     */
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        SlotCursor result = SlotCursor.parse("sched2222:1546329600000:slot:051");
+        assertEquals("/Schedule/sched2222", result.getScheduleRef());
+        assertEquals(1546329600000L, result.getStart());
+        assertEquals("slot:051", result.getId());
+        assertEquals("sched2222:1546329600000:slot:051", result.toString());
+        assertNull(SlotCursor.parse(null));
+        assertNull(SlotCursor.parse("first"));
+        assertNull(SlotCursor.parse("sched2222:soon:slot051"));
+        assertNull(SlotCursor.parse(":1546329600000:slot051"));
+        assertNull(SlotCursor.parse("sched2222:1546329600000:"));
+    }
+}
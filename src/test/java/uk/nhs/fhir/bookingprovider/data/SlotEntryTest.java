@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.Date;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SlotEntryTest {
+
+    public SlotEntryTest() {
+    }
+
+    /**
+     * Helper to make an entry for a Slot starting at a given time.
+     *
+     * @param id The id to give the Slot.
+     * @param start The start time in epoch millis.
+     * @return The new entry.
+     */
+    private SlotEntry makeEntry(String id, long start) {
+        Slot slot = new Slot();
+        slot.setId(id);
+        slot.setStart(new Date(start));
+        slot.setStatus(Slot.SlotStatus.FREE);
+        return new SlotEntry(slot, null);
+    }
+
+    /**
+     * Test of compareAndSetStatus method, of class SlotEntry.
+     */
+    @Test
+    public void testCompareAndSetStatus() {
+        System.out.println("compareAndSetStatus");
+        SlotEntry instance = makeEntry("a", 1000);
+        assertEquals(Slot.SlotStatus.FREE, instance.getStatus());
+        assertTrue(instance.compareAndSetStatus(Slot.SlotStatus.FREE, Slot.SlotStatus.BUSY));
+        assertFalse(instance.compareAndSetStatus(Slot.SlotStatus.FREE, Slot.SlotStatus.BUSY));
+        assertEquals(Slot.SlotStatus.BUSY, instance.getStatus());
+    }
+
+    /**
+     * Test of BY_START ordering, of class SlotEntry.
+     */
+    @Test
+    public void testByStart() {
+        System.out.println("BY_START");
+        SlotEntry a = makeEntry("a", 1000);
+        SlotEntry b = makeEntry("b", 1000);
+        SlotEntry c = makeEntry("c", 500);
+        assertTrue(SlotEntry.BY_START.compare(a, b) < 0);
+        assertTrue(SlotEntry.BY_START.compare(c, a) < 0);
+        assertEquals(0, SlotEntry.BY_START.compare(a, makeEntry("a", 1000)));
+    }
+
+    /**
+     * Test of probe method, of class SlotEntry.
+     */
+    @Test
+    public void testProbe() {
+        System.out.println("probe");
+        SlotEntry a = makeEntry("a", 1000);
+        assertTrue(SlotEntry.BY_START.compare(SlotEntry.probe(1000), a) < 0);
+        assertTrue(SlotEntry.BY_START.compare(SlotEntry.probe(1001), a) > 0);
+    }
+}
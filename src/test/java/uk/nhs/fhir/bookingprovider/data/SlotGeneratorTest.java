@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SlotGeneratorTest {
+
+    /**
+     * Every day of the week.
+     */
+    private static final int ALL_DAYS = 0xFE;
+
+    public SlotGeneratorTest() {
+    }
+
+    /**
+     * Helper to get midnight at the start of a given day.
+     */
+    private Calendar midnight(int year, int month, int date) {
+        Calendar day = Calendar.getInstance();
+        day.clear();
+        day.set(year, month, date);
+        return day;
+    }
+
+    /**
+     * Test of generate method, of class SlotGenerator.
+     */
+    @Test
+    public void testGenerate() {
+        System.out.println("generate");
+        List<SessionTemplate> templates = Arrays.asList(
+                new SessionTemplate(1, "/Schedule/sched1111", ALL_DAYS, 9 * 60, 12 * 60 + 30, 15,
+                        new HashSet<>(Arrays.asList(20191226))),
+                new SessionTemplate(2, "/Schedule/sched2222",
+                        1 << Calendar.MONDAY, 14 * 60, 15 * 60, 20, new HashSet<Integer>()));
+        SlotGenerator instance = new SlotGenerator(templates, "http://profile", new Flyweights());
+        Calendar first = midnight(2019, Calendar.DECEMBER, 23);
+        long before = first.getTimeInMillis();
+        List<Slot> result = instance.generate(first, 7);
+        assertEquals(before, first.getTimeInMillis());
+        // 14 a day for six days, plus 3 on the Monday.
+        assertEquals(14 * 6 + 3, result.size());
+        Slot slot = result.get(3);
+        assertEquals("slot120191223003", slot.getId());
+        assertEquals(midnight(2019, Calendar.DECEMBER, 23).getTimeInMillis() + (9 * 60 + 45) * 60000L,
+                slot.getStart().getTime());
+        assertEquals(15 * 60000L, slot.getEnd().getTime() - slot.getStart().getTime());
+        assertEquals(Slot.SlotStatus.FREE, slot.getStatus());
+        assertEquals("/Schedule/sched1111", slot.getSchedule().getReference());
+        assertSame(slot.getMeta(), result.get(0).getMeta());
+        assertEquals("slot220191223000", result.get(14 * 6).getId());
+
+        // Generating again gives the same ids.
+        assertEquals("slot120191223003", instance.generate(first, 1).get(3).getId());
+        for (Slot s : result) {
+            assertFalse(s.getId().startsWith("slot120191226"));
+        }
+    }
+
+    /**
+     * Test of generate method, of class SlotGenerator, with two sessions in
+     * a Schedule, whose Slots come out in start time order.
+     */
+    @Test
+    public void testGenerateTwoSessions() {
+        System.out.println("generateTwoSessions");
+        List<SessionTemplate> templates = Arrays.asList(
+                new SessionTemplate(4, "/Schedule/sched1111", ALL_DAYS, 14 * 60, 15 * 60, 30,
+                        new HashSet<Integer>()),
+                new SessionTemplate(3, "/Schedule/sched1111", ALL_DAYS, 9 * 60, 10 * 60, 30,
+                        new HashSet<Integer>()));
+        SlotGenerator instance = new SlotGenerator(templates, "http://profile", new Flyweights());
+        List<Slot> result = instance.generate(midnight(2019, Calendar.JUNE, 3), 2);
+        assertEquals(8, result.size());
+        ArrayList<String> ids = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++) {
+            ids.add(result.get(i).getId());
+            if (i > 0) {
+                assertTrue(result.get(i - 1).getStart().before(result.get(i).getStart()));
+            }
+        }
+        assertEquals("slot320190603000", ids.get(0));
+        assertEquals("slot420190603000", ids.get(2));
+        assertEquals("slot320190604000", ids.get(4));
+    }
+}
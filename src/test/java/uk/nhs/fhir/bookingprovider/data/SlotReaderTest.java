@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SlotReaderTest {
+
+    private static final String SLOT1 = "{\"resourceType\":\"Slot\",\"id\":\"imp001\",\"status\":\"free\"}";
+
+    private static final String SLOT2 = "{\"resourceType\":\"Slot\",\"id\":\"imp002\",\"status\":\"busy\"}";
+
+    public SlotReaderTest() {
+    }
+
+    private SlotReader reader(String text, boolean bundle) {
+        return new SlotReader(new ByteArrayInputStream(text.getBytes(Charset.forName("UTF-8"))), bundle);
+    }
+
+    /**
+     * Test of next method, of class SlotReader, reading NDJSON.
+     */
+    @Test
+    public void testNextNdjson() throws IOException {
+        System.out.println("next");
+        SlotReader instance = reader(SLOT1 + "\n\n" + SLOT2 + "\n", false);
+        assertEquals("imp001", instance.next().getIdElement().getIdPart());
+        Slot result = instance.next();
+        assertEquals("imp002", result.getIdElement().getIdPart());
+        assertEquals(Slot.SlotStatus.BUSY, result.getStatus());
+        assertNull(instance.next());
+        assertEquals(2, instance.getCount());
+        instance.close();
+    }
+
+    /**
+     * Test of next method, of class SlotReader, reading a Bundle with an
+     * entry which isn't a Slot.
+     */
+    @Test
+    public void testNextBundle() throws IOException {
+        System.out.println("next");
+        String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":["
+                + "{\"fullUrl\":\"Slot/imp001\",\"resource\":" + SLOT1 + "},"
+                + "{\"resource\":{\"resourceType\":\"Schedule\",\"id\":\"s1\"}},"
+                + "{\"resource\":" + SLOT2 + "}]}";
+        SlotReader instance = reader(bundle, true);
+        assertEquals("imp001", instance.next().getIdElement().getIdPart());
+        assertEquals("imp002", instance.next().getIdElement().getIdPart());
+        assertNull(instance.next());
+        assertNull(instance.next());
+        instance.close();
+    }
+
+    /**
+     * Test of next method, of class SlotReader, with a line which can't be
+     * parsed.
+     */
+    @Test
+    public void testNextBadLine() throws IOException {
+        System.out.println("next");
+        SlotReader instance = reader("{\"resourceType\":\"Slot\",\"status\":\"nonsense\"}\n" + SLOT2, false);
+        try {
+            instance.next();
+            fail("Expected a DataFormatException");
+        } catch (DataFormatException ex) {
+            assertTrue(ex.getMessage().startsWith("Resource 1"));
+        }
+        assertEquals("imp002", instance.next().getIdElement().getIdPart());
+        instance.close();
+    }
+
+    /**
+     * Test of next method, of class SlotReader, with something which isn't a
+     * Bundle.
+     */
+    @Test(expected = IOException.class)
+    public void testNextNotBundle() throws IOException {
+        System.out.println("next");
+        reader("[1, 2]", true).next();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SlotTableTest {
+
+    public SlotTableTest() {
+    }
+
+    /**
+     * Helper to build a table from the standard test data.
+     *
+     * @param offHeap Whether to allocate the columns off the heap.
+     * @return The new table.
+     */
+    private SlotTable makeTable(boolean offHeap) {
+        return SlotTable.of(DataStore.getInstance().makeSlots(), offHeap);
+    }
+
+    /**
+     * Test of getSlot method, of class SlotTable, checking the Slot built
+     * matches the one it was made from.
+     */
+    @Test
+    public void testGetSlot() {
+        System.out.println("getSlot");
+        ArrayList<Slot> slots = DataStore.getInstance().makeSlots();
+        SlotTable instance = SlotTable.of(slots, true);
+        assertEquals(40, instance.size());
+        Slot expected = slots.get(21);
+        Slot result = instance.getSlot("slot052");
+        assertEquals("slot052", result.getId());
+        assertEquals(expected.getStart(), result.getStart());
+        assertEquals(expected.getEnd(), result.getEnd());
+        assertEquals(SlotStatus.FREE, result.getStatus());
+        assertEquals("/Schedule/sched2222", result.getSchedule().getReference());
+        assertEquals(expected.getMeta().getProfile().get(0).getValue(),
+                result.getMeta().getProfile().get(0).getValue());
+        assertNull(instance.getSlot("slot999"));
+        assertNull(instance.getSlot("slot52"));
+        assertNull(instance.getSlot("other001"));
+    }
+
+    /**
+     * Test of compareAndSetStatus and count methods, of class SlotTable.
+     */
+    @Test
+    public void testCompareAndSetStatus() {
+        System.out.println("compareAndSetStatus");
+        SlotTable instance = makeTable(false);
+        assertEquals(40, instance.count(SlotStatus.FREE));
+        assertTrue(instance.compareAndSetStatus("slot005", SlotStatus.FREE, SlotStatus.BUSY));
+        assertFalse(instance.compareAndSetStatus("slot005", SlotStatus.FREE, SlotStatus.BUSY));
+        assertFalse(instance.compareAndSetStatus("slot999", SlotStatus.FREE, SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.getStatus("slot005"));
+        assertEquals(SlotStatus.BUSY, instance.getSlot("slot005").getStatus());
+        assertEquals(39, instance.count(SlotStatus.FREE));
+        assertEquals(1, instance.count(SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.setStatus("slot005", SlotStatus.FREE));
+        assertEquals(40, instance.count(SlotStatus.FREE));
+        assertNull(instance.setStatus("slot999", SlotStatus.FREE));
+    }
+
+    /**
+     * Test of addStartingBetween method, of class SlotTable.
+     */
+    @Test
+    public void testAddStartingBetween() {
+        System.out.println("addStartingBetween");
+        SlotTable instance = makeTable(true);
+        long from = instance.getSlot("slot003").getStart().getTime();
+        long to = instance.getSlot("slot006").getStart().getTime();
+        instance.setStatus("slot004", SlotStatus.BUSY);
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addStartingBetween("/Schedule/sched1111", null, from, to, result);
+        assertEquals(3, result.size());
+        assertEquals("slot003", result.get(0).getId());
+        assertEquals("slot005", result.get(2).getId());
+        result.clear();
+        instance.addStartingBetween("/Schedule/sched1111", SlotStatus.FREE, from, to, result);
+        assertEquals(2, result.size());
+        result.clear();
+        instance.addStartingBetween("/Schedule/nosuch", null, from, to, result);
+        assertEquals(0, result.size());
+    }
+
+    /**
+     * Test of addPage method, of class SlotTable.
+     */
+    @Test
+    public void testAddPage() {
+        System.out.println("addPage");
+        SlotTable instance = makeTable(true);
+        long start = instance.getSlot("slot003").getStart().getTime();
+        instance.setStatus("slot005", SlotStatus.BUSY);
+        ArrayList<Slot> result = new ArrayList<>();
+        assertEquals(3, instance.addPage("/Schedule/sched1111", null, start, null, Long.MAX_VALUE, 3, result));
+        assertEquals("slot003", result.get(0).getId());
+        assertEquals("slot005", result.get(2).getId());
+        result.clear();
+        assertEquals(3, instance.addPage("/Schedule/sched1111", SlotStatus.FREE, start, "slot003", Long.MAX_VALUE, 3, result));
+        assertEquals("slot004", result.get(0).getId());
+        assertEquals("slot007", result.get(2).getId());
+        result.clear();
+        long end = instance.getSlot("slot006").getStart().getTime();
+        assertEquals(2, instance.addPage("/Schedule/sched1111", null, start, "slot003", end, 10, result));
+        result.clear();
+        assertEquals(0, instance.addPage("/Schedule/nosuch", null, start, null, Long.MAX_VALUE, 10, result));
+    }
+
+    /**
+     * Test of addAll method, of class SlotTable.
+     */
+    @Test
+    public void testAddAll() {
+        System.out.println("addAll");
+        SlotTable instance = makeTable(false);
+        instance.setStatus("slot060", SlotStatus.BUSY);
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addAll("/Schedule/sched2222", null, result);
+        assertEquals(20, result.size());
+        assertEquals("slot051", result.get(0).getId());
+        result.clear();
+        instance.addAll("/Schedule/sched2222", SlotStatus.BUSY, result);
+        assertEquals(1, result.size());
+        assertEquals("slot060", result.get(0).getId());
+    }
+
+    /**
+     * Test of idAt and statusAt methods, of class SlotTable.
+     */
+    @Test
+    public void testIdAt() {
+        System.out.println("idAt");
+        SlotTable instance = makeTable(false);
+        instance.setStatus("slot001", SlotStatus.BUSY);
+        assertEquals("slot001", instance.idAt(0));
+        assertEquals(SlotStatus.BUSY, instance.statusAt(0));
+        assertEquals("slot070", instance.idAt(39));
+    }
+
+    /**
+     * Test of of method, of class SlotTable, with the Slots out of order,
+     * which should still be laid out by Schedule then start time.
+     */
+    @Test
+    public void testOfShuffled() {
+        System.out.println("ofShuffled");
+        ArrayList<Slot> slots = DataStore.getInstance().makeSlots();
+        Collections.shuffle(slots, new Random(42));
+        SlotTable instance = SlotTable.of(slots, false);
+        assertEquals(40, instance.size());
+        // The Schedules come in the order they are first met
+        String first = instance.getSlot(instance.idAt(0)).getSchedule().getReference();
+        ArrayList<Slot> result = new ArrayList<>();
+        instance.addAll(first, null, result);
+        instance.addAll(first.equals("/Schedule/sched1111") ? "/Schedule/sched2222" : "/Schedule/sched1111", null, result);
+        assertEquals(40, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(result.get(i).getId(), instance.idAt(i));
+            if (i > 0 && i != 20) {
+                assertTrue(result.get(i - 1).getStart().before(result.get(i).getStart()));
+            }
+        }
+        for (Slot slot : slots) {
+            assertEquals(slot.getStart(), instance.getSlot(slot.getId()).getStart());
+        }
+    }
+
+    /**
+     * Test of of method, of class SlotTable, with ids it can't hold.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testOfBadId() {
+        System.out.println("ofBadId");
+        ArrayList<Slot> slots = DataStore.getInstance().makeSlots();
+        slots.get(5).setId("other");
+        SlotTable.of(slots, false);
+    }
+
+    /**
+     * Test of cantHold method, of class SlotTable.
+     */
+    @Test
+    public void testCantHold() {
+        System.out.println("cantHold");
+        SlotTable instance = makeTable(false);
+        Slot slot = new Slot();
+        slot.setId("slot201");
+        assertNull(instance.cantHold(slot));
+        slot.setId("slot20191225001");
+        assertNull(instance.cantHold(slot));
+        slot.setId("slot01");
+        assertNotNull(instance.cantHold(slot));
+        slot.setId("slot0201");
+        assertNotNull(instance.cantHold(slot));
+        slot.setId("imp001");
+        assertNotNull(instance.cantHold(slot));
+    }
+
+    /**
+     * Test of getSlot method, of class SlotTable, checking every Slot comes
+     * back just as it went in, and that one with more than the table holds
+     * is turned away.
+     */
+    @Test
+    public void testRoundTrip() {
+        System.out.println("roundTrip");
+        ArrayList<Slot> slots = DataStore.getInstance().makeSlots();
+        SlotTable instance = SlotTable.of(slots, true);
+        for (Slot slot : slots) {
+            assertNull(instance.cantHold(slot));
+            assertTrue(slot.getId(), slot.equalsDeep(instance.getSlot(slot.getId())));
+        }
+        Slot rich = slots.get(3).copy();
+        rich.setComment("Wheelchair access");
+        assertNotNull(instance.cantHold(rich));
+        rich = slots.get(3).copy();
+        rich.addServiceType().setText("GP");
+        assertNotNull(instance.cantHold(rich));
+        rich = slots.get(3).copy();
+        rich.getMeta().setVersionId("2");
+        assertNotNull(instance.cantHold(rich));
+        rich.setMeta(null);
+        assertNull(instance.cantHold(rich));
+    }
+
+    /**
+     * Test of retire method, of class SlotTable.
+     */
+    @Test
+    public void testRetire() {
+        System.out.println("retire");
+        SlotTable instance = makeTable(true);
+        instance.setStatus("slot003", SlotStatus.BUSY);
+        instance.retire();
+        assertTrue(instance.isRetired());
+        assertFalse(instance.compareAndSetStatus("slot003", SlotStatus.BUSY, SlotStatus.FREE));
+        assertNull(instance.setStatus("slot004", SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.getStatus("slot003"));
+        assertEquals(1, instance.count(SlotStatus.BUSY));
+        assertEquals(SlotStatus.BUSY, instance.slotAt(2).getStatus());
+        assertEquals(instance.slotAt(2).getEnd().getTime(), instance.endAt(2));
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import org.hl7.fhir.dstu3.model.Appointment;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SnapshotFileTest {
+
+    private File dir;
+
+    public SnapshotFileTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("snapshot").toFile();
+        DataStore.getInstance().initialize();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DataStore.getInstance().closeJournal();
+        DataStore.getInstance().initialize();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test of write and load methods, of class SnapshotFile.
+     */
+    @Test
+    public void testWriteLoad() throws IOException {
+        System.out.println("write");
+        DataStore instance = DataStore.getInstance();
+        assertTrue(instance.bookSlotIfFree("/Slot/slot005"));
+        Appointment appt = new Appointment();
+        appt.setStatus(Appointment.AppointmentStatus.BOOKED);
+        String id = instance.addAppointment(appt).getIdPart();
+        File file = SnapshotFile.write(dir, 3, new ArrayList<Slot>(), instance.getSnapshot().getSlotStore(), instance.getAppointments());
+        assertEquals(SnapshotFile.file(dir, 3), file);
+
+        instance.initialize();
+        SnapshotFile.load(file, instance);
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot005").getStatus());
+        assertEquals(39, instance.getFreeSlotCount());
+        assertEquals(1, instance.getAppointments().size());
+        assertEquals(id, instance.getAppointments().get(0).getIdElement().getIdPart());
+    }
+
+    /**
+     * Test of load method, of class SnapshotFile, with a damaged file.
+     */
+    @Test(expected = IOException.class)
+    public void testLoadDamaged() throws IOException {
+        System.out.println("load");
+        DataStore instance = DataStore.getInstance();
+        File file = SnapshotFile.write(dir, 1, new ArrayList<Slot>(), instance.getSnapshot().getSlotStore(), instance.getAppointments());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(20);
+            raf.write(0x7f);
+        }
+        SnapshotFile.load(file, instance);
+    }
+
+    /**
+     * Test of snapshots and deleteBefore methods, of class SnapshotFile.
+     */
+    @Test
+    public void testSnapshots() throws IOException {
+        System.out.println("snapshots");
+        DataStore instance = DataStore.getInstance();
+        SnapshotFile.write(dir, 2, new ArrayList<Slot>(), instance.getSnapshot().getSlotStore(), instance.getAppointments());
+        SnapshotFile.write(dir, 10, new ArrayList<Slot>(), instance.getSnapshot().getSlotStore(), instance.getAppointments());
+        assertArrayEquals(new long[] {2, 10}, SnapshotFile.snapshots(dir));
+        SnapshotFile.deleteBefore(dir, 10);
+        assertArrayEquals(new long[] {10}, SnapshotFile.snapshots(dir));
+    }
+
+    /**
+     * Test of recovery through DataStore, from a snapshot plus the journal
+     * written after it.
+     */
+    @Test
+    public void testRecovery() throws IOException {
+        System.out.println("recovery");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        assertTrue(instance.bookSlotIfFree("/Slot/slot006"));
+        assertTrue(instance.bookSlotIfFree("/Slot/slot007"));
+        instance.writeSnapshot();
+        assertEquals(1, SnapshotFile.snapshots(dir).length);
+        assertEquals(1, Journal.segments(dir).length);
+        assertTrue(instance.freeSlotIfBooked("/Slot/slot007"));
+        assertTrue(instance.bookSlotIfFree("/Slot/slot008"));
+        instance.closeJournal();
+
+        instance.initialize();
+        instance.openJournal(dir, 0);
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot006").getStatus());
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot007").getStatus());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot008").getStatus());
+        assertEquals(38, instance.getFreeSlotCount());
+    }
+
+    /**
+     * Test of recovery through DataStore where the latest snapshot has a
+     * resource which won't parse, after one which does, which should fall
+     * back to the one before and keep nothing from the bad one.
+     */
+    @Test
+    public void testRecoveryBadSnapshot() throws IOException {
+        System.out.println("recovery");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        assertTrue(instance.bookSlotIfFree("/Slot/slot006"));
+        instance.writeSnapshot();
+        long good = SnapshotFile.snapshots(dir)[0];
+        assertTrue(instance.bookSlotIfFree("/Slot/slot007"));
+        instance.closeJournal();
+
+        assertTrue(instance.bookSlotIfFree("/Slot/slot009"));
+        instance.addAppointment(new Appointment());
+        instance.addAppointment(new Appointment());
+        File bad = SnapshotFile.write(dir, good + 100, new ArrayList<Slot>(), instance.getSnapshot().getSlotStore(), instance.getAppointments());
+        byte[] content = Files.readAllBytes(bad.toPath());
+        String text = new String(content, "ISO-8859-1");
+        int at = text.lastIndexOf("\"Appointment\"");
+        assertTrue(at > 0);
+        content[at + 1] = 'X';
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 8);
+        ByteBuffer.wrap(content).putLong(content.length - 8, crc.getValue());
+        Files.write(bad.toPath(), content);
+
+        instance.initialize();
+        instance.openJournal(dir, 0);
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot006").getStatus());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot007").getStatus());
+        assertEquals(SlotStatus.FREE, instance.getSlotByID("slot009").getStatus());
+        assertEquals(0, instance.getAppointments().size());
+    }
+
+    /**
+     * Test of recovery through DataStore of Slots imported after it was
+     * initialized, first from the journal then from a snapshot.
+     */
+    @Test
+    public void testRecoverImported() throws IOException {
+        System.out.println("recoverImported");
+        DataStore instance = DataStore.getInstance();
+        instance.openJournal(dir, 0);
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DATE, 2);
+        String start = new org.hl7.fhir.dstu3.model.InstantType(cal.getTime()).getValueAsString();
+        cal.add(Calendar.MINUTE, 15);
+        String end = new org.hl7.fhir.dstu3.model.InstantType(cal.getTime()).getValueAsString();
+        String times = ",\"start\":\"" + start + "\",\"end\":\"" + end + "\"}";
+        String feed = "{\"resourceType\":\"Slot\",\"id\":\"imp001\",\"status\":\"free\",\"comment\":\"Ramp\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n"
+                + "{\"resourceType\":\"Slot\",\"id\":\"slot001\",\"status\":\"busy\",\"schedule\":{\"reference\":\"Schedule/sched1111\"}" + times + "\n";
+        SlotReader reader = new SlotReader(new java.io.ByteArrayInputStream(feed.getBytes("UTF-8")), false);
+        assertEquals(2, instance.importSlots(reader).getImported());
+        assertTrue(instance.bookSlotIfFree("/Slot/imp001"));
+        instance.closeJournal();
+
+        instance.initialize();
+        assertNull(instance.getSlotByID("imp001"));
+        instance.openJournal(dir, 0);
+        assertEquals(41, instance.getSlotCount());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("imp001").getStatus());
+        assertEquals("Ramp", instance.getSlotByID("imp001").getComment());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot001").getStatus());
+        assertEquals(cal.getTime().getTime() / 1000, instance.getSlotByID("slot001").getEnd().getTime() / 1000);
+
+        // Once a snapshot is written the journal above is deleted.
+        instance.writeSnapshot();
+        assertEquals(1, Journal.segments(dir).length);
+        instance.closeJournal();
+        instance.initialize();
+        instance.openJournal(dir, 0);
+        assertEquals(41, instance.getSlotCount());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("imp001").getStatus());
+        assertEquals("Ramp", instance.getSlotByID("imp001").getComment());
+        assertEquals(SlotStatus.BUSY, instance.getSlotByID("slot001").getStatus());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 NHS Digital.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.nhs.fhir.bookingprovider.data;
+
+import java.util.ArrayList;
+import org.hl7.fhir.dstu3.model.Slot;
+import org.hl7.fhir.dstu3.model.Slot.SlotStatus;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StoreSnapshotTest {
+
+    public StoreSnapshotTest() {
+    }
+
+    /**
+     * Helper to build a snapshot from the standard test data.
+     *
+     * @param epoch The epoch to give it.
+     * @return The new snapshot.
+     */
+    private StoreSnapshot makeSnapshot(long epoch) {
+        DataStore store = DataStore.getInstance();
+        return new StoreSnapshot(epoch,
+                store.makePractitionerRoles(),
+                store.makePractitioners(),
+                store.makeOrganisations(),
+                store.makeLocations(),
+                store.makeHealthcareServices(),
+                store.makeSchedules(),
+                new IndexedSlotStore(store.makeSlots()));
+    }
+
+    /**
+     * Test of getEpoch method, of class StoreSnapshot.
+     */
+    @Test
+    public void testGetEpoch() {
+        System.out.println("getEpoch");
+        assertEquals(7L, makeSnapshot(7).getEpoch());
+    }
+
+    /**
+     * Test of getSlotByID method, of class StoreSnapshot.
+     */
+    @Test
+    public void testGetSlotByID() {
+        System.out.println("getSlotByID");
+        StoreSnapshot instance = makeSnapshot(1);
+        assertEquals("slot001", instance.getSlotByID("/Slot/slot001").getId());
+        assertNull(instance.getSlotByID("slot999"));
+    }
+
+    /**
+     * Test of getSlotsByHealthcareService method, of class StoreSnapshot.
+     */
+    @Test
+    public void testGetSlotsByHealthcareService() {
+        System.out.println("getSlotsByHealthcareService");
+        StoreSnapshot instance = makeSnapshot(1);
+        assertEquals(20, instance.getSlotsByHealthcareService("918999198999").size());
+        assertEquals(0, instance.getSlotsByHealthcareService("000000000000").size());
+    }
+
+    /**
+     * Test of getSlotsByStatus method, of class StoreSnapshot, checking that
+     * a booking made through the snapshot's SlotStore is seen by its readers.
+     */
+    @Test
+    public void testGetSlotsByStatus() {
+        System.out.println("getSlotsByStatus");
+        StoreSnapshot instance = makeSnapshot(1);
+        assertEquals(40, instance.getFreeSlotCount());
+        assertTrue(instance.getSlotStore().compareAndSetStatus("slot003", SlotStatus.FREE, SlotStatus.BUSY));
+        ArrayList<Slot> result = instance.getSlotsByStatus(SlotStatus.BUSY);
+        assertEquals(1, result.size());
+        assertEquals("slot003", result.get(0).getId());
+        assertEquals(39, instance.getFreeSlotCount());
+        assertEquals(40, instance.getSlots().size());
+        assertEquals(40, instance.getSlotCount());
+    }
+
+    /**
+     * Test of findSlotPage method, of class StoreSnapshot, checking that
+     * paging through every Slot returns the same Slots, in the same order,
+     * as findSlots.
+     */
+    @Test
+    public void testFindSlotPage() {
+        System.out.println("findSlotPage");
+        StoreSnapshot instance = makeSnapshot(1);
+        ArrayList<Slot> all = instance.findSlots(null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+        ArrayList<Slot> result = new ArrayList<>();
+        SlotCursor cursor = instance.findSlotPage(null, null, Long.MIN_VALUE, Long.MAX_VALUE, null, 15, result);
+        assertEquals(15, result.size());
+        assertEquals("sched1111:" + result.get(14).getStart().getTime() + ":slot015", cursor.toString());
+        cursor = instance.findSlotPage(null, null, Long.MIN_VALUE, Long.MAX_VALUE, SlotCursor.parse(cursor.toString()), 15, result);
+        assertEquals(30, result.size());
+        assertEquals("slot060", result.get(29).getId());
+        cursor = instance.findSlotPage(null, null, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 15, result);
+        assertNull(cursor);
+        assertEquals(all.size(), result.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.get(i).getId(), result.get(i).getId());
+        }
+        result.clear();
+        assertNull(instance.findSlotPage("918999198999", null, Long.MIN_VALUE, Long.MAX_VALUE, null, 20, result));
+        assertEquals(20, result.size());
+        result.clear();
+        assertNull(instance.findSlotPage(null, null, Long.MIN_VALUE, Long.MAX_VALUE, SlotCursor.parse("nosuch:0:slot001"), 15, result));
+        assertEquals(0, result.size());
+    }
+
+    /**
+     * Test of getSchedule method, of class StoreSnapshot.
+     */
+    @Test
+    public void testGetSchedule() {
+        System.out.println("getSchedule");
+        StoreSnapshot instance = makeSnapshot(1);
+        assertEquals("sched1111", instance.getSchedule("/Schedule/sched1111").getId());
+        assertNull(instance.getSchedule("/Schedule/nosuch"));
+    }
+
+    /**
+     * Test of getHealthcareService and getLocation methods, of class
+     * StoreSnapshot.
+     */
+    @Test
+    public void testGetReferenceResources() {
+        System.out.println("getHealthcareService");
+        StoreSnapshot instance = makeSnapshot(1);
+        assertNotNull(instance.getHealthcareService("918999198999"));
+        assertNull(instance.getHealthcareService("000000000000"));
+        assertNotNull(instance.getLocation("loc1111"));
+        assertNotNull(instance.getPractitioner());
+        assertNotNull(instance.getPractitionerRole());
+        assertNotNull(instance.getOrganization());
+    }
+}